@@ -1,9 +1,13 @@
 package com.globalsight.ling.tm3.core;
 
+import java.sql.SQLException;
 import java.util.Date;
 import java.util.Iterator;
 
 abstract class AbstractDataHandle<T extends TM3Data> implements TM3Handle<T> {
+    // Chunk size used by the plain purge() call
+    static final int DEFAULT_PURGE_CHUNK_SIZE = 1000;
+
     private BaseTm<T> tm;
     private Date start, end;
     
@@ -29,13 +33,56 @@ abstract class AbstractDataHandle<T extends TM3Data> implements TM3Handle<T> {
         return end;
     }
     
+    /**
+     * Look up counts in the TM's statistics.  These can only be used
+     * when the handle is not restricted by date.
+     * @param locale locale, or null for the whole TM
+     * @return {tuCount, tuvCount}, or null if the counts must be 
+     *         computed from the data
+     */
+    protected long[] getStatistics(TM3Locale locale) throws SQLException {
+        if (start != null && end != null) {
+            return null;
+        }
+        return tm.getStorageInfo().getStatistics().getCounts(locale);
+    }
+    
     @Override
     public void purge() {
+        purge(DEFAULT_PURGE_CHUNK_SIZE, false, null);
+    }
+
+    @Override
+    public void purge(int chunkSize, boolean commitChunks,
+                      TM3ProgressListener listener) {
+        if (chunkSize <= 0) {
+            throw new IllegalArgumentException("Invalid chunk size: " +
+                                               chunkSize);
+        }
         tm.lockForWrite();
-        purgeData();
+        purgeData(chunkSize, commitChunks, listener);
+    }
+
+    /**
+     * Subclasses must implement this.  Implementations should delete
+     * their TUs in chunks of at most chunkSize, calling 
+     * {@link #chunkPurged} after each one.
+     */
+    protected abstract void purgeData(int chunkSize, boolean commitChunks,
+                                      TM3ProgressListener listener);
+
+    /**
+     * Bookkeeping after a chunk of TUs has been purged.
+     */
+    protected void chunkPurged(long done, long total, boolean commitChunks,
+                               TM3ProgressListener listener) {
+        if (commitChunks) {
+            tm.commitAndRelock();
+        }
+        if (listener != null) {
+            listener.progress(done, total);
+        }
     }
-    
-    protected abstract void purgeData();
 
     abstract class TuIterator implements Iterator<TM3Tu<T>> {
 
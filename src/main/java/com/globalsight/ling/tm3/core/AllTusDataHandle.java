@@ -23,6 +23,10 @@ class AllTusDataHandle<T extends TM3Data> extends AbstractDataHandle<T> {
     @Override
     public long getCount() throws TM3Exception {
         try {
+            long[] counts = getStatistics(null);
+            if (counts != null) {
+                return counts[TmStatistics.TUS];
+            }
             return getTm().getStorageInfo().getTuStorage()
                 .getTuCount(getStart(), getEnd());
         } catch (SQLException e) {
@@ -33,6 +37,10 @@ class AllTusDataHandle<T extends TM3Data> extends AbstractDataHandle<T> {
     @Override
     public long getTuvCount() throws TM3Exception {
         try {
+            long[] counts = getStatistics(null);
+            if (counts != null) {
+                return counts[TmStatistics.TUVS];
+            }
             return getTm().getStorageInfo().getTuStorage()
                 .getTuvCount(getStart(), getEnd());
         } catch (SQLException e) {
@@ -41,10 +49,26 @@ class AllTusDataHandle<T extends TM3Data> extends AbstractDataHandle<T> {
     }
 
     @Override
-    public void purgeData() throws TM3Exception {
+    public void purgeData(int chunkSize, boolean commitChunks,
+                          TM3ProgressListener listener) throws TM3Exception {
         try {
-            getTm().getStorageInfo().getTuStorage()
-                .deleteTus(getStart(), getEnd());
+            long total = (listener != null) ? getCount() : -1;
+            long done = 0;
+            long startId = 0;
+            while (true) {
+                // Each chunk is re-selected after the previous one has
+                // been deleted, so this only ever walks forward.
+                TuStorage<T> storage = getTm().getStorageInfo().getTuStorage();
+                List<Long> ids = storage.getTuIdPage(startId, chunkSize,
+                                                     getStart(), getEnd());
+                if (ids.size() == 0) {
+                    break;
+                }
+                storage.deleteTusById(ids);
+                startId = ids.get(ids.size() - 1);
+                done += ids.size();
+                chunkPurged(done, total, commitChunks, listener);
+            }
         } catch (SQLException e) {
             throw new TM3Exception(e);
         }
@@ -50,7 +50,8 @@ class AttributeDataHandle<T extends TM3Data> extends
     }
 
     @Override
-    public void purgeData() throws TM3Exception {
+    public void purgeData(int chunkSize, boolean commitChunks,
+                          TM3ProgressListener listener) throws TM3Exception {
         // Bailing on this one for now.  GlobalSight never calls it.
         throw new UnsupportedOperationException("Not yet implemented");
     }
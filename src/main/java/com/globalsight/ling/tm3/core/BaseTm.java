@@ -3,10 +3,10 @@ package com.globalsight.ling.tm3.core;
 import java.sql.Connection;
 import java.sql.SQLException;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.Date;
 import java.util.HashMap;
 import java.util.HashSet;
-import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
@@ -26,21 +26,52 @@ import org.hibernate.criterion.Restrictions;
 abstract class BaseTm<T extends TM3Data> implements TM3Tm<T> {
     private static Logger LOGGER = Logger.getLogger(BaseTm.class);
     
+    // Number of TUs handled at a time by removeDataByLocale()
+    static final int REMOVE_LOCALE_CHUNK_SIZE = 1000;
+    
+    // Largest number of fuzzy candidates scored in the first round of a
+    // lookup.  Each later round fetches twice as many as the last.
+    static final int FIRST_FUZZY_BATCH = 20;
+    
+    // Number of TUVs sampled to train the content dictionary
+    static final int DICTIONARY_SAMPLE_SIZE = 2000;
+    
+    // Share of a locale's TUVs above which a fingerprint is too common
+    // to be worth looking up
+    static final double DEFAULT_FUZZY_FREQUENCY_CUTOFF = 0.1;
+    
     private Long id;
     private String tuTableName;
     private String tuvTableName;
     private String indexTableName;
     private String attrValTableName;
     private Set<TM3Attribute> attributes = new HashSet<TM3Attribute>();
+    private boolean compressContent = false;
+    private double fuzzyFrequencyCutoff = DEFAULT_FUZZY_FREQUENCY_CUTOFF;
+    private int minHashBands = 0;
+    private int minHashRows = 0;
+    private boolean minHashReady = false;
+    private byte[] contentDictionary;
+    // Comma-separated ids of the target locales to index, or null
+    private String indexedTargetLocales;
+    private TM3FingerprintFunction fingerprintFunction = 
+        TM3FingerprintFunction.MD5;
+    // New TMs start with the current version; old ones are upgraded to V1
+    private TM3TrigramHash trigramHash = TM3TrigramHash.V2;
+    // Set by TM3LocaleRemovalJob while it runs; never written by Hibernate
+    private boolean removingLocales = false;
 
     // Injected
     private TM3Manager manager;
     private Session session;
     private TM3DataFactory<T> factory;
     private boolean indexTarget = false;
+    private boolean minHashLookup = true;
     
     // Transient
     private StorageInfo<T> storage;
+    private ContentCodec codec;
+    private Set<Long> indexedTargetLocaleIds;
 
     BaseTm(TM3DataFactory<T> factory) {
         this.factory = factory;
@@ -101,6 +132,244 @@ abstract class BaseTm<T extends TM3Data> implements TM3Tm<T> {
         this.attrValTableName = name;
     }
         
+    @Override
+    public double getFuzzyFrequencyCutoff() {
+        return fuzzyFrequencyCutoff;
+    }
+    
+    @Override
+    public void setFuzzyFrequencyCutoff(double cutoff) {
+        if (cutoff < 0 || cutoff > 1) {
+            throw new IllegalArgumentException("Invalid cutoff: " + cutoff);
+        }
+        this.fuzzyFrequencyCutoff = cutoff;
+    }
+    
+    @SuppressWarnings("unused")
+    private boolean getCompressContent() {
+        return compressContent;
+    }
+    
+    @SuppressWarnings("unused")
+    private void setCompressContent(boolean compressContent) {
+        this.compressContent = compressContent;
+    }
+    
+    byte[] getContentDictionary() {
+        return contentDictionary;
+    }
+    
+    private void setContentDictionary(byte[] contentDictionary) {
+        this.contentDictionary = contentDictionary;
+        this.codec = null;
+    }
+    
+    /**
+     * Get the codec for this TM's compressed content.  This is needed to
+     * read compressed content even if compression has since been turned
+     * off.
+     */
+    ContentCodec getContentCodec() {
+        if (codec == null) {
+            codec = new ContentCodec(contentDictionary);
+        }
+        return codec;
+    }
+    
+    @Override
+    public boolean isContentCompressed() {
+        return compressContent;
+    }
+    
+    @Override
+    public void setContentCompressed(boolean compressed) throws TM3Exception {
+        try {
+            lockForWrite();
+            if (compressed && contentDictionary == null) {
+                // Once set, the dictionary can never change, since 
+                // content that was compressed with it depends on it.
+                setContentDictionary(ContentCodec.train(getStorageInfo()
+                    .getTuStorage().getContentSample(DICTIONARY_SAMPLE_SIZE)));
+            }
+            this.compressContent = compressed;
+        }
+        catch (SQLException e) {
+            throw new TM3Exception(e);
+        }
+    }
+    
+    @Override
+    public long migrateContent(long startId, int count) throws TM3Exception {
+        try {
+            return getStorageInfo().getTuStorage().migrateContent(startId, 
+                                                                  count);
+        }
+        catch (SQLException e) {
+            throw new TM3Exception(e);
+        }
+    }
+    
+    @Override
+    public int getMinHashBands() {
+        return minHashBands;
+    }
+    
+    @SuppressWarnings("unused")
+    private void setMinHashBands(int bands) {
+        this.minHashBands = bands;
+    }
+    
+    @Override
+    public int getMinHashRows() {
+        return minHashRows;
+    }
+    
+    @SuppressWarnings("unused")
+    private void setMinHashRows(int rows) {
+        this.minHashRows = rows;
+    }
+    
+    @SuppressWarnings("unused")
+    private boolean getMinHashReady() {
+        return minHashReady;
+    }
+    
+    @SuppressWarnings("unused")
+    private void setMinHashReady(boolean ready) {
+        this.minHashReady = ready;
+    }
+    
+    @SuppressWarnings("unused")
+    private boolean getRemovingLocales() {
+        return removingLocales;
+    }
+    
+    @SuppressWarnings("unused")
+    private void setRemovingLocales(boolean removing) {
+        this.removingLocales = removing;
+    }
+    
+    @Override
+    public boolean isMinHashIndexReady() {
+        return minHashBands > 0 && minHashReady;
+    }
+    
+    boolean isMinHashLookup() {
+        return minHashLookup;
+    }
+    
+    @Override
+    public void setMinHashLookup(boolean minHashLookup) {
+        this.minHashLookup = minHashLookup;
+    }
+    
+    @Override
+    public void setMinHash(int bands, int rows) throws TM3Exception {
+        if (bands > 0) {
+            // Check the shape before anything is thrown away
+            new MinHash(bands, rows);
+        }
+        else if (bands < 0) {
+            throw new IllegalArgumentException("Invalid band count: " + bands);
+        }
+        if (bands == minHashBands && (bands == 0 || rows == minHashRows)) {
+            return;
+        }
+        try {
+            lockForWrite();
+            FuzzyIndex<T> index = getStorageInfo().getFuzzyIndex();
+            if (index instanceof MinHashIndex) {
+                ((MinHashIndex<T>) index).clear();
+            }
+            this.minHashBands = bands;
+            this.minHashRows = bands > 0 ? rows : 0;
+            this.minHashReady = false;
+        }
+        catch (SQLException e) {
+            throw new TM3Exception(e);
+        }
+    }
+    
+    /**
+     * Throw away the MinHash rows, keeping the shape, because the 
+     * fingerprints they were made from have changed.  Lookups stop using
+     * the MinHash index until it is rebuilt.
+     */
+    void resetMinHashIndex() throws SQLException {
+        lockForWrite();
+        FuzzyIndex<T> index = getStorageInfo().getFuzzyIndex();
+        if (index instanceof MinHashIndex) {
+            ((MinHashIndex<T>) index).clear();
+        }
+        this.minHashReady = false;
+    }
+    
+    @Override
+    public TM3FingerprintFunction getFingerprintFunction() {
+        return fingerprintFunction;
+    }
+    
+    /**
+     * Record the function the fuzzy index was built with.  Only
+     * TM3ReindexJob should change this.
+     */
+    void setFingerprintFunction(TM3FingerprintFunction fingerprintFunction) {
+        this.fingerprintFunction = fingerprintFunction;
+    }
+    
+    @SuppressWarnings("unused")
+    private String getFingerprintFunctionName() {
+        return fingerprintFunction.name();
+    }
+    
+    @SuppressWarnings("unused")
+    private void setFingerprintFunctionName(String name) {
+        this.fingerprintFunction = TM3FingerprintFunction.valueOf(name);
+    }
+    
+    @Override
+    public TM3TrigramHash getTrigramHash() {
+        return trigramHash;
+    }
+    
+    /**
+     * Record the trigram hash the fuzzy index was built with.  Only
+     * TM3ReindexJob should change this.
+     */
+    void setTrigramHash(TM3TrigramHash trigramHash) {
+        this.trigramHash = trigramHash;
+    }
+    
+    @SuppressWarnings("unused")
+    private int getTrigramHashVersion() {
+        return trigramHash.getVersion();
+    }
+    
+    @SuppressWarnings("unused")
+    private void setTrigramHashVersion(int version) {
+        this.trigramHash = TM3TrigramHash.forVersion(version);
+    }
+    
+    @Override
+    public long buildMinHashIndex(long startId, int count) 
+                throws TM3Exception {
+        FuzzyIndex<T> index = getStorageInfo().getFuzzyIndex();
+        if (!(index instanceof MinHashIndex)) {
+            throw new IllegalStateException("TM " + id + 
+                                            " has no MinHash index");
+        }
+        try {
+            long next = ((MinHashIndex<T>) index).build(startId, count);
+            if (next == 0) {
+                this.minHashReady = true;
+            }
+            return next;
+        }
+        catch (SQLException e) {
+            throw new TM3Exception(e);
+        }
+    }
+    
     TM3Manager getManager() {
         return manager;
     }
@@ -130,6 +399,87 @@ abstract class BaseTm<T extends TM3Data> implements TM3Tm<T> {
         this.indexTarget = indexTarget;
     }
     
+    @SuppressWarnings("unused")
+    private String getIndexedTargetLocaleList() {
+        return indexedTargetLocales;
+    }
+    
+    @SuppressWarnings("unused")
+    private void setIndexedTargetLocaleList(String indexedTargetLocales) {
+        this.indexedTargetLocales = indexedTargetLocales;
+        this.indexedTargetLocaleIds = null;
+    }
+    
+    /**
+     * @return the ids of the target locales to index, or null if the TM
+     *         doesn't keep a list of them
+     */
+    Set<Long> getIndexedTargetLocaleIds() {
+        if (indexedTargetLocales == null) {
+            return null;
+        }
+        if (indexedTargetLocaleIds == null) {
+            Set<Long> ids = new HashSet<Long>();
+            for (String id : indexedTargetLocales.split(",")) {
+                if (id.length() > 0) {
+                    ids.add(Long.valueOf(id));
+                }
+            }
+            indexedTargetLocaleIds = ids;
+        }
+        return indexedTargetLocaleIds;
+    }
+    
+    @Override
+    public void setIndexedTargetLocales(Set<? extends TM3Locale> locales)
+                throws TM3Exception {
+        lockForWrite();
+        if (locales == null) {
+            setIndexedTargetLocaleList(null);
+            return;
+        }
+        SortedSet<Long> ids = new TreeSet<Long>();
+        for (TM3Locale locale : locales) {
+            ids.add(locale.getId());
+        }
+        StringBuilder sb = new StringBuilder();
+        for (Long id : ids) {
+            if (sb.length() > 0) {
+                sb.append(",");
+            }
+            sb.append(id);
+        }
+        setIndexedTargetLocaleList(sb.toString());
+    }
+    
+    @Override
+    public Set<TM3Locale> getIndexedTargetLocales() throws TM3Exception {
+        Set<Long> ids = getIndexedTargetLocaleIds();
+        if (ids == null) {
+            return null;
+        }
+        Set<TM3Locale> locales = new HashSet<TM3Locale>();
+        for (Long id : ids) {
+            locales.add(factory.getLocaleById(session, id));
+        }
+        return locales;
+    }
+    
+    /**
+     * @return true if target TUVs in a locale are fuzzy indexed
+     */
+    boolean isTargetIndexed(TM3Locale locale) {
+        Set<Long> ids = getIndexedTargetLocaleIds();
+        return ids == null ? indexTarget : ids.contains(locale.getId());
+    }
+    
+    /**
+     * @return true if a TUV belongs in the fuzzy index
+     */
+    boolean isIndexed(TM3Tuv<T> tuv) {
+        return tuv.isSource() || isTargetIndexed(tuv.getLocale());
+    }
+    
     @SuppressWarnings("unchecked")
     @Override
     public TM3EventLog getEventLog() throws TM3Exception {
@@ -222,6 +572,29 @@ abstract class BaseTm<T extends TM3Data> implements TM3Tm<T> {
             getCustomAttributes(attributes);
         int count = 0;
         try {
+            // Locales that are in the middle of being removed by a
+            // TM3LocaleRemovalJob are treated as if they were already gone.
+            Set<TM3Locale> removing = getLocalesBeingRemoved();
+            if (!removing.isEmpty()) {
+                if (removing.contains(keyLocale)) {
+                    // Only the source TUVs in this locale will survive
+                    lookupTarget = false;
+                }
+                if (matchLocales != null) {
+                    Set<TM3Locale> remaining = 
+                        new HashSet<TM3Locale>(matchLocales);
+                    remaining.removeAll(removing);
+                    matchLocales = remaining;
+                }
+            }
+            // A fuzzy lookup of targets that aren't indexed would quietly
+            // miss them
+            if (lookupTarget && matchType != TM3MatchType.EXACT &&
+                    getIndexedTargetLocaleIds() != null &&
+                    !isTargetIndexed(keyLocale)) {
+                throw new IllegalArgumentException("Target TUVs in " + 
+                        keyLocale + " are not indexed in TM " + id);
+            }
             switch (matchType) {
             case EXACT:
                 getExactMatches(conn, results, matchKey, keyLocale, matchLocales, inlineAttributes, customAttributes, maxResults, lookupTarget);
@@ -241,6 +614,11 @@ abstract class BaseTm<T extends TM3Data> implements TM3Tm<T> {
                 }
                 break;
             }
+            for (TM3LeverageMatch<T> match : results.getMatches()) {
+                for (TM3Locale locale : removing) {
+                    match.getTu().removeTargetTuvByLocale(locale);
+                }
+            }
         } catch (SQLException e) {
             throw new TM3Exception(e);
         }
@@ -292,49 +670,78 @@ abstract class BaseTm<T extends TM3Data> implements TM3Tm<T> {
                                                threshold);
         }
         
-        List<FuzzyCandidate<T>> candidates = getStorageInfo().getFuzzyIndex()
+        // We want to avoid returning the same match as both exact and 
+        // fuzzy, so exact matches are skipped as candidates are scored.
+        Set<Long> exactTuvIds = new HashSet<Long>();
+        for (TM3LeverageMatch<T> match : results.getMatches()) {
+            exactTuvIds.add(match.getTuv().getId());
+        }
+        int needed = maxResults - results.getMatches().size();
+        if (needed <= 0) {
+            return;
+        }
+
+        FuzzyIndex<T>.Lookup lookup = getStorageInfo().getFuzzyIndex()
                 .lookup(matchKey, keyLocale, matchLocales,
-                        inlineAttributes, customAttributes, maxResults, lookupTarget);
+                        inlineAttributes, customAttributes, 
+                        threshold, lookupTarget);
 
         SortedSet<FuzzyCandidate<T>> sorted = 
             new TreeSet<FuzzyCandidate<T>>(FuzzyCandidate.COMPARATOR);
+        TM3FuzzyMatchScorer<T> scorer = getDataFactory().getFuzzyMatchScorer();
+        // Compile the key once for the whole lookup, if the scorer can
+        Object compiledKey = null;
+        if (scorer instanceof TM3BatchFuzzyMatchScorer) {
+            compiledKey = ((TM3BatchFuzzyMatchScorer<T, ?>) scorer)
+                .prepare(matchKey, keyLocale);
+        }
 
-        // Score and sort all the results, then select best maxResults
-        for (FuzzyCandidate<T> candidate : candidates) {
-            float score = getDataFactory().getFuzzyMatchScorer()
-                    .score(matchKey, candidate.getContent(), keyLocale);
-            // Fix any errant scoring
-            if (score < 0) score = 0;
-            if (score > 1) score = 1;
-            
-            int normalizedScore = (int)(score * 100);
-            if (normalizedScore >= threshold) {
-                candidate.setScore(normalizedScore);
-                sorted.add(candidate);
+        // Fetch and score candidates in growing batches.  If the scorer
+        // lets us bound the scores of the remaining candidates, stop once
+        // none of them could make it into the results; otherwise, score
+        // everything the lookup finds.
+        boolean bounded = scorer instanceof TM3BoundedFuzzyMatchScorer;
+        int batch = Math.min(needed, FIRST_FUZZY_BATCH / 2) * 2;
+        while (!lookup.isExhausted()) {
+            if (bounded) {
+                int bound = lookup.getScoreBound();
+                if (bound < threshold) {
+                    break;
+                }
+                if (sorted.size() >= needed && 
+                        bound <= sorted.last().getScore()) {
+                    break;
+                }
             }
+            List<FuzzyCandidate<T>> candidates = lookup.next(batch);
+            float[] scores = score(scorer, compiledKey, matchKey, keyLocale,
+                                   candidates);
+            for (int i = 0; i < scores.length; i++) {
+                FuzzyCandidate<T> candidate = candidates.get(i);
+                float score = scores[i];
+                // Fix any errant scoring
+                if (score < 0) score = 0;
+                if (score > 1) score = 1;
+                
+                int normalizedScore = (int)(score * 100);
+                if (normalizedScore >= threshold && 
+                        !exactTuvIds.contains(candidate.getId())) {
+                    candidate.setScore(normalizedScore);
+                    sorted.add(candidate);
+                    if (sorted.size() > needed) {
+                        sorted.remove(sorted.last());
+                    }
+                }
+            }
+            batch = batch > Integer.MAX_VALUE / 2 ? Integer.MAX_VALUE : batch * 2;
         }
         
-        // Now take the n highest, load them completely, and return them.
-        // There are some complications here.  We want to avoid returning 
-        // the same match as both exact and fuzzy.  But we also want to 
-        // make sure that by filtering duplicates we end up with 
-        // too few results.  A better implementation might take the
-        // exact match tuv ids and integrate them into the fuzzy query
-        // as an exclude.
-        candidates.clear();
-        Set<Long> exactTuvIds = new HashSet<Long>();
-        for (TM3LeverageMatch<T> match : results.getMatches()) {
-            exactTuvIds.add(match.getTuv().getId());
-        }
-        int max = maxResults - results.getMatches().size();
-        Iterator<FuzzyCandidate<T>> it = sorted.iterator();
-        while (candidates.size() < max && it.hasNext()) {
-            FuzzyCandidate<T> c = it.next();
-            if (!exactTuvIds.contains(c.getId())) {
-                candidates.add(c);
-                if (LOGGER.isDebugEnabled()) {
-                    LOGGER.debug("Fuzzy Match " + c);
-                }
+        // Now load the n highest completely, and return them.
+        List<FuzzyCandidate<T>> candidates = 
+            new ArrayList<FuzzyCandidate<T>>(sorted);
+        if (LOGGER.isDebugEnabled()) {
+            for (FuzzyCandidate<T> c : candidates) {
+                LOGGER.debug("Fuzzy Match " + c);
             }
         }
         
@@ -346,6 +753,26 @@ abstract class BaseTm<T extends TM3Data> implements TM3Tm<T> {
         }
     }
    
+    @SuppressWarnings("unchecked")
+    private float[] score(TM3FuzzyMatchScorer<T> scorer, Object compiledKey,
+            T matchKey, TM3Locale keyLocale,
+            List<FuzzyCandidate<T>> candidates) {
+        if (scorer instanceof TM3BatchFuzzyMatchScorer) {
+            List<T> contents = new ArrayList<T>(candidates.size());
+            for (FuzzyCandidate<T> candidate : candidates) {
+                contents.add(candidate.getContent());
+            }
+            return ((TM3BatchFuzzyMatchScorer<T, Object>) scorer)
+                .score(compiledKey, contents);
+        }
+        float[] scores = new float[candidates.size()];
+        for (int i = 0; i < scores.length; i++) {
+            scores[i] = scorer.score(matchKey, 
+                    candidates.get(i).getContent(), keyLocale);
+        }
+        return scores;
+    }
+    
     @Override
     public TM3Saver<T> createSaver() {
         return new BaseSaver<T>(this);
@@ -414,8 +841,8 @@ abstract class BaseTm<T extends TM3Data> implements TM3Tm<T> {
                     }
                     tuStorage.saveTu(conn, tu);
                     getStorageInfo().getFuzzyIndex().index(tu.getSourceTuv());
-                    if (indexTarget) {
-                        for (TM3Tuv<T> tuv : tu.getTargetTuvs()) {
+                    for (TM3Tuv<T> tuv : tu.getTargetTuvs()) {
+                        if (isIndexed(tuv)) {
                             getStorageInfo().getFuzzyIndex().index(tuv);
                         }
                     }
@@ -458,8 +885,8 @@ abstract class BaseTm<T extends TM3Data> implements TM3Tm<T> {
                     }
                     tuStorage.addTuvs(tu, addedTuv);
                     tuStorage.deleteTuvs(deletedTuv);
-                    if (indexTarget) {
-                        for (TM3Tuv<T> tuv : addedTuv) {
+                    for (TM3Tuv<T> tuv : addedTuv) {
+                        if (isIndexed(tuv)) {
                             getStorageInfo().getFuzzyIndex().index(tuv);
                         }
                     }
@@ -602,16 +1029,18 @@ abstract class BaseTm<T extends TM3Data> implements TM3Tm<T> {
             storage.deleteTuvs(deleted);
             storage.addTuvs(tu, added);
             storage.updateTuvs(tu, modified, event);
-            // delete old fingerprints from updated tuv even without
-            // indexTarget, because it might have been indexed in the past
+            // delete old fingerprints from updated tuv even if its
+            // locale isn't indexed, because it might have been in the past
             for (TM3Tuv<T> tuv : modified) {
                 getStorageInfo().getFuzzyIndex().deleteFingerprints(tuv);
             }
-            if (indexTarget) {
-                for (TM3Tuv<T> tuv : added) {
+            for (TM3Tuv<T> tuv : added) {
+                if (isIndexed(tuv)) {
                     getStorageInfo().getFuzzyIndex().index(tuv);
                 }
-                for (TM3Tuv<T> tuv : modified) {
+            }
+            for (TM3Tuv<T> tuv : modified) {
+                if (isIndexed(tuv)) {
                     getStorageInfo().getFuzzyIndex().index(tuv);
                 }
             }
@@ -727,17 +1156,65 @@ abstract class BaseTm<T extends TM3Data> implements TM3Tm<T> {
     @Override
     public void removeDataByLocale(TM3Locale locale) {
         try {
-            getStorageInfo().getTuStorage().deleteTuvsByLocale(locale);
+            lockForWrite();
+            TuStorage<T> storage = getStorageInfo().getTuStorage();
+            long startId = 0;
+            while (true) {
+                List<Long> tuIds = storage.getTuIdPageByLocale(startId,
+                        REMOVE_LOCALE_CHUNK_SIZE, locale, null, null);
+                if (tuIds.size() == 0) {
+                    break;
+                }
+                removeLocaleData(locale, tuIds);
+                startId = tuIds.get(tuIds.size() - 1);
+            }
         }
         catch (SQLException e) {
             throw new TM3Exception(e);
         }
     }
+
+    /**
+     * Remove the target TUVs in a locale from a chunk of TUs, along
+     * with their fuzzy index entries.
+     * @return number of TUVs removed
+     */
+    int removeLocaleData(TM3Locale locale, List<Long> tuIds) 
+                throws SQLException {
+        TuStorage<T> storage = getStorageInfo().getTuStorage();
+        List<Long> tuvIds = storage.getTargetTuvIds(tuIds, locale);
+        storage.deleteTuvsById(tuvIds);
+        return tuvIds.size();
+    }
+
+    /**
+     * Return the locales that a {@link TM3LocaleRemovalJob} is in the 
+     * process of removing from this TM.  These are only looked up if the
+     * TM was flagged when it was loaded, or a job in this process has
+     * flagged it since, so most lookups don't pay for a query.
+     */
+    Set<TM3Locale> getLocalesBeingRemoved() throws SQLException {
+        if (!removingLocales && !TM3LocaleRemovalJob.isFlagged(getId())) {
+            return Collections.emptySet();
+        }
+        List<Long> ids = TM3LocaleRemovalJob.getLocaleIdsBeingRemoved(
+                session.connection(), getId());
+        Set<TM3Locale> locales = new HashSet<TM3Locale>();
+        for (Long id : ids) {
+            locales.add(factory.getLocaleById(session, id));
+        }
+        return locales;
+    }
    
     @Override
     public Set<TM3Locale> getTuvLocales() throws TM3Exception {
         try {
-            return getStorageInfo().getTuStorage().getTuvLocales();
+            TuStorage<T> storage = getStorageInfo().getTuStorage();
+            Set<Long> ids = getStorageInfo().getStatistics().getLocaleIds();
+            if (ids != null) {
+                return storage.loadLocales(ids);
+            }
+            return storage.getTuvLocales();
         } 
         catch (SQLException e) {
             throw new TM3Exception(e);
@@ -774,6 +1251,23 @@ abstract class BaseTm<T extends TM3Data> implements TM3Tm<T> {
         session.lock(this, LockMode.UPGRADE);
     }
 
+    /**
+     * Commit the current transaction and begin a new one, taking the
+     * write lock again.  This lets long-running operations bound the
+     * size of their transactions.
+     */
+    void commitAndRelock() throws TM3Exception {
+        try {
+            session.flush();
+            session.getTransaction().commit();
+            session.beginTransaction();
+            lockForWrite();
+        }
+        catch (HibernateException e) {
+            throw new TM3Exception(e);
+        }
+    }
+
     // TODO: on save, check that all required attrs are present
     // TODO: make an unchecked version that doesn't call checkValue
     public static Map<TM3Attribute, Object> getInlineAttributes(
@@ -0,0 +1,62 @@
+package com.globalsight.ling.tm3.core;
+
+import java.util.List;
+
+/**
+ * An {@link EditDistanceScorer} that scores the candidates of a lookup
+ * in batches against a compiled key; see 
+ * {@link TM3BatchFuzzyMatchScorer}.  It gives the same scores as 
+ * EditDistanceScorer.
+ * <p>
+ * TM3 calls the batch methods instead of 
+ * {@link #score(TM3Scorable, TM3Scorable, TM3Locale)} for scorers like
+ * this one, so a subclass that changes how a pair of segments is scored
+ * must change the batch scores to match.  Subclasses of 
+ * EditDistanceScorer itself are always called one candidate at a time.
+ */
+public class BatchEditDistanceScorer<T extends TM3Scorable<V>, 
+           V extends TM3FuzzyComparable<V>> extends EditDistanceScorer<T, V>
+        implements TM3BatchFuzzyMatchScorer<T, BatchEditDistanceScorer.Key<V>> {
+
+    @Override
+    public Key<V> prepare(T matchKey, TM3Locale locale) {
+        return new Key<V>(matchKey.getScoringObjects());
+    }
+    
+    @Override
+    public float[] score(Key<V> compiledKey, List<T> candidates) {
+        int sourceCount = compiledKey.getSources().size();
+        float[] scores = new float[candidates.size()];
+        for (int i = 0; i < scores.length; i++) {
+            List<V> targets = candidates.get(i).getScoringObjects();
+            scores[i] = scorePenalties(getPenalties(compiledKey, targets), 
+                                       sourceCount, targets.size());
+        }
+        return scores;
+    }
+    
+    /**
+     * Compute the substitution penalties for a candidate's scoring 
+     * objects against a compiled key; see 
+     * {@link #getPenalties(List, List)}.
+     */
+    protected float[][] getPenalties(Key<V> compiledKey, List<V> targets) {
+        return getPenalties(compiledKey.getSources(), targets);
+    }
+    
+    /**
+     * A match key compiled for scoring: its scoring objects, and whatever
+     * else a subclass keeps for the length of a lookup.
+     */
+    public static class Key<V> {
+        private List<V> sources;
+
+        protected Key(List<V> sources) {
+            this.sources = sources;
+        }
+
+        public List<V> getSources() {
+            return sources;
+        }
+    }
+}
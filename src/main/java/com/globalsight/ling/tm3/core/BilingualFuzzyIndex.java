@@ -22,36 +22,43 @@ class BilingualFuzzyIndex<T extends TM3Data>
         super(storage);
     }
     
+    @Override
+    protected String getLocaleExpression() {
+        TM3BilingualTm<T> tm = (BilingualTm<T>) getStorage().getTm();
+        return "IF(isSource = 1, " + tm.getSrcLocale().getId() + ", " +
+            tm.getTgtLocale().getId() + ")";
+    }
+    
     @Override
     protected void indexFingerprints(List<Long> fingerprints,
-            TM3Tuv<T> tuv) throws SQLException {
-        BatchStatementBuilder sb = new BatchStatementBuilder("INSERT INTO ")
-            .append(getStorage().getFuzzyIndexTableName())
-            .append(" (fingerprint, tuvId, tuId, tuvCount, isSource) ")
-            .append("VALUES (?, ?, ?, ?, ?)");
-        int tuvCount = fingerprints.size();
-        for (Long fp : fingerprints) {
-            sb.addBatch(fp, tuv.getId(), tuv.getTu().getId(), 
-                        tuvCount, tuv.isSource());
-        }
-        SQLUtil.execBatch(getConnection(), sb);
+            int tokenCount, TM3Tuv<T> tuv) throws SQLException {
+        insertEntries(fingerprints, fingerprints.size(), tokenCount, tuv);
     }
 
     @Override
-    public void deleteFingerprints(TM3Tuv<T> tuv) throws SQLException {
-        StatementBuilder sb = new StatementBuilder();
-        sb.append("DELETE FROM ")
-          .append(getStorage().getFuzzyIndexTableName())
-          .append(" WHERE tuvId = ?").addValue(tuv.getId());
-        SQLUtil.exec(getConnection(), sb);
+    protected BatchStatementBuilder getInsertStatement(String table) {
+        return new BatchStatementBuilder("INSERT INTO ").append(table)
+            .append(" (fingerprint, tuvId, tuId, tuvCount, tokenCount, ")
+            .append("isSource) VALUES (?, ?, ?, ?, ?, ?)");
+    }
+
+    @Override
+    protected void addEntries(BatchStatementBuilder sb, 
+            List<Long> fingerprints, int tuvCount, int tokenCount, 
+            TM3Tuv<T> tuv) {
+        for (Long fp : fingerprints) {
+            sb.addBatch(fp, tuv.getId(), tuv.getTu().getId(), 
+                        tuvCount, tokenCount, tuv.isSource());
+        }
     }
 
     @Override
     protected StatementBuilder getFuzzyLookupQuery(List<Long> fingerprints,
+                    int fingerprintCount, Map<Long, Double> weights,
                     TM3Locale keyLocale, Set<? extends TM3Locale> matchLocales,
                     Map<TM3Attribute, Object> inlineAttrs, boolean lookupTarget) {
         StatementBuilder sb = new StatementBuilder();
-        sb.append("SELECT tuvId, tuId, SUM(1) as score FROM ")
+        sb.append("SELECT ").append(getSelectList(weights)).append(" FROM ")
           .append(getStorage().getFuzzyIndexTableName()).append(" AS idx");
         if (! inlineAttrs.isEmpty()) {
             sb.append(", ")
@@ -64,8 +71,8 @@ class BilingualFuzzyIndex<T extends TM3Data>
         }
         sb.append(")");
         // Add minimum and max bounds on the data length
-        int min = fingerprints.size() / 3;
-        int max = fingerprints.size() * 3;
+        int min = fingerprintCount / 3;
+        int max = fingerprintCount * 3;
         if (min > 0) {
             sb.append(" AND idx.tuvCount > ?").addValue(min);
         }
@@ -88,7 +95,7 @@ class BilingualFuzzyIndex<T extends TM3Data>
                 sb.addValue(e.getValue());
             }
         }
-        sb.append(" GROUP BY tuvId ORDER BY score DESC");
+        sb.append(" GROUP BY tuvId");
         if (matchLocales != null) {
             // an exists subselect seems simpler, but mysql bug 46947 causes
             // exists subselects to take locks even in repeatable read
@@ -104,7 +111,11 @@ class BilingualFuzzyIndex<T extends TM3Data>
               .append("WHERE ")
               .append("targetTuv.tuId = result.tuId AND ")
               .append("targetTuv.localeId IN")
-              .append(SQLUtil.longGroup(targetLocaleIds));
+              .append(SQLUtil.longGroup(targetLocaleIds))
+              .append(getLookupOrder("result"));
+        }
+        else {
+            sb.append(getLookupOrder(null));
         }
         return sb;
     }
@@ -11,10 +11,16 @@ class BilingualStorageInfo<T extends TM3Data> extends DedicatedStorageInfo<T> {
     }
 
     @Override
-    public FuzzyIndex<T> getFuzzyIndex() {
+    FuzzyIndex<T> getFingerprintIndex() {
         return new BilingualFuzzyIndex<T>(this);
     }
 
+    // Every TUV is in the source or target locale
+    @Override
+    protected String getFuzzyLookupColumns() {
+        return "isSource, fingerprint, tuvCount, tuvId, tuId, tokenCount";
+    }
+
     @Override
     protected void createFuzzyIndex(Connection conn) throws SQLException {
         SQLUtil.exec(conn,
@@ -23,13 +29,10 @@ class BilingualStorageInfo<T extends TM3Data> extends DedicatedStorageInfo<T> {
             "tuvId      bigint     NOT NULL, " +
             "tuId       bigint     NOT NULL, " +
             "tuvCount   smallint   NOT NULL," +
+            "tokenCount smallint   NOT NULL DEFAULT 0," +
             "isSource   tinyint    NOT NULL," +
-            "UNIQUE KEY (fingerprint, tuvCount, isSource, tuvId), " +
-            "FOREIGN KEY (tuvId) REFERENCES " + getTuvTableName() + 
-            " (id) ON DELETE CASCADE, " +
-            "FOREIGN KEY (tuId) REFERENCES " + getTuTableName() + 
-            " (id) on DELETE CASCADE" +
-            ") ENGINE=InnoDB"
+            getFuzzyIndexKeys() +
+            ") ENGINE=InnoDB" + getFuzzyIndexPartitioning()
         );
     }
 }
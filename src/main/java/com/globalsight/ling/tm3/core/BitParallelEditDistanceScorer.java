@@ -0,0 +1,202 @@
+package com.globalsight.ling.tm3.core;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A faster {@link EditDistanceScorer} for scoring objects that either
+ * match or don't: those whose <tt>fuzzyCompare()</tt> only ever returns
+ * 0 or 1, such as plain word tokens.  It produces the same scores as
+ * EditDistanceScorer does for such objects.
+ * <p>
+ * Scoring objects must implement <tt>equals()</tt> and
+ * <tt>hashCode()</tt> to agree with <tt>fuzzyCompare()</tt>: two objects
+ * are equal exactly when they compare as 1.  Objects that only partly
+ * match must be scored with EditDistanceScorer.
+ * <p>
+ * <b>About the algorithm</b>
+ * <p>
+ * The tokens of each comparison are mapped to small integer ids, and the
+ * edit distance (with transpositions of adjacent tokens, as in
+ * EditDistanceScorer) is computed with Hyyr&ouml;'s bit-parallel
+ * version of Myers' algorithm, which works out a whole column of the
+ * distance table at once from a few operations on machine words.  The
+ * shorter segment is held in one word if it has up to 64 tokens, and in
+ * blocks of 64 tokens otherwise.  See H. Hyyr&ouml;, "A bit-vector
+ * algorithm for computing Levenshtein and Damerau edit distances",
+ * Nordic Journal of Computing 10 (2003).
+ * <p>
+ * When scoring the candidates of a lookup, the key's ids and bit masks
+ * are built once, and the key is always the one held in the bit vectors.
+ */
+public class BitParallelEditDistanceScorer<T extends TM3Scorable<V>,
+           V extends TM3FuzzyComparable<V>> implements
+        TM3BatchFuzzyMatchScorer<T, BitParallelEditDistanceScorer.Pattern<V>> {
+
+    /**
+     * Compute a fuzzy match score based on edit distance.  This
+     * implementation ignores the <tt>locale</tt> parameter.
+     *
+     * @param matchKey original segment data
+     * @param candidate segment data to compare
+     * @param locale locale of both pieces of segment data.
+     */
+    @Override
+    public float score(T matchKey, T candidate, TM3Locale locale) {
+        List<V> sources = matchKey.getScoringObjects();
+        List<V> targets = candidate.getScoringObjects();
+        // The distance is symmetric, so keep the shorter list in the
+        // bit vectors
+        float result = sources.size() < targets.size() ?
+                distance(sources, targets) : distance(targets, sources);
+        return score(result, sources.size(), targets.size());
+    }
+
+    @Override
+    public Pattern<V> prepare(T matchKey, TM3Locale locale) {
+        return new Pattern<V>(matchKey.getScoringObjects());
+    }
+
+    @Override
+    public float[] score(Pattern<V> compiledKey, List<T> candidates) {
+        float[] scores = new float[candidates.size()];
+        for (int i = 0; i < scores.length; i++) {
+            List<V> targets = candidates.get(i).getScoringObjects();
+            scores[i] = score(compiledKey.distance(targets), compiledKey.m,
+                              targets.size());
+        }
+        return scores;
+    }
+
+    // As EditDistanceScorer computes it
+    private static float score(float result, int sources, int targets) {
+        float max = Math.max(sources, targets);
+        return (max - result) / max;
+    }
+
+    /**
+     * The edit distance between two token lists, with transpositions.
+     */
+    static <V> int distance(List<V> pattern, List<V> text) {
+        return new Pattern<V>(pattern).distance(text);
+    }
+
+    /**
+     * A token list compiled for matching: an id for each distinct token,
+     * and for each id, a bit mask of the positions it holds.
+     */
+    public static class Pattern<V> {
+        private int m;
+        private int blocks;
+        private Map<V, Integer> ids = new HashMap<V, Integer>();
+        private long[][] peq;
+        // For tokens not in the pattern, which match nothing
+        private long[] none;
+
+        Pattern(List<V> tokens) {
+            m = tokens.size();
+            blocks = (m + 63) >>> 6;
+            peq = new long[m][];
+            none = new long[blocks];
+            for (int i = 0; i < m; i++) {
+                V token = tokens.get(i);
+                Integer id = ids.get(token);
+                if (id == null) {
+                    id = ids.size();
+                    ids.put(token, id);
+                    peq[id] = new long[blocks];
+                }
+                peq[id][i >>> 6] |= 1L << (i & 63);
+            }
+        }
+
+        int distance(List<V> text) {
+            if (m == 0) {
+                return text.size();
+            }
+            long[][] eqs = new long[text.size()][];
+            for (int j = 0; j < text.size(); j++) {
+                Integer id = ids.get(text.get(j));
+                eqs[j] = id != null ? peq[id] : none;
+            }
+            return blocks == 1 ? distance64(m, eqs) : distanceBlocked(m, eqs);
+        }
+    }
+
+    // One column of the table per text token, with the pattern in one
+    // word.  Bit i of VP/VN is set if D[i+1][j] - D[i][j] is +1/-1; bit
+    // i of D0 is set if D[i+1][j+1] == D[i][j].
+    private static int distance64(int m, long[][] eqs) {
+        long vp = -1L, vn = 0, d0 = 0, prevEq = 0;
+        long last = 1L << (m - 1);
+        int score = m;
+        for (long[] eqBlocks : eqs) {
+            long eq = eqBlocks[0];
+            // Transposition: the diagonal from two rows and columns back
+            long tc = (((~d0) & eq) << 1) & prevEq;
+            d0 = tc | (((eq & vp) + vp) ^ vp) | eq | vn;
+            long hp = vn | ~(d0 | vp);
+            long hn = d0 & vp;
+            if ((hp & last) != 0) {
+                score++;
+            }
+            else if ((hn & last) != 0) {
+                score--;
+            }
+            // Row 0 of the table goes up by one each column
+            hp = (hp << 1) | 1;
+            hn = hn << 1;
+            vp = hn | ~(d0 | hp);
+            vn = hp & d0;
+            prevEq = eq;
+        }
+        return score;
+    }
+
+    // The same, with the pattern in blocks of 64 rows.  The additions
+    // and shifts carry from each block into the next.
+    private static int distanceBlocked(int m, long[][] eqs) {
+        int blocks = (m + 63) >>> 6;
+        long[] vp = new long[blocks];
+        long[] vn = new long[blocks];
+        long[] d0 = new long[blocks];
+        long[] prevEq = new long[blocks];
+        Arrays.fill(vp, -1L);
+        long last = 1L << ((m - 1) & 63);
+        int score = m;
+        for (long[] eq : eqs) {
+            long addCarry = 0, hpCarry = 1, hnCarry = 0, tcCarry = 0;
+            for (int b = 0; b < blocks; b++) {
+                long e = eq[b], v = vp[b], n = vn[b];
+                long t = (~d0[b]) & e;
+                long tc = ((t << 1) | tcCarry) & prevEq[b];
+                tcCarry = t >>> 63;
+                long x = e & v;
+                long sum = x + v + addCarry;
+                addCarry = ((x & v) | ((x | v) & ~sum)) >>> 63;
+                long d = tc | (sum ^ v) | e | n;
+                long hp = n | ~(d | v);
+                long hn = d & v;
+                if (b == blocks - 1) {
+                    if ((hp & last) != 0) {
+                        score++;
+                    }
+                    else if ((hn & last) != 0) {
+                        score--;
+                    }
+                }
+                long hpShifted = (hp << 1) | hpCarry;
+                hpCarry = hp >>> 63;
+                long hnShifted = (hn << 1) | hnCarry;
+                hnCarry = hn >>> 63;
+                vp[b] = hnShifted | ~(d | hpShifted);
+                vn[b] = hpShifted & d;
+                d0[b] = d;
+                prevEq[b] = e;
+            }
+        }
+        return score;
+    }
+}
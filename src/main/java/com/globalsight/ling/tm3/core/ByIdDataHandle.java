@@ -42,9 +42,14 @@ class ByIdDataHandle<T extends TM3Data> extends AbstractDataHandle<T> {
     }
 
     @Override
-    public void purgeData() throws TM3Exception {
+    public void purgeData(int chunkSize, boolean commitChunks,
+                          TM3ProgressListener listener) throws TM3Exception {
         try {
-            getStorage().deleteTusById(ids);
+            for (int i = 0; i < ids.size(); i += chunkSize) {
+                int end = Math.min(i + chunkSize, ids.size());
+                getStorage().deleteTusById(ids.subList(i, end));
+                chunkPurged(end, ids.size(), commitChunks, listener);
+            }
         }
         catch (SQLException e) {
             throw new TM3Exception(e);
@@ -0,0 +1,193 @@
+package com.globalsight.ling.tm3.core;
+
+import java.io.ByteArrayOutputStream;
+import java.io.UnsupportedEncodingException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Compressed encoding for serialized TUV content, stored in the
+ * contentBlob column of the TUV tables.
+ * <p>
+ * The first byte of an encoded value identifies its format: either
+ * plain deflate, or deflate primed with the TM's preset dictionary.
+ * The dictionary is trained from a sample of the TM's content (see
+ * {@link #train(List)}) and must never change once content has been
+ * encoded with it.
+ */
+class ContentCodec {
+
+    // zlib only uses the last 32K of a preset dictionary
+    static final int MAX_DICTIONARY_SIZE = 32 * 1024;
+
+    // Format bytes
+    static final byte DEFLATE = 1;
+    static final byte DEFLATE_DICTIONARY = 2;
+
+    private static final String UTF8 = "UTF-8";
+
+    // Markup tags, or words with their trailing whitespace
+    private static final Pattern TOKEN = Pattern.compile("<[^>]*>|[^<\\s]+\\s*");
+
+    private byte[] dictionary;
+
+    /**
+     * @param dictionary preset dictionary, or null to use plain deflate
+     */
+    ContentCodec(byte[] dictionary) {
+        this.dictionary = dictionary;
+    }
+
+    /**
+     * Compress serialized content.
+     * @return encoded content, or null if compressing it would not
+     *         save any space
+     */
+    byte[] encode(String content) {
+        byte[] raw = toBytes(content);
+        Deflater deflater = new Deflater(Deflater.BEST_COMPRESSION);
+        try {
+            if (dictionary != null) {
+                deflater.setDictionary(dictionary);
+            }
+            deflater.setInput(raw);
+            deflater.finish();
+            ByteArrayOutputStream out = new ByteArrayOutputStream(raw.length);
+            out.write(dictionary != null ? DEFLATE_DICTIONARY : DEFLATE);
+            byte[] buf = new byte[1024];
+            while (!deflater.finished()) {
+                int n = deflater.deflate(buf);
+                out.write(buf, 0, n);
+            }
+            return out.size() < raw.length ? out.toByteArray() : null;
+        }
+        finally {
+            deflater.end();
+        }
+    }
+
+    /**
+     * Decompress content produced by {@link #encode(String)}.
+     */
+    String decode(byte[] data) throws TM3Exception {
+        if (data.length == 0 ||
+                (data[0] != DEFLATE && data[0] != DEFLATE_DICTIONARY)) {
+            throw new TM3Exception("Unknown content encoding");
+        }
+        Inflater inflater = new Inflater();
+        try {
+            inflater.setInput(data, 1, data.length - 1);
+            ByteArrayOutputStream out =
+                new ByteArrayOutputStream(data.length * 4);
+            byte[] buf = new byte[1024];
+            while (!inflater.finished()) {
+                int n = inflater.inflate(buf);
+                if (n == 0) {
+                    if (inflater.needsDictionary()) {
+                        if (dictionary == null) {
+                            throw new TM3Exception(
+                                "Content requires a missing dictionary");
+                        }
+                        inflater.setDictionary(dictionary);
+                    }
+                    else if (inflater.needsInput()) {
+                        throw new TM3Exception("Truncated content");
+                    }
+                }
+                out.write(buf, 0, n);
+            }
+            return fromBytes(out.toByteArray());
+        }
+        catch (DataFormatException e) {
+            throw new TM3Exception(e);
+        }
+        finally {
+            inflater.end();
+        }
+    }
+
+    /**
+     * Build a preset dictionary from sample content.  Markup and words
+     * that recur in the sample are packed into the dictionary, with the
+     * ones that would save the most space last, where deflate can reach
+     * them with the shortest distances.
+     * @param samples serialized content from the TM
+     * @return dictionary, or null if the samples have nothing in common
+     */
+    static byte[] train(List<String> samples) {
+        final Map<String, Integer> counts = new HashMap<String, Integer>();
+        for (String s : samples) {
+            Matcher m = TOKEN.matcher(s);
+            while (m.find()) {
+                String token = m.group();
+                Integer c = counts.get(token);
+                counts.put(token, c == null ? 1 : c + 1);
+            }
+        }
+        List<String> tokens = new ArrayList<String>();
+        for (Map.Entry<String, Integer> e : counts.entrySet()) {
+            if (e.getValue() > 1 && e.getKey().length() > 2) {
+                tokens.add(e.getKey());
+            }
+        }
+        if (tokens.size() == 0) {
+            return null;
+        }
+        // Most valuable first
+        Collections.sort(tokens, new Comparator<String>() {
+            @Override
+            public int compare(String a, String b) {
+                long va = (long)counts.get(a) * a.length();
+                long vb = (long)counts.get(b) * b.length();
+                if (va != vb) {
+                    return va > vb ? -1 : 1;
+                }
+                return a.compareTo(b);
+            }
+        });
+        List<byte[]> chosen = new ArrayList<byte[]>();
+        int size = 0;
+        for (String token : tokens) {
+            byte[] b = toBytes(token);
+            if (size + b.length > MAX_DICTIONARY_SIZE) {
+                continue;
+            }
+            chosen.add(b);
+            size += b.length;
+        }
+        byte[] dictionary = new byte[size];
+        int pos = size;
+        for (byte[] b : chosen) {
+            pos -= b.length;
+            System.arraycopy(b, 0, dictionary, pos, b.length);
+        }
+        return dictionary;
+    }
+
+    private static byte[] toBytes(String s) {
+        try {
+            return s.getBytes(UTF8);
+        }
+        catch (UnsupportedEncodingException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static String fromBytes(byte[] b) {
+        try {
+            return new String(b, UTF8);
+        }
+        catch (UnsupportedEncodingException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+}
@@ -12,6 +12,11 @@ import com.globalsight.ling.tm3.core.persistence.SQLUtil;
  */
 abstract class DedicatedStorageInfo<T extends TM3Data>  extends StorageInfo<T> {
     
+    // Covers exact match lookups, which filter on fingerprint and locale
+    // and return the tuv and tu ids, without visiting the rows.  TUV 
+    // tables created before it existed have a KEY (fingerprint) instead.
+    static final String EXACT_MATCH_INDEX = "exactMatch";
+    
     private TuStorage<T> tuStorage;
     
     protected DedicatedStorageInfo(BaseTm<T> tm, TM3TmType type) {
@@ -64,12 +69,15 @@ abstract class DedicatedStorageInfo<T extends TM3Data>  extends StorageInfo<T> {
             "localeId bigint NOT NULL, " +
             "fingerprint bigint NOT NULL, " +
             "content text NOT NULL, " +
+            "contentBlob mediumblob, " +
             "firstEventId bigint, " + 
             "lastEventId bigint, " +
+            "lastModified datetime NOT NULL, " +
             "PRIMARY KEY (id), " +
             "KEY (tuId, localeId), " +
-            "KEY (fingerprint), " +
+            "KEY " + EXACT_MATCH_INDEX + " (fingerprint, localeId, tuId, id), " +
             "KEY (localeId), " + 
+            "KEY (lastModified, tuId), " +
             "FOREIGN KEY (tuId) REFERENCES " + getTuTableName() + " (id) ON DELETE CASCADE, " +
             "FOREIGN KEY (firstEventID) REFERENCES TM3_EVENTS (id), " +
             "FOREIGN KEY (lastEventID) REFERENCES TM3_EVENTS (id) " +
@@ -88,13 +96,10 @@ abstract class DedicatedStorageInfo<T extends TM3Data>  extends StorageInfo<T> {
             "tuId       bigint     NOT NULL, " +
             "localeId   bigint     NOT NULL, " +
             "tuvCount   smallint   NOT NULL," +
+            "tokenCount smallint   NOT NULL DEFAULT 0," +
             "isSource   tinyint    NOT NULL," +
-            "UNIQUE KEY (fingerprint, tuvCount, localeId, isSource, tuvId), " +
-            "FOREIGN KEY (tuvId) REFERENCES " + getTuvTableName() + 
-            " (id) ON DELETE CASCADE, " +
-            "FOREIGN KEY (tuId) REFERENCES " + getTuTableName() + 
-            " (id) on DELETE CASCADE" +
-            ") ENGINE=InnoDB"
+            getFuzzyIndexKeys() +
+            ") ENGINE=InnoDB" + getFuzzyIndexPartitioning()
         );
     }
     
@@ -113,6 +118,30 @@ abstract class DedicatedStorageInfo<T extends TM3Data>  extends StorageInfo<T> {
         );
     }
     
+    @Override
+    protected void addLastModifiedColumn(Connection conn) throws SQLException {
+        SQLUtil.exec(conn, "ALTER TABLE " + getTuvTableName() + 
+            " ADD COLUMN lastModified datetime, " +
+            " ADD KEY (lastModified, tuId)");
+    }
+    
+    @Override
+    protected boolean addExactMatchIndex(Connection conn) throws SQLException {
+        String table = getTuvTableName();
+        if (SQLUtil.indexExists(conn, table, EXACT_MATCH_INDEX)) {
+            return false;
+        }
+        // The new index starts with fingerprint, so the old one is redundant.
+        // InnoDB can build the index without blocking reads or writes.
+        SQLUtil.exec(conn, "ALTER TABLE " + table + 
+            " ADD KEY " + EXACT_MATCH_INDEX + 
+            " (fingerprint, localeId, tuId, id)" +
+            (SQLUtil.indexExists(conn, table, "fingerprint") ? 
+                    ", DROP KEY fingerprint" : "") +
+            ", ALGORITHM=INPLACE, LOCK=NONE");
+        return true;
+    }
+    
     @Override
     protected void destroyAttrTable(Connection conn) throws SQLException {
         SQLUtil.exec(conn, "drop table if exists " + getAttrValTableName());
@@ -35,7 +35,7 @@ class DedicatedTuStorage<T extends TM3Data>  extends TuStorage<T> {
      * @throws SQLException 
      */
     @Override
-    public void saveTu(Connection conn, TM3Tu<T> tu) throws SQLException {
+    protected void insertTu(Connection conn, TM3Tu<T> tu) throws SQLException {
         tu.setId(getStorage().getTuId(conn));
         Map<TM3Attribute, Object> inlineAttributes =
             BaseTm.getInlineAttributes(tu.getAttributes());
@@ -54,12 +54,12 @@ class DedicatedTuStorage<T extends TM3Data>  extends TuStorage<T> {
         }
         sb.append(")");
         SQLUtil.exec(getConnection(), sb);
-        addTuvs(tu, tu.getAllTuv());
+        insertTuvs(tu, tu.getAllTuv());
         saveCustomAttributes(tu.getId(), customAttributes);
     }
     
     @Override
-    public void addTuvs(TM3Tu<T> tu, List<TM3Tuv<T>> tuvs) 
+    protected void insertTuvs(TM3Tu<T> tu, List<TM3Tuv<T>> tuvs) 
                         throws SQLException {
         if (tuvs.size() == 0) {
             return;
@@ -70,13 +70,17 @@ class DedicatedTuStorage<T extends TM3Data>  extends TuStorage<T> {
         }
         BatchStatementBuilder sb = new BatchStatementBuilder("INSERT INTO ")
             .append(getStorage().getTuvTableName())
-            .append(" (id, tuId, localeId, content, fingerprint, firstEventId, lastEventId) ")
-            .append("VALUES (?, ?, ?, ?, ?, ?, ?)");
+            .append(" (id, tuId, localeId, content, contentBlob, fingerprint, firstEventId, lastEventId, lastModified) ")
+            .append("VALUES (?, ?, ?, ?, ?, ?, ?, ?, ?)");
         for (TM3Tuv<T> tuv : tuvs) {
+            String content = tuv.getSerializedForm();
+            byte[] blob = encodeContent(content);
             sb.addBatch(tuv.getId(), tu.getId(), tuv.getLocale().getId(),
-                        tuv.getSerializedForm(), tuv.getFingerprint(),
+                        blob == null ? content : "", blob,
+                        tuv.getFingerprint(),
                         tuv.getFirstEvent().getId(),
-                        tuv.getLatestEvent().getId());
+                        tuv.getLatestEvent().getId(),
+                        tuv.getLatestEvent().getTimestamp());
         }
         SQLUtil.execBatch(conn, sb);
     }
@@ -89,10 +93,14 @@ class DedicatedTuStorage<T extends TM3Data>  extends TuStorage<T> {
         }
         BatchStatementBuilder sb = new BatchStatementBuilder("UPDATE ")
             .append(getStorage().getTuvTableName())
-            .append(" SET content = ?, fingerprint = ?, lastEventId = ? WHERE id = ?");
+            .append(" SET content = ?, contentBlob = ?, fingerprint = ?,")
+            .append(" lastEventId = ?, lastModified = ? WHERE id = ?");
         for (TM3Tuv<T> tuv : tuvs) {
-            sb.addBatch(tuv.getSerializedForm(), tuv.getFingerprint(), 
-                        event.getId(), tuv.getId());
+            String content = tuv.getSerializedForm();
+            byte[] blob = encodeContent(content);
+            sb.addBatch(blob == null ? content : "", blob, 
+                        tuv.getFingerprint(), event.getId(), 
+                        event.getTimestamp(), tuv.getId());
         }
         SQLUtil.execBatch(getConnection(), sb);
     }
@@ -200,7 +208,9 @@ class DedicatedTuStorage<T extends TM3Data>  extends TuStorage<T> {
             boolean locking) throws SQLException {
         StringBuilder sb = new StringBuilder();
         sb.append("SELECT ")
-          .append("tuId, id, localeId, fingerprint, content, firstEventId, lastEventId")
+          .append("tuId, id, localeId, fingerprint, content, contentBlob, ")
+          .append("firstEventId, lastEventId, ")
+          .append(getContentIdColumn())
           .append(" FROM ")
           .append(getStorage().getTuvTableName())
           .append(" WHERE tuId IN")
@@ -217,17 +227,22 @@ class DedicatedTuStorage<T extends TM3Data>  extends TuStorage<T> {
         // the locales until after we've read all of the data.
         List<TuvData<T>> rawTuvs = new ArrayList<TuvData<T>>();
         while (rs.next()) {
-            rawTuvs.add(new TuvData<T>(
+            TuvData<T> rawTuv = new TuvData<T>(
                 rs.getLong(1),
                 rs.getLong(2),
                 rs.getLong(3),
                 rs.getLong(4),
-                rs.getString(5),
-                rs.getLong(6),
-                rs.getLong(7)
-            ));
+                readContent(rs, 5),
+                rs.getLong(7),
+                rs.getLong(8)
+            );
+            rawTuv.contentId = rs.getLong(9);
+            rawTuvs.add(rawTuv);
         }
         s.close();
+        resolveContent(rawTuvs);
+        
+        ContentCache cache = new ContentCache();
         
         Iterator<TuData<T>> tus = data.iterator();
         TuData<T> current = null;
@@ -237,7 +252,7 @@ class DedicatedTuStorage<T extends TM3Data>  extends TuStorage<T> {
                 throw new IllegalStateException("Couldn't find tuId for " + rawTuv.tuId);
             }
             // "tuId, id, localeId, fingerprint, content";
-            TM3Tuv<T> tuv = createTuv(rawTuv);
+            TM3Tuv<T> tuv = createTuv(rawTuv, cache);
             tuv.setStorage(this);
             if (tuv.getLocale().getId() == current.srcLocaleId) {
                 current.srcTuv = tuv;
@@ -359,12 +374,9 @@ class DedicatedTuStorage<T extends TM3Data>  extends TuStorage<T> {
             throws SQLException {
         StatementBuilder sb = new StatementBuilder();
         if (start != null && end != null) {
-            sb.append("SELECT COUNT(DISTINCT tu.id) FROM ")
-              .append(getStorage().getTuTableName()).append(" as tu, ")
-              .append(getStorage().getTuvTableName()).append(" as tuv, ")
-              .append("TM3_EVENTS as event ")
-              .append("WHERE tu.id = tuv.tuId AND tuv.lastEventId = event.id ")
-              .append("AND event.time >= ? AND event.time <= ?")
+            sb.append("SELECT COUNT(DISTINCT tuId) FROM ")
+              .append(getStorage().getTuvTableName())
+              .append(" WHERE lastModified >= ? AND lastModified <= ?")
               .addValues(start, end);
         }
         else {
@@ -379,11 +391,9 @@ class DedicatedTuStorage<T extends TM3Data>  extends TuStorage<T> {
             throws SQLException {
         StatementBuilder sb = new StatementBuilder();
         if (start != null && end != null) {
-            sb.append("SELECT COUNT(tuv.id) FROM ")
-              .append(getStorage().getTuvTableName()).append(" as tuv, ")
-              .append("TM3_EVENTS as event ")
-              .append("WHERE tuv.lastEventId = event.id ")
-              .append("AND event.time >= ? AND event.time <= ?")
+            sb.append("SELECT COUNT(id) FROM ")
+              .append(getStorage().getTuvTableName())
+              .append(" WHERE lastModified >= ? AND lastModified <= ?")
               .addValues(start, end);
         }
         else {
@@ -393,39 +403,16 @@ class DedicatedTuStorage<T extends TM3Data>  extends TuStorage<T> {
         return SQLUtil.execCountQuery(getConnection(), sb);
     }
     
-    @Override
-    public void deleteTus(Date start, Date end) 
-            throws SQLException {
-        StatementBuilder sb = new StatementBuilder();
-        if (start != null && end != null) {
-            sb.append("DELETE tu.* from ")
-              .append(getStorage().getTuTableName()).append(" as tu, ")
-              .append(getStorage().getTuvTableName()).append(" as tuv, ")
-              .append("TM3_EVENTS as event ")
-              .append("WHERE tu.id = tuv.tuId AND tuv.lastEventId = event.id ")
-              .append("AND event.time >= ? AND event.time <= ?")
-              .addValues(start, end);
-        }
-        else {
-            sb.append("DELETE FROM ")
-              .append(getStorage().getTuTableName());
-        }
-        SQLUtil.exec(getConnection(), sb);
-    }
-
     @Override
     public long getTuCountByLocale(TM3Locale locale,
             Date start, Date end) throws SQLException {
         StatementBuilder sb = new StatementBuilder();
         if (start != null && end != null) {
-            sb.append("SELECT COUNT(DISTINCT tu.id) FROM ")
-              .append(getStorage().getTuTableName()).append(" as tu, ")
-              .append(getStorage().getTuvTableName()).append(" as tuv, ")
-              .append("TM3_EVENTS as event ")
-              .append("WHERE tu.id = tuv.tuId AND tuv.lastEventId = event.id ")
-              .append("AND event.time >= ? AND event.time <= ? ")
-              .addValues(start, end)
-              .append("AND localeId = ?").addValue(locale.getId());
+            sb.append("SELECT COUNT(DISTINCT tuId) FROM ")
+              .append(getStorage().getTuvTableName())
+              .append(" WHERE localeId = ?").addValue(locale.getId())
+              .append(" AND lastModified >= ? AND lastModified <= ?")
+              .addValues(start, end);
         }
         else {
             sb.append("SELECT COUNT(DISTINCT tuId) FROM ")
@@ -440,13 +427,11 @@ class DedicatedTuStorage<T extends TM3Data>  extends TuStorage<T> {
             Date start, Date end) throws SQLException {
         StatementBuilder sb = new StatementBuilder();
         if (start != null && end != null) {
-            sb.append("SELECT COUNT(tuv.id) FROM ")
-              .append(getStorage().getTuvTableName()).append(" as tuv, ")
-              .append("TM3_EVENTS as event ")
-              .append("WHERE tuv.lastEventId = event.id ")
-              .append("AND event.time >= ? AND event.time <= ? ")
-              .addValues(start, end)
-              .append("AND tuv.localeId = ?").addValue(locale.getId());
+            sb.append("SELECT COUNT(id) FROM ")
+              .append(getStorage().getTuvTableName())
+              .append(" WHERE localeId = ?").addValue(locale.getId())
+              .append(" AND lastModified >= ? AND lastModified <= ?")
+              .addValues(start, end);
         }
         else {
             sb.append("SELECT COUNT(id) FROM ")
@@ -456,18 +441,6 @@ class DedicatedTuStorage<T extends TM3Data>  extends TuStorage<T> {
         return SQLUtil.execCountQuery(getConnection(), sb);
     }
         
-    @Override
-    public void deleteTuvsByLocale(TM3Locale locale) throws SQLException {
-        StatementBuilder sb = new StatementBuilder()
-            .append("DELETE FROM ")
-            .append(getStorage().getTuvTableName())
-            .append(" WHERE localeId = ?").addValue(locale.getId())
-            .append(" AND (select srcLocaleId from ")
-            .append(getStorage().getTuTableName())
-            .append(" WHERE id = tuId) != localeId");
-        SQLUtil.exec(getConnection(), sb);
-    }
-    
     // 
     // AttributeDataHandle 
     //
@@ -479,13 +452,13 @@ class DedicatedTuStorage<T extends TM3Data>  extends TuStorage<T> {
         StatementBuilder sb = new StatementBuilder();
         if (start != null && end != null) {
             sb.append("SELECT COUNT(DISTINCT tu.id) FROM ")
+              .append(getStorage().getTuvTableName()).append(" as tuv ")
+              .append("INNER JOIN ")
               .append(getStorage().getTuTableName()).append(" as tu ")
-              .append(getStorage().getTuvTableName()).append(" as tuv, ")
-              .append("TM3_EVENTS as event ");
-              getStorage().attributeJoinFilter(sb, "tu.id", customAttrs);
-              sb.append(" WHERE tu.id = tuv.tuId AND tuv.lastEventId = event.id ")
-                .append("AND event.time >= ? AND event.time <= ? ")
-                .addValues(start, end);
+              .append("ON tu.id = tuv.tuId");
+            getStorage().attributeJoinFilter(sb, "tu.id", customAttrs);
+            sb.append(" WHERE tuv.lastModified >= ? AND tuv.lastModified <= ?")
+              .addValues(start, end);
         }
         else {
             sb.append("SELECT COUNT(DISTINCT tu.id) FROM ")
@@ -509,12 +482,12 @@ class DedicatedTuStorage<T extends TM3Data>  extends TuStorage<T> {
         StatementBuilder sb = new StatementBuilder();
         if (start != null && end != null) {
             sb.append("SELECT COUNT(DISTINCT tuv.id) FROM ")
-              .append(getStorage().getTuvTableName()).append(" as tuv, ")
-              .append(getStorage().getTuTableName()).append(" as tu, ")
-              .append("TM3_EVENTS as event ");
+              .append(getStorage().getTuvTableName()).append(" as tuv ")
+              .append("INNER JOIN ")
+              .append(getStorage().getTuTableName()).append(" as tu ")
+              .append("ON tu.id = tuv.tuId");
             getStorage().attributeJoinFilter(sb, "tuv.tuId", customAttrs);
-            sb.append(" WHERE tuv.lastEventId = event.id ")
-              .append("AND event.time >= ? AND event.time <= ? ")
+            sb.append(" WHERE tuv.lastModified >= ? AND tuv.lastModified <= ?")
               .addValues(start, end);
         }
         else {
@@ -537,17 +510,15 @@ class DedicatedTuStorage<T extends TM3Data>  extends TuStorage<T> {
     //
     
     @Override
-    public List<TM3Tu<T>> getTuPage(long startId, int count, Date start, Date end) 
+    public List<Long> getTuIdPage(long startId, int count, Date start, Date end) 
                             throws SQLException {
         StatementBuilder sb = new StatementBuilder();
         if (start != null && end != null) {
             sb.append("SELECT DISTINCT tuId FROM ")
-              .append(getStorage().getTuvTableName()).append(" as tuv, ")
-              .append("TM3_EVENTS as event ")
-              .append("WHERE tuv.lastEventId = event.id ")
-              .append("AND event.time >= ? AND event.time <= ? ")
+              .append(getStorage().getTuvTableName())
+              .append(" WHERE lastModified >= ? AND lastModified <= ?")
               .addValues(start, end)
-              .append("AND tuId > ? ORDER BY tuId ASC LIMIT ?")
+              .append(" AND tuId > ? ORDER BY tuId ASC LIMIT ?")
               .addValues(startId, count);
         }
         else {
@@ -556,22 +527,20 @@ class DedicatedTuStorage<T extends TM3Data>  extends TuStorage<T> {
                 .append(" WHERE id > ? ORDER BY id ASC LIMIT ?")
                 .addValues(startId, count);
         }
-        return getTu(SQLUtil.execIdsQuery(getConnection(), sb), false);
+        return SQLUtil.execIdsQuery(getConnection(), sb);
     }
     
     @Override
-    public List<TM3Tu<T>> getTuPageByLocale(long startId, int count, 
+    public List<Long> getTuIdPageByLocale(long startId, int count, 
             TM3Locale locale, Date start, Date end) throws SQLException {
         StatementBuilder sb = new StatementBuilder();
         if (start != null && end != null) {
             sb.append("SELECT DISTINCT tuId FROM ")
-              .append(getStorage().getTuvTableName()).append(" as tuv, ")
-              .append("TM3_EVENTS as event ")
-              .append("WHERE tuv.lastEventId = event.id ")
-              .append("AND tuv.localeId = ?").addValue(locale.getId())
-              .append("AND event.time >= ? AND event.time <= ? ")
+              .append(getStorage().getTuvTableName())
+              .append(" WHERE localeId = ?").addValue(locale.getId())
+              .append(" AND lastModified >= ? AND lastModified <= ?")
               .addValues(start, end)
-              .append("AND tuId > ? ORDER BY tuId ASC LIMIT ?")
+              .append(" AND tuId > ? ORDER BY tuId ASC LIMIT ?")
               .addValues(startId, count);
         }
         else {
@@ -580,7 +549,29 @@ class DedicatedTuStorage<T extends TM3Data>  extends TuStorage<T> {
               .append(" WHERE localeId = ? AND tuId > ? ORDER BY tuId ASC LIMIT ?")
               .addValues(locale.getId(), startId, count);
         }
-        return getTu(SQLUtil.execIdsQuery(getConnection(), sb), false);
+        return SQLUtil.execIdsQuery(getConnection(), sb);
+    }
+
+    @Override
+    protected List<Long> getTuvIdPage(long startId, int count)
+                throws SQLException {
+        return SQLUtil.execIdsQuery(getConnection(), new StatementBuilder()
+            .append("SELECT id FROM ")
+            .append(getStorage().getTuvTableName())
+            .append(" WHERE id > ?")
+            .append(" ORDER BY id ASC LIMIT ?")
+            .addValues(startId, count));
+    }
+
+    @Override
+    protected List<Long> getTuvIdPageMissingLastModified(long startId,
+            int count) throws SQLException {
+        return SQLUtil.execIdsQuery(getConnection(), new StatementBuilder()
+            .append("SELECT id FROM ")
+            .append(getStorage().getTuvTableName())
+            .append(" WHERE lastModified IS NULL AND id > ?")
+            .append(" ORDER BY id ASC LIMIT ?")
+            .addValues(startId, count));
     }
 
     @Override
@@ -592,14 +583,14 @@ class DedicatedTuStorage<T extends TM3Data>  extends TuStorage<T> {
         StatementBuilder sb = new StatementBuilder();
         if (start != null && end != null) {
             sb.append("SELECT DISTINCT tuv.tuId FROM ")
-              .append(getStorage().getTuvTableName()).append(" as tuv, ")
-              .append(getStorage().getTuTableName()).append(" as tu, ")
-              .append("TM3_EVENTS as event ");
+              .append(getStorage().getTuvTableName()).append(" as tuv ")
+              .append("INNER JOIN ")
+              .append(getStorage().getTuTableName()).append(" as tu ")
+              .append("ON tu.id = tuv.tuId");
             getStorage().attributeJoinFilter(sb, "tuv.tuId", customAttrs);
-            sb.append(" WHERE tuv.lastEventId = event.id ")
-              .append("AND event.time >= ? AND event.time <= ? ")
+            sb.append(" WHERE tuv.lastModified >= ? AND tuv.lastModified <= ?")
               .addValues(start, end)
-              .append("AND tuv.tuId > ?")
+              .append(" AND tuv.tuId > ?")
               .addValues(startId);
         }
         else {
@@ -622,6 +613,14 @@ class DedicatedTuStorage<T extends TM3Data>  extends TuStorage<T> {
         return getTu(SQLUtil.execIdsQuery(getConnection(), sb), false);
     }
     
+    @Override
+    Map<Long, long[]> getLocaleCounts() throws SQLException {
+        return TmStatistics.readCounts(getConnection(), new StatementBuilder()
+            .append("SELECT localeId, COUNT(DISTINCT tuId), COUNT(id) FROM ")
+            .append(getStorage().getTuvTableName())
+            .append(" GROUP BY localeId"));
+    }
+    
     @Override
     public Set<TM3Locale> getTuvLocales() throws SQLException {
         return loadLocales(SQLUtil.execIdsQuery(getConnection(), 
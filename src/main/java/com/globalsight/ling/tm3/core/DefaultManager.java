@@ -1,10 +1,13 @@
 package com.globalsight.ling.tm3.core;
 
+import java.io.File;
 import java.sql.Connection;
 import java.sql.SQLException;
 import java.util.List;
 import java.util.Set;
 
+import javax.sql.DataSource;
+
 import org.hibernate.HibernateException;
 import org.hibernate.Session;
 
@@ -14,6 +17,10 @@ import org.hibernate.Session;
  */
 public class DefaultManager implements TM3Manager {
     
+    private File fuzzyIndexDirectory;
+    private List<DataSource> fuzzyIndexShards;
+    private boolean fuzzyFetchFused = true;
+
     private DefaultManager() {
     }
         
@@ -148,6 +155,52 @@ public class DefaultManager implements TM3Manager {
             StorageInfo<T> storage = ((BaseTm<T>)tm).getStorageInfo();
             storage.destroy();
             session.delete(tm);
+            if (fuzzyIndexDirectory != null) {
+                PostingStore.destroy(new File(fuzzyIndexDirectory, 
+                                              String.valueOf(tm.getId())));
+            }
+        }
+        catch (SQLException e) {
+            throw new TM3Exception(e);
+        }
+    }
+    
+    /**
+     * Upgrade the storage for a tm.
+     * @param session
+     * @param tm
+     * @throws TM3Exception
+     */
+    public <T extends TM3Data> boolean upgradeTm(Session session, TM3Tm<T> tm)
+                        throws TM3Exception {
+        try {
+            return ((BaseTm<T>)tm).getStorageInfo().upgrade();
+        }
+        catch (SQLException e) {
+            throw new TM3Exception(e);
+        }
+    }
+    
+    /**
+     * Check the statistics for a tm.
+     * @param session
+     * @param tm
+     * @param repair
+     * @throws TM3Exception
+     */
+    public <T extends TM3Data> boolean verifyStatistics(Session session, 
+            TM3Tm<T> tm, boolean repair) throws TM3Exception {
+        try {
+            TmStatistics<T> stats = ((BaseTm<T>)tm).getStorageInfo()
+                                            .getStatistics();
+            if (stats.verify()) {
+                return true;
+            }
+            if (repair) {
+                ((BaseTm<T>)tm).lockForWrite();
+                stats.recompute();
+            }
+            return false;
         }
         catch (SQLException e) {
             throw new TM3Exception(e);
@@ -166,6 +219,7 @@ public class DefaultManager implements TM3Manager {
         }
         session.flush(); // Sync the object to get an ID
         tm.getStorageInfo().create();
+        tm.getStorageInfo().getStatistics().initialize();
         return tm;
     }
     
@@ -188,6 +242,23 @@ public class DefaultManager implements TM3Manager {
         }
     }
 
+    @Override
+    public boolean createStoragePool(Connection conn, long id,
+            Set<TM3Attribute> inlineAttributes, int partitions) 
+            throws TM3Exception {
+        if (partitions < 0) {
+            throw new IllegalArgumentException("Invalid partition count: " +
+                                               partitions);
+        }
+        try {
+            return new SharedStorageTables(conn, id).create(inlineAttributes,
+                                                            partitions);
+        }
+        catch (SQLException e) {
+            throw new TM3Exception(e);
+        }
+    }
+
     @Override
     public boolean removeStoragePool(Connection conn, long id) throws TM3Exception {
         try {
@@ -198,4 +269,44 @@ public class DefaultManager implements TM3Manager {
         }
     }
 
+    @Override
+    public void purgeUnusedContent(Connection conn, long id) 
+                throws TM3Exception {
+        try {
+            new SharedStorageTables(conn, id).purgeUnusedContent();
+        }
+        catch (SQLException e) {
+            throw new TM3Exception(e);
+        }
+    }
+
+    @Override
+    public void setFuzzyIndexDirectory(File dir) {
+        this.fuzzyIndexDirectory = dir;
+    }
+
+    @Override
+    public File getFuzzyIndexDirectory() {
+        return fuzzyIndexDirectory;
+    }
+
+    @Override
+    public void setFuzzyIndexShards(List<DataSource> shards) {
+        this.fuzzyIndexShards = shards;
+    }
+
+    @Override
+    public List<DataSource> getFuzzyIndexShards() {
+        return fuzzyIndexShards;
+    }
+
+    @Override
+    public void setFuzzyFetchFused(boolean fused) {
+        this.fuzzyFetchFused = fused;
+    }
+
+    @Override
+    public boolean isFuzzyFetchFused() {
+        return fuzzyFetchFused;
+    }
 }
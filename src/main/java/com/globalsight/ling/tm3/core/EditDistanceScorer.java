@@ -41,7 +41,16 @@ public class EditDistanceScorer<T extends TM3Scorable<V>,
     public float score(T matchKey, T candidate, TM3Locale locale) {
         List<V> sources = matchKey.getScoringObjects();
         List<V> targets = candidate.getScoringObjects();
-              
+        return scorePenalties(getPenalties(sources, targets), 
+                              sources.size(), targets.size());
+    }
+    
+    /**
+     * Compute the substitution penalties for a candidate's scoring 
+     * objects, where penalties[x][y] is the cost of substituting target y
+     * for source x.
+     */
+    protected float[][] getPenalties(List<V> sources, List<V> targets) {
         // Compute substitution penalties
         float[][] penalties = new float[sources.size()][targets.size()];
         for (int x = 0; x < sources.size(); x++) {
@@ -56,22 +65,30 @@ public class EditDistanceScorer<T extends TM3Scorable<V>,
                 penalties[x][y] = 1.0f - f;
             }
         }
-        
+        return penalties;
+    }
+    
+    /**
+     * Score from the substitution penalties, where penalties[x][y] is the
+     * cost of substituting target y for source x.
+     */
+    protected float scorePenalties(float[][] penalties, int sourceCount,
+                                   int targetCount) {
         // Now compute the Damerau-Levenshtein distance on the object 
         // lists, but applying the pre-computed penalty on substitution
         // instead of a constant cost (100).
 
         float[] prev = null, prevprev = null, current;
         // Initialize the first column
-        current = new float[targets.size() + 1];
+        current = new float[targetCount + 1];
         for (int i = 0; i < current.length; i++) {
             current[i] = i * COST;
         }
-        for (int x = 0; x < sources.size(); x++) {
+        for (int x = 0; x < sourceCount; x++) {
             // Set up columns
             prevprev = prev;
             prev = current;
-            current = new float[targets.size() + 1];
+            current = new float[targetCount + 1];
             current[0] = (x + 1) * COST;
             // NOTE: The indexing here is gnarly, because the 'x' value
             // is zero-indexed, while the 'y' value is essentially 1-indexed
@@ -81,7 +98,7 @@ public class EditDistanceScorer<T extends TM3Scorable<V>,
             //
             // This makes the transposition logic, in particular, tough
             // to follow
-            for (int y = 1; y < targets.size() + 1; y++) {
+            for (int y = 1; y < targetCount + 1; y++) {
                 float delcost = prev[y] + COST;
                 float addcost = current[y - 1] + COST;
                 float substcost = prev[y - 1] + penalties[x][y - 1];
@@ -101,8 +118,7 @@ public class EditDistanceScorer<T extends TM3Scorable<V>,
         // |result| is the total penalty, out of a possible maximum of 
         // 100 * whichever sentence has more words.
         float result = current[current.length - 1];
-        float max = Math.max(sources.size(), targets.size());
+        float max = Math.max(sourceCount, targetCount);
         return (max - result) / max;
     }
-
 }
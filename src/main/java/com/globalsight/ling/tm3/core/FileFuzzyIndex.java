@@ -0,0 +1,349 @@
+package com.globalsight.ling.tm3.core;
+
+import java.io.File;
+import java.io.IOException;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import javax.transaction.Status;
+import javax.transaction.Synchronization;
+
+import org.apache.log4j.Logger;
+import org.hibernate.Session;
+import org.hibernate.Transaction;
+
+import com.globalsight.ling.tm3.core.PostingStore.Change;
+import com.globalsight.ling.tm3.core.persistence.SQLUtil;
+import com.globalsight.ling.tm3.core.persistence.StatementBuilder;
+
+/**
+ * Serves fuzzy lookups from a {@link PostingStore} of memory-mapped
+ * files instead of the fuzzy index table.  The table is still written,
+ * and remains the index of record: the store is a copy of it, built
+ * from it the first time it is used, and rebuilt from it if it is ever
+ * lost.  Changes reach the store when the transaction that made them
+ * commits, so a rolled back save never shows up in lookups.
+ * <p>
+ * Only one process can have a store open.  Elsewhere, lookups go to the
+ * table, and changes are posted to the store's owner, which reloads the
+ * TUVs from the table the next time it serves a lookup.
+ */
+class FileFuzzyIndex<T extends TM3Data> extends FuzzyIndex<T> {
+
+    private static final Logger LOGGER = Logger.getLogger(FileFuzzyIndex.class);
+
+    // TUVs copied from the fuzzy index table per query, when building
+    static final int BUILD_PAGE_SIZE = 1000;
+
+    private FuzzyIndex<T> fingerprintIndex;
+    private File dir;
+
+    /**
+     * @param fingerprintIndex the TM's fingerprint index
+     * @param dir directory for this TM's store
+     */
+    FileFuzzyIndex(StorageInfo<T> storage, FuzzyIndex<T> fingerprintIndex,
+                   File dir) {
+        super(storage);
+        this.fingerprintIndex = fingerprintIndex;
+        this.dir = dir;
+    }
+
+    @Override
+    protected String getLocaleExpression() {
+        return fingerprintIndex.getLocaleExpression();
+    }
+
+    @Override
+    protected Trigrams getTrigrams(T key) {
+        return fingerprintIndex.getTrigrams(key);
+    }
+
+    @Override
+    protected StatementBuilder getFuzzyLookupQuery(List<Long> fingerprints,
+                    int fingerprintCount, Map<Long, Double> weights,
+                    TM3Locale keyLocale, Set<? extends TM3Locale> matchLocales,
+                    Map<TM3Attribute, Object> inlineAttrs, boolean lookupTarget) {
+        return fingerprintIndex.getFuzzyLookupQuery(fingerprints,
+                fingerprintCount, weights, keyLocale, matchLocales,
+                inlineAttrs, lookupTarget);
+    }
+
+    @Override
+    protected Lookup createLookup(List<Long> fingerprints,
+            int fingerprintCount, int tokenCount, Map<Long, Double> weights,
+            TM3Locale keyLocale, Set<? extends TM3Locale> matchLocales,
+            Map<TM3Attribute, Object> inlineAttributes,
+            Map<TM3Attribute, String> customAttributes,
+            int threshold, boolean lookupTarget) throws SQLException {
+        PostingStore store = getStore();
+        if (store == null) {
+            return super.createLookup(fingerprints, fingerprintCount,
+                    tokenCount, weights, keyLocale, matchLocales, 
+                    inlineAttributes, customAttributes, threshold, 
+                    lookupTarget);
+        }
+        Map<Long, RankedCandidate> found = store.collect(keyLocale.getId(),
+                fingerprints, weights, !lookupTarget);
+        return createRankedLookup(found.values(), fingerprints.size(),
+                fingerprintCount, tokenCount, keyLocale, matchLocales, 
+                inlineAttributes, customAttributes, threshold);
+    }
+
+    @Override
+    List<Long> getIndexedTuvIds(List<Long> tuIds) throws SQLException {
+        return fingerprintIndex.getIndexedTuvIds(tuIds);
+    }
+
+    @Override
+    protected void indexFingerprints(List<Long> fingerprints,
+            int tokenCount, TM3Tuv<T> tuv) throws SQLException {
+        fingerprintIndex.indexFingerprints(fingerprints, tokenCount, tuv);
+        stage(Collections.singletonList(Change.add(tuv.getId(),
+                tuv.getTu().getId(), tuv.getLocale().getId(),
+                tuv.isSource(), tokenCount, fingerprints)));
+    }
+
+    @Override
+    public void deleteFingerprints(TM3Tuv<T> tuv) throws SQLException {
+        fingerprintIndex.deleteFingerprints(tuv);
+        stage(Collections.singletonList(Change.delete(tuv.getId())));
+    }
+
+    @Override
+    public void deleteFingerprintsByTuId(List<Long> tuIds)
+                throws SQLException {
+        if (tuIds.size() == 0) {
+            return;
+        }
+        // The store only knows TUVs, so find them before they go
+        deleteFromStore(fingerprintIndex.getIndexedTuvIds(tuIds));
+        fingerprintIndex.deleteFingerprintsByTuId(tuIds);
+    }
+
+    @Override
+    public void deleteFingerprintsByTuvId(List<Long> tuvIds)
+                throws SQLException {
+        if (tuvIds.size() == 0) {
+            return;
+        }
+        fingerprintIndex.deleteFingerprintsByTuvId(tuvIds);
+        deleteFromStore(tuvIds);
+    }
+
+    private void deleteFromStore(List<Long> tuvIds) {
+        List<Change> changes = new ArrayList<Change>();
+        for (Long id : tuvIds) {
+            changes.add(Change.delete(id));
+        }
+        stage(changes);
+    }
+
+    /**
+     * Apply changes to the store once the current transaction commits,
+     * or straight away if there is no transaction.
+     */
+    private void stage(final List<Change> changes) {
+        if (changes.isEmpty()) {
+            return;
+        }
+        Transaction tx = getStorage().getSession().getTransaction();
+        if (tx == null || !tx.isActive()) {
+            apply(changes);
+            return;
+        }
+        tx.registerSynchronization(new Synchronization() {
+            @Override
+            public void beforeCompletion() {
+            }
+
+            @Override
+            public void afterCompletion(int status) {
+                if (status == Status.STATUS_COMMITTED) {
+                    apply(changes);
+                }
+            }
+        });
+    }
+
+    private void apply(List<Change> changes) {
+        PostingStore store = null;
+        try {
+            store = PostingStore.get(dir);
+            if (store == null) {
+                List<Long> tuvIds = new ArrayList<Long>();
+                for (Change c : changes) {
+                    tuvIds.add(c.tuvId);
+                }
+                PostingStore.post(dir, tuvIds);
+                return;
+            }
+            store.apply(changes);
+        }
+        catch (IOException e) {
+            // The change is in the table, but not the store, so the
+            // store has to be rebuilt
+            LOGGER.error("Failed to update fuzzy index in " + dir, e);
+            if (store != null) {
+                store.invalidate();
+            }
+        }
+    }
+
+    /**
+     * Get the TM's store, building it from the fuzzy index table if need
+     * be, and catching up with changes posted by other processes.
+     * @return the store, or null if it is being built by another thread,
+     *         is open in another process, or can't be used
+     */
+    private PostingStore getStore() throws SQLException {
+        PostingStore store;
+        try {
+            store = PostingStore.get(dir);
+            if (store == null) {
+                return null;
+            }
+            if (store.isBuilt()) {
+                catchUp(store);
+            }
+            if (!store.isBuilt() && store.startBuild()) {
+                boolean built = false;
+                try {
+                    build(store);
+                    built = true;
+                }
+                finally {
+                    store.endBuild(built);
+                }
+            }
+        }
+        catch (IOException e) {
+            LOGGER.error("Can't use fuzzy index in " + dir, e);
+            return null;
+        }
+        return store.isBuilt() ? store : null;
+    }
+
+    /**
+     * Reload the TUVs that other processes have posted changes to from
+     * the fuzzy index table.  This reads committed entries only, on a 
+     * session of its own.
+     */
+    private void catchUp(PostingStore store) throws SQLException, 
+                IOException {
+        List<File> posted = store.takePosted();
+        if (posted.isEmpty()) {
+            return;
+        }
+        List<Long> tuvIds = 
+            new ArrayList<Long>(PostingStore.readPosted(posted));
+        if (tuvIds.contains(PostingStore.ALL_TUVS)) {
+            store.invalidate();
+            return;
+        }
+        String table = getStorage().getFuzzyIndexTableName();
+        Session session = getStorage().getSession().getSessionFactory()
+            .openSession();
+        try {
+            for (int i = 0; i < tuvIds.size(); i += BUILD_PAGE_SIZE) {
+                List<Long> page = tuvIds.subList(i, 
+                        Math.min(tuvIds.size(), i + BUILD_PAGE_SIZE));
+                List<Change> changes = new ArrayList<Change>();
+                for (Long id : page) {
+                    changes.add(Change.delete(id));
+                }
+                changes.addAll(readChanges(session.connection(), 
+                    new StatementBuilder()
+                        .append(getSelectEntries(table))
+                        .append(" WHERE tuvId IN ")
+                        .append(SQLUtil.longGroup(page))
+                        .append(" ORDER BY tuvId")));
+                store.apply(changes);
+            }
+        }
+        finally {
+            session.close();
+        }
+        PostingStore.deletePosted(posted);
+        LOGGER.debug("Reloaded " + tuvIds.size() + " TUVs posted to " + dir);
+    }
+
+    /**
+     * Copy the fuzzy index table into a store, a page of TUVs at a time.
+     */
+    private void build(PostingStore store) throws SQLException, IOException {
+        long start = System.currentTimeMillis();
+        String table = getStorage().getFuzzyIndexTableName();
+        long lastId = 0;
+        int count = 0;
+        while (true) {
+            List<Long> tuvIds = SQLUtil.execIdsQuery(getConnection(),
+                new StatementBuilder()
+                    .append("SELECT DISTINCT tuvId FROM ").append(table)
+                    .append(" WHERE tuvId > ?").addValue(lastId)
+                    .append(" ORDER BY tuvId LIMIT " + BUILD_PAGE_SIZE));
+            if (tuvIds.isEmpty()) {
+                break;
+            }
+            long firstId = tuvIds.get(0);
+            lastId = tuvIds.get(tuvIds.size() - 1);
+            List<Change> changes = readChanges(getConnection(),
+                new StatementBuilder()
+                    .append(getSelectEntries(table))
+                    .append(" WHERE tuvId BETWEEN ? AND ?")
+                    .addValues(firstId, lastId)
+                    .append(" ORDER BY tuvId"));
+            store.load(changes);
+            count += changes.size();
+        }
+        LOGGER.info("Built fuzzy index in " + dir + " for " + count +
+                " TUVs in " + (System.currentTimeMillis() - start) + "ms");
+    }
+
+    private String getSelectEntries(String table) {
+        return "SELECT tuvId, tuId, " + getLocaleExpression() + 
+            " AS localeId, isSource, tokenCount, fingerprint FROM " + table;
+    }
+
+    /**
+     * Read index entries, ordered by TUV, as a change adding each TUV.
+     */
+    private List<Change> readChanges(Connection conn, StatementBuilder sb) 
+                throws SQLException {
+        PreparedStatement ps = sb.toPreparedStatement(conn);
+        ResultSet rs = SQLUtil.execQuery(ps);
+        List<Change> changes = new ArrayList<Change>();
+        List<Long> fingerprints = null;
+        long tuvId = 0, tuId = 0, localeId = 0;
+        boolean isSource = false;
+        int tokenCount = 0;
+        while (rs.next()) {
+            if (fingerprints == null || rs.getLong(1) != tuvId) {
+                if (fingerprints != null) {
+                    changes.add(Change.add(tuvId, tuId, localeId,
+                            isSource, tokenCount, fingerprints));
+                }
+                tuvId = rs.getLong(1);
+                tuId = rs.getLong(2);
+                localeId = rs.getLong(3);
+                isSource = rs.getBoolean(4);
+                tokenCount = rs.getInt(5);
+                fingerprints = new ArrayList<Long>();
+            }
+            fingerprints.add(rs.getLong(6));
+        }
+        ps.close();
+        if (fingerprints != null) {
+            changes.add(Change.add(tuvId, tuId, localeId, isSource,
+                                   tokenCount, fingerprints));
+        }
+        return changes;
+    }
+}
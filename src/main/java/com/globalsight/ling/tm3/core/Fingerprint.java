@@ -1,38 +1,94 @@
 package com.globalsight.ling.tm3.core;
 
-import java.nio.ByteBuffer;
 import java.nio.charset.Charset;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
 
 /**
- * Compute fingerprints for database matching.  This provides 
+ * Compute fingerprints for database matching.  This provides
  * a default implementation of fingerprint calculation that takes
  * the low 8 bytes of an MD5 hash of the input.  Other schemes
- * are possible.
+ * are possible; see {@link TM3FingerprintFunction}.
  */
 public class Fingerprint {
 
-    public static long fromString(String data) { 
+    public static long fromString(String data) {
         return getMD5asLong(data);
     }
-    
+
+    /**
+     * A 64-bit hash of a string's chars, in the style of MurmurHash3.
+     * This is much cheaper than MD5, and produces no garbage.
+     */
+    public static long murmur(CharSequence s) {
+        int len = s.length();
+        long h = MURMUR_SEED ^ (len * C2);
+        int i = 0;
+        // Four chars to a block
+        for (; i + 4 <= len; i += 4) {
+            long k = s.charAt(i) | ((long) s.charAt(i + 1) << 16) |
+                     ((long) s.charAt(i + 2) << 32) |
+                     ((long) s.charAt(i + 3) << 48);
+            h ^= mixBlock(k);
+            h = Long.rotateLeft(h, 27) * 5 + 0x52dce729;
+        }
+        if (i < len) {
+            long k = 0;
+            for (int shift = 0; i < len; i++, shift += 16) {
+                k |= (long) s.charAt(i) << shift;
+            }
+            h ^= mixBlock(k);
+        }
+        return mix(h ^ len);
+    }
+
+    private static final long MURMUR_SEED = 0x9747b28c1f1b6e35L;
+    private static final long C1 = 0x87c37b91114253d5L;
+    private static final long C2 = 0x4cf5ad432745937fL;
+
+    private static long mixBlock(long k) {
+        k *= C1;
+        k = Long.rotateLeft(k, 31);
+        return k * C2;
+    }
+
+    // MurmurHash3's 64-bit finalizer
+    static long mix(long h) {
+        h ^= h >>> 33;
+        h *= 0xff51afd7ed558ccdL;
+        h ^= h >>> 33;
+        h *= 0xc4ceb9fe1a85ec53L;
+        h ^= h >>> 33;
+        return h;
+    }
+
     private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    // MessageDigest.getInstance() is slow, and digests can be reused
+    private static final ThreadLocal<MessageDigest> MD5 =
+        new ThreadLocal<MessageDigest>() {
+            @Override
+            protected MessageDigest initialValue() {
+                try {
+                    return MessageDigest.getInstance("MD5");
+                } catch (NoSuchAlgorithmException e) {
+                    throw new RuntimeException(e); // can't happen
+                }
+            }
+        };
+
     private static byte[] getMD5(String s) {
-        MessageDigest digest;
-        try {
-            digest = java.security.MessageDigest.getInstance("MD5");
-        } catch (NoSuchAlgorithmException e) {
-            throw new RuntimeException(e); // can't happen
-        }
-        digest.update(s.getBytes(UTF8));
-        return digest.digest();
+        MessageDigest digest = MD5.get();
+        digest.reset();
+        return digest.digest(s.getBytes(UTF8));
     }
 
     private static long getMD5asLong(String s) {
         byte[] bytes = getMD5(s);
-        ByteBuffer buf = ByteBuffer.allocate(8);
-        buf.put(bytes, 0, 8);
-        return buf.getLong(0);
+        long l = 0;
+        for (int i = 0; i < 8; i++) {
+            l = (l << 8) | (bytes[i] & 0xff);
+        }
+        return l;
     }
 }
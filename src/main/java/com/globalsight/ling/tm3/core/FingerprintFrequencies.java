@@ -0,0 +1,336 @@
+package com.globalsight.ling.tm3.core;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import com.globalsight.ling.tm3.core.persistence.BatchStatementBuilder;
+import com.globalsight.ling.tm3.core.persistence.SQLUtil;
+import com.globalsight.ling.tm3.core.persistence.StatementBuilder;
+
+/**
+ * Document frequencies of the fingerprints in a TM's fuzzy index, kept
+ * in the TM3_FUZZY_DF table.  Each row holds the number of TUVs in a
+ * locale that contain a fingerprint.  The fuzzy index updates the rows
+ * in the same transaction as the index entries they count.
+ * <p>
+ * Fingerprints that occur in a large share of a locale's TUVs (common
+ * words, punctuation next to a word boundary) match huge numbers of
+ * index entries while saying little about which candidates are best.
+ * {@link #prune(List, int, Map, int)} drops them from lookups.  The set of
+ * such fingerprints is cached in memory for each TM and locale, and
+ * reloaded periodically.
+ */
+class FingerprintFrequencies<T extends TM3Data> {
+
+    // How long the frequent fingerprints for a locale are cached
+    static final long CACHE_MILLIS = 60 * 1000;
+
+    // Frequent fingerprints and their counts, by "tmId:localeId"
+    private static final Map<String, CacheEntry> cache =
+        new ConcurrentHashMap<String, CacheEntry>();
+
+    private static class CacheEntry {
+        long loaded;
+        double cutoff;
+        Map<Long, Long> counts;
+    }
+
+    private FuzzyIndex<T> index;
+
+    FingerprintFrequencies(FuzzyIndex<T> index) {
+        this.index = index;
+    }
+
+    private Connection getConnection() {
+        return index.getConnection();
+    }
+
+    private long getTmId() {
+        return index.getStorage().getTm().getId();
+    }
+
+    /**
+     * Count a newly indexed TUV.
+     * @param fingerprints the TUV's (distinct) fingerprints
+     */
+    void add(TM3Locale locale, List<Long> fingerprints) throws SQLException {
+        if (fingerprints.size() == 0) {
+            return;
+        }
+        BatchStatementBuilder sb = new BatchStatementBuilder()
+            .append("INSERT INTO TM3_FUZZY_DF (tmId, localeId, fingerprint, ")
+            .append("docCount) VALUES (?, ?, ?, 1) ")
+            .append("ON DUPLICATE KEY UPDATE docCount = docCount + 1");
+        for (Long fp : fingerprints) {
+            sb.addBatch(getTmId(), locale.getId(), fp);
+        }
+        SQLUtil.execBatch(getConnection(), sb);
+    }
+
+    /**
+     * Uncount the TUVs whose index entries match a condition.  This must
+     * be called before the entries are deleted.
+     * @param condition SQL condition on the fuzzy index table
+     */
+    void remove(StatementBuilder condition) throws SQLException {
+        StatementBuilder sb = new StatementBuilder()
+            .append("UPDATE TM3_FUZZY_DF AS df, (")
+            .append("SELECT ").append(index.getLocaleExpression())
+            .append(" AS localeId, fingerprint, COUNT(*) AS n FROM ")
+            .append(index.getStorage().getFuzzyIndexTableName())
+            .append(" WHERE ").append(condition)
+            .append(" GROUP BY localeId, fingerprint) AS d ")
+            .append("SET df.docCount = df.docCount - d.n ")
+            .append("WHERE df.tmId = ? AND df.localeId = d.localeId ")
+            .addValue(getTmId())
+            .append("AND df.fingerprint = d.fingerprint");
+        SQLUtil.exec(getConnection(), sb);
+    }
+
+    /**
+     * Uncount index entries that are deleted from a fuzzy index kept in
+     * another database, which remove(StatementBuilder) can't read.
+     * @param counts (locale id, fingerprint, number of entries) for each
+     *        fingerprint
+     */
+    void remove(List<long[]> counts) throws SQLException {
+        if (counts.size() == 0) {
+            return;
+        }
+        BatchStatementBuilder sb = new BatchStatementBuilder()
+            .append("UPDATE TM3_FUZZY_DF SET docCount = docCount - ? ")
+            .append("WHERE tmId = ? AND localeId = ? AND fingerprint = ?");
+        for (long[] c : counts) {
+            sb.addBatch(c[2], getTmId(), c[0], c[1]);
+        }
+        SQLUtil.execBatch(getConnection(), sb);
+    }
+
+    /**
+     * @return true if the TM has frequencies, or nothing to count
+     */
+    boolean isAvailable() throws SQLException {
+        Connection conn = getConnection();
+        if (SQLUtil.execCountQuery(conn, new StatementBuilder()
+                .append("SELECT COUNT(*) FROM TM3_FUZZY_DF WHERE tmId = ?")
+                .addValue(getTmId())) > 0) {
+            return true;
+        }
+        StatementBuilder sb = new StatementBuilder()
+            .append("SELECT COUNT(*) FROM (SELECT 1 FROM ")
+            .append(index.getStorage().getFuzzyIndexTableName())
+            .append(" LIMIT 1) AS idx");
+        FuzzyIndexShards shards = index.getStorage().getFuzzyIndexShards();
+        if (shards == null) {
+            return SQLUtil.execCountQuery(conn, sb) == 0;
+        }
+        // A sharded TM's own index table is always empty
+        shards.ensureTables(index.getStorage());
+        for (int i = 0; i < shards.size(); i++) {
+            Connection shardConn = shards.getConnection(i);
+            try {
+                if (SQLUtil.execCountQuery(shardConn, sb) > 0) {
+                    return false;
+                }
+            }
+            finally {
+                shardConn.close();
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Throw away the frequencies for this TM.
+     */
+    void clear() throws SQLException {
+        SQLUtil.exec(getConnection(), new StatementBuilder()
+            .append("DELETE FROM TM3_FUZZY_DF WHERE tmId = ?")
+            .addValue(getTmId()));
+    }
+
+    /**
+     * Count index entries that are kept in another database, which
+     * recompute() can't read.
+     * @param counts (locale id, fingerprint, number of entries) for each
+     *        fingerprint
+     */
+    void add(List<long[]> counts) throws SQLException {
+        if (counts.size() == 0) {
+            return;
+        }
+        BatchStatementBuilder sb = new BatchStatementBuilder()
+            .append("INSERT INTO TM3_FUZZY_DF (tmId, localeId, fingerprint, ")
+            .append("docCount) VALUES (?, ?, ?, ?) ")
+            .append("ON DUPLICATE KEY UPDATE docCount = docCount + ")
+            .append("VALUES(docCount)");
+        for (long[] c : counts) {
+            sb.addBatch(getTmId(), c[0], c[1], c[2]);
+        }
+        SQLUtil.execBatch(getConnection(), sb);
+    }
+
+    /**
+     * Throw away the frequencies for this TM, and rebuild them from its
+     * fuzzy index.
+     */
+    void recompute() throws SQLException {
+        clear();
+        SQLUtil.exec(getConnection(), new StatementBuilder()
+            .append("INSERT INTO TM3_FUZZY_DF ")
+            .append("(tmId, localeId, fingerprint, docCount) ")
+            .append("SELECT ?, ").addValue(getTmId())
+            .append(index.getLocaleExpression())
+            .append(" AS localeId, fingerprint, COUNT(*) FROM ")
+            .append(index.getStorage().getFuzzyIndexTableName())
+            .append(" GROUP BY localeId, fingerprint"));
+    }
+
+    /**
+     * Get the fingerprints that occur in more than a given share of the
+     * TUVs in a locale.
+     * @param cutoff share of the locale's TUVs, between 0 and 1
+     * @return counts of the frequent fingerprints; empty if there are
+     *         none, or the TM has no statistics
+     */
+    Map<Long, Long> getFrequent(TM3Locale locale, double cutoff)
+                throws SQLException {
+        String key = getTmId() + ":" + locale.getId();
+        long now = System.currentTimeMillis();
+        CacheEntry entry = cache.get(key);
+        if (entry != null && entry.cutoff == cutoff &&
+                now - entry.loaded < CACHE_MILLIS) {
+            return entry.counts;
+        }
+        entry = new CacheEntry();
+        entry.loaded = now;
+        entry.cutoff = cutoff;
+        entry.counts = loadFrequent(locale, cutoff);
+        cache.put(key, entry);
+        return entry.counts;
+    }
+
+    private Map<Long, Long> loadFrequent(TM3Locale locale, double cutoff)
+                throws SQLException {
+        long[] counts = index.getStorage().getStatistics().getCounts(locale);
+        if (counts == null) {
+            return Collections.emptyMap();
+        }
+        StatementBuilder sb = new StatementBuilder()
+            .append("SELECT fingerprint, docCount FROM TM3_FUZZY_DF ")
+            .append("WHERE tmId = ? AND localeId = ? AND docCount > ?")
+            .addValues(getTmId(), locale.getId(),
+                       (long) (cutoff * counts[TmStatistics.TUVS]));
+        PreparedStatement ps = sb.toPreparedStatement(getConnection());
+        ResultSet rs = SQLUtil.execQuery(ps);
+        Map<Long, Long> frequent = new HashMap<Long, Long>();
+        while (rs.next()) {
+            frequent.put(rs.getLong(1), rs.getLong(2));
+        }
+        ps.close();
+        return frequent;
+    }
+
+    /**
+     * Weight fingerprints by their inverse document frequency, so that
+     * a candidate that shares a rare fingerprint with the key ranks 
+     * above one that shares a common one.
+     * @param fingerprints fingerprints being looked up
+     * @return weights by fingerprint, or null if the TM has no 
+     *         statistics to compute them from
+     */
+    Map<Long, Double> getWeights(TM3Locale locale, List<Long> fingerprints)
+                throws SQLException {
+        long[] counts = index.getStorage().getStatistics().getCounts(locale);
+        if (counts == null || fingerprints.size() == 0) {
+            return null;
+        }
+        StatementBuilder sb = new StatementBuilder()
+            .append("SELECT fingerprint, docCount FROM TM3_FUZZY_DF ")
+            .append("WHERE tmId = ? AND localeId = ? AND fingerprint IN ")
+            .addValues(getTmId(), locale.getId())
+            .append(SQLUtil.longGroup(fingerprints));
+        PreparedStatement ps = sb.toPreparedStatement(getConnection());
+        ResultSet rs = SQLUtil.execQuery(ps);
+        Map<Long, Long> docCounts = new HashMap<Long, Long>();
+        while (rs.next()) {
+            docCounts.put(rs.getLong(1), rs.getLong(2));
+        }
+        ps.close();
+        Map<Long, Double> weights = new HashMap<Long, Double>();
+        for (Long fp : fingerprints) {
+            Long df = docCounts.get(fp);
+            weights.put(fp, idf(counts[TmStatistics.TUVS], 
+                                df == null ? 0 : df));
+        }
+        return weights;
+    }
+    
+    /**
+     * Smoothed inverse document frequency, which is always positive.
+     * @param total number of TUVs in the locale
+     * @param docCount number of them that contain the fingerprint
+     */
+    static double idf(long total, long docCount) {
+        return Math.log(1 + (double) total / (1 + docCount));
+    }
+
+    /**
+     * Drop the most frequent fingerprints from a lookup key, without
+     * losing candidates that could score above the threshold.  Such a
+     * candidate is at most {@link FuzzyIndex#getMaxEdits} edits from the
+     * key, and each edit removes at most 
+     * {@link FuzzyIndex#TRIGRAMS_PER_EDIT} of the key's fingerprints, so
+     * it shares all but that many of them.  As long as fewer than the 
+     * rest are dropped, it still shares one of the ones that are left,
+     * whichever fingerprints those are.
+     * @param fingerprints distinct fingerprints of the key
+     * @param tokenCount number of tokens in the key
+     * @param frequent counts of the frequent fingerprints
+     * @param threshold minimum score (0-100) of the matches required
+     * @return fingerprints to look up
+     */
+    static List<Long> prune(List<Long> fingerprints, int tokenCount,
+            final Map<Long, Long> frequent, int threshold) {
+        if (threshold <= 0 || frequent.isEmpty()) {
+            return fingerprints;
+        }
+        long removable = (long) FuzzyIndex.TRIGRAMS_PER_EDIT * 
+            FuzzyIndex.getMaxEdits(tokenCount, threshold);
+        int maxDropped = (int) Math.min(fingerprints.size() - removable - 1,
+                                        fingerprints.size() - 1);
+        if (maxDropped <= 0) {
+            return fingerprints;
+        }
+        List<Long> candidates = new ArrayList<Long>();
+        for (Long fp : fingerprints) {
+            if (frequent.containsKey(fp)) {
+                candidates.add(fp);
+            }
+        }
+        if (candidates.isEmpty()) {
+            return fingerprints;
+        }
+        // Most frequent first
+        Collections.sort(candidates, new Comparator<Long>() {
+            @Override
+            public int compare(Long a, Long b) {
+                return frequent.get(b).compareTo(frequent.get(a));
+            }
+        });
+        List<Long> dropped = candidates.subList(0,
+                Math.min(maxDropped, candidates.size()));
+        List<Long> kept = new ArrayList<Long>(fingerprints);
+        kept.removeAll(dropped);
+        return kept;
+    }
+}
@@ -5,17 +5,25 @@ import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.SQLException;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
 import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
 import java.util.HashSet;
 
+import com.globalsight.ling.tm3.core.persistence.BatchStatementBuilder;
 import com.globalsight.ling.tm3.core.persistence.SQLUtil;
 import com.globalsight.ling.tm3.core.persistence.StatementBuilder;
 
 abstract class FuzzyIndex<T extends TM3Data> {
     private StorageInfo<T> storage;
+    private Connection connection;
+    private TM3FingerprintFunction fingerprintFunction;
+    private TM3TrigramHash trigramHash;
     
     FuzzyIndex(StorageInfo<T> storage) {
         this.storage = storage;
@@ -26,32 +34,527 @@ abstract class FuzzyIndex<T extends TM3Data> {
     }
     
     protected Connection getConnection() {
-        return storage.getSession().connection();
+        return connection != null ? connection : 
+                                    storage.getSession().connection();
     }
     
     /**
-     * Return a set of fuzzy match candidates in order of their initial
-     * match score.  This requires an active JDBC connection.
-     * @param open JDBC connection
+     * Run this index's statements on a connection other than the 
+     * session's, such as one to a shard of the index.
+     */
+    void setConnection(Connection connection) {
+        this.connection = connection;
+    }
+    
+    /**
+     * Fingerprint tokens with a function other than the TM's, such as
+     * the one a TM is being reindexed with.
+     */
+    void setFingerprintFunction(TM3FingerprintFunction fingerprintFunction) {
+        this.fingerprintFunction = fingerprintFunction;
+    }
+    
+    TM3FingerprintFunction getFingerprintFunction() {
+        return fingerprintFunction != null ? fingerprintFunction :
+                storage.getTm().getFingerprintFunction();
+    }
+    
+    /**
+     * Hash trigrams with a version other than the TM's.
+     */
+    void setTrigramHash(TM3TrigramHash trigramHash) {
+        this.trigramHash = trigramHash;
+    }
+    
+    TM3TrigramHash getTrigramHash() {
+        return trigramHash != null ? trigramHash :
+                storage.getTm().getTrigramHash();
+    }
+    
+    FingerprintFrequencies<T> getFrequencies() {
+        return new FingerprintFrequencies<T>(this);
+    }
+    
+    /**
+     * Get an SQL expression for the locale id of an index entry.
+     */
+    protected abstract String getLocaleExpression();
+    
+    /**
+     * Start a fuzzy lookup.  Candidates are fetched from the returned 
+     * {@link Lookup} in batches, in order of their initial match score.
+     * This requires an active JDBC connection.
      * @param key TUV data in the appropriate locale for this index
      * @param keyLocale locale of the key
      * @param matchLocales candidates must have a tuv in one of these locales
      *      (or null for no such restriction)
      * @param attributes attribute values to match
-     * @param max maximum number of results to return
+     * @param threshold minimum score of the matches that will be kept; 
+     *        if the scorer is a {@link TM3BoundedFuzzyMatchScorer}, 
+     *        fingerprints that are too common to be useful are left out of
+     *        the lookup when that won't lose any such matches
      * @param lookupTarget when false, match only on the source tuv; when
      *        true, match on all tuvs
-     * @return list of TM3Tu representing segments which are potential matches
-     *      for the key.  This list is sorted in decreasing order of relevance.
+     * @return the lookup
      */
-    public List<FuzzyCandidate<T>> lookup(T key, TM3Locale keyLocale,
+    public Lookup lookup(T key, TM3Locale keyLocale,
           Set<? extends TM3Locale> matchLocales,
           Map<TM3Attribute, Object> inlineAttributes,
-          Map<TM3Attribute, String> customAttributes, int maxResults, 
-          boolean lookupTarget) 
+          Map<TM3Attribute, String> customAttributes, 
+          int threshold, boolean lookupTarget) 
               throws SQLException {
-        return lookupFingerprints(getFingerprints(key), keyLocale, 
-                    matchLocales, inlineAttributes, customAttributes, maxResults, lookupTarget);
+        Trigrams trigrams = getTrigrams(key);
+        List<Long> fingerprints = trigrams.fingerprints;
+        List<Long> lookupFingerprints = fingerprints;
+        double cutoff = getStorage().getTm().getFuzzyFrequencyCutoff();
+        if (cutoff > 0 && isScoreBounded()) {
+            lookupFingerprints = FingerprintFrequencies.prune(fingerprints, 
+                trigrams.tokenCount, 
+                getFrequencies().getFrequent(keyLocale, cutoff), threshold);
+        }
+        Map<Long, Double> weights = 
+            getFrequencies().getWeights(keyLocale, lookupFingerprints);
+        // There can be 0 fingerprints if there is a tokenizer problem or
+        // certain types of degenerate query strings.  Empty matchLocales
+        // would be an awkward case in getFuzzyLookupQuery.
+        if (lookupFingerprints.size() == 0 || 
+                (matchLocales != null && matchLocales.isEmpty())) {
+            return new Lookup(null, keyLocale, null, 0, 0, 0, threshold);
+        }
+        return createLookup(lookupFingerprints, fingerprints.size(), 
+                trigrams.tokenCount, weights, keyLocale, matchLocales, 
+                inlineAttributes, customAttributes, threshold, lookupTarget);
+    }
+    
+    /**
+     * Create the lookup for a set of fingerprints, once the key has been
+     * pruned and weighted.  The default runs getFuzzyLookupQuery() 
+     * against the fuzzy index table.
+     * @param fingerprints fingerprints to look up
+     * @param fingerprintCount number of fingerprints in the key
+     * @param tokenCount number of tokens in the key
+     * @param weights weights of the fingerprints, or null
+     */
+    protected Lookup createLookup(List<Long> fingerprints, 
+            int fingerprintCount, int tokenCount, Map<Long, Double> weights, 
+            TM3Locale keyLocale, Set<? extends TM3Locale> matchLocales,
+            Map<TM3Attribute, Object> inlineAttributes,
+            Map<TM3Attribute, String> customAttributes, 
+            int threshold, boolean lookupTarget) throws SQLException {
+        StatementBuilder sb = getFuzzyLookupQuery(fingerprints, 
+                    fingerprintCount, weights, keyLocale, 
+                    matchLocales, inlineAttributes, lookupTarget);
+        if (customAttributes.size() > 0) {
+            sb = getAttributeMatchWrapper(sb, customAttributes);
+        }
+        double[] ranks = new double[fingerprints.size()];
+        for (int i = 0; i < ranks.length; i++) {
+            ranks[i] = 1;
+            if (weights != null) {
+                Double w = weights.get(fingerprints.get(i));
+                ranks[i] = w != null ? w : 0;
+            }
+        }
+        Arrays.sort(ranks);
+        return new Lookup(sb, keyLocale, ranks, fingerprints.size(),
+                          fingerprintCount, tokenCount, threshold);
+    }
+    
+    /**
+     * What a lookup knows about a TUV that shares fingerprints with the
+     * key, for indexes that collect candidates themselves rather than 
+     * with a single lookup query.
+     */
+    static class RankedCandidate {
+        final long tuvId;
+        final long tuId;
+        final int tuvCount;
+        final int tokenCount;
+        int shared;
+        double rank;
+        
+        RankedCandidate(long tuvId, long tuId, int tuvCount, 
+                        int tokenCount) {
+            this.tuvId = tuvId;
+            this.tuId = tuId;
+            this.tuvCount = tuvCount;
+            this.tokenCount = tokenCount;
+        }
+    }
+    
+    /**
+     * Create a lookup over candidates that have already been collected.
+     * They are filtered on length as the lookup queries are, and ordered
+     * by their score bound, then by rank.  Attribute and locale 
+     * restrictions are checked against the TU tables as each batch is
+     * fetched.
+     * @param lookupCount number of fingerprints that were looked up
+     * @param fingerprintCount number of fingerprints in the key
+     * @param tokenCount number of tokens in the key
+     */
+    protected Lookup createRankedLookup(Collection<RankedCandidate> found, 
+            int lookupCount, int fingerprintCount, int tokenCount,
+            TM3Locale keyLocale, 
+            Set<? extends TM3Locale> matchLocales,
+            Map<TM3Attribute, Object> inlineAttributes,
+            Map<TM3Attribute, String> customAttributes, int threshold) {
+        int min = fingerprintCount / 3;
+        int max = fingerprintCount * 3;
+        int dropped = fingerprintCount - lookupCount;
+        boolean bounded = isScoreBounded();
+        final Map<RankedCandidate, Integer> bounds = 
+            new HashMap<RankedCandidate, Integer>();
+        List<RankedCandidate> candidates = new ArrayList<RankedCandidate>();
+        for (RankedCandidate c : found) {
+            if (c.tuvCount <= min || c.tuvCount >= max) {
+                continue;
+            }
+            int bound = !bounded ? 100 : getScoreBound(tokenCount, 
+                    fingerprintCount, c.tokenCount, c.shared + dropped);
+            if (bound >= threshold) {
+                bounds.put(c, bound);
+                candidates.add(c);
+            }
+        }
+        // Best bound first, so that the lookup's bound is exact
+        Collections.sort(candidates, new Comparator<RankedCandidate>() {
+            @Override
+            public int compare(RankedCandidate a, RankedCandidate b) {
+                int c = bounds.get(b).compareTo(bounds.get(a));
+                if (c != 0) {
+                    return c;
+                }
+                c = Double.compare(b.rank, a.rank);
+                if (c != 0) {
+                    return c;
+                }
+                return a.tuvId < b.tuvId ? -1 : a.tuvId > b.tuvId ? 1 : 0;
+            }
+        });
+        int[] sortedBounds = new int[candidates.size()];
+        for (int i = 0; i < sortedBounds.length; i++) {
+            sortedBounds[i] = bounds.get(candidates.get(i));
+        }
+        return new RankedLookup(candidates, sortedBounds, keyLocale, 
+                matchLocales, inlineAttributes, customAttributes, threshold);
+    }
+    
+    /**
+     * Compute the best score (0-100) that a candidate could get, from the 
+     * number of fingerprints it has in common with the key.  Fingerprints
+     * are trigrams of tokens, so one edit can remove at most four of them
+     * (a transposition changes two tokens), and a candidate needs at 
+     * least as many edits as its length differs from the key's.  Lengths
+     * are counted in tokens, since a segment that repeats itself has 
+     * fewer distinct fingerprints than tokens.  When the candidate's 
+     * length isn't known, the edits are assumed to be spent on the 
+     * candidate that they cost least against: one that is longer than
+     * the key by as many tokens.  This assumes that the scorer compares
+     * the tokens that are fingerprinted, and that they either match or 
+     * don't.  (A trigram measure like Dice would be tighter, but isn't an
+     * upper bound: one changed word in a short segment removes three 
+     * shared trigrams.)
+     * @param keyTokens number of tokens in the key
+     * @param keyCount number of distinct fingerprints in the key
+     * @param candidateTokens number of tokens in the candidate, or 0 if
+     *        it isn't known
+     * @param shared number of the key's fingerprints that the candidate
+     *        has, counting fingerprints that were left out of the lookup
+     *        as shared
+     */
+    static int getScoreBound(int keyTokens, int keyCount, 
+                             int candidateTokens, int shared) {
+        int max = Math.max(keyTokens, candidateTokens);
+        if (max == 0) {
+            return 100;
+        }
+        int unshared = Math.max(0, keyCount - shared);
+        int edits = (unshared + TRIGRAMS_PER_EDIT - 1) / TRIGRAMS_PER_EDIT;
+        if (candidateTokens <= 0) {
+            return 100 * keyTokens / (keyTokens + edits);
+        }
+        edits = Math.max(edits, Math.abs(keyTokens - candidateTokens));
+        return Math.max(0, 100 * (max - edits) / max);
+    }
+    
+    /**
+     * Whether the TM's scorer lets lookups bound candidates' scores by
+     * the fingerprints they share with the key; see 
+     * {@link TM3BoundedFuzzyMatchScorer}.  If not, every candidate's 
+     * bound is 100.
+     */
+    protected boolean isScoreBounded() {
+        TM3DataFactory<T> factory = getStorage().getTm().getDataFactory();
+        return factory != null && factory.getFuzzyMatchScorer() 
+            instanceof TM3BoundedFuzzyMatchScorer;
+    }
+    
+    /**
+     * The most fingerprints of a key that one edit can remove.
+     */
+    static final int TRIGRAMS_PER_EDIT = 4;
+    
+    /**
+     * The most edits that a candidate of any length can be from a key
+     * and still score at least the threshold.  A candidate that is e
+     * edits from a key of n tokens scores at most n / (n + e).
+     * @param keyTokens number of tokens in the key
+     * @param threshold minimum score (1-100)
+     */
+    static int getMaxEdits(int keyTokens, int threshold) {
+        return keyTokens * (100 - threshold) / threshold;
+    }
+    
+    /**
+     * The fingerprints of some TUV data, without duplicates, and its 
+     * number of tokens.  There is a trigram for each token, so a segment
+     * that repeats itself has fewer fingerprints than tokens.
+     */
+    static class Trigrams {
+        final List<Long> fingerprints;
+        final int tokenCount;
+        
+        Trigrams(List<Long> fingerprints, int tokenCount) {
+            this.fingerprints = fingerprints;
+            this.tokenCount = tokenCount;
+        }
+    }
+    
+    /**
+     * A fuzzy lookup in progress.  Each batch of candidates re-runs the 
+     * lookup query for the next range of results, so callers should ask
+     * for a small batch first, and only ask for more if the candidates 
+     * so far aren't good enough.
+     */
+    class Lookup {
+        private static final double RANK_TOLERANCE = 1e-6;
+        
+        private StatementBuilder query;
+        private TM3Locale keyLocale;
+        private double[] ranks;
+        private int lookupCount, fingerprintCount, tokenCount, threshold;
+        private int offset = 0;
+        private double lastRank = Double.MAX_VALUE;
+        private boolean exhausted;
+        private boolean bounded;
+        
+        /**
+         * @param ranks what each fingerprint that is looked up adds to a
+         *        candidate's rank, smallest first, or null if ranks don't
+         *        bound the scores of the remaining candidates
+         */
+        Lookup(StatementBuilder query, TM3Locale keyLocale, double[] ranks,
+               int lookupCount, int fingerprintCount, int tokenCount,
+               int threshold) {
+            this.query = query;
+            this.keyLocale = keyLocale;
+            this.ranks = ranks;
+            this.lookupCount = lookupCount;
+            this.fingerprintCount = fingerprintCount;
+            this.tokenCount = tokenCount;
+            this.threshold = threshold;
+            this.exhausted = (query == null);
+            this.bounded = isScoreBounded();
+        }
+        
+        /**
+         * @return true if there are no more candidates
+         */
+        boolean isExhausted() {
+            return exhausted;
+        }
+        
+        /**
+         * Compute the best score (0-100) that any candidate not yet
+         * fetched could get.  Candidates come in order of their rank in 
+         * the lookup query, so none of the remaining ones ranks above the
+         * last one fetched, and none shares more fingerprints with the 
+         * key than the number of smallest ranks that add up to no more 
+         * than that.  Any fingerprints left out of the query are assumed
+         * to be shared.  This is 100 unless the scorer is a 
+         * {@link TM3BoundedFuzzyMatchScorer}.
+         */
+        int getScoreBound() {
+            if (exhausted) {
+                return 0;
+            }
+            if (ranks == null || !bounded) {
+                return 100;
+            }
+            int shared = fingerprintCount - lookupCount;
+            double sum = 0;
+            for (double rank : ranks) {
+                sum += rank;
+                // The query adds up the ranks in a different order
+                if (sum > lastRank + RANK_TOLERANCE) {
+                    break;
+                }
+                shared++;
+            }
+            return FuzzyIndex.getScoreBound(tokenCount, fingerprintCount, 
+                                            0, shared);
+        }
+        
+        /**
+         * Fetch the next batch of candidates.  If the scorer is a 
+         * {@link TM3BoundedFuzzyMatchScorer}, candidates that share too
+         * few fingerprints with the key to reach the threshold are 
+         * skipped before their content is loaded, so fewer than count
+         * may be returned even if the lookup isn't exhausted.
+         * @param count maximum number of candidates to fetch
+         */
+        List<FuzzyCandidate<T>> next(int count) throws SQLException {
+            if (exhausted || count <= 0) {
+                return Collections.emptyList();
+            }
+            TuStorage<T> tuStorage = getStorage().getTuStorage();
+            boolean fused = getStorage().isFuzzyFetchFused();
+            StatementBuilder sb = new StatementBuilder()
+                .append(query)
+                .append(" LIMIT " + offset + ", " + count);
+            if (fused) {
+                sb = tuStorage.getFusedFuzzyQuery(sb, "ranked");
+            }
+            PreparedStatement ps = sb.toPreparedStatement(getConnection());
+            ResultSet rs = SQLUtil.execQuery(ps); 
+            List<Long> ids = new ArrayList<Long>();
+            List<TuStorage.TuvData<T>> rawTuvs = 
+                new ArrayList<TuStorage.TuvData<T>>();
+            int rows = 0;
+            int dropped = fingerprintCount - lookupCount;
+            while (rs.next()) {
+                long tuvId = rs.getLong(1);
+                // The fused query doesn't return rows in rank order
+                lastRank = rows == 0 ? rs.getDouble(3) : 
+                            Math.min(lastRank, rs.getDouble(3));
+                int shared = rs.getInt(4) + dropped;
+                int candidateTokens = rs.getInt(6);
+                rows++;
+                if (bounded && FuzzyIndex.getScoreBound(tokenCount, 
+                        fingerprintCount, candidateTokens, shared) < threshold) {
+                    continue;
+                }
+                if (fused) {
+                    rawTuvs.add(tuStorage.readFuzzyCandidate(rs, 7, keyLocale));
+                }
+                else {
+                    ids.add(tuvId);
+                }
+            }
+            ps.close();
+            offset += rows;
+            if (rows < count) {
+                exhausted = true;
+            }
+            return fused ? tuStorage.toFuzzyCandidates(rawTuvs, keyLocale) :
+                           tuStorage.loadFuzzyCandidates(ids, keyLocale);
+        }
+    }
+    
+    /**
+     * A lookup over candidates that have already been collected and
+     * ranked; see {@link FuzzyIndex#createRankedLookup}.
+     */
+    class RankedLookup extends Lookup {
+        private List<RankedCandidate> candidates;
+        private int[] bounds;
+        private TM3Locale keyLocale;
+        private Set<? extends TM3Locale> matchLocales;
+        private Map<TM3Attribute, Object> inlineAttributes;
+        private Map<TM3Attribute, String> customAttributes;
+        private int next = 0;
+        
+        RankedLookup(List<RankedCandidate> candidates, int[] bounds,
+                TM3Locale keyLocale, Set<? extends TM3Locale> matchLocales,
+                Map<TM3Attribute, Object> inlineAttributes,
+                Map<TM3Attribute, String> customAttributes, int threshold) {
+            super(null, keyLocale, null, 0, 0, 0, threshold);
+            this.candidates = candidates;
+            this.bounds = bounds;
+            this.keyLocale = keyLocale;
+            this.matchLocales = matchLocales;
+            this.inlineAttributes = inlineAttributes;
+            this.customAttributes = customAttributes;
+        }
+        
+        @Override
+        boolean isExhausted() {
+            return next >= candidates.size();
+        }
+        
+        @Override
+        int getScoreBound() {
+            return isExhausted() ? 0 : bounds[next];
+        }
+        
+        @Override
+        List<FuzzyCandidate<T>> next(int count) throws SQLException {
+            if (isExhausted() || count <= 0) {
+                return Collections.emptyList();
+            }
+            List<RankedCandidate> batch = candidates.subList(next, 
+                    Math.min(candidates.size(), next + count));
+            next += batch.size();
+            Set<Long> tuIds = new HashSet<Long>();
+            for (RankedCandidate c : batch) {
+                tuIds.add(c.tuId);
+            }
+            Set<Long> allowed = filterTus(tuIds, matchLocales, 
+                    inlineAttributes, customAttributes);
+            List<Long> ids = new ArrayList<Long>();
+            for (RankedCandidate c : batch) {
+                if (allowed == null || allowed.contains(c.tuId)) {
+                    ids.add(c.tuvId);
+                }
+            }
+            return getStorage().getTuStorage().loadFuzzyCandidates(ids, 
+                                                                   keyLocale);
+        }
+    }
+    
+    /**
+     * Find which of a set of TUs meet a lookup's attribute and locale
+     * restrictions.
+     * @return ids of the TUs that do, or null if there are no 
+     *         restrictions
+     */
+    private Set<Long> filterTus(Set<Long> tuIds, 
+            Set<? extends TM3Locale> matchLocales,
+            Map<TM3Attribute, Object> inlineAttributes,
+            Map<TM3Attribute, String> customAttributes) throws SQLException {
+        if (matchLocales == null && inlineAttributes.isEmpty() && 
+                customAttributes.isEmpty()) {
+            return null;
+        }
+        if (tuIds.isEmpty()) {
+            return tuIds;
+        }
+        TuStorage<T> tuStorage = getStorage().getTuStorage();
+        List<Long> ids = new ArrayList<Long>(tuIds);
+        StatementBuilder sb = new StatementBuilder()
+            .append("SELECT tu.id FROM ")
+            .append(getStorage().getTuTableName()).append(" AS tu");
+        getStorage().attributeJoinFilter(sb, "tu.id", customAttributes);
+        sb.append(" WHERE tu.id IN ").append(SQLUtil.longGroup(ids))
+          .append(tuStorage.tmCondition("tu."));
+        for (Map.Entry<TM3Attribute, Object> e : inlineAttributes.entrySet()) {
+            sb.append(" AND tu." + e.getKey().getColumnName() + " = ?");
+            sb.addValue(e.getValue());
+        }
+        if (matchLocales != null) {
+            List<Long> localeIds = new ArrayList<Long>();
+            for (TM3Locale locale : matchLocales) {
+                localeIds.add(locale.getId());
+            }
+            sb.append(" AND tu.id IN (SELECT tuId FROM ")
+              .append(getStorage().getTuvTableName())
+              .append(" WHERE tuId IN ").append(SQLUtil.longGroup(ids))
+              .append(" AND localeId IN ").append(SQLUtil.longGroup(localeIds))
+              .append(tuStorage.tmCondition("")).append(")");
+        }
+        // Attribute and TUV tables are always on the session's database
+        return new HashSet<Long>(SQLUtil.execIdsQuery(
+                storage.getSession().connection(), sb));
     }
     
     /**
@@ -64,81 +567,216 @@ abstract class FuzzyIndex<T extends TM3Data> {
      */
     public void index(TM3Tuv<T> tuv) 
                                 throws SQLException {
-        indexFingerprints(getFingerprints(tuv.getContent()), tuv);
+        Trigrams trigrams = getTrigrams(tuv.getContent());
+        indexFingerprints(trigrams.fingerprints, trigrams.tokenCount, tuv);
+        getFrequencies().add(tuv.getLocale(), trigrams.fingerprints);
     }
     
+    /**
+     * @param tokenCount the number of tokens in the TUV
+     */
     protected abstract void indexFingerprints(List<Long> fingerprints, 
-            TM3Tuv<T> tuv) throws SQLException;
+            int tokenCount, TM3Tuv<T> tuv) throws SQLException;
     
-    public abstract void deleteFingerprints(TM3Tuv<T> tuv) throws SQLException;
+    /**
+     * Insert index entries for some or all of a TUV's fingerprints into
+     * the fuzzy index table.
+     * @param tuvCount the number of fingerprints in the whole TUV
+     * @param tokenCount the number of tokens in the TUV
+     */
+    protected void insertEntries(List<Long> fingerprints, int tuvCount,
+            int tokenCount, TM3Tuv<T> tuv) throws SQLException {
+        BatchStatementBuilder sb = 
+            getInsertStatement(getStorage().getFuzzyIndexTableName());
+        addEntries(sb, fingerprints, tuvCount, tokenCount, tuv);
+        SQLUtil.execBatch(getConnection(), sb);
+        logChanges(new StatementBuilder("tuv.id = ?").addValue(tuv.getId()));
+    }
+    
+    /**
+     * Start a statement that inserts entries into a table with the 
+     * layout of this index's table.  Only indexes that keep their 
+     * entries in a table of their own support this.
+     */
+    protected BatchStatementBuilder getInsertStatement(String table) {
+        throw new UnsupportedOperationException();
+    }
     
-    // Note for implementors: matchLocales may be null, but will not be empty
+    /**
+     * Add entries for some or all of a TUV's fingerprints to a statement
+     * from getInsertStatement().
+     * @param tuvCount the number of fingerprints in the whole TUV
+     * @param tokenCount the number of tokens in the TUV
+     */
+    protected void addEntries(BatchStatementBuilder sb, 
+            List<Long> fingerprints, int tuvCount, int tokenCount, 
+            TM3Tuv<T> tuv) {
+        throw new UnsupportedOperationException();
+    }
+    
+    /**
+     * Remove the index entries for a TUV.
+     */
+    public void deleteFingerprints(TM3Tuv<T> tuv) throws SQLException {
+        logChanges(new StatementBuilder("tuv.id = ?").addValue(tuv.getId()));
+        deleteEntries(new StatementBuilder("tuvId = ?")
+            .addValue(tuv.getId()));
+    }
+    
+    // Delete entries, keeping the frequencies in step
+    private void deleteEntries(StatementBuilder condition) 
+                throws SQLException {
+        getFrequencies().remove(condition);
+        SQLUtil.exec(getConnection(), new StatementBuilder()
+            .append("DELETE FROM ")
+            .append(getStorage().getFuzzyIndexTableName())
+            .append(" WHERE ").append(condition));
+    }
+
+    /**
+     * Remove all index entries for the TUVs belonging to a set of TUs.
+     * @param tuIds ids of TUs whose entries should be removed
+     * @throws SQLException
+     */
+    public void deleteFingerprintsByTuId(List<Long> tuIds) throws SQLException {
+        if (tuIds.size() == 0) {
+            return;
+        }
+        logChanges(new StatementBuilder("tuv.tuId IN ")
+            .append(SQLUtil.longGroup(tuIds)));
+        deleteEntries(new StatementBuilder("tuId IN ")
+            .append(SQLUtil.longGroup(tuIds)));
+    }
+
+    /**
+     * Remove all index entries for a set of TUVs.
+     * @param tuvIds ids of TUVs whose entries should be removed
+     * @throws SQLException
+     */
+    public void deleteFingerprintsByTuvId(List<Long> tuvIds) throws SQLException {
+        if (tuvIds.size() == 0) {
+            return;
+        }
+        logChanges(new StatementBuilder("tuv.id IN ")
+            .append(SQLUtil.longGroup(tuvIds)));
+        deleteEntries(new StatementBuilder("tuvId IN ")
+            .append(SQLUtil.longGroup(tuvIds)));
+    }
+
+    /**
+     * Record that the entries of some TUVs' TUs are changing, if the TM's
+     * index is being rebuilt in a shadow table, so that the rebuild can
+     * catch up with them; see {@link TM3ReindexJob}.  The log is written
+     * in the same transaction as the entries, while the TM's write lock
+     * is held, so its ids follow the order the changes are committed in.
+     * Entries on a connection of their own belong to an index shard, 
+     * which is never rebuilt in a shadow table.
+     * @param tuvCondition condition on the TUV table, as "tuv"
+     */
+    private void logChanges(StatementBuilder tuvCondition) 
+                throws SQLException {
+        if (connection != null) {
+            return;
+        }
+        SQLUtil.exec(getConnection(), new StatementBuilder()
+            .append("INSERT INTO TM3_REINDEX_CHANGES (tmId, tuId) ")
+            .append("SELECT DISTINCT reindex.tmId, tuv.tuId ")
+            .append("FROM TM3_REINDEX AS reindex, ")
+            .append(storage.getTuvTableName()).append(" AS tuv ")
+            .append("WHERE reindex.tmId = ? AND ")
+            .addValue(storage.getTm().getId())
+            .append(tuvCondition));
+    }
+
+    /**
+     * Get the TUVs belonging to a set of TUs that have index entries.
+     */
+    List<Long> getIndexedTuvIds(List<Long> tuIds) throws SQLException {
+        if (tuIds.size() == 0) {
+            return new ArrayList<Long>();
+        }
+        return SQLUtil.execIdsQuery(getConnection(), new StatementBuilder()
+            .append("SELECT DISTINCT tuvId FROM ")
+            .append(getStorage().getFuzzyIndexTableName())
+            .append(" WHERE tuId IN ").append(SQLUtil.longGroup(tuIds)));
+    }
+
+    // Note for implementors: matchLocales may be null, but will not be empty.
+    // fingerprintCount is the number of fingerprints in the key, which
+    // may be more than are being looked up.  The query should return 
+    // (tuvId, tuId, score, shared, tuvCount, tokenCount) rows, using 
+    // getSelectList().
     protected abstract StatementBuilder getFuzzyLookupQuery(
-            List<Long> fingerprints, TM3Locale keyLocale,
+            List<Long> fingerprints, int fingerprintCount, 
+            Map<Long, Double> weights, TM3Locale keyLocale,
             Set<? extends TM3Locale> matchLocales,
             Map<TM3Attribute, Object> inlineAttrs, boolean lookupTarget);
     
-    protected List<FuzzyCandidate<T>> lookupFingerprints(List<Long> fingerprints,
-            TM3Locale keyLocale, Set<? extends TM3Locale> matchLocales,
-            Map<TM3Attribute, Object> inlineAttributes,
-            Map<TM3Attribute, String> customAttributes,
-            int maxResults, boolean lookupTarget) throws SQLException {
-        
-        // There can be 0 fingerprints if there is a tokenizer problem or
-        // certain types of degenerate query strings
-        if (fingerprints.size() == 0) {
-            return Collections.emptyList();
-        }
-        // avoid an awkward case in getFuzzyLookupQuery
-        if (matchLocales != null && matchLocales.isEmpty()) {
-            return Collections.emptyList();
-        }
-        StatementBuilder sb = getFuzzyLookupQuery(fingerprints, keyLocale, 
-                    matchLocales, inlineAttributes, lookupTarget);
-        if (customAttributes.size() > 0) {
-            sb = getAttributeMatchWrapper(sb, customAttributes);
+    /**
+     * Get the columns selected by the lookup query: the TUV and TU ids, 
+     * the candidate's rank, the number of fingerprints it shares with 
+     * the key, and its own numbers of fingerprints and tokens.
+     */
+    protected String getSelectList(Map<Long, Double> weights) {
+        return "tuvId, tuId, " + getScoreExpression(weights) + " as score, " +
+            "COUNT(*) as shared, MAX(idx.tuvCount) as tuvCount, " +
+            "MAX(idx.tokenCount) as tokenCount";
+    }
+    
+    /**
+     * Get the SQL expression that ranks candidates in the lookup query:
+     * the sum of the weights of the fingerprints a candidate shares with
+     * the key, or just their number if there are no weights.
+     */
+    protected String getScoreExpression(Map<Long, Double> weights) {
+        if (weights == null) {
+            return "SUM(1)";
         }
-        sb = addLimit(sb, maxResults);
-        PreparedStatement ps = sb.toPreparedStatement(getConnection());
-        ResultSet rs = SQLUtil.execQuery(ps); 
-        List<Long> ids = new ArrayList<Long>();
-        while (rs.next()) {
-            long tuvId = rs.getLong(1);
-            long tuId = rs.getLong(2); // Currently unused!
-            int score = rs.getInt(3); // Currently unused!
-            ids.add(tuvId);
+        StringBuilder sb = new StringBuilder("SUM(CASE idx.fingerprint");
+        for (Map.Entry<Long, Double> e : weights.entrySet()) {
+            sb.append(" WHEN ").append(e.getKey())
+              .append(" THEN ").append(e.getValue());
         }
-        ps.close();
-        return getStorage().getTuStorage().loadFuzzyCandidates(ids, keyLocale);
+        sb.append(" ELSE 0 END)");
+        return sb.toString();
     }
     
-    protected List<Long> getFingerprints(T key) {
-        List<Trigrammer.Trigram> trigrams = new Trigrammer().getTrigrams(key);
+    protected Trigrams getTrigrams(T key) {
+        List<Trigrammer.Trigram> trigrams = 
+            new Trigrammer(getFingerprintFunction(), getTrigramHash())
+                .getTrigrams(key);
         // Remove duplicates, since our queries can not handle them properly.
         // This may cause slightly odd results for pathological cases.
         Set<Long> tset = new HashSet<Long>();
         for (Trigrammer.Trigram t : trigrams) { 
             tset.add(t.getValue());
         }
-        return new ArrayList<Long>(tset);
-    }
-    
-    protected StatementBuilder addLimit(StatementBuilder inner, int maxResults) {
-        if (maxResults < Integer.MAX_VALUE) {
-            inner.append(" LIMIT " + maxResults * 3);
-        }
-        return inner;
+        return new Trigrams(new ArrayList<Long>(tset), trigrams.size());
     }
     
     protected StatementBuilder getAttributeMatchWrapper(StatementBuilder inner, 
             Map<TM3Attribute, String> attributes) {
         StatementBuilder sb = new StatementBuilder()
-            .append("SELECT dummy.tuvId, dummy.tuId, dummy.score FROM (")
+            .append("SELECT dummy.tuvId, dummy.tuId, dummy.score, ")
+            .append("dummy.shared, dummy.tuvCount, dummy.tokenCount FROM (")
             .append(inner)
             .append(") as dummy");
         getStorage().attributeJoinFilter(sb, "dummy.tuId", attributes);
         sb.append(" WHERE 1"); // Odd
+        sb.append(getLookupOrder("dummy"));
         return sb;
     }
+    
+    /**
+     * Get the ORDER BY clause of a lookup query: by rank, and then by 
+     * TUV id, so that the order is the same each time the query is run
+     * for the next range of results.
+     * @param alias alias the lookup columns are selected through, or 
+     *        null if they are selected directly
+     */
+    protected static String getLookupOrder(String alias) {
+        String prefix = alias == null ? "" : alias + ".";
+        return " ORDER BY " + prefix + "score DESC, " + prefix + "tuvId";
+    }
 
 }
@@ -0,0 +1,343 @@
+package com.globalsight.ling.tm3.core;
+
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+
+import javax.sql.DataSource;
+import javax.transaction.Status;
+import javax.transaction.Synchronization;
+
+import org.apache.log4j.Logger;
+import org.hibernate.Session;
+import org.hibernate.Transaction;
+
+import com.globalsight.ling.tm3.core.persistence.SQLUtil;
+
+/**
+ * The databases that fuzzy indexes are split across, by fingerprint;
+ * see {@link ShardedFuzzyIndex}.  Each shard holds a table for each TM,
+ * with the same name and layout as the TM's own fuzzy index table,
+ * created the first time it is needed.
+ * <p>
+ * Writes made in a Hibernate transaction go through one connection per
+ * shard, which is committed or rolled back when the transaction
+ * completes.  The shards commit after the TM's own database, so if one
+ * of them fails to, its entries for the transaction are lost and the
+ * TM needs to be reindexed.  Queries run on their own connections, one
+ * thread per shard.
+ */
+class FuzzyIndexShards {
+
+    private static final Logger LOGGER =
+        Logger.getLogger(FuzzyIndexShards.class);
+
+    // Shard sets in use, by their data sources
+    private static final Map<List<DataSource>, FuzzyIndexShards> shardSets =
+        new HashMap<List<DataSource>, FuzzyIndexShards>();
+
+    private static ExecutorService executor;
+
+    /**
+     * Work to do on a shard.
+     */
+    interface Work<R> {
+        R run(Connection conn) throws SQLException;
+    }
+
+    private List<DataSource> dataSources;
+    // "shard:table" for the tables known to exist
+    private Set<String> tables =
+        Collections.synchronizedSet(new HashSet<String>());
+    // Open write connections, by transaction and shard
+    private Map<Transaction, Connection[]> writes =
+        new HashMap<Transaction, Connection[]>();
+
+    private FuzzyIndexShards(List<DataSource> dataSources) {
+        this.dataSources = dataSources;
+    }
+
+    /**
+     * Get the shards for a list of data sources.  Shard sets are kept
+     * for the life of the JVM, so that transactions writing to them can
+     * be tracked.
+     */
+    static synchronized FuzzyIndexShards get(List<DataSource> dataSources) {
+        FuzzyIndexShards shards = shardSets.get(dataSources);
+        if (shards == null) {
+            shards = new FuzzyIndexShards(
+                new ArrayList<DataSource>(dataSources));
+            shardSets.put(shards.dataSources, shards);
+        }
+        return shards;
+    }
+
+    private static synchronized ExecutorService getExecutor() {
+        if (executor == null) {
+            executor = Executors.newCachedThreadPool(new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable r) {
+                    Thread t = new Thread(r, "TM3 fuzzy index shard");
+                    t.setDaemon(true);
+                    return t;
+                }
+            });
+        }
+        return executor;
+    }
+
+    int size() {
+        return dataSources.size();
+    }
+
+    /**
+     * Get the shard that holds a fingerprint's entries.  Adding or
+     * removing a shard moves most fingerprints, so TMs must be reindexed
+     * when the shards change.
+     */
+    int getShard(long fingerprint) {
+        return (int) ((Fingerprint.mix(fingerprint) >>> 1) % 
+                      dataSources.size());
+    }
+
+    /**
+     * Split fingerprints by the shard that holds them.
+     * @return a list of fingerprints for each shard
+     */
+    List<List<Long>> split(List<Long> fingerprints) {
+        List<List<Long>> byShard = new ArrayList<List<Long>>();
+        for (int i = 0; i < dataSources.size(); i++) {
+            byShard.add(new ArrayList<Long>());
+        }
+        for (Long fp : fingerprints) {
+            byShard.get(getShard(fp)).add(fp);
+        }
+        return byShard;
+    }
+
+    /**
+     * Run queries on several shards at once.
+     * @param queries the query for each shard, or null for shards that
+     *        have nothing to do
+     * @return the result for each shard, or null where there was no query
+     */
+    <R> List<R> query(List<Work<R>> queries) throws SQLException {
+        List<Future<R>> futures = new ArrayList<Future<R>>();
+        for (int i = 0; i < queries.size(); i++) {
+            final Work<R> query = queries.get(i);
+            final DataSource dataSource = dataSources.get(i);
+            if (query == null) {
+                futures.add(null);
+                continue;
+            }
+            futures.add(getExecutor().submit(new Callable<R>() {
+                @Override
+                public R call() throws Exception {
+                    Connection conn = dataSource.getConnection();
+                    try {
+                        return query.run(conn);
+                    }
+                    finally {
+                        conn.close();
+                    }
+                }
+            }));
+        }
+        List<R> results = new ArrayList<R>();
+        SQLException failure = null;
+        // Wait for all of them, even if one fails
+        for (Future<R> f : futures) {
+            R result = null;
+            try {
+                result = f == null ? null : f.get();
+            }
+            catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                failure = new SQLException("Interrupted");
+            }
+            catch (ExecutionException e) {
+                if (e.getCause() instanceof SQLException) {
+                    failure = (SQLException) e.getCause();
+                }
+                else {
+                    throw new TM3Exception(e.getCause());
+                }
+            }
+            results.add(result);
+        }
+        if (failure != null) {
+            throw failure;
+        }
+        return results;
+    }
+
+    /**
+     * Open a connection of one's own to a shard.
+     */
+    Connection getConnection(int shard) throws SQLException {
+        return dataSources.get(shard).getConnection();
+    }
+
+    /**
+     * Write to a shard.  In an active transaction, the write is part of
+     * the shard's transaction for it; otherwise it is committed at once.
+     */
+    <R> R write(Session session, int shard, Work<R> work)
+                throws SQLException {
+        Transaction tx = session.getTransaction();
+        if (tx == null || !tx.isActive()) {
+            Connection conn = dataSources.get(shard).getConnection();
+            try {
+                return work.run(conn);
+            }
+            finally {
+                conn.close();
+            }
+        }
+        return work.run(getWriteConnection(tx, shard));
+    }
+
+    private synchronized Connection getWriteConnection(final Transaction tx,
+            int shard) throws SQLException {
+        Connection[] conns = writes.get(tx);
+        if (conns == null) {
+            conns = new Connection[dataSources.size()];
+            writes.put(tx, conns);
+            tx.registerSynchronization(new Synchronization() {
+                @Override
+                public void beforeCompletion() {
+                }
+
+                @Override
+                public void afterCompletion(int status) {
+                    complete(tx, status == Status.STATUS_COMMITTED);
+                }
+            });
+        }
+        if (conns[shard] == null) {
+            Connection conn = dataSources.get(shard).getConnection();
+            conn.setAutoCommit(false);
+            conns[shard] = conn;
+        }
+        return conns[shard];
+    }
+
+    private void complete(Transaction tx, boolean commit) {
+        Connection[] conns;
+        synchronized (this) {
+            conns = writes.remove(tx);
+        }
+        if (conns == null) {
+            return;
+        }
+        for (int i = 0; i < conns.length; i++) {
+            Connection conn = conns[i];
+            if (conn == null) {
+                continue;
+            }
+            try {
+                if (commit) {
+                    conn.commit();
+                }
+                else {
+                    conn.rollback();
+                }
+            }
+            catch (SQLException e) {
+                LOGGER.error("Failed to " + (commit ? "commit" : "roll back") +
+                             " fuzzy index shard " + i, e);
+            }
+            finally {
+                try {
+                    conn.close();
+                }
+                catch (SQLException e) {
+                    LOGGER.warn("Failed to close fuzzy index shard " + i, e);
+                }
+            }
+        }
+    }
+
+    /**
+     * Make sure that a shard has a TM's fuzzy index table.  Table
+     * creation commits, so this uses a connection of its own.
+     */
+    void ensureTable(int shard, StorageInfo<?> storage) throws SQLException {
+        String table = storage.getFuzzyIndexTableName();
+        String key = shard + ":" + table;
+        if (tables.contains(key)) {
+            return;
+        }
+        Connection conn = dataSources.get(shard).getConnection();
+        try {
+            if (!SQLUtil.tableExists(conn, table)) {
+                storage.createFuzzyIndex(conn);
+            }
+        }
+        finally {
+            conn.close();
+        }
+        tables.add(key);
+    }
+
+    /**
+     * Make sure that every shard has a TM's fuzzy index table.
+     */
+    void ensureTables(StorageInfo<?> storage) throws SQLException {
+        for (int i = 0; i < dataSources.size(); i++) {
+            ensureTable(i, storage);
+        }
+    }
+
+    /**
+     * Bring a TM's fuzzy index tables on every shard up to date; see
+     * {@link StorageInfo#upgradeFuzzyIndex}.
+     * @return true if anything was changed
+     */
+    boolean upgradeTables(StorageInfo<?> storage) throws SQLException {
+        String table = storage.getFuzzyIndexTableName();
+        boolean changed = false;
+        for (int i = 0; i < dataSources.size(); i++) {
+            Connection conn = dataSources.get(i).getConnection();
+            try {
+                if (SQLUtil.tableExists(conn, table) &&
+                        storage.upgradeFuzzyIndex(conn)) {
+                    changed = true;
+                }
+            }
+            finally {
+                conn.close();
+            }
+        }
+        return changed;
+    }
+
+    /**
+     * Drop a TM's fuzzy index tables from every shard.
+     */
+    void dropTables(StorageInfo<?> storage) throws SQLException {
+        String table = storage.getFuzzyIndexTableName();
+        for (int i = 0; i < dataSources.size(); i++) {
+            Connection conn = dataSources.get(i).getConnection();
+            try {
+                storage.destroyFuzzyIndex(conn);
+            }
+            finally {
+                conn.close();
+            }
+            tables.remove(i + ":" + table);
+        }
+    }
+}
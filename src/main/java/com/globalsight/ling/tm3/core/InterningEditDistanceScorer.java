@@ -0,0 +1,178 @@
+package com.globalsight.ling.tm3.core;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A {@link BatchEditDistanceScorer} for scoring objects whose 
+ * <tt>fuzzyCompare()</tt> is costly, such as tokens compared with case 
+ * folding or markup rules.  Over one lookup, the same pairs of objects 
+ * are compared again and again, for candidate after candidate.  This 
+ * scorer compares each pair once per lookup.
+ * <p>
+ * When scoring the candidates of a lookup, each distinct scoring object
+ * is given an integer id, and the result of comparing each pair of ids
+ * is kept in a table of primitives.  Objects with the same id have no
+ * substitution penalty, without calling fuzzyCompare() at all, so 
+ * scoring objects must implement <tt>equals()</tt> and 
+ * <tt>hashCode()</tt>, and objects that are equal must compare as 1.
+ * Candidates scored one at a time with 
+ * {@link #score(TM3Scorable, TM3Scorable, TM3Locale)} are scored just as 
+ * EditDistanceScorer scores them.
+ */
+public class InterningEditDistanceScorer<T extends TM3Scorable<V>, 
+           V extends TM3FuzzyComparable<V>> 
+        extends BatchEditDistanceScorer<T, V> {
+
+    @Override
+    public Key<V> prepare(T matchKey, TM3Locale locale) {
+        return new InternedKey<V>(matchKey.getScoringObjects());
+    }
+
+    @Override
+    protected float[][] getPenalties(Key<V> compiledKey, List<V> targets) {
+        if (!(compiledKey instanceof InternedKey)) {
+            return super.getPenalties(compiledKey, targets);
+        }
+        InternedKey<V> key = (InternedKey<V>) compiledKey;
+        List<V> sources = key.getSources();
+        int[] targetIds = new int[targets.size()];
+        for (int y = 0; y < targetIds.length; y++) {
+            targetIds[y] = key.intern(targets.get(y));
+        }
+        float[][] penalties = new float[sources.size()][targets.size()];
+        for (int x = 0; x < sources.size(); x++) {
+            int sourceId = key.sourceIds[x];
+            for (int y = 0; y < targetIds.length; y++) {
+                if (sourceId == targetIds[y]) {
+                    continue;
+                }
+                float f = key.compare(sourceId, targetIds[y], 
+                                      sources.get(x), targets.get(y));
+                if (f < 0 || f > 1) {
+                    throw new IllegalArgumentException(
+                        "fuzzyCompare() returned invalid value " + 
+                        f + " for source " + x + " target " + y);
+                }
+                penalties[x][y] = 1.0f - f;
+            }
+        }
+        return penalties;
+    }
+
+    /**
+     * A compiled key that interns the scoring objects of the key and its
+     * candidates, and remembers how pairs of them compare.
+     */
+    static class InternedKey<V extends TM3FuzzyComparable<V>> 
+            extends Key<V> {
+        private Map<V, Integer> ids = new HashMap<V, Integer>();
+        private int[] sourceIds;
+        private PairCache cache = new PairCache();
+
+        InternedKey(List<V> sources) {
+            super(sources);
+            sourceIds = new int[sources.size()];
+            for (int x = 0; x < sourceIds.length; x++) {
+                sourceIds[x] = intern(sources.get(x));
+            }
+        }
+
+        int intern(V object) {
+            Integer id = ids.get(object);
+            if (id == null) {
+                id = ids.size();
+                ids.put(object, id);
+            }
+            return id;
+        }
+
+        float compare(int sourceId, int targetId, V source, V target) {
+            long pair = ((long) sourceId << 32) | targetId;
+            float f = cache.get(pair);
+            if (Float.isNaN(f)) {
+                f = source.fuzzyCompare(target);
+                cache.put(pair, f);
+            }
+            return f;
+        }
+    }
+
+    /**
+     * An open-addressed map from a pair of ids to a comparison result.
+     * It stops growing at MAX_SIZE pairs, after which new pairs are 
+     * simply not kept.
+     */
+    static class PairCache {
+        static final int MAX_SIZE = 1 << 20;
+        private static final long EMPTY = -1L;
+
+        private long[] keys;
+        private float[] values;
+        private int size;
+
+        PairCache() {
+            allocate(256);
+        }
+
+        /**
+         * @return the result for a pair, or NaN if it isn't known
+         */
+        float get(long pair) {
+            int mask = keys.length - 1;
+            for (int i = slot(pair, mask); ; i = (i + 1) & mask) {
+                if (keys[i] == pair) {
+                    return values[i];
+                }
+                if (keys[i] == EMPTY) {
+                    return Float.NaN;
+                }
+            }
+        }
+
+        void put(long pair, float value) {
+            if (size >= MAX_SIZE) {
+                return;
+            }
+            // Keep the table at most half full
+            if (size * 2 >= keys.length) {
+                long[] oldKeys = keys;
+                float[] oldValues = values;
+                allocate(keys.length * 2);
+                for (int i = 0; i < oldKeys.length; i++) {
+                    if (oldKeys[i] != EMPTY) {
+                        insert(oldKeys[i], oldValues[i]);
+                    }
+                }
+            }
+            insert(pair, value);
+            size++;
+        }
+
+        int size() {
+            return size;
+        }
+
+        private void allocate(int capacity) {
+            keys = new long[capacity];
+            values = new float[capacity];
+            Arrays.fill(keys, EMPTY);
+        }
+
+        private void insert(long pair, float value) {
+            int mask = keys.length - 1;
+            int i = slot(pair, mask);
+            while (keys[i] != EMPTY && keys[i] != pair) {
+                i = (i + 1) & mask;
+            }
+            keys[i] = pair;
+            values[i] = value;
+        }
+
+        private static int slot(long pair, int mask) {
+            return (int) (Fingerprint.mix(pair) & mask);
+        }
+    }
+}
@@ -21,13 +21,18 @@ class LocaleDataHandle<T extends TM3Data> extends AbstractDataHandle<T> {
     }
     
     @Override
-    public void purgeData() throws TM3Exception {
+    public void purgeData(int chunkSize, boolean commitChunks,
+                          TM3ProgressListener listener) throws TM3Exception {
         throw new UnsupportedOperationException();
     }
 
     @Override
     public long getCount() throws TM3Exception {
         try {
+            long[] counts = getStatistics(locale);
+            if (counts != null) {
+                return counts[TmStatistics.TUS];
+            }
             return getTm().getStorageInfo().getTuStorage()
                     .getTuCountByLocale(locale, getStart(), getEnd());
         } catch (SQLException e) {
@@ -38,6 +43,10 @@ class LocaleDataHandle<T extends TM3Data> extends AbstractDataHandle<T> {
     @Override
     public long getTuvCount() throws TM3Exception {
         try {
+            long[] counts = getStatistics(locale);
+            if (counts != null) {
+                return counts[TmStatistics.TUVS];
+            }
             return getTm().getStorageInfo().getTuStorage()
                     .getTuvCountByLocale(locale, getStart(), getEnd());
         } catch (SQLException e) {
@@ -0,0 +1,81 @@
+package com.globalsight.ling.tm3.core;
+
+import java.util.Collection;
+
+/**
+ * MinHash signatures of fingerprint sets, split into bands for
+ * locality-sensitive lookups.  Each of the bands * rows hash functions
+ * keeps the smallest hash of any fingerprint in the set; the minimums
+ * are grouped into bands of rows, and each band is hashed into a single
+ * key.  Two sets with Jaccard similarity s share at least one band key
+ * with probability 1 - (1 - s^rows)^bands, so more bands raise recall,
+ * and more rows per band cut down on dissimilar candidates.
+ * <p>
+ * Keys depend only on the fingerprints, the band and the row count, so
+ * they stay valid across restarts, but change if the row count does.
+ */
+class MinHash {
+
+    // Largest number of hash functions (bands * rows) allowed
+    static final int MAX_HASHES = 1024;
+
+    private static final long GOLDEN = 0x9E3779B97F4A7C15L;
+
+    private int bands;
+    private int rows;
+    private long[] seeds;
+
+    MinHash(int bands, int rows) {
+        if (bands < 1 || rows < 1 || bands * rows > MAX_HASHES) {
+            throw new IllegalArgumentException("Invalid MinHash shape: " +
+                    bands + " bands of " + rows + " rows");
+        }
+        this.bands = bands;
+        this.rows = rows;
+        this.seeds = new long[bands * rows];
+        for (int i = 0; i < seeds.length; i++) {
+            seeds[i] = Fingerprint.mix((i + 1) * GOLDEN);
+        }
+    }
+
+    int getBands() {
+        return bands;
+    }
+
+    int getRows() {
+        return rows;
+    }
+
+    /**
+     * Compute the band keys of a set of fingerprints.
+     * @return one key per band, or an empty array if there are no
+     *         fingerprints
+     */
+    long[] getBandKeys(Collection<Long> fingerprints) {
+        if (fingerprints.isEmpty()) {
+            return new long[0];
+        }
+        long[] mins = new long[seeds.length];
+        for (int i = 0; i < mins.length; i++) {
+            mins[i] = Long.MAX_VALUE;
+        }
+        for (Long fp : fingerprints) {
+            for (int i = 0; i < seeds.length; i++) {
+                long h = Fingerprint.mix(fp ^ seeds[i]);
+                if (h < mins[i]) {
+                    mins[i] = h;
+                }
+            }
+        }
+        long[] keys = new long[bands];
+        for (int b = 0; b < bands; b++) {
+            // Start from the band number, so that bands never share keys
+            long key = Fingerprint.mix(b + 1);
+            for (int r = 0; r < rows; r++) {
+                key = Fingerprint.mix(key ^ mins[b * rows + r]);
+            }
+            keys[b] = key;
+        }
+        return keys;
+    }
+}
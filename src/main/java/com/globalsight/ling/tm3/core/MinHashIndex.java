@@ -0,0 +1,255 @@
+package com.globalsight.ling.tm3.core;
+
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import com.globalsight.ling.tm3.core.persistence.BatchStatementBuilder;
+import com.globalsight.ling.tm3.core.persistence.SQLUtil;
+import com.globalsight.ling.tm3.core.persistence.StatementBuilder;
+
+/**
+ * A MinHash index kept alongside a TM's fingerprint index, for TMs that
+ * are too large for the fingerprint index to answer interactively.  Each
+ * indexed TUV gets one row per band in the TM3_MINHASH table, keyed by
+ * its band key (see {@link MinHash}).  A lookup probes the key's band
+ * keys, which is a handful of exact index probes whatever the size of
+ * the TM, and candidates are then scored as usual.  Unlike the
+ * fingerprint index, this can miss matches above the threshold; the
+ * band and row counts trade recall against the number of candidates.
+ * <p>
+ * Writes always go to both indexes.  Lookups only use the MinHash
+ * index once it has been built for the TM's existing data.
+ */
+class MinHashIndex<T extends TM3Data> extends FuzzyIndex<T> {
+
+    private FuzzyIndex<T> fingerprintIndex;
+    private MinHash minHash;
+    private boolean lookups;
+
+    /**
+     * @param fingerprintIndex the TM's fingerprint index
+     * @param lookups true if lookups should use the MinHash index
+     */
+    MinHashIndex(StorageInfo<T> storage, FuzzyIndex<T> fingerprintIndex,
+                 int bands, int rows, boolean lookups) {
+        super(storage);
+        this.fingerprintIndex = fingerprintIndex;
+        this.minHash = new MinHash(bands, rows);
+        this.lookups = lookups;
+    }
+
+    private long getTmId() {
+        return getStorage().getTm().getId();
+    }
+
+    @Override
+    protected String getLocaleExpression() {
+        return fingerprintIndex.getLocaleExpression();
+    }
+
+    @Override
+    protected Trigrams getTrigrams(T key) {
+        return fingerprintIndex.getTrigrams(key);
+    }
+
+    @Override
+    public Lookup lookup(T key, TM3Locale keyLocale,
+          Set<? extends TM3Locale> matchLocales,
+          Map<TM3Attribute, Object> inlineAttributes,
+          Map<TM3Attribute, String> customAttributes,
+          int threshold, boolean lookupTarget)
+              throws SQLException {
+        if (!lookups) {
+            return fingerprintIndex.lookup(key, keyLocale, matchLocales,
+                    inlineAttributes, customAttributes, threshold,
+                    lookupTarget);
+        }
+        Trigrams trigrams = getTrigrams(key);
+        List<Long> fingerprints = trigrams.fingerprints;
+        if (fingerprints.size() == 0 ||
+                (matchLocales != null && matchLocales.isEmpty())) {
+            return new Lookup(null, keyLocale, null, 0, 0, 0, threshold);
+        }
+        StatementBuilder sb = getFuzzyLookupQuery(fingerprints,
+                fingerprints.size(), null, keyLocale, matchLocales,
+                inlineAttributes, lookupTarget);
+        if (customAttributes.size() > 0) {
+            sb = getAttributeMatchWrapper(sb, customAttributes);
+        }
+        // Ranks (the number of bands in common) say nothing about the
+        // scores of the remaining candidates, so the lookup runs until
+        // it is exhausted.  There are few candidates by design.
+        return new Lookup(sb, keyLocale, null, fingerprints.size(),
+                          fingerprints.size(), trigrams.tokenCount, threshold);
+    }
+
+    // Candidates are ranked by the number of bands they share with the
+    // key.  Fingerprints aren't counted, so every candidate is reported
+    // as sharing all of them; that leaves only the difference in length
+    // for the lookup to filter on.
+    @Override
+    protected StatementBuilder getFuzzyLookupQuery(List<Long> fingerprints,
+                    int fingerprintCount, Map<Long, Double> weights,
+                    TM3Locale keyLocale, Set<? extends TM3Locale> matchLocales,
+                    Map<TM3Attribute, Object> inlineAttrs, boolean lookupTarget) {
+        long[] keys = minHash.getBandKeys(fingerprints);
+        List<Long> keyList = new ArrayList<Long>();
+        for (long k : keys) {
+            keyList.add(k);
+        }
+        StatementBuilder sb = new StatementBuilder()
+            .append("SELECT tuvId, tuId, COUNT(*) as score, ")
+            .append(fingerprintCount + " as shared, ")
+            .append("MAX(idx.tuvCount) as tuvCount, ")
+            .append("MAX(idx.tokenCount) as tokenCount FROM TM3_MINHASH AS idx");
+        if (! inlineAttrs.isEmpty()) {
+            sb.append(", ")
+              .append(getStorage().getTuTableName()).append(" AS tu");
+        }
+        sb.append(" WHERE idx.tmId = ? AND idx.localeId = ?")
+          .addValues(getTmId(), keyLocale.getId())
+          .append(" AND idx.bandKey IN").append(SQLUtil.longGroup(keyList));
+        if (!lookupTarget) {
+            sb.append(" AND idx.isSource = 1");
+        }
+        if (! inlineAttrs.isEmpty()) {
+            sb.append(" AND idx.tuId = tu.id");
+            for (Map.Entry<TM3Attribute, Object> e : inlineAttrs.entrySet()) {
+                sb.append(" AND tu." + e.getKey().getColumnName() + " = ?");
+                sb.addValue(e.getValue());
+            }
+        }
+        sb.append(" GROUP BY tuvId, tuId");
+        if (matchLocales != null) {
+            List<Long> targetLocaleIds = new ArrayList<Long>();
+            for (TM3Locale locale : matchLocales) {
+                targetLocaleIds.add(locale.getId());
+            }
+            sb = new StatementBuilder()
+              .append("SELECT DISTINCT result.* FROM (")
+              .append(sb)
+              .append(") AS result, ")
+              .append(getStorage().getTuvTableName() + " AS targetTuv ")
+              .append("WHERE ")
+              .append("targetTuv.tuId = result.tuId AND ")
+              .append("targetTuv.localeId IN")
+              .append(SQLUtil.longGroup(targetLocaleIds))
+              .append(getLookupOrder("result"));
+        }
+        else {
+            sb.append(getLookupOrder(null));
+        }
+        return sb;
+    }
+
+    @Override
+    List<Long> getIndexedTuvIds(List<Long> tuIds) throws SQLException {
+        return fingerprintIndex.getIndexedTuvIds(tuIds);
+    }
+
+    @Override
+    protected void indexFingerprints(List<Long> fingerprints,
+            int tokenCount, TM3Tuv<T> tuv) throws SQLException {
+        fingerprintIndex.indexFingerprints(fingerprints, tokenCount, tuv);
+        indexBands(fingerprints, tokenCount, tuv);
+    }
+
+    private void indexBands(List<Long> fingerprints, int tokenCount,
+                TM3Tuv<T> tuv) throws SQLException {
+        long[] keys = minHash.getBandKeys(fingerprints);
+        if (keys.length == 0) {
+            return;
+        }
+        BatchStatementBuilder sb = new BatchStatementBuilder()
+            .append("INSERT INTO TM3_MINHASH (tmId, localeId, bandKey, ")
+            .append("tuvId, tuId, tuvCount, tokenCount, isSource) ")
+            .append("VALUES (?, ?, ?, ?, ?, ?, ?, ?)");
+        for (long k : keys) {
+            sb.addBatch(getTmId(), tuv.getLocale().getId(), k, tuv.getId(),
+                        tuv.getTu().getId(), fingerprints.size(), 
+                        tokenCount, tuv.isSource());
+        }
+        SQLUtil.execBatch(getConnection(), sb);
+    }
+
+    @Override
+    public void deleteFingerprints(TM3Tuv<T> tuv) throws SQLException {
+        fingerprintIndex.deleteFingerprints(tuv);
+        deleteBands(new StatementBuilder("tuvId = ?").addValue(tuv.getId()));
+    }
+
+    @Override
+    public void deleteFingerprintsByTuId(List<Long> tuIds)
+                throws SQLException {
+        if (tuIds.size() == 0) {
+            return;
+        }
+        fingerprintIndex.deleteFingerprintsByTuId(tuIds);
+        deleteBands(new StatementBuilder("tuId IN ")
+            .append(SQLUtil.longGroup(tuIds)));
+    }
+
+    @Override
+    public void deleteFingerprintsByTuvId(List<Long> tuvIds)
+                throws SQLException {
+        if (tuvIds.size() == 0) {
+            return;
+        }
+        fingerprintIndex.deleteFingerprintsByTuvId(tuvIds);
+        deleteBands(new StatementBuilder("tuvId IN ")
+            .append(SQLUtil.longGroup(tuvIds)));
+    }
+
+    private void deleteBands(StatementBuilder condition)
+                throws SQLException {
+        SQLUtil.exec(getConnection(), new StatementBuilder()
+            .append("DELETE FROM TM3_MINHASH WHERE tmId = ? AND ")
+            .addValue(getTmId())
+            .append(condition));
+    }
+
+    /**
+     * Throw away the TM's MinHash rows, for instance because its band
+     * or row count has changed.
+     */
+    void clear() throws SQLException {
+        SQLUtil.exec(getConnection(), new StatementBuilder()
+            .append("DELETE FROM TM3_MINHASH WHERE tmId = ?")
+            .addValue(getTmId()));
+    }
+
+    /**
+     * (Re)build the MinHash rows for a page of TUs, for every TUV that
+     * is in the fingerprint index.  This is safe to repeat, and to run
+     * while the TM is in use, since new TUs are indexed as they are saved.
+     * @param startId id of the last TU examined by the previous call,
+     *        or 0 to begin
+     * @param count maximum number of TUs to examine
+     * @return startId for the next call, or 0 if there are no more TUs
+     */
+    long build(long startId, int count) throws SQLException {
+        TuStorage<T> tuStorage = getStorage().getTuStorage();
+        List<Long> tuIds = tuStorage.getTuIdPage(startId, count, null, null);
+        if (tuIds.size() == 0) {
+            return 0;
+        }
+        deleteBands(new StatementBuilder("tuId IN ")
+            .append(SQLUtil.longGroup(tuIds)));
+        Set<Long> indexed = 
+            new HashSet<Long>(fingerprintIndex.getIndexedTuvIds(tuIds));
+        for (TM3Tu<T> tu : tuStorage.getTu(tuIds, false)) {
+            for (TM3Tuv<T> tuv : tu.getAllTuv()) {
+                if (indexed.contains(tuv.getId())) {
+                    Trigrams trigrams = getTrigrams(tuv.getContent());
+                    indexBands(trigrams.fingerprints, trigrams.tokenCount, 
+                               tuv);
+                }
+            }
+        }
+        return tuIds.get(tuIds.size() - 1);
+    }
+}
@@ -18,60 +18,64 @@ class MultilingualFuzzyIndex<T extends TM3Data> extends FuzzyIndex<T> {
         super(storage);
     }
 
+    @Override
+    protected String getLocaleExpression() {
+        return "localeId";
+    }
+
     @Override
     protected void indexFingerprints(List<Long> fingerprints,
-            TM3Tuv<T> tuv) throws SQLException {
-        BatchStatementBuilder sb = new BatchStatementBuilder("INSERT INTO ")
-            .append(getStorage().getFuzzyIndexTableName())
-            .append(" (fingerprint, tuvId, tuId, localeId, tuvCount, isSource) ")
-            .append("VALUES (?, ?, ?, ?, ?, ?)");
-        int tuvCount = fingerprints.size();
-        for (Long fp : fingerprints) {
-            sb.addBatch(fp, tuv.getId(), tuv.getTu().getId(), 
-                        tuv.getLocale().getId(), tuvCount, tuv.isSource());
-        }
-        SQLUtil.execBatch(getConnection(), sb);
+            int tokenCount, TM3Tuv<T> tuv) throws SQLException {
+        insertEntries(fingerprints, fingerprints.size(), tokenCount, tuv);
     }
 
     @Override
-    public void deleteFingerprints(TM3Tuv<T> tuv) throws SQLException {
-        StatementBuilder sb = new StatementBuilder();
-        sb.append("DELETE FROM ")
-          .append(getStorage().getFuzzyIndexTableName())
-          .append(" WHERE tuvId = ?")
-          .addValues(tuv.getId());
-        SQLUtil.exec(getConnection(), sb);
+    protected BatchStatementBuilder getInsertStatement(String table) {
+        return new BatchStatementBuilder("INSERT INTO ").append(table)
+            .append(" (fingerprint, tuvId, tuId, localeId, tuvCount, ")
+            .append("tokenCount, isSource) VALUES (?, ?, ?, ?, ?, ?, ?)");
     }
 
+    @Override
+    protected void addEntries(BatchStatementBuilder sb, 
+            List<Long> fingerprints, int tuvCount, int tokenCount, 
+            TM3Tuv<T> tuv) {
+        for (Long fp : fingerprints) {
+            sb.addBatch(fp, tuv.getId(), tuv.getTu().getId(), 
+                        tuv.getLocale().getId(), tuvCount, tokenCount, 
+                        tuv.isSource());
+        }
+    }
 
     @Override
     protected StatementBuilder getFuzzyLookupQuery(List<Long> fingerprints,
+                    int fingerprintCount, Map<Long, Double> weights,
                     TM3Locale keyLocale, Set<? extends TM3Locale> matchLocales,
                     Map<TM3Attribute, Object> inlineAttrs, boolean lookupTarget) {
         StatementBuilder sb = new StatementBuilder();
-        sb.append("SELECT tuvId, tuId, SUM(1) as score FROM ")
+        sb.append("SELECT ").append(getSelectList(weights)).append(" FROM ")
           .append(getStorage().getFuzzyIndexTableName()).append(" AS idx");
         if (! inlineAttrs.isEmpty()) {
             sb.append(", ")
               .append(getStorage().getTuTableName()).append(" AS tu");
         }
-        sb.append(" WHERE ");
-        sb.append("(idx.fingerprint = ?").addValue(fingerprints.get(0));
+        // Fix the leading columns of the lookup key, so that each 
+        // fingerprint is a separate range
+        sb.append(" WHERE idx.localeId = ?").addValue(keyLocale.getId());
+        sb.append(lookupTarget ? " AND idx.isSource IN (0, 1)" 
+                               : " AND idx.isSource = 1");
+        sb.append(" AND (idx.fingerprint = ?").addValue(fingerprints.get(0));
         for (int i = 1; i < fingerprints.size(); i++ ) { 
             sb.append(" OR idx.fingerprint = ?").addValue(fingerprints.get(i));
         }
         sb.append(")");
         // Add minimum and max bounds on the data length
-        int min = fingerprints.size() / 3;
-        int max = fingerprints.size() * 3;
+        int min = fingerprintCount / 3;
+        int max = fingerprintCount * 3;
         if (min > 0) {
             sb.append(" AND idx.tuvCount > ?").addValue(min);
         }
         sb.append(" AND idx.tuvCount < ?").addValue(max);
-        sb.append(" AND idx.localeId = ?").addValue(keyLocale.getId());
-        if (! lookupTarget) {
-            sb.append(" AND isSource = 1");
-        }
         if (! inlineAttrs.isEmpty()) {
             sb.append(" AND idx.tuId = tu.id");
             for (Map.Entry<TM3Attribute, Object> e : inlineAttrs.entrySet()) {
@@ -79,7 +83,7 @@ class MultilingualFuzzyIndex<T extends TM3Data> extends FuzzyIndex<T> {
                 sb.addValue(e.getValue());
             }
         }
-        sb.append(" GROUP BY tuvId ORDER BY score DESC");
+        sb.append(" GROUP BY tuvId");
         if (matchLocales != null) {
             // an exists subselect seems simpler, but mysql bug 46947 causes
             // exists subselects to take locks even in repeatable read
@@ -95,7 +99,11 @@ class MultilingualFuzzyIndex<T extends TM3Data> extends FuzzyIndex<T> {
               .append("WHERE ")
               .append("targetTuv.tuId = result.tuId AND ")
               .append("targetTuv.localeId IN")
-              .append(SQLUtil.longGroup(targetLocaleIds));
+              .append(SQLUtil.longGroup(targetLocaleIds))
+              .append(getLookupOrder("result"));
+        }
+        else {
+            sb.append(getLookupOrder(null));
         }
         return sb;
     }
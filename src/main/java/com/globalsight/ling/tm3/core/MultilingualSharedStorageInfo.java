@@ -45,6 +45,7 @@ class MultilingualSharedStorageInfo<T extends TM3Data> extends StorageInfo<T> {
         Connection conn = getSession().connection();
         
         destroyFuzzyIndex(conn);
+        destroyFuzzyIndexShards();
         // Although we could just cascade everything from the tu table,
         // it's faster to use the index on tmId to delete in bulk from each 
         // table
@@ -63,7 +64,7 @@ class MultilingualSharedStorageInfo<T extends TM3Data> extends StorageInfo<T> {
     }
    
     @Override
-    FuzzyIndex<T> getFuzzyIndex() {
+    FuzzyIndex<T> getFingerprintIndex() {
         return new MultilingualFuzzyIndex<T>(this);
     }
 
@@ -106,13 +107,10 @@ class MultilingualSharedStorageInfo<T extends TM3Data> extends StorageInfo<T> {
             "tuId       bigint     NOT NULL, " +
             "localeId   bigint     NOT NULL, " +
             "tuvCount   smallint   NOT NULL," +
+            "tokenCount smallint   NOT NULL DEFAULT 0," +
             "isSource   tinyint    NOT NULL," +
-            "UNIQUE KEY (fingerprint, tuvCount, localeId, isSource, tuvId), " +
-            "FOREIGN KEY (tuvId) REFERENCES " + getTuvTableName() + 
-            " (id) ON DELETE CASCADE, " +
-            "FOREIGN KEY (tuId) REFERENCES " + getTuTableName() + 
-            " (id) on DELETE CASCADE" +
-            ") ENGINE=InnoDB"
+            getFuzzyIndexKeys() +
+            ") ENGINE=InnoDB" + getFuzzyIndexPartitioning()
         );
     }
 
@@ -120,6 +118,32 @@ class MultilingualSharedStorageInfo<T extends TM3Data> extends StorageInfo<T> {
     protected void createTuStorage(Connection conn) throws SQLException {
     }
 
+    // The TUV table is shared by the whole pool, so this only runs for 
+    // the first TM in the pool to be upgraded.
+    @Override
+    protected void addLastModifiedColumn(Connection conn) throws SQLException {
+        SQLUtil.exec(conn, "ALTER TABLE " + getTuvTableName() + 
+            " ADD COLUMN lastModified datetime, " +
+            " ADD KEY (tmId, lastModified, tuId)");
+    }
+    
+    @Override
+    String getContentTableName() {
+        return SharedStorageTables.getContentTableName(sharedStorageId);
+    }
+    
+    @Override
+    boolean isContentDeduplicated() {
+        return ((MultilingualSharedTm<T>) getTm()).isContentDeduplicated();
+    }
+    
+    // Like the TUV table, the content table belongs to the pool
+    @Override
+    protected boolean addContentTable(Connection conn) throws SQLException {
+        return new SharedStorageTables(conn, sharedStorageId)
+            .addContentTable();
+    }
+    
     @Override
     protected void destroyAttrTable(Connection conn) throws SQLException {
     }
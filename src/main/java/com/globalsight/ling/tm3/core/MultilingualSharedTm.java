@@ -4,6 +4,7 @@ class MultilingualSharedTm<T extends TM3Data> extends BaseTm<T>
                             implements TM3SharedTm<T> {
 
     private long sharedStorageId;
+    private boolean dedupContent = false;
     
     // Empty constructor for Hibernate
     MultilingualSharedTm() {
@@ -32,4 +33,26 @@ class MultilingualSharedTm<T extends TM3Data> extends BaseTm<T>
     private void setSharedStorageId(long sharedStorageId) {
         this.sharedStorageId = sharedStorageId;
     }
+    
+    @SuppressWarnings("unused")
+    private boolean getDedupContent() {
+        return dedupContent;
+    }
+    
+    @SuppressWarnings("unused")
+    private void setDedupContent(boolean dedupContent) {
+        this.dedupContent = dedupContent;
+    }
+    
+    @Override
+    public boolean isContentDeduplicated() {
+        return dedupContent;
+    }
+    
+    @Override
+    public void setContentDeduplicated(boolean deduplicated) 
+                throws TM3Exception {
+        lockForWrite();
+        this.dedupContent = deduplicated;
+    }
 }
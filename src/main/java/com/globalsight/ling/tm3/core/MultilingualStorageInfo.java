@@ -8,7 +8,7 @@ class MultilingualStorageInfo<T extends TM3Data>
     }
     
     @Override
-    FuzzyIndex<T> getFuzzyIndex() {
+    FuzzyIndex<T> getFingerprintIndex() {
         return new MultilingualFuzzyIndex<T>(this);
     }
 }
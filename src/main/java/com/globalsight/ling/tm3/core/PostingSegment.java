@@ -0,0 +1,402 @@
+package com.globalsight.ling.tm3.core;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * An immutable, memory-mapped file of fuzzy index posting lists, written
+ * by {@link PostingStore}.  Posting lists are keyed by locale and
+ * fingerprint, and hold the TUVs that contain the fingerprint, in TUV id
+ * order.  Ids are delta-encoded as variable-length integers.
+ * <p>
+ * The file starts with a fixed header, followed by the posting lists
+ * and then a directory of fixed-size entries, sorted by key, that is
+ * binary searched.  A MappedByteBuffer can't be larger than 2GB, so the
+ * file is mapped in 1GB windows; posting lists are padded so that none
+ * crosses a window boundary.
+ */
+class PostingSegment {
+
+    static final int MAGIC = 0x544D3353; // "TM3S"
+    static final int VERSION = 2;
+
+    // magic, version, minGen, gen, keyCount, dirOffset
+    static final int HEADER_SIZE = 40;
+    // localeId, fingerprint, offset, count
+    static final int ENTRY_SIZE = 28;
+    static final int WINDOW = 1 << 30;
+    static final int ENTRIES_PER_WINDOW = WINDOW / ENTRY_SIZE;
+
+    /**
+     * Key of a posting list.
+     */
+    static class Key implements Comparable<Key> {
+        final long localeId;
+        final long fingerprint;
+
+        Key(long localeId, long fingerprint) {
+            this.localeId = localeId;
+            this.fingerprint = fingerprint;
+        }
+
+        @Override
+        public int compareTo(Key o) {
+            if (localeId != o.localeId) {
+                return localeId < o.localeId ? -1 : 1;
+            }
+            if (fingerprint != o.fingerprint) {
+                return fingerprint < o.fingerprint ? -1 : 1;
+            }
+            return 0;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            return o instanceof Key && compareTo((Key) o) == 0;
+        }
+
+        @Override
+        public int hashCode() {
+            return (int) (localeId * 31 + fingerprint) ^
+                   (int) (fingerprint >>> 32);
+        }
+    }
+
+    /**
+     * An entry in a posting list.
+     */
+    static class Posting {
+        final long tuvId;
+        final long tuId;
+        final int tuvCount;
+        final int tokenCount;
+        final boolean isSource;
+
+        Posting(long tuvId, long tuId, int tuvCount, int tokenCount,
+                boolean isSource) {
+            this.tuvId = tuvId;
+            this.tuId = tuId;
+            this.tuvCount = tuvCount;
+            this.tokenCount = tokenCount;
+            this.isSource = isSource;
+        }
+    }
+
+    private File file;
+    private long minGen;
+    private long gen;
+    private long keyCount;
+    private MappedByteBuffer[] postingWindows;
+    private MappedByteBuffer[] directoryWindows;
+
+    private PostingSegment(File file) {
+        this.file = file;
+    }
+
+    File getFile() {
+        return file;
+    }
+
+    /**
+     * @return the oldest generation whose postings this segment holds
+     */
+    long getMinGeneration() {
+        return minGen;
+    }
+
+    /**
+     * @return the newest generation whose postings this segment holds
+     */
+    long getGeneration() {
+        return gen;
+    }
+
+    long getKeyCount() {
+        return keyCount;
+    }
+
+    long getSize() {
+        return file.length();
+    }
+
+    /**
+     * Map an existing segment file.
+     */
+    static PostingSegment open(File file) throws IOException {
+        PostingSegment segment = new PostingSegment(file);
+        RandomAccessFile raf = new RandomAccessFile(file, "r");
+        try {
+            FileChannel channel = raf.getChannel();
+            ByteBuffer header = channel.map(FileChannel.MapMode.READ_ONLY,
+                                            0, HEADER_SIZE);
+            if (header.getInt() != MAGIC || header.getInt() != VERSION) {
+                throw new IOException("Not a posting segment: " + file);
+            }
+            segment.minGen = header.getLong();
+            segment.gen = header.getLong();
+            segment.keyCount = header.getLong();
+            long dirOffset = header.getLong();
+            List<MappedByteBuffer> windows = new ArrayList<MappedByteBuffer>();
+            for (long start = 0; start < dirOffset; start += WINDOW) {
+                windows.add(channel.map(FileChannel.MapMode.READ_ONLY, start,
+                                        Math.min(WINDOW, dirOffset - start)));
+            }
+            segment.postingWindows =
+                windows.toArray(new MappedByteBuffer[windows.size()]);
+            windows.clear();
+            long dirSize = segment.keyCount * ENTRY_SIZE;
+            long windowSize = (long) ENTRIES_PER_WINDOW * ENTRY_SIZE;
+            for (long start = 0; start < dirSize; start += windowSize) {
+                windows.add(channel.map(FileChannel.MapMode.READ_ONLY,
+                        dirOffset + start, Math.min(windowSize, dirSize - start)));
+            }
+            segment.directoryWindows =
+                windows.toArray(new MappedByteBuffer[windows.size()]);
+            return segment;
+        }
+        finally {
+            // The mappings stay valid after the channel is closed
+            raf.close();
+        }
+    }
+
+    /**
+     * Get a posting list.
+     * @return the postings, or null if the segment has none for the key
+     */
+    List<Posting> get(long localeId, long fingerprint) {
+        long lo = 0, hi = keyCount - 1;
+        while (lo <= hi) {
+            long mid = (lo + hi) >>> 1;
+            ByteBuffer entry = entry(mid);
+            long l = entry.getLong(), f = entry.getLong();
+            int c = l != localeId ? (l < localeId ? -1 : 1) :
+                    f != fingerprint ? (f < fingerprint ? -1 : 1) : 0;
+            if (c == 0) {
+                return readPostings(entry.getLong(), entry.getInt());
+            }
+            if (c < 0) {
+                lo = mid + 1;
+            }
+            else {
+                hi = mid - 1;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Iterate over all of the segment's posting lists, in key order.
+     */
+    Iterator<Map.Entry<Key, List<Posting>>> iterator() {
+        return new Iterator<Map.Entry<Key, List<Posting>>>() {
+            private long next = 0;
+
+            @Override
+            public boolean hasNext() {
+                return next < keyCount;
+            }
+
+            @Override
+            public Map.Entry<Key, List<Posting>> next() {
+                ByteBuffer entry = entry(next++);
+                Key key = new Key(entry.getLong(), entry.getLong());
+                List<Posting> postings =
+                    readPostings(entry.getLong(), entry.getInt());
+                return new Entry(key, postings);
+            }
+
+            @Override
+            public void remove() {
+                throw new UnsupportedOperationException();
+            }
+        };
+    }
+
+    // Buffer positioned at a directory entry
+    private ByteBuffer entry(long i) {
+        ByteBuffer b = directoryWindows[(int) (i / ENTRIES_PER_WINDOW)]
+                        .duplicate();
+        b.position((int) (i % ENTRIES_PER_WINDOW) * ENTRY_SIZE);
+        return b;
+    }
+
+    private List<Posting> readPostings(long offset, int count) {
+        ByteBuffer b = postingWindows[(int) (offset / WINDOW)].duplicate();
+        b.position((int) (offset % WINDOW));
+        List<Posting> postings = new ArrayList<Posting>(count);
+        long tuvId = 0, tuId = 0;
+        for (int i = 0; i < count; i++) {
+            tuvId += readVarLong(b);
+            tuId += unzigzag(readVarLong(b));
+            int tuvCount = (int) readVarLong(b);
+            int tokenCount = (int) readVarLong(b);
+            boolean isSource = b.get() != 0;
+            postings.add(new Posting(tuvId, tuId, tuvCount, tokenCount,
+                                     isSource));
+        }
+        return postings;
+    }
+
+    /**
+     * Write a segment.  The file is written under a temporary name and
+     * renamed into place, so a segment file is always complete.
+     * @param entries posting lists in key order, each in TUV id order
+     */
+    static void write(File file, long minGen, long gen,
+            Iterator<Map.Entry<Key, List<Posting>>> entries)
+            throws IOException {
+        File tmp = new File(file.getPath() + ".tmp");
+        File dirTmp = new File(file.getPath() + ".dir");
+        long keyCount = 0;
+        long pos = HEADER_SIZE;
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(
+                new FileOutputStream(tmp), 1 << 16));
+        DataOutputStream dir = new DataOutputStream(new BufferedOutputStream(
+                new FileOutputStream(dirTmp), 1 << 16));
+        try {
+            out.write(new byte[HEADER_SIZE]);
+            ByteArrayOutputStream list = new ByteArrayOutputStream();
+            while (entries.hasNext()) {
+                Map.Entry<Key, List<Posting>> e = entries.next();
+                if (e.getValue().isEmpty()) {
+                    continue;
+                }
+                list.reset();
+                long tuvId = 0, tuId = 0;
+                for (Posting p : e.getValue()) {
+                    writeVarLong(list, p.tuvId - tuvId);
+                    writeVarLong(list, zigzag(p.tuId - tuId));
+                    writeVarLong(list, p.tuvCount);
+                    writeVarLong(list, p.tokenCount);
+                    list.write(p.isSource ? 1 : 0);
+                    tuvId = p.tuvId;
+                    tuId = p.tuId;
+                }
+                if (list.size() > WINDOW) {
+                    throw new IOException("Posting list too large: " +
+                                          list.size() + " bytes");
+                }
+                // Keep each list within one window
+                long end = pos + list.size() - 1;
+                if (pos / WINDOW != end / WINDOW) {
+                    long pad = WINDOW - pos % WINDOW;
+                    out.write(new byte[(int) pad]);
+                    pos += pad;
+                }
+                dir.writeLong(e.getKey().localeId);
+                dir.writeLong(e.getKey().fingerprint);
+                dir.writeLong(pos);
+                dir.writeInt(e.getValue().size());
+                list.writeTo(out);
+                pos += list.size();
+                keyCount++;
+            }
+            dir.close();
+            InputStream in = new BufferedInputStream(
+                    new FileInputStream(dirTmp), 1 << 16);
+            try {
+                byte[] buf = new byte[1 << 16];
+                int n;
+                while ((n = in.read(buf)) > 0) {
+                    out.write(buf, 0, n);
+                }
+            }
+            finally {
+                in.close();
+            }
+            out.close();
+            RandomAccessFile raf = new RandomAccessFile(tmp, "rw");
+            try {
+                raf.writeInt(MAGIC);
+                raf.writeInt(VERSION);
+                raf.writeLong(minGen);
+                raf.writeLong(gen);
+                raf.writeLong(keyCount);
+                raf.writeLong(pos);
+                raf.getFD().sync();
+            }
+            finally {
+                raf.close();
+            }
+        }
+        finally {
+            out.close();
+            dir.close();
+            dirTmp.delete();
+        }
+        if (!tmp.renameTo(file)) {
+            file.delete();
+            if (!tmp.renameTo(file)) {
+                throw new IOException("Can't rename " + tmp + " to " + file);
+            }
+        }
+    }
+
+    static long zigzag(long n) {
+        return (n << 1) ^ (n >> 63);
+    }
+
+    static long unzigzag(long n) {
+        return (n >>> 1) ^ -(n & 1);
+    }
+
+    static void writeVarLong(ByteArrayOutputStream out, long v) {
+        while ((v & ~0x7FL) != 0) {
+            out.write((int) ((v & 0x7F) | 0x80));
+            v >>>= 7;
+        }
+        out.write((int) v);
+    }
+
+    static long readVarLong(ByteBuffer b) {
+        long v = 0;
+        for (int shift = 0; ; shift += 7) {
+            byte x = b.get();
+            v |= (long) (x & 0x7F) << shift;
+            if ((x & 0x80) == 0) {
+                return v;
+            }
+        }
+    }
+
+    private static class Entry implements Map.Entry<Key, List<Posting>> {
+        private Key key;
+        private List<Posting> value;
+
+        Entry(Key key, List<Posting> value) {
+            this.key = key;
+            this.value = value;
+        }
+
+        @Override
+        public Key getKey() {
+            return key;
+        }
+
+        @Override
+        public List<Posting> getValue() {
+            return value;
+        }
+
+        @Override
+        public List<Posting> setValue(List<Posting> value) {
+            throw new UnsupportedOperationException();
+        }
+    }
+}
@@ -0,0 +1,1085 @@
+package com.globalsight.ling.tm3.core;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.channels.FileLock;
+import java.nio.channels.OverlappingFileLockException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import org.apache.log4j.Logger;
+
+import com.globalsight.ling.tm3.core.FuzzyIndex.RankedCandidate;
+import com.globalsight.ling.tm3.core.PostingSegment.Key;
+import com.globalsight.ling.tm3.core.PostingSegment.Posting;
+
+/**
+ * A TM's fuzzy index postings, kept in a directory of immutable
+ * {@link PostingSegment} files plus a small in-memory tail of recent
+ * changes, in the manner of a log-structured merge tree.
+ * <p>
+ * Changes go to a write-ahead log and to the tail.  Once the tail is
+ * large enough, or has been around long enough, it is written out as a
+ * new segment.  Deleting a TUV removes it from the tail and leaves a
+ * tombstone for the older segments, which is applied when they are
+ * merged.  Segments are merged in the background, newest first, so that
+ * there are only ever a few of them.
+ * <p>
+ * Each segment and tail has a generation.  A tombstone records the
+ * generation the TUV was deleted in, and hides its postings in every
+ * older segment.  Segment files are named after the range of
+ * generations they hold, which lets a restart discard the inputs of a
+ * merge that was interrupted after its output was written.
+ * <p>
+ * A store has only one writer, since two processes sharing a directory
+ * would each have their own tail.  The process that opens it holds a
+ * lock on the directory, and {@link #get(File)} returns null elsewhere,
+ * so that other processes serve lookups from the fuzzy index table.
+ * They {@link #post(File, Collection)} the TUVs they change instead, 
+ * and the store's owner reloads those from the table.
+ */
+class PostingStore {
+
+    private static final Logger LOGGER = Logger.getLogger(PostingStore.class);
+
+    // Postings in the tail before it is written out
+    static final int FLUSH_POSTINGS = 200000;
+    // Longest that changes wait in the tail
+    static final long FLUSH_MILLIS = 60 * 1000;
+    // Number of segments above which some are merged
+    static final int MAX_SEGMENTS = 8;
+    // How often the owner looks for changes posted by other processes
+    static final long POSTED_MILLIS = 1000;
+    // Posted in place of TUV ids when the whole store must be rebuilt
+    static final long ALL_TUVS = -1;
+
+    // Marks a store that holds the whole index, in the current format;
+    // a store written in an older one is rebuilt
+    private static final String BUILT = "built-" + PostingSegment.VERSION;
+    private static final String TOMBSTONES = "tombstones";
+    private static final String LOCK = "lock";
+    private static final String POSTED = "posted";
+    private static final Pattern SEGMENT =
+        Pattern.compile("seg-(\\d+)-(\\d+)\\.idx");
+    private static final Pattern LOG = Pattern.compile("wal-(\\d+)\\.log");
+    private static final byte ADD = 1;
+    private static final byte DELETE = 2;
+
+    // Open stores, by directory
+    private static final Map<File, PostingStore> stores =
+        new HashMap<File, PostingStore>();
+    private static ScheduledExecutorService executor;
+
+    /**
+     * A change to the index: a TUV's fingerprints added, or a TUV removed.
+     */
+    static class Change {
+        final long tuvId;
+        final long tuId;
+        final long localeId;
+        final int tuvCount;
+        final int tokenCount;
+        final boolean isSource;
+        final List<Long> fingerprints;
+
+        private Change(long tuvId, long tuId, long localeId, int tuvCount,
+                       int tokenCount, boolean isSource,
+                       List<Long> fingerprints) {
+            this.tuvId = tuvId;
+            this.tuId = tuId;
+            this.localeId = localeId;
+            this.tuvCount = tuvCount;
+            this.tokenCount = tokenCount;
+            this.isSource = isSource;
+            this.fingerprints = fingerprints;
+        }
+
+        /**
+         * @param tokenCount number of tokens in the TUV, or 0 if that
+         *        isn't known
+         */
+        static Change add(long tuvId, long tuId, long localeId,
+                boolean isSource, int tokenCount, List<Long> fingerprints) {
+            return new Change(tuvId, tuId, localeId, fingerprints.size(),
+                              tokenCount, isSource, fingerprints);
+        }
+
+        static Change delete(long tuvId) {
+            return new Change(tuvId, 0, 0, 0, 0, false, null);
+        }
+    }
+
+    private File dir;
+    private ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+    // Oldest first; replaced, never modified
+    private volatile List<PostingSegment> segments =
+        new ArrayList<PostingSegment>();
+    private TreeMap<Key, List<Posting>> tail =
+        new TreeMap<Key, List<Posting>>();
+    private Map<Long, List<Key>> tailKeys = new HashMap<Long, List<Key>>();
+    private int tailPostings;
+    private long tailStarted;
+    private Map<Long, Long> tombstones = new HashMap<Long, Long>();
+    private long generation = 1;
+    private DataOutputStream log;
+    private boolean built;
+    private boolean building;
+    private boolean merging;
+    private ScheduledFuture<?> flusher;
+    private RandomAccessFile lockFile;
+    private long lastPolled;
+
+    private PostingStore(File dir) {
+        this.dir = dir;
+    }
+
+    /**
+     * Get the store kept in a directory, opening it if need be.
+     * @return the store, or null if another process has it open
+     */
+    static synchronized PostingStore get(File dir) throws IOException {
+        PostingStore store = stores.get(dir);
+        if (store == null) {
+            store = new PostingStore(dir);
+            boolean opened = false;
+            try {
+                opened = store.open();
+            }
+            finally {
+                if (!opened) {
+                    store.close();
+                }
+            }
+            if (!opened) {
+                return null;
+            }
+            stores.put(dir, store);
+        }
+        return store;
+    }
+
+    /**
+     * Throw away the contents of the store kept in a directory, so that
+     * it will be rebuilt, whichever process has it open.
+     */
+    static void invalidate(File dir) throws IOException {
+        PostingStore store = get(dir);
+        if (store != null) {
+            store.invalidate();
+        }
+        else {
+            post(dir, Collections.singleton(ALL_TUVS));
+        }
+    }
+
+    /**
+     * Close a store, if it is open.  Its tail stays in the write-ahead
+     * log until the store is next opened.
+     */
+    static synchronized void close(File dir) {
+        PostingStore store = stores.remove(dir);
+        if (store != null) {
+            store.close();
+        }
+    }
+
+    /**
+     * Close a store and delete its directory.
+     */
+    static synchronized void destroy(File dir) {
+        close(dir);
+        deleteAll(new File(dir, POSTED));
+        deleteAll(dir);
+    }
+
+    private static void deleteAll(File dir) {
+        File[] files = dir.listFiles();
+        if (files != null) {
+            for (File f : files) {
+                f.delete();
+            }
+        }
+        dir.delete();
+    }
+
+    private static synchronized ScheduledExecutorService getExecutor() {
+        if (executor == null) {
+            ScheduledThreadPoolExecutor e = new ScheduledThreadPoolExecutor(1,
+                new ThreadFactory() {
+                    @Override
+                    public Thread newThread(Runnable r) {
+                        Thread t = new Thread(r, "TM3 posting store");
+                        t.setDaemon(true);
+                        return t;
+                    }
+                });
+            executor = e;
+        }
+        return executor;
+    }
+
+    /**
+     * @return false if another process has the store open
+     */
+    private boolean open() throws IOException {
+        if (!dir.isDirectory() && !dir.mkdirs()) {
+            throw new IOException("Can't create " + dir);
+        }
+        if (!lockDirectory()) {
+            return false;
+        }
+        lock.writeLock().lock();
+        try {
+            built = new File(dir, BUILT).exists();
+            if (!built) {
+                clear();
+            }
+            else {
+                openSegments();
+                readTombstones();
+                replayLogs();
+            }
+            flusher = getExecutor().scheduleWithFixedDelay(new Runnable() {
+                    @Override
+                    public void run() {
+                        flushIfStale();
+                    }
+                }, FLUSH_MILLIS, FLUSH_MILLIS, TimeUnit.MILLISECONDS);
+        }
+        finally {
+            lock.writeLock().unlock();
+        }
+        return true;
+    }
+
+    /**
+     * Lock the directory, making this process the store's only writer.
+     * The lock lasts until the store is closed, or the process exits.
+     * @return false if another process holds the lock
+     */
+    private boolean lockDirectory() throws IOException {
+        lockFile = new RandomAccessFile(new File(dir, LOCK), "rw");
+        FileLock fileLock;
+        try {
+            fileLock = lockFile.getChannel().tryLock();
+        }
+        catch (OverlappingFileLockException e) {
+            // Held through another channel in this process
+            fileLock = null;
+        }
+        return fileLock != null;
+    }
+
+    private void close() {
+        lock.writeLock().lock();
+        try {
+            if (flusher != null) {
+                flusher.cancel(false);
+            }
+            closeLog();
+            if (lockFile != null) {
+                // Releases the directory lock
+                lockFile.close();
+                lockFile = null;
+            }
+        }
+        catch (IOException e) {
+            LOGGER.warn("Failed to unlock " + dir, e);
+        }
+        finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    private void openSegments() throws IOException {
+        List<PostingSegment> found = new ArrayList<PostingSegment>();
+        File[] files = dir.listFiles();
+        for (File f : files) {
+            if (f.getName().endsWith(".tmp") || f.getName().endsWith(".dir")) {
+                f.delete();
+            }
+            else if (SEGMENT.matcher(f.getName()).matches()) {
+                found.add(PostingSegment.open(f));
+            }
+        }
+        // Drop the inputs of a merge whose output made it to disk
+        List<PostingSegment> kept = new ArrayList<PostingSegment>();
+        for (PostingSegment s : found) {
+            boolean covered = false;
+            for (PostingSegment o : found) {
+                if (o != s && o.getMinGeneration() <= s.getMinGeneration() &&
+                        o.getGeneration() >= s.getGeneration()) {
+                    covered = true;
+                }
+            }
+            if (covered) {
+                s.getFile().delete();
+            }
+            else {
+                kept.add(s);
+            }
+        }
+        Collections.sort(kept, new Comparator<PostingSegment>() {
+            @Override
+            public int compare(PostingSegment a, PostingSegment b) {
+                return a.getGeneration() < b.getGeneration() ? -1 :
+                       a.getGeneration() > b.getGeneration() ? 1 : 0;
+            }
+        });
+        segments = kept;
+        generation = kept.isEmpty() ? 1 :
+                     kept.get(kept.size() - 1).getGeneration() + 1;
+    }
+
+    private void replayLogs() throws IOException {
+        List<Long> gens = new ArrayList<Long>();
+        for (File f : dir.listFiles()) {
+            Matcher m = LOG.matcher(f.getName());
+            if (m.matches()) {
+                gens.add(Long.valueOf(m.group(1)));
+            }
+        }
+        Collections.sort(gens);
+        boolean replayed = false;
+        for (Long g : gens) {
+            File f = logFile(g);
+            if (g < generation) {
+                // Already written out as a segment
+                f.delete();
+                continue;
+            }
+            generation = g;
+            DataInputStream in = new DataInputStream(new BufferedInputStream(
+                    new FileInputStream(f)));
+            try {
+                while (true) {
+                    Change c = readChange(in);
+                    if (c == null) {
+                        break;
+                    }
+                    applyToTail(c);
+                    replayed = true;
+                }
+            }
+            catch (EOFException e) {
+                // The last change was cut off
+            }
+            finally {
+                in.close();
+            }
+        }
+        if (replayed) {
+            flush();
+        }
+        // Start the current generation's log from scratch
+        logFile(generation).delete();
+    }
+
+    /**
+     * @return true if the store holds the whole of the TM's index
+     */
+    boolean isBuilt() {
+        return built;
+    }
+
+    /**
+     * Start rebuilding the store from scratch, unless this or another
+     * thread is already doing so.  Changes applied while the store is
+     * being built are kept.
+     * @return true if the caller should go on to build the store
+     */
+    boolean startBuild() throws IOException {
+        lock.writeLock().lock();
+        try {
+            if (built || building) {
+                return false;
+            }
+            building = true;
+            clear();
+            return true;
+        }
+        finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Add existing postings to a store being built.
+     */
+    void load(List<Change> changes) throws IOException {
+        lock.writeLock().lock();
+        try {
+            for (Change c : changes) {
+                applyToTail(c);
+            }
+            if (tailPostings >= FLUSH_POSTINGS) {
+                flush();
+            }
+        }
+        finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Finish (or abandon) building the store.
+     */
+    void endBuild(boolean success) throws IOException {
+        lock.writeLock().lock();
+        try {
+            building = false;
+            if (success) {
+                flush();
+                new FileOutputStream(new File(dir, BUILT)).close();
+                built = true;
+            }
+        }
+        finally {
+            lock.writeLock().unlock();
+        }
+        if (success) {
+            scheduleMerge();
+        }
+    }
+
+    /**
+     * Throw the store's contents away, so that it will be rebuilt.  This
+     * is the way out if the store can no longer be trusted to match the
+     * TM.
+     */
+    void invalidate() {
+        lock.writeLock().lock();
+        try {
+            new File(dir, BUILT).delete();
+            built = false;
+            clear();
+        }
+        catch (IOException e) {
+            LOGGER.error("Failed to clear " + dir, e);
+        }
+        finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    // Call with the write lock held
+    private void clear() throws IOException {
+        closeLog();
+        // Posted changes are committed, so the rebuild will see them
+        deletePosted(listPosted());
+        for (File f : dir.listFiles()) {
+            if (!f.getName().equals(BUILT) && !f.getName().equals(LOCK)) {
+                f.delete();
+            }
+        }
+        segments = new ArrayList<PostingSegment>();
+        tail.clear();
+        tailKeys.clear();
+        tailPostings = 0;
+        tombstones.clear();
+        generation = 1;
+    }
+
+    /**
+     * Apply committed changes.
+     */
+    void apply(List<Change> changes) throws IOException {
+        boolean flushed = false;
+        lock.writeLock().lock();
+        try {
+            DataOutputStream out = getLog();
+            for (Change c : changes) {
+                writeChange(out, c);
+            }
+            out.flush();
+            for (Change c : changes) {
+                applyToTail(c);
+            }
+            if (tailPostings >= FLUSH_POSTINGS) {
+                flush();
+                flushed = true;
+            }
+        }
+        finally {
+            lock.writeLock().unlock();
+        }
+        if (flushed) {
+            scheduleMerge();
+        }
+    }
+
+    // Call with the write lock held
+    private void applyToTail(Change c) {
+        if (c.fingerprints == null) {
+            List<Key> keys = tailKeys.remove(c.tuvId);
+            if (keys != null) {
+                for (Key k : keys) {
+                    List<Posting> postings = tail.get(k);
+                    for (Iterator<Posting> it = postings.iterator();
+                            it.hasNext(); ) {
+                        if (it.next().tuvId == c.tuvId) {
+                            it.remove();
+                            tailPostings--;
+                        }
+                    }
+                }
+            }
+            tombstones.put(c.tuvId, generation);
+            return;
+        }
+        if (tailKeys.containsKey(c.tuvId)) {
+            // Already added; a build can see a TUV that was also saved
+            return;
+        }
+        if (tailPostings == 0) {
+            tailStarted = System.currentTimeMillis();
+        }
+        Posting p = new Posting(c.tuvId, c.tuId, c.tuvCount, c.tokenCount,
+                                c.isSource);
+        List<Key> keys = new ArrayList<Key>(c.fingerprints.size());
+        for (Long fp : c.fingerprints) {
+            Key k = new Key(c.localeId, fp);
+            List<Posting> postings = tail.get(k);
+            if (postings == null) {
+                postings = new ArrayList<Posting>(2);
+                tail.put(k, postings);
+            }
+            postings.add(p);
+            keys.add(k);
+            tailPostings++;
+        }
+        tailKeys.put(c.tuvId, keys);
+    }
+
+    /**
+     * Collect the TUVs in a locale that share fingerprints with a key.
+     * @param weights weights of the fingerprints, or null to count them
+     * @param sourceOnly true to collect only source TUVs
+     * @return candidates by TUV id
+     */
+    Map<Long, RankedCandidate> collect(long localeId, List<Long> fingerprints,
+            Map<Long, Double> weights, boolean sourceOnly) {
+        Map<Long, RankedCandidate> candidates =
+            new HashMap<Long, RankedCandidate>();
+        lock.readLock().lock();
+        try {
+            for (Long fp : fingerprints) {
+                double weight = weights == null ? 1 : weights.get(fp);
+                for (PostingSegment s : segments) {
+                    List<Posting> postings = s.get(localeId, fp);
+                    if (postings != null) {
+                        collect(candidates, postings, s.getGeneration(),
+                                weight, sourceOnly);
+                    }
+                }
+                List<Posting> postings = tail.get(new Key(localeId, fp));
+                if (postings != null) {
+                    collect(candidates, postings, generation, weight,
+                            sourceOnly);
+                }
+            }
+        }
+        finally {
+            lock.readLock().unlock();
+        }
+        return candidates;
+    }
+
+    private void collect(Map<Long, RankedCandidate> candidates,
+            List<Posting> postings, long gen, double weight,
+            boolean sourceOnly) {
+        for (Posting p : postings) {
+            if (sourceOnly && !p.isSource) {
+                continue;
+            }
+            Long deleted = tombstones.get(p.tuvId);
+            if (deleted != null && deleted > gen) {
+                continue;
+            }
+            RankedCandidate c = candidates.get(p.tuvId);
+            if (c == null) {
+                c = new RankedCandidate(p.tuvId, p.tuId, p.tuvCount,
+                                        p.tokenCount);
+                candidates.put(p.tuvId, c);
+            }
+            c.shared++;
+            c.rank += weight;
+        }
+    }
+
+    private void flushIfStale() {
+        lock.writeLock().lock();
+        try {
+            if (tailPostings > 0 &&
+                System.currentTimeMillis() - tailStarted > FLUSH_MILLIS) {
+                flush();
+            }
+        }
+        catch (IOException e) {
+            LOGGER.error("Failed to flush " + dir, e);
+        }
+        finally {
+            lock.writeLock().unlock();
+        }
+        scheduleMerge();
+    }
+
+    /**
+     * Write the tail out as a new segment.  Call with the write lock
+     * held.
+     */
+    private void flush() throws IOException {
+        writeTombstones();
+        if (tailPostings > 0) {
+            final Iterator<Map.Entry<Key, List<Posting>>> entries =
+                tail.entrySet().iterator();
+            PostingSegment.write(segmentFile(generation, generation),
+                generation, generation,
+                new Iterator<Map.Entry<Key, List<Posting>>>() {
+                    @Override
+                    public boolean hasNext() {
+                        return entries.hasNext();
+                    }
+                    @Override
+                    public Map.Entry<Key, List<Posting>> next() {
+                        Map.Entry<Key, List<Posting>> e = entries.next();
+                        Collections.sort(e.getValue(), BY_TUV_ID);
+                        return e;
+                    }
+                    @Override
+                    public void remove() {
+                        throw new UnsupportedOperationException();
+                    }
+                });
+            List<PostingSegment> newSegments =
+                new ArrayList<PostingSegment>(segments);
+            newSegments.add(PostingSegment.open(
+                    segmentFile(generation, generation)));
+            segments = newSegments;
+        }
+        closeLog();
+        logFile(generation).delete();
+        generation++;
+        tail.clear();
+        tailKeys.clear();
+        tailPostings = 0;
+    }
+
+    private synchronized void scheduleMerge() {
+        if (merging || segments.size() <= MAX_SEGMENTS) {
+            return;
+        }
+        merging = true;
+        getExecutor().execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    merge();
+                }
+                catch (Exception e) {
+                    LOGGER.error("Failed to merge " + dir, e);
+                }
+                synchronized (PostingStore.this) {
+                    merging = false;
+                }
+                scheduleMerge();
+            }
+        });
+    }
+
+    /**
+     * Merge the newest segments into one.  Starting from the newest two,
+     * older segments are taken in as long as they are no larger than the
+     * ones taken so far, so each merge roughly doubles a segment's size
+     * and no posting is rewritten more than a logarithmic number of
+     * times.
+     */
+    void merge() throws IOException {
+        List<PostingSegment> current;
+        Map<Long, Long> deleted;
+        lock.readLock().lock();
+        try {
+            current = segments;
+            deleted = new HashMap<Long, Long>(tombstones);
+        }
+        finally {
+            lock.readLock().unlock();
+        }
+        if (current.size() < 2) {
+            return;
+        }
+        int first = current.size() - 2;
+        long size = current.get(first).getSize() +
+                    current.get(first + 1).getSize();
+        while (first > 0 && current.get(first - 1).getSize() <= size) {
+            first--;
+            size += current.get(first).getSize();
+        }
+        final List<PostingSegment> inputs =
+            current.subList(first, current.size());
+        long minGen = inputs.get(0).getMinGeneration();
+        long gen = inputs.get(inputs.size() - 1).getGeneration();
+        File output = segmentFile(minGen, gen);
+        PostingSegment.write(output, minGen, gen,
+                             new MergeIterator(inputs, deleted));
+        PostingSegment merged = PostingSegment.open(output);
+
+        lock.writeLock().lock();
+        try {
+            if (!segments.containsAll(inputs)) {
+                // The store was cleared in the meantime
+                merged.getFile().delete();
+                return;
+            }
+            List<PostingSegment> newSegments =
+                new ArrayList<PostingSegment>(segments);
+            newSegments.removeAll(inputs);
+            newSegments.add(first, merged);
+            segments = newSegments;
+            if (first == 0) {
+                // No older segment is left for these to hide postings in
+                for (Map.Entry<Long, Long> e : deleted.entrySet()) {
+                    if (e.getValue().equals(tombstones.get(e.getKey()))) {
+                        tombstones.remove(e.getKey());
+                    }
+                }
+                writeTombstones();
+            }
+        }
+        finally {
+            lock.writeLock().unlock();
+        }
+        for (PostingSegment s : inputs) {
+            s.getFile().delete();
+        }
+    }
+
+    /**
+     * Merges the posting lists of several segments, leaving out postings
+     * hidden by tombstones.  If a TUV appears in more than one segment,
+     * the newest posting wins.
+     */
+    private static class MergeIterator
+            implements Iterator<Map.Entry<Key, List<Posting>>> {
+        private List<PostingSegment> inputs;
+        private Map<Long, Long> deleted;
+        private PriorityQueue<Head> heads;
+
+        private static class Head {
+            int segment;
+            Iterator<Map.Entry<Key, List<Posting>>> it;
+            Map.Entry<Key, List<Posting>> entry;
+        }
+
+        MergeIterator(List<PostingSegment> inputs, Map<Long, Long> deleted) {
+            this.inputs = inputs;
+            this.deleted = deleted;
+            heads = new PriorityQueue<Head>(inputs.size(),
+                new Comparator<Head>() {
+                    @Override
+                    public int compare(Head a, Head b) {
+                        int c = a.entry.getKey().compareTo(b.entry.getKey());
+                        return c != 0 ? c : a.segment - b.segment;
+                    }
+                });
+            for (int i = 0; i < inputs.size(); i++) {
+                Head h = new Head();
+                h.segment = i;
+                h.it = inputs.get(i).iterator();
+                if (h.it.hasNext()) {
+                    h.entry = h.it.next();
+                    heads.add(h);
+                }
+            }
+        }
+
+        @Override
+        public boolean hasNext() {
+            return !heads.isEmpty();
+        }
+
+        @Override
+        public Map.Entry<Key, List<Posting>> next() {
+            Key key = heads.peek().entry.getKey();
+            // Newest segment last, so its postings replace older ones
+            Map<Long, Posting> byTuv = new TreeMap<Long, Posting>();
+            while (!heads.isEmpty() && heads.peek().entry.getKey().equals(key)) {
+                Head h = heads.poll();
+                long gen = inputs.get(h.segment).getGeneration();
+                for (Posting p : h.entry.getValue()) {
+                    Long d = deleted.get(p.tuvId);
+                    if (d == null || d <= gen) {
+                        byTuv.put(p.tuvId, p);
+                    }
+                }
+                if (h.it.hasNext()) {
+                    h.entry = h.it.next();
+                    heads.add(h);
+                }
+            }
+            final Key k = key;
+            final List<Posting> postings =
+                new ArrayList<Posting>(byTuv.values());
+            return new Map.Entry<Key, List<Posting>>() {
+                @Override
+                public Key getKey() {
+                    return k;
+                }
+                @Override
+                public List<Posting> getValue() {
+                    return postings;
+                }
+                @Override
+                public List<Posting> setValue(List<Posting> value) {
+                    throw new UnsupportedOperationException();
+                }
+            };
+        }
+
+        @Override
+        public void remove() {
+            throw new UnsupportedOperationException();
+        }
+    }
+
+    private static final Comparator<Posting> BY_TUV_ID =
+        new Comparator<Posting>() {
+            @Override
+            public int compare(Posting a, Posting b) {
+                return a.tuvId < b.tuvId ? -1 : a.tuvId > b.tuvId ? 1 : 0;
+            }
+        };
+
+    /**
+     * Tell the process that has a store open about TUVs whose index 
+     * entries this one has changed, so that it reloads them from the
+     * fuzzy index table.  For use when {@link #get(File)} returns null,
+     * once the changes are committed.
+     * @param tuvIds ids of the changed TUVs, or {@link #ALL_TUVS}
+     */
+    static void post(File dir, Collection<Long> tuvIds) throws IOException {
+        File posted = new File(dir, POSTED);
+        if (!posted.isDirectory() && !posted.mkdirs()) {
+            throw new IOException("Can't create " + posted);
+        }
+        // Written under a name the owner ignores, then renamed
+        File tmp = File.createTempFile("tuvs-", ".tmp", posted);
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(
+                new FileOutputStream(tmp)));
+        try {
+            out.writeInt(tuvIds.size());
+            for (Long id : tuvIds) {
+                out.writeLong(id);
+            }
+        }
+        finally {
+            out.close();
+        }
+        File f = new File(posted, tmp.getName().replace(".tmp", ".ids"));
+        if (!tmp.renameTo(f)) {
+            tmp.delete();
+            throw new IOException("Can't rename " + tmp + " to " + f);
+        }
+    }
+
+    /**
+     * Find the changes that other processes have posted, if it has been
+     * long enough since this was last done.
+     * @return the files they are in, for {@link #readPosted(List)} and 
+     *         then, once the changes are applied, {@link 
+     *         #deletePosted(List)}
+     */
+    synchronized List<File> takePosted() {
+        long now = System.currentTimeMillis();
+        if (now - lastPolled < POSTED_MILLIS) {
+            return Collections.emptyList();
+        }
+        lastPolled = now;
+        return listPosted();
+    }
+
+    private List<File> listPosted() {
+        List<File> posted = new ArrayList<File>();
+        File[] files = new File(dir, POSTED).listFiles();
+        if (files != null) {
+            for (File f : files) {
+                if (f.getName().endsWith(".ids")) {
+                    posted.add(f);
+                }
+            }
+        }
+        return posted;
+    }
+
+    /**
+     * @return the ids of the TUVs posted in some files, in order
+     */
+    static Set<Long> readPosted(List<File> posted) throws IOException {
+        Set<Long> tuvIds = new TreeSet<Long>();
+        for (File f : posted) {
+            DataInputStream in;
+            try {
+                in = new DataInputStream(new BufferedInputStream(
+                        new FileInputStream(f)));
+            }
+            catch (FileNotFoundException e) {
+                // Already dealt with by a rebuild
+                continue;
+            }
+            try {
+                int n = in.readInt();
+                for (int i = 0; i < n; i++) {
+                    tuvIds.add(in.readLong());
+                }
+            }
+            finally {
+                in.close();
+            }
+        }
+        return tuvIds;
+    }
+
+    static void deletePosted(List<File> posted) {
+        for (File f : posted) {
+            f.delete();
+        }
+    }
+
+    private File segmentFile(long minGen, long gen) {
+        return new File(dir, "seg-" + minGen + "-" + gen + ".idx");
+    }
+
+    private File logFile(long gen) {
+        return new File(dir, "wal-" + gen + ".log");
+    }
+
+    private DataOutputStream getLog() throws IOException {
+        if (log == null) {
+            log = new DataOutputStream(new BufferedOutputStream(
+                    new FileOutputStream(logFile(generation), true)));
+        }
+        return log;
+    }
+
+    private void closeLog() {
+        if (log != null) {
+            try {
+                log.close();
+            }
+            catch (IOException e) {
+                LOGGER.warn("Failed to close log in " + dir, e);
+            }
+            log = null;
+        }
+    }
+
+    private static void writeChange(DataOutputStream out, Change c)
+                throws IOException {
+        if (c.fingerprints == null) {
+            out.writeByte(DELETE);
+            out.writeLong(c.tuvId);
+            return;
+        }
+        out.writeByte(ADD);
+        out.writeLong(c.tuvId);
+        out.writeLong(c.tuId);
+        out.writeLong(c.localeId);
+        out.writeBoolean(c.isSource);
+        out.writeInt(c.tokenCount);
+        out.writeInt(c.fingerprints.size());
+        for (Long fp : c.fingerprints) {
+            out.writeLong(fp);
+        }
+    }
+
+    private static Change readChange(DataInputStream in) throws IOException {
+        int op = in.read();
+        if (op == -1) {
+            return null;
+        }
+        long tuvId = in.readLong();
+        if (op == DELETE) {
+            return Change.delete(tuvId);
+        }
+        long tuId = in.readLong();
+        long localeId = in.readLong();
+        boolean isSource = in.readBoolean();
+        int tokenCount = in.readInt();
+        int n = in.readInt();
+        List<Long> fps = new ArrayList<Long>(n);
+        for (int i = 0; i < n; i++) {
+            fps.add(in.readLong());
+        }
+        return Change.add(tuvId, tuId, localeId, isSource, tokenCount, fps);
+    }
+
+    private void readTombstones() throws IOException {
+        tombstones.clear();
+        File f = new File(dir, TOMBSTONES);
+        if (!f.exists()) {
+            return;
+        }
+        DataInputStream in = new DataInputStream(new BufferedInputStream(
+                new FileInputStream(f)));
+        try {
+            int n = in.readInt();
+            for (int i = 0; i < n; i++) {
+                tombstones.put(in.readLong(), in.readLong());
+            }
+        }
+        finally {
+            in.close();
+        }
+    }
+
+    // Call with the write lock held
+    private void writeTombstones() throws IOException {
+        File tmp = new File(dir, TOMBSTONES + ".tmp");
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(
+                new FileOutputStream(tmp)));
+        try {
+            out.writeInt(tombstones.size());
+            for (Map.Entry<Long, Long> e : tombstones.entrySet()) {
+                out.writeLong(e.getKey());
+                out.writeLong(e.getValue());
+            }
+        }
+        finally {
+            out.close();
+        }
+        File f = new File(dir, TOMBSTONES);
+        if (!tmp.renameTo(f)) {
+            f.delete();
+            if (!tmp.renameTo(f)) {
+                throw new IOException("Can't rename " + tmp + " to " + f);
+            }
+        }
+    }
+}
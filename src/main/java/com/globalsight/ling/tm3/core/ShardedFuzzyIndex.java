@@ -0,0 +1,302 @@
+package com.globalsight.ling.tm3.core;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import com.globalsight.ling.tm3.core.FuzzyIndexShards.Work;
+import com.globalsight.ling.tm3.core.persistence.SQLUtil;
+import com.globalsight.ling.tm3.core.persistence.StatementBuilder;
+
+/**
+ * A fuzzy index split across several databases by fingerprint, for TMs
+ * whose index is too large for one.  Each TUV's entries are spread over
+ * the shards that hold its fingerprints; the TUs, TUVs and fingerprint
+ * frequencies stay in the TM's own database.
+ * <p>
+ * A lookup runs the TM's lookup query on every shard that holds some
+ * of the key's fingerprints, at once, and adds up each candidate's
+ * shared fingerprints and rank across the shards before ranking it.
+ * Since a shard can't see the TU tables, attribute and locale
+ * restrictions are checked as candidates are fetched.
+ */
+class ShardedFuzzyIndex<T extends TM3Data> extends FuzzyIndex<T> {
+
+    // Frequencies written per statement by recomputeFrequencies()
+    private static final int FREQUENCY_BATCH_SIZE = 10000;
+
+    private FuzzyIndex<T> fingerprintIndex;
+    private FuzzyIndexShards shards;
+
+    /**
+     * @param fingerprintIndex the TM's fingerprint index, whose table
+     *        layout and queries the shards use
+     */
+    ShardedFuzzyIndex(StorageInfo<T> storage, FuzzyIndex<T> fingerprintIndex,
+                      FuzzyIndexShards shards) {
+        super(storage);
+        this.fingerprintIndex = fingerprintIndex;
+        this.shards = shards;
+    }
+
+    @Override
+    protected String getLocaleExpression() {
+        return fingerprintIndex.getLocaleExpression();
+    }
+
+    @Override
+    protected Trigrams getTrigrams(T key) {
+        return fingerprintIndex.getTrigrams(key);
+    }
+
+    @Override
+    protected StatementBuilder getFuzzyLookupQuery(List<Long> fingerprints,
+                    int fingerprintCount, Map<Long, Double> weights,
+                    TM3Locale keyLocale, Set<? extends TM3Locale> matchLocales,
+                    Map<TM3Attribute, Object> inlineAttrs, boolean lookupTarget) {
+        return fingerprintIndex.getFuzzyLookupQuery(fingerprints,
+                fingerprintCount, weights, keyLocale, matchLocales,
+                inlineAttrs, lookupTarget);
+    }
+
+    @Override
+    protected Lookup createLookup(List<Long> fingerprints,
+            int fingerprintCount, int tokenCount, Map<Long, Double> weights,
+            TM3Locale keyLocale, Set<? extends TM3Locale> matchLocales,
+            Map<TM3Attribute, Object> inlineAttributes,
+            Map<TM3Attribute, String> customAttributes,
+            int threshold, boolean lookupTarget) throws SQLException {
+        shards.ensureTables(getStorage());
+        List<Work<List<RankedCandidate>>> queries =
+            new ArrayList<Work<List<RankedCandidate>>>();
+        for (List<Long> shardFingerprints : shards.split(fingerprints)) {
+            if (shardFingerprints.isEmpty()) {
+                queries.add(null);
+                continue;
+            }
+            Map<Long, Double> shardWeights = null;
+            if (weights != null) {
+                shardWeights = new HashMap<Long, Double>();
+                for (Long fp : shardFingerprints) {
+                    shardWeights.put(fp, weights.get(fp));
+                }
+            }
+            // Every candidate is needed to add up the counts, so the
+            // query isn't limited
+            final StatementBuilder sb = getFuzzyLookupQuery(
+                    shardFingerprints, fingerprintCount, shardWeights,
+                    keyLocale, null,
+                    Collections.<TM3Attribute, Object>emptyMap(),
+                    lookupTarget);
+            queries.add(new Work<List<RankedCandidate>>() {
+                @Override
+                public List<RankedCandidate> run(Connection conn)
+                        throws SQLException {
+                    return readCandidates(conn, sb);
+                }
+            });
+        }
+        Map<Long, RankedCandidate> found = new HashMap<Long, RankedCandidate>();
+        for (List<RankedCandidate> partial : shards.query(queries)) {
+            if (partial == null) {
+                continue;
+            }
+            for (RankedCandidate c : partial) {
+                RankedCandidate total = found.get(c.tuvId);
+                if (total == null) {
+                    found.put(c.tuvId, c);
+                }
+                else {
+                    total.shared += c.shared;
+                    total.rank += c.rank;
+                }
+            }
+        }
+        return createRankedLookup(found.values(), fingerprints.size(),
+                fingerprintCount, tokenCount, keyLocale, matchLocales, 
+                inlineAttributes, customAttributes, threshold);
+    }
+
+    private static List<RankedCandidate> readCandidates(Connection conn,
+            StatementBuilder sb) throws SQLException {
+        PreparedStatement ps = sb.toPreparedStatement(conn);
+        ResultSet rs = SQLUtil.execQuery(ps);
+        List<RankedCandidate> candidates = new ArrayList<RankedCandidate>();
+        while (rs.next()) {
+            RankedCandidate c = new RankedCandidate(rs.getLong(1),
+                    rs.getLong(2), rs.getInt(5), rs.getInt(6));
+            c.rank = rs.getDouble(3);
+            c.shared = rs.getInt(4);
+            candidates.add(c);
+        }
+        ps.close();
+        return candidates;
+    }
+
+    @Override
+    protected void indexFingerprints(List<Long> fingerprints,
+            final int tokenCount, final TM3Tuv<T> tuv) throws SQLException {
+        final int tuvCount = fingerprints.size();
+        List<List<Long>> byShard = shards.split(fingerprints);
+        for (int i = 0; i < byShard.size(); i++) {
+            final List<Long> shardFingerprints = byShard.get(i);
+            if (shardFingerprints.isEmpty()) {
+                continue;
+            }
+            shards.ensureTable(i, getStorage());
+            shards.write(getStorage().getSession(), i, new Work<Void>() {
+                @Override
+                public Void run(Connection conn) throws SQLException {
+                    getShardIndex(conn).insertEntries(shardFingerprints,
+                            tuvCount, tokenCount, tuv);
+                    return null;
+                }
+            });
+        }
+    }
+
+    // The TM's fingerprint index, writing to a shard
+    private FuzzyIndex<T> getShardIndex(Connection conn) {
+        FuzzyIndex<T> index = getStorage().getFingerprintIndex();
+        index.setConnection(conn);
+        return index;
+    }
+
+    @Override
+    public void deleteFingerprints(TM3Tuv<T> tuv) throws SQLException {
+        deleteEntries(new StatementBuilder("tuvId = ?")
+            .addValue(tuv.getId()));
+    }
+
+    @Override
+    public void deleteFingerprintsByTuId(List<Long> tuIds)
+                throws SQLException {
+        if (tuIds.size() == 0) {
+            return;
+        }
+        deleteEntries(new StatementBuilder("tuId IN ")
+            .append(SQLUtil.longGroup(tuIds)));
+    }
+
+    @Override
+    public void deleteFingerprintsByTuvId(List<Long> tuvIds)
+                throws SQLException {
+        if (tuvIds.size() == 0) {
+            return;
+        }
+        deleteEntries(new StatementBuilder("tuvId IN ")
+            .append(SQLUtil.longGroup(tuvIds)));
+    }
+
+    // Delete entries from every shard, keeping the frequencies in step
+    private void deleteEntries(final StatementBuilder condition)
+                throws SQLException {
+        final String table = getStorage().getFuzzyIndexTableName();
+        for (int i = 0; i < shards.size(); i++) {
+            shards.ensureTable(i, getStorage());
+            List<long[]> counts = shards.write(getStorage().getSession(), i,
+                new Work<List<long[]>>() {
+                    @Override
+                    public List<long[]> run(Connection conn)
+                            throws SQLException {
+                        List<long[]> counts = countEntries(conn, condition);
+                        SQLUtil.exec(conn, new StatementBuilder()
+                            .append("DELETE FROM ").append(table)
+                            .append(" WHERE ").append(condition));
+                        return counts;
+                    }
+                });
+            getFrequencies().remove(counts);
+        }
+    }
+
+    // (locale id, fingerprint, count) for the entries matching a condition
+    private List<long[]> countEntries(Connection conn,
+            StatementBuilder condition) throws SQLException {
+        PreparedStatement ps = new StatementBuilder()
+            .append("SELECT ").append(getLocaleExpression())
+            .append(" AS localeId, fingerprint, COUNT(*) FROM ")
+            .append(getStorage().getFuzzyIndexTableName())
+            .append(" WHERE ").append(condition)
+            .append(" GROUP BY localeId, fingerprint")
+            .toPreparedStatement(conn);
+        ResultSet rs = SQLUtil.execQuery(ps);
+        List<long[]> counts = new ArrayList<long[]>();
+        while (rs.next()) {
+            counts.add(new long[] { rs.getLong(1), rs.getLong(2),
+                                    rs.getLong(3) });
+        }
+        ps.close();
+        return counts;
+    }
+
+    /**
+     * Throw away the TM's fingerprint frequencies, and count them again
+     * from the shards.  Each fingerprint lives on one shard, so the
+     * counts from different shards never overlap.
+     */
+    void recomputeFrequencies() throws SQLException {
+        shards.ensureTables(getStorage());
+        getFrequencies().clear();
+        for (int i = 0; i < shards.size(); i++) {
+            Connection conn = shards.getConnection(i);
+            try {
+                PreparedStatement ps = new StatementBuilder()
+                    .append("SELECT ").append(getLocaleExpression())
+                    .append(" AS localeId, fingerprint, COUNT(*) FROM ")
+                    .append(getStorage().getFuzzyIndexTableName())
+                    .append(" GROUP BY localeId, fingerprint")
+                    .toPreparedStatement(conn);
+                ResultSet rs = SQLUtil.execQuery(ps);
+                List<long[]> counts = new ArrayList<long[]>();
+                while (rs.next()) {
+                    counts.add(new long[] { rs.getLong(1), rs.getLong(2),
+                                            rs.getLong(3) });
+                    if (counts.size() == FREQUENCY_BATCH_SIZE) {
+                        getFrequencies().add(counts);
+                        counts.clear();
+                    }
+                }
+                ps.close();
+                getFrequencies().add(counts);
+            }
+            finally {
+                conn.close();
+            }
+        }
+    }
+
+    @Override
+    List<Long> getIndexedTuvIds(final List<Long> tuIds) throws SQLException {
+        if (tuIds.size() == 0) {
+            return new ArrayList<Long>();
+        }
+        shards.ensureTables(getStorage());
+        final StatementBuilder sb = new StatementBuilder()
+            .append("SELECT DISTINCT tuvId FROM ")
+            .append(getStorage().getFuzzyIndexTableName())
+            .append(" WHERE tuId IN ").append(SQLUtil.longGroup(tuIds));
+        List<Work<List<Long>>> queries = new ArrayList<Work<List<Long>>>();
+        for (int i = 0; i < shards.size(); i++) {
+            queries.add(new Work<List<Long>>() {
+                @Override
+                public List<Long> run(Connection conn) throws SQLException {
+                    return SQLUtil.execIdsQuery(conn, sb);
+                }
+            });
+        }
+        Set<Long> ids = new HashSet<Long>();
+        for (List<Long> shardIds : shards.query(queries)) {
+            ids.addAll(shardIds);
+        }
+        return new ArrayList<Long>(ids);
+    }
+}
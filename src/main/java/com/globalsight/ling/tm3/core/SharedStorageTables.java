@@ -7,10 +7,22 @@ import java.util.Set;
 
 import com.globalsight.ling.tm3.core.persistence.SQLUtil;
 
+/**
+ * The tables of a shared storage pool.
+ * <p>
+ * A pool may be created with its TU, TUV and attribute value tables
+ * hash partitioned on tmId, so that queries for a single TM (which
+ * always include the tmId) only search one partition.  MySQL doesn't
+ * allow foreign keys on partitioned tables, so these pools have none;
+ * everything that would have cascaded is deleted explicitly.  Removing
+ * a TM deletes its rows rather than truncating its partition, which
+ * would commit the caller's transaction.
+ */
 class SharedStorageTables {
 
     private Connection conn;
     private long poolId;
+    private int partitions = 0;
     
     SharedStorageTables(Connection conn, long poolId) {
         this.conn = conn;
@@ -28,9 +40,21 @@ class SharedStorageTables {
     }
     
     boolean create(Set<TM3Attribute> inlineAttributes) throws SQLException {
+        return create(inlineAttributes, 0);
+    }
+    
+    /**
+     * Create the pool tables.
+     * @param partitions number of tmId hash partitions, or 0 for
+     *        unpartitioned tables
+     * @return false if the pool already existed
+     */
+    boolean create(Set<TM3Attribute> inlineAttributes, int partitions)
+                throws SQLException {
         if (exists()) {
             return false;
         }
+        this.partitions = partitions;
         createTuStorage(inlineAttributes);
         createAttrTable();
         return true;
@@ -55,6 +79,10 @@ class SharedStorageTables {
         return table(StorageInfo.TUV_TABLE_NAME, poolId);
     }
     
+    static String getContentTableName(long poolId) {
+        return table(StorageInfo.CONTENT_TABLE_NAME, poolId);
+    }
+    
     static String getAttrValTableName(long poolId) {
         return table(StorageInfo.ATTR_VAL_TABLE_NAME, poolId);
     }
@@ -71,6 +99,24 @@ class SharedStorageTables {
         return base + "_SHARED_" + id;
     }
     
+    /**
+     * @return the number of tmId partitions in an existing pool, or 0 
+     *         if its tables aren't partitioned
+     */
+    int getPartitionCount() throws SQLException {
+        return SQLUtil.getPartitionCount(conn, getTuTableName(poolId));
+    }
+    
+    private String partitionClause() {
+        return partitions > 0 ? 
+            " PARTITION BY HASH (tmId) PARTITIONS " + partitions : "";
+    }
+    
+    // Foreign key clause, if the table can have them
+    private String foreignKey(String clause) {
+        return partitions > 0 ? "" : ", FOREIGN KEY " + clause;
+    }
+    
     protected void createAttrTable() throws SQLException {
         SQLUtil.exec(conn, 
             "CREATE TABLE " + getAttrValTableName(poolId) + " (" +
@@ -78,15 +124,62 @@ class SharedStorageTables {
             "tuId      bigint NOT NULL, " + 
             "attrId    bigint NOT NULL, " + 
             "value     varchar(" + StorageInfo.MAX_ATTR_VALUE_LEN + ") not null, " + 
-            "UNIQUE KEY(tuId, attrId), " +
-            "KEY (tmid, attrId), " + 
-            "FOREIGN KEY (tuId) REFERENCES " + getTuTableName(poolId) + 
-                    " (id) ON DELETE CASCADE, " +
-            "FOREIGN KEY (attrId) REFERENCES TM3_ATTR (id) ON DELETE CASCADE " +
+            (partitions > 0 ? "UNIQUE KEY(tuId, attrId, tmId), " :
+                              "UNIQUE KEY(tuId, attrId), ") +
+            "KEY (tmid, attrId)" + 
+            foreignKey("(tuId) REFERENCES " + getTuTableName(poolId) + 
+                    " (id) ON DELETE CASCADE") +
+            foreignKey("(attrId) REFERENCES TM3_ATTR (id) ON DELETE CASCADE") +
+            ") ENGINE=InnoDB DEFAULT CHARSET=utf8" + partitionClause()
+        );
+    }
+
+    /**
+     * Create the table that holds TUV content shared by TUVs anywhere 
+     * in the pool.  Rows are found by content fingerprint, and are 
+     * never changed once written.
+     */
+    protected void createContentTable() throws SQLException {
+        SQLUtil.exec(conn,
+            "CREATE TABLE IF NOT EXISTS " + getContentTableName(poolId) + " (" +
+            "id bigint NOT NULL AUTO_INCREMENT, " +
+            "fingerprint bigint NOT NULL, " +
+            "content text NOT NULL, " +
+            "PRIMARY KEY (id), " +
+            "KEY (fingerprint) " +
             ") ENGINE=InnoDB DEFAULT CHARSET=utf8"
         );
     }
 
+    /**
+     * Add the shared content table, and the TUV column that refers to
+     * it, to a pool created by an older version of TM3.
+     * @return true if the pool was changed
+     */
+    boolean addContentTable() throws SQLException {
+        if (SQLUtil.columnExists(conn, getTuvTableName(poolId), "contentId")) {
+            return false;
+        }
+        createContentTable();
+        partitions = getPartitionCount();
+        SQLUtil.exec(conn, "ALTER TABLE " + getTuvTableName(poolId) +
+            " ADD COLUMN contentId bigint AFTER contentBlob, " +
+            " ADD KEY (contentId)" +
+            foreignKey("(contentId) REFERENCES " + 
+                       getContentTableName(poolId) + " (id)"));
+        return true;
+    }
+
+    /**
+     * Remove shared content that is no longer used by any TUV.
+     */
+    void purgeUnusedContent() throws SQLException {
+        SQLUtil.exec(conn, 
+            "DELETE c FROM " + getContentTableName(poolId) + " AS c " +
+            "LEFT JOIN " + getTuvTableName(poolId) + " AS tuv " +
+            "ON tuv.contentId = c.id WHERE tuv.id IS NULL");
+    }
+
     protected void createTuStorage(Set<TM3Attribute> inlineAttributes)
             throws SQLException {
         StringBuilder stmt = new StringBuilder(
@@ -99,10 +192,13 @@ class SharedStorageTables {
                 .append(attr.getValueType().getSqlType())
                 .append(", ");
         }
-        stmt.append("PRIMARY KEY (id)");
-        stmt.append(") ENGINE=InnoDB");
+        // Every unique key of a partitioned table must include tmId
+        stmt.append(partitions > 0 ? "PRIMARY KEY (id, tmId)" : "PRIMARY KEY (id)");
+        stmt.append(") ENGINE=InnoDB").append(partitionClause());
         SQLUtil.exec(conn, stmt.toString());
 
+        createContentTable();
+
         // Now create the TUV table.  Note the denormalized tmId
         // (to avoid an extra join during fuzzy lookup)
         SQLUtil.exec(conn,
@@ -113,15 +209,21 @@ class SharedStorageTables {
             "localeId bigint NOT NULL, " +
             "fingerprint bigint NOT NULL, " +
             "content text NOT NULL, " + 
+            "contentBlob mediumblob, " +
+            "contentId bigint, " +
             "firstEventId bigint NOT NULL, " +
             "lastEventId bigint NOT NULL, " +
-            "PRIMARY KEY (id), " +
+            "lastModified datetime NOT NULL, " +
+            (partitions > 0 ? "PRIMARY KEY (id, tmId), " : "PRIMARY KEY (id), ") +
             "KEY (tmId, localeId, fingerprint), " +
             "KEY (tuId, localeId), " + 
-            "FOREIGN KEY (tuId) REFERENCES " + getTuTableName(poolId) + " (id) ON DELETE CASCADE, " +
-            "FOREIGN KEY (firstEventID) REFERENCES TM3_EVENTS (id), " +
-            "FOREIGN KEY (lastEventID) REFERENCES TM3_EVENTS (id) " +
-            ") ENGINE=InnoDB DEFAULT CHARSET=utf8"
+            "KEY (tmId, lastModified, tuId), " +
+            "KEY (contentId)" +
+            foreignKey("(tuId) REFERENCES " + getTuTableName(poolId) + " (id) ON DELETE CASCADE") +
+            foreignKey("(contentId) REFERENCES " + getContentTableName(poolId) + " (id)") +
+            foreignKey("(firstEventID) REFERENCES TM3_EVENTS (id)") +
+            foreignKey("(lastEventID) REFERENCES TM3_EVENTS (id)") +
+            ") ENGINE=InnoDB DEFAULT CHARSET=utf8" + partitionClause()
         );
     }
 
@@ -131,6 +233,7 @@ class SharedStorageTables {
     
     protected void destroyTuStorage() throws SQLException {
         SQLUtil.exec(conn, "drop table if exists " + getTuvTableName(poolId));
+        SQLUtil.exec(conn, "drop table if exists " + getContentTableName(poolId));
         SQLUtil.exec(conn, "drop table if exists " + getTuTableName(poolId));
     }
     
@@ -31,7 +31,7 @@ class SharedTuStorage<T extends TM3Data> extends TuStorage<T> {
     }
 
     @Override
-    public void addTuvs(TM3Tu<T> tu, List<TM3Tuv<T>> tuvs)
+    protected void insertTuvs(TM3Tu<T> tu, List<TM3Tuv<T>> tuvs)
             throws SQLException {
         if (tuvs.size() == 0) {
             return;
@@ -42,12 +42,19 @@ class SharedTuStorage<T extends TM3Data> extends TuStorage<T> {
         }
         BatchStatementBuilder sb = new BatchStatementBuilder("INSERT INTO ")
             .append(getStorage().getTuvTableName())
-            .append(" (id, tuId, tmId, localeId, content, fingerprint, firstEventId, lastEventId) ")
-            .append("VALUES (?, ?, ?, ?, ?, ?, ?, ?)");
-        for (TM3Tuv<T> tuv : tuvs) {
+            .append(" (id, tuId, tmId, localeId, content, contentBlob, contentId, fingerprint, firstEventId, lastEventId, lastModified) ")
+            .append("VALUES (?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?)");
+        List<Long> contentIds = storeSharedContent(tuvs);
+        for (int i = 0; i < tuvs.size(); i++) {
+            TM3Tuv<T> tuv = tuvs.get(i);
+            String content = tuv.getSerializedForm();
+            Long contentId = contentIds.get(i);
+            byte[] blob = contentId == null ? encodeContent(content) : null;
             sb.addBatch(tuv.getId(), tu.getId(), tmId, tuv.getLocale().getId(),
-                        tuv.getSerializedForm(), tuv.getFingerprint(),
-                        tuv.getFirstEvent().getId(), tuv.getLatestEvent().getId());
+                        contentId == null && blob == null ? content : "", 
+                        blob, contentId, tuv.getFingerprint(),
+                        tuv.getFirstEvent().getId(), tuv.getLatestEvent().getId(),
+                        tuv.getLatestEvent().getTimestamp());
         }
         SQLUtil.execBatch(conn, sb);
     }
@@ -112,6 +119,7 @@ class SharedTuStorage<T extends TM3Data> extends TuStorage<T> {
               .append(getStorage().getTuvTableName() + " AS targetTuv ")
               .append("WHERE ")
               .append("targetTuv.tuId = result.tuId AND ")
+              .append("targetTuv.tmId = ? AND ").addValue(tmId)
               .append("targetTuv.localeId IN")
               .append(SQLUtil.longGroup(targetLocaleIds));
         }
@@ -195,11 +203,14 @@ class SharedTuStorage<T extends TM3Data> extends TuStorage<T> {
                             boolean locking)
             throws SQLException {
         StatementBuilder sb = new StatementBuilder("SELECT ")
-          .append("tuId, id, localeId, fingerprint, content, firstEventId, lastEventId")
+          .append("tuId, id, localeId, fingerprint, content, contentBlob, ")
+          .append("firstEventId, lastEventId, ")
+          .append(getContentIdColumn())
           .append(" FROM ")
           .append(getStorage().getTuvTableName())
           .append(" WHERE tuId IN")
           .append(SQLUtil.longGroup(tuIds))
+          .append(" AND tmId = ? ").addValue(tmId)
           .append("ORDER BY tuId");
         if (locking) {
             sb.append(" FOR UPDATE");
@@ -213,17 +224,22 @@ class SharedTuStorage<T extends TM3Data> extends TuStorage<T> {
         // the locales until after we've read all of the data.
         List<TuvData<T>> rawTuvs = new ArrayList<TuvData<T>>();
         while (rs.next()) {
-            rawTuvs.add(new TuvData<T>(
+            TuvData<T> rawTuv = new TuvData<T>(
                 rs.getLong(1),
                 rs.getLong(2),
                 rs.getLong(3),
                 rs.getLong(4),
-                rs.getString(5),
-                rs.getLong(6),
-                rs.getLong(7)
-            ));
+                readContent(rs, 5),
+                rs.getLong(7),
+                rs.getLong(8)
+            );
+            rawTuv.contentId = rs.getLong(9);
+            rawTuvs.add(rawTuv);
         }
         ps.close();
+        resolveContent(rawTuvs);
+        
+        ContentCache cache = new ContentCache();
         
         Iterator<TuData<T>> tus = data.iterator();
         TuData<T> current = null;
@@ -233,7 +249,7 @@ class SharedTuStorage<T extends TM3Data> extends TuStorage<T> {
                 throw new IllegalStateException("Couldn't find tuId for " + rawTuv.tuId);
             }
             // "tuId, id, localeId, fingerprint, content";
-            TM3Tuv<T> tuv = createTuv(rawTuv);
+            TM3Tuv<T> tuv = createTuv(rawTuv, cache);
             tuv.setStorage(this);
             if (tuv.getLocale().getId() == current.srcLocaleId) {
                 current.srcTuv = tuv;
@@ -268,7 +284,7 @@ class SharedTuStorage<T extends TM3Data> extends TuStorage<T> {
             sb.append(e.getKey().getColumnName() + " = ?")
               .addValue(e.getValue());
         }
-        sb.append(" WHERE id = ?").addValue(tuId);
+        sb.append(" WHERE id = ? AND tmId = ?").addValues(tuId, tmId);
         SQLUtil.exec(getConnection(), sb);
     }
 
@@ -294,7 +310,7 @@ class SharedTuStorage<T extends TM3Data> extends TuStorage<T> {
     }
 
     @Override
-    public void saveTu(Connection conn, TM3Tu<T> tu)
+    protected void insertTu(Connection conn, TM3Tu<T> tu)
             throws SQLException {
         tu.setId(getStorage().getTuId(conn));
         Map<TM3Attribute, Object> inlineAttributes =
@@ -314,7 +330,7 @@ class SharedTuStorage<T extends TM3Data> extends TuStorage<T> {
         }
         sb.append(")");
         SQLUtil.exec(getConnection(), sb);
-        addTuvs(tu, tu.getAllTuv());
+        insertTuvs(tu, tu.getAllTuv());
         saveCustomAttributes(tu.getId(), customAttributes);
     }
 
@@ -326,11 +342,18 @@ class SharedTuStorage<T extends TM3Data> extends TuStorage<T> {
         }
         BatchStatementBuilder sb = new BatchStatementBuilder("UPDATE ")
             .append(getStorage().getTuvTableName())
-            .append(" SET content = ?, fingerprint = ?, lastEventId = ?")
-            .append(" WHERE id = ?");
-        for (TM3Tuv<T> tuv : tuvs) {
-            sb.addBatch(tuv.getSerializedForm(), tuv.getFingerprint(), 
-                        event.getId(), tuv.getId());
+            .append(" SET content = ?, contentBlob = ?, contentId = ?,")
+            .append(" fingerprint = ?, lastEventId = ?, lastModified = ?")
+            .append(" WHERE id = ? AND tmId = ?");
+        List<Long> contentIds = storeSharedContent(tuvs);
+        for (int i = 0; i < tuvs.size(); i++) {
+            TM3Tuv<T> tuv = tuvs.get(i);
+            String content = tuv.getSerializedForm();
+            Long contentId = contentIds.get(i);
+            byte[] blob = contentId == null ? encodeContent(content) : null;
+            sb.addBatch(contentId == null && blob == null ? content : "", 
+                        blob, contentId, tuv.getFingerprint(), event.getId(), 
+                        event.getTimestamp(), tuv.getId(), tmId);
         }
         SQLUtil.execBatch(getConnection(), sb);
     }
@@ -340,12 +363,10 @@ class SharedTuStorage<T extends TM3Data> extends TuStorage<T> {
             throws SQLException {
         StatementBuilder sb = new StatementBuilder();
         if (start != null && end != null) {
-            sb.append("SELECT COUNT(DISTINCT tuv.tuId) FROM ")
-              .append(getStorage().getTuvTableName()).append(" as tuv, ")
-              .append("TM3_EVENTS as event ")
-              .append("WHERE tuv.tmId = ? ").addValue(tmId)
-              .append("AND tuv.lastEventId = event.id ")
-              .append("AND event.time >= ? AND event.time <= ?")
+            sb.append("SELECT COUNT(DISTINCT tuId) FROM ")
+              .append(getStorage().getTuvTableName())
+              .append(" WHERE tmId = ?").addValue(tmId)
+              .append(" AND lastModified >= ? AND lastModified <= ?")
               .addValues(start, end);
         }
         else {
@@ -361,12 +382,10 @@ class SharedTuStorage<T extends TM3Data> extends TuStorage<T> {
             throws SQLException {
         StatementBuilder sb = new StatementBuilder();
         if (start != null && end != null) {
-            sb.append("SELECT COUNT(tuv.id) FROM ")
-              .append(getStorage().getTuvTableName()).append(" as tuv, ")
-              .append("TM3_EVENTS as event ")
-              .append("WHERE tuv.tmId = ? ").addValue(tmId)
-              .append("AND tuv.lastEventId = event.id ")
-              .append("AND event.time >= ? AND event.time <= ?")
+            sb.append("SELECT COUNT(id) FROM ")
+              .append(getStorage().getTuvTableName())
+              .append(" WHERE tmId = ?").addValue(tmId)
+              .append(" AND lastModified >= ? AND lastModified <= ?")
               .addValues(start, end);
         }
         else {
@@ -376,41 +395,17 @@ class SharedTuStorage<T extends TM3Data> extends TuStorage<T> {
         }
         return SQLUtil.execCountQuery(getConnection(), sb);
     }    
-    @Override
-    public void deleteTus(Date start, Date end) 
-            throws SQLException {
-        StatementBuilder sb = new StatementBuilder();
-        if (start != null && end != null) {
-            sb.append("DELETE tu.* from ")
-              .append(getStorage().getTuTableName()).append(" as tu, ")
-              .append(getStorage().getTuvTableName()).append(" as tuv, ")
-              .append("TM3_EVENTS as event ")
-              .append("WHERE tu.tmId = ? ").addValue(tmId)
-              .append("AND tu.id = tuv.tuId AND tuv.lastEventId = event.id ")
-              .append("AND event.time >= ? AND event.time <= ?")
-              .addValues(start, end);
-        }
-        else {
-            sb.append("DELETE FROM ")
-              .append(getStorage().getTuTableName())
-              .append(" WHERE tmId = ?").addValue(tmId);
-        }
-        SQLUtil.exec(getConnection(), sb);
-    }
-
     @Override
     public long getTuCountByLocale(TM3Locale locale,
             Date start, Date end) throws SQLException {
         StatementBuilder sb = new StatementBuilder();
         if (start != null && end != null) {
-            sb.append("SELECT COUNT(DISTINCT tuv.tuId) FROM ")
-              .append(getStorage().getTuvTableName()).append(" as tuv, ")
-              .append("TM3_EVENTS as event ")
-              .append("WHERE tuv.tmId = ? ").addValue(tmId)
-              .append("AND tuv.lastEventId = event.id ")
-              .append("AND event.time >= ? AND event.time <= ? ")
-              .addValues(start, end)
-              .append("AND tuv.localeId = ?").addValue(locale.getId());
+            sb.append("SELECT COUNT(DISTINCT tuId) FROM ")
+              .append(getStorage().getTuvTableName())
+              .append(" WHERE tmId = ? AND localeId = ?")
+              .addValues(tmId, locale.getId())
+              .append(" AND lastModified >= ? AND lastModified <= ?")
+              .addValues(start, end);
         }
         else {
             sb.append("SELECT COUNT(DISTINCT tuId) FROM ")
@@ -426,14 +421,12 @@ class SharedTuStorage<T extends TM3Data> extends TuStorage<T> {
             Date start, Date end) throws SQLException {
         StatementBuilder sb = new StatementBuilder();
         if (start != null && end != null) {
-            sb.append("SELECT COUNT(tuv.id) FROM ")
-              .append(getStorage().getTuvTableName()).append(" as tuv, ")
-              .append("TM3_EVENTS as event ")
-              .append("WHERE tuv.tmId = ? ").addValue(tmId)
-              .append("AND AND tuv.lastEventId = event.id ")
-              .append("AND event.time >= ? AND event.time <= ? ")
-              .addValues(start, end)
-              .append("AND localeId = ?").addValue(locale.getId());
+            sb.append("SELECT COUNT(id) FROM ")
+              .append(getStorage().getTuvTableName())
+              .append(" WHERE tmId = ? AND localeId = ?")
+              .addValues(tmId, locale.getId())
+              .append(" AND lastModified >= ? AND lastModified <= ?")
+              .addValues(start, end);
         }
         else {
             sb.append("SELECT COUNT(id) FROM ")
@@ -444,19 +437,6 @@ class SharedTuStorage<T extends TM3Data> extends TuStorage<T> {
         return SQLUtil.execCountQuery(getConnection(), sb);
     }
     
-    @Override
-    public void deleteTuvsByLocale(TM3Locale locale) throws SQLException {
-        StatementBuilder sb = new StatementBuilder()
-            .append("DELETE FROM ")
-            .append(getStorage().getTuvTableName())
-            .append(" WHERE tmId = ?").addValue(tmId)
-            .append(" AND localeId = ?").addValue(locale.getId())
-            .append(" AND (select srcLocaleId from ")
-            .append(getStorage().getTuTableName())
-            .append(" WHERE id = tuId) != localeId");
-        SQLUtil.exec(getConnection(), sb);
-    }
-    
     //
     // AttributeDataHandle
     //
@@ -469,14 +449,14 @@ class SharedTuStorage<T extends TM3Data> extends TuStorage<T> {
         StatementBuilder sb = new StatementBuilder();
         if (start != null && end != null) {
             sb.append("SELECT COUNT(DISTINCT tu.id) FROM ")
+              .append(getStorage().getTuvTableName()).append(" as tuv ")
+              .append("INNER JOIN ")
               .append(getStorage().getTuTableName()).append(" as tu ")
-              .append(getStorage().getTuvTableName()).append(" as tuv, ")
-              .append("TM3_EVENTS as event ");
-              getStorage().attributeJoinFilter(sb, "tu.id", customAttrs);
-              sb.append("WHERE tu.tmId = ? ").addValue(tmId)
-                .append("AND tu.id = tuv.tuId AND tuv.lastEventId = event.id ")
-                .append("AND event.time >= ? AND event.time <= ? ")
-                .addValues(start, end);
+              .append("ON tu.id = tuv.tuId");
+            getStorage().attributeJoinFilter(sb, "tu.id", customAttrs);
+            sb.append(" WHERE tuv.tmId = ?").addValue(tmId)
+              .append(" AND tuv.lastModified >= ? AND tuv.lastModified <= ?")
+              .addValues(start, end);
         }
         else {
             sb.append("SELECT COUNT(DISTINCT tu.id) FROM ")
@@ -500,13 +480,13 @@ class SharedTuStorage<T extends TM3Data> extends TuStorage<T> {
         StatementBuilder sb = new StatementBuilder();
         if (start != null && end != null) {
             sb.append("SELECT COUNT(DISTINCT tuv.id) FROM ")
-              .append(getStorage().getTuvTableName()).append(" as tuv, ")
-              .append(getStorage().getTuTableName()).append(" as tu, ")
-              .append("TM3_EVENTS as event ");
+              .append(getStorage().getTuvTableName()).append(" as tuv ")
+              .append("INNER JOIN ")
+              .append(getStorage().getTuTableName()).append(" as tu ")
+              .append("ON tu.id = tuv.tuId");
             getStorage().attributeJoinFilter(sb, "tuv.tuId", customAttrs);
-            sb.append("WHERE tuv.tmId = ? ").addValue(tmId)
-              .append("AND tuv.lastEventId = event.id ")
-              .append("AND event.time >= ? AND event.time <= ? ")
+            sb.append(" WHERE tuv.tmId = ?").addValue(tmId)
+              .append(" AND tuv.lastModified >= ? AND tuv.lastModified <= ?")
               .addValues(start, end);
         }
         else {
@@ -525,17 +505,16 @@ class SharedTuStorage<T extends TM3Data> extends TuStorage<T> {
     }
 
     @Override
-    public List<TM3Tu<T>> getTuPage(long startId, int count, Date start, Date end) 
+    public List<Long> getTuIdPage(long startId, int count, Date start, Date end) 
                             throws SQLException {
         StatementBuilder sb = new StatementBuilder();
         if (start != null && end != null) {
             sb.append("SELECT DISTINCT tuId FROM ")
-              .append(getStorage().getTuvTableName()).append(" as tuv, ")
-              .append("TM3_EVENTS as event ")
-              .append("WHERE tuv.tmId = ? ").addValue(tmId)
-              .append("AND tuv.lastEventId = event.id AND event.time >= ? AND event.time <= ? ")
+              .append(getStorage().getTuvTableName())
+              .append(" WHERE tmId = ?").addValue(tmId)
+              .append(" AND lastModified >= ? AND lastModified <= ?")
               .addValues(start, end)
-              .append("AND tuId > ? ORDER BY tuId ASC LIMIT ?")
+              .append(" AND tuId > ? ORDER BY tuId ASC LIMIT ?")
               .addValues(startId, count);
         }
         else {
@@ -544,23 +523,21 @@ class SharedTuStorage<T extends TM3Data> extends TuStorage<T> {
                 .append(" WHERE tmId = ? AND id > ? ORDER BY id ASC LIMIT ?")
                 .addValues(tmId, startId, count);
         }
-        return getTu(SQLUtil.execIdsQuery(getConnection(), sb), false);
+        return SQLUtil.execIdsQuery(getConnection(), sb);
     }
     
     @Override
-    public List<TM3Tu<T>> getTuPageByLocale(long startId, int count, 
+    public List<Long> getTuIdPageByLocale(long startId, int count, 
             TM3Locale locale, Date start, Date end) throws SQLException {
         StatementBuilder sb = new StatementBuilder();
         if (start != null && end != null) {
             sb.append("SELECT DISTINCT tuId FROM ")
-              .append(getStorage().getTuvTableName()).append(" as tuv, ")
-              .append("TM3_EVENTS as event ")
-              .append("WHERE tuv.tmId = ? ").addValue(tmId)
-              .append("AND tuv.lastEventId = event.id ")
-              .append("AND tuv.localeId = ?").addValue(locale.getId())
-              .append("AND event.time >= ? AND event.time <= ? ")
+              .append(getStorage().getTuvTableName())
+              .append(" WHERE tmId = ? AND localeId = ?")
+              .addValues(tmId, locale.getId())
+              .append(" AND lastModified >= ? AND lastModified <= ?")
               .addValues(start, end)
-              .append("AND tuId > ? ORDER BY tuId ASC LIMIT ?")
+              .append(" AND tuId > ? ORDER BY tuId ASC LIMIT ?")
               .addValues(startId, count);
         }
         else {
@@ -570,9 +547,36 @@ class SharedTuStorage<T extends TM3Data> extends TuStorage<T> {
               .append("AND localeId = ? AND tuId > ? ORDER BY tuId ASC LIMIT ?")
               .addValues(locale.getId(), startId, count);
         }
-        return getTu(SQLUtil.execIdsQuery(getConnection(), sb), false);
+        return SQLUtil.execIdsQuery(getConnection(), sb);
     }
     
+    @Override
+    protected Long getSharedTmId() {
+        return tmId;
+    }
+
+    @Override
+    protected List<Long> getTuvIdPage(long startId, int count)
+                throws SQLException {
+        return SQLUtil.execIdsQuery(getConnection(), new StatementBuilder()
+            .append("SELECT id FROM ")
+            .append(getStorage().getTuvTableName())
+            .append(" WHERE tmId = ? AND id > ?")
+            .append(" ORDER BY id ASC LIMIT ?")
+            .addValues(tmId, startId, count));
+    }
+
+    @Override
+    protected List<Long> getTuvIdPageMissingLastModified(long startId,
+            int count) throws SQLException {
+        return SQLUtil.execIdsQuery(getConnection(), new StatementBuilder()
+            .append("SELECT id FROM ")
+            .append(getStorage().getTuvTableName())
+            .append(" WHERE tmId = ? AND lastModified IS NULL AND id > ?")
+            .append(" ORDER BY id ASC LIMIT ?")
+            .addValues(tmId, startId, count));
+    }
+
     @Override
     public List<TM3Tu<T>> getTuPageByAttributes(long startId, int count, 
             Map<TM3Attribute, Object> inlineAttrs,
@@ -582,15 +586,15 @@ class SharedTuStorage<T extends TM3Data> extends TuStorage<T> {
         StatementBuilder sb = new StatementBuilder();
         if (start != null && end != null) {
             sb.append("SELECT DISTINCT tuv.tuId FROM ")
-              .append(getStorage().getTuvTableName()).append(" as tuv, ")
-              .append(getStorage().getTuTableName()).append(" as tu, ")
-              .append("TM3_EVENTS as event ");
+              .append(getStorage().getTuvTableName()).append(" as tuv ")
+              .append("INNER JOIN ")
+              .append(getStorage().getTuTableName()).append(" as tu ")
+              .append("ON tu.id = tuv.tuId");
             getStorage().attributeJoinFilter(sb, "tuv.tuId", customAttrs);
-            sb.append(" WHERE tuv.tmId = ? ").addValue(tmId)
-              .append("AND tuv.lastEventId = event.id ")
-              .append("AND event.time >= ? AND event.time <= ? ")
+            sb.append(" WHERE tuv.tmId = ?").addValue(tmId)
+              .append(" AND tuv.lastModified >= ? AND tuv.lastModified <= ?")
               .addValues(start, end)
-              .append("AND tuv.tuId > ?")
+              .append(" AND tuv.tuId > ?")
               .addValues(startId);
         }
         else {
@@ -614,6 +618,15 @@ class SharedTuStorage<T extends TM3Data> extends TuStorage<T> {
         return getTu(SQLUtil.execIdsQuery(getConnection(), sb), false);
     }
 
+    @Override
+    Map<Long, long[]> getLocaleCounts() throws SQLException {
+        return TmStatistics.readCounts(getConnection(), new StatementBuilder()
+            .append("SELECT localeId, COUNT(DISTINCT tuId), COUNT(id) FROM ")
+            .append(getStorage().getTuvTableName())
+            .append(" WHERE tmId = ?").addValue(tmId)
+            .append(" GROUP BY localeId"));
+    }
+    
     @Override
     public Set<TM3Locale> getTuvLocales() throws SQLException {
         return loadLocales(SQLUtil.execIdsQuery(getConnection(), 
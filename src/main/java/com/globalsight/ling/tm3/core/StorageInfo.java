@@ -1,14 +1,17 @@
 package com.globalsight.ling.tm3.core;
 
+import java.io.File;
 import java.sql.Connection;
 import java.sql.SQLException;
 import java.util.Set;
 import java.util.HashSet;
+import java.util.List;
 import java.util.Map;
 
 import org.hibernate.Session;
 
 import com.globalsight.ling.tm3.core.persistence.DistributedId;
+import com.globalsight.ling.tm3.core.persistence.SQLUtil;
 import com.globalsight.ling.tm3.core.persistence.StatementBuilder;
 
 /**
@@ -30,10 +33,23 @@ abstract class StorageInfo<T extends TM3Data> {
 
     static final int MAX_ATTR_VALUE_LEN = 256;
     
+    // Number of rows handled at a time by upgrade()
+    static final int UPGRADE_CHUNK_SIZE = 1000;
+    
     static final String TU_TABLE_NAME = "TM3_TU";
     static final String TUV_TABLE_NAME = "TM3_TUV";
     static final String INDEX_TABLE_NAME = "TM3_INDEX";
     static final String ATTR_VAL_TABLE_NAME = "TM3_ATTR_VAL";
+    static final String CONTENT_TABLE_NAME = "TM3_CONTENT";
+    
+    // Name of the fuzzy index key used for lookups.  Fuzzy index tables 
+    // created before it existed have an unnamed key on (fingerprint, ...).
+    static final String FUZZY_LOOKUP_INDEX = "lookup";
+    
+    // Upper bounds of the tuvCount ranges that fuzzy index tables are 
+    // partitioned into.  A lookup only accepts candidates within a factor
+    // of 3 of the key's fingerprint count, so it touches 3 or 4 of them.
+    static final int[] FUZZY_LENGTH_BUCKETS = { 4, 8, 16, 32, 64, 128, 256 };
 
     protected StorageInfo(BaseTm<T> tm, TM3TmType type) {
         this.id = tm.getId();
@@ -83,6 +99,22 @@ abstract class StorageInfo<T extends TM3Data> {
         return tm.getAttrValTableName();
     }
     
+    /**
+     * Get the name of the table holding content shared between TUVs, 
+     * or null if this storage doesn't have one.
+     */
+    String getContentTableName() {
+        return null;
+    }
+    
+    /**
+     * @return true if new TUV content should be stored in the shared 
+     *         content table
+     */
+    boolean isContentDeduplicated() {
+        return false;
+    }
+    
     public TM3TmType getType() {
         return type;
     }
@@ -118,9 +150,214 @@ abstract class StorageInfo<T extends TM3Data> {
         
         destroyAttrTable(conn);
         destroyFuzzyIndex(conn);
+        destroyFuzzyIndexShards();
         destroyTuStorage(conn);
     }
 
+    /**
+     * Bring the tablespace for this TM up to date with the current
+     * schema.  Tables created by older versions of TM3 lack the 
+     * lastModified column on the TUV table; this adds it, and then
+     * fills it in for this TM's TUVs from their latest events.  The
+     * contentBlob column, which holds compressed content, is added if
+     * it is missing, as is the shared content table for storage that
+     * has one.  Dedicated TUV tables get the covering index used by 
+     * exact matching, and fuzzy index tables, including those on any
+     * fuzzy index shards, get the tokenCount column and their current 
+     * lookup key, and are partitioned by length.  TMs with no rows in 
+     * TM3_STATS have their statistics computed, and fingerprint 
+     * frequencies are computed for TMs that have none.  This is safe to
+     * run more than once, and to run against a TM that is already 
+     * current.
+     * <p>
+     * <b>This is non-transactional if the tables need to be altered.</b>
+     * @return true if anything was changed
+     * @throws SQLException
+     */
+    boolean upgrade() throws SQLException {
+        Connection conn = session.connection();
+        boolean changed = false;
+        if (!SQLUtil.columnExists(conn, getTuvTableName(), "lastModified")) {
+            addLastModifiedColumn(conn);
+            changed = true;
+        }
+        if (!SQLUtil.columnExists(conn, getTuvTableName(), "contentBlob")) {
+            SQLUtil.exec(conn, "ALTER TABLE " + getTuvTableName() + 
+                         " ADD COLUMN contentBlob mediumblob AFTER content");
+            changed = true;
+        }
+        if (addContentTable(conn)) {
+            changed = true;
+        }
+        if (addExactMatchIndex(conn)) {
+            changed = true;
+        }
+        if (upgradeFuzzyIndex(conn)) {
+            changed = true;
+        }
+        FuzzyIndexShards shards = getFuzzyIndexShards();
+        if (shards != null && shards.upgradeTables(this)) {
+            changed = true;
+        }
+        if (partitionFuzzyIndex(conn)) {
+            changed = true;
+        }
+        if (getTuStorage().backfillLastModified(UPGRADE_CHUNK_SIZE) > 0) {
+            changed = true;
+        }
+        TmStatistics<T> stats = getStatistics();
+        if (!stats.isAvailable()) {
+            stats.recompute();
+            changed = true;
+        }
+        FingerprintFrequencies<T> frequencies = 
+            getFuzzyIndex().getFrequencies();
+        if (!frequencies.isAvailable()) {
+            if (shards != null) {
+                // The TM's own index table is empty
+                new ShardedFuzzyIndex<T>(this, getFingerprintIndex(), shards)
+                    .recomputeFrequencies();
+            }
+            else {
+                frequencies.recompute();
+            }
+            changed = true;
+        }
+        return changed;
+    }
+    
+    /**
+     * Add the shared content table to storage created before it 
+     * existed, if this type of storage has one.  The default does 
+     * nothing.
+     * @return true if anything was changed
+     */
+    protected boolean addContentTable(Connection conn) throws SQLException {
+        return false;
+    }
+    
+    /**
+     * Replace the fingerprint index on a TUV table created before exact
+     * match lookups had a covering index, if this type of storage uses 
+     * one.  The default does nothing.
+     * @return true if anything was changed
+     */
+    protected boolean addExactMatchIndex(Connection conn) throws SQLException {
+        return false;
+    }
+    
+    /**
+     * Get the columns of the fuzzy index lookup key.  The lookup query
+     * fixes every column before fingerprint, so that each fingerprint 
+     * is a single range scan, and the key covers everything the query
+     * reads.
+     */
+    protected String getFuzzyLookupColumns() {
+        return "localeId, isSource, fingerprint, tuvCount, tuvId, tuId, " +
+            "tokenCount";
+    }
+    
+    /**
+     * Define the keys of a new fuzzy index table.
+     */
+    protected String getFuzzyIndexKeys() {
+        return "UNIQUE KEY " + FUZZY_LOOKUP_INDEX + " (" + 
+            getFuzzyLookupColumns() + "), KEY (tuvId), KEY (tuId)";
+    }
+    
+    /**
+     * Add the tokenCount column to a fuzzy index table created before it
+     * existed, and replace a lookup key that doesn't cover it.  Existing
+     * entries get a count of 0, which lookups take as unknown until the
+     * TM is reindexed.  This also replaces the lookup key of a table 
+     * created with the older (fingerprint, tuvCount, ...) layout, whose
+     * range on tuvCount kept the locale and isSource columns from 
+     * narrowing the scan.
+     * @return true if anything was changed
+     */
+    protected boolean upgradeFuzzyIndex(Connection conn) throws SQLException {
+        String table = getFuzzyIndexTableName();
+        boolean hasTokenCount = 
+            SQLUtil.columnExists(conn, table, "tokenCount");
+        boolean hasLookupKey = 
+            SQLUtil.indexExists(conn, table, FUZZY_LOOKUP_INDEX);
+        if (hasTokenCount && hasLookupKey) {
+            return false;
+        }
+        StringBuilder sb = new StringBuilder("ALTER TABLE ").append(table);
+        if (!hasTokenCount) {
+            sb.append(" ADD COLUMN tokenCount smallint NOT NULL DEFAULT 0")
+              .append(" AFTER tuvCount,");
+        }
+        if (hasLookupKey) {
+            sb.append(" DROP KEY ").append(FUZZY_LOOKUP_INDEX).append(",");
+        }
+        sb.append(" ADD UNIQUE KEY ").append(FUZZY_LOOKUP_INDEX)
+            .append(" (").append(getFuzzyLookupColumns()).append(")");
+        if (SQLUtil.indexExists(conn, table, "fingerprint")) {
+            sb.append(", DROP KEY fingerprint");
+        }
+        // Deletes by tuv and tu need these; foreign keys usually created
+        // them already.
+        for (String column : new String[] { "tuvId", "tuId" }) {
+            if (!SQLUtil.indexExists(conn, table, column)) {
+                sb.append(", ADD KEY (").append(column).append(")");
+            }
+        }
+        sb.append(", ALGORITHM=INPLACE, LOCK=NONE");
+        SQLUtil.exec(conn, sb.toString());
+        return true;
+    }
+    
+    /**
+     * Get the partitioning clause for a new fuzzy index table.  The table
+     * is split by tuvCount (the number of fingerprints in the TUV), so 
+     * that the length bounds of a lookup prune it to the partitions that 
+     * can hold candidates.  MySQL doesn't allow foreign keys on 
+     * partitioned tables; the storage layer deletes index entries 
+     * explicitly whenever it deletes TUs or TUVs.
+     */
+    protected String getFuzzyIndexPartitioning() {
+        StringBuilder sb = new StringBuilder(" PARTITION BY RANGE (tuvCount) (");
+        for (int i = 0; i < FUZZY_LENGTH_BUCKETS.length; i++) {
+            sb.append("PARTITION p").append(i)
+              .append(" VALUES LESS THAN (")
+              .append(FUZZY_LENGTH_BUCKETS[i]).append("), ");
+        }
+        sb.append("PARTITION p").append(FUZZY_LENGTH_BUCKETS.length)
+          .append(" VALUES LESS THAN MAXVALUE)");
+        return sb.toString();
+    }
+    
+    /**
+     * Partition a fuzzy index table created before they were partitioned
+     * by length, dropping its foreign keys first.  This copies the table.
+     * @return true if anything was changed
+     */
+    protected boolean partitionFuzzyIndex(Connection conn) throws SQLException {
+        String table = getFuzzyIndexTableName();
+        if (SQLUtil.getPartitionCount(conn, table) > 0) {
+            return false;
+        }
+        List<String> foreignKeys = SQLUtil.getForeignKeys(conn, table);
+        if (foreignKeys.size() > 0) {
+            StringBuilder sb = new StringBuilder("ALTER TABLE ").append(table);
+            for (int i = 0; i < foreignKeys.size(); i++) {
+                sb.append(i == 0 ? " " : ", ")
+                  .append("DROP FOREIGN KEY ").append(foreignKeys.get(i));
+            }
+            SQLUtil.exec(conn, sb.toString());
+        }
+        SQLUtil.exec(conn, "ALTER TABLE " + table + getFuzzyIndexPartitioning());
+        return true;
+    }
+    
+    /**
+     * Add the lastModified column and its index to an existing TUV table.
+     */
+    protected abstract void addLastModifiedColumn(Connection conn)
+                        throws SQLException;
+    
     /**
      * Get the current connection.
      * @return
@@ -181,9 +418,79 @@ abstract class StorageInfo<T extends TM3Data> {
     }
 
     /**
-     * Get the interface to this TM's fuzzy matching index. 
+     * Whether fuzzy lookups fetch candidate content in the same statement
+     * that ranks the candidates, rather than ranking them first and then
+     * loading the content of the ones that can still reach the threshold.
+     * This is the manager's setting; see 
+     * {@link TM3Manager#setFuzzyFetchFused}.
      */
-    abstract FuzzyIndex<T> getFuzzyIndex();
+    boolean isFuzzyFetchFused() {
+        TM3Manager manager = getManager();
+        return manager == null || manager.isFuzzyFetchFused();
+    }
+    
+    /**
+     * Get the interface to this TM's fuzzy matching index.  This is the
+     * fingerprint index, split across shards by a {@link ShardedFuzzyIndex}
+     * if the manager has fuzzy index shards, or else served from files by
+     * a {@link FileFuzzyIndex} if it has a fuzzy index directory, and 
+     * wrapped in a {@link MinHashIndex} if the TM has one.
+     */
+    FuzzyIndex<T> getFuzzyIndex() {
+        BaseTm<T> tm = getTm();
+        FuzzyIndex<T> index = getFingerprintIndex();
+        TM3Manager manager = getManager();
+        FuzzyIndexShards shards = getFuzzyIndexShards();
+        if (shards != null) {
+            index = new ShardedFuzzyIndex<T>(this, index, shards);
+        }
+        else if (manager != null && 
+                 manager.getFuzzyIndexDirectory() != null) {
+            index = new FileFuzzyIndex<T>(this, index, new File(
+                    manager.getFuzzyIndexDirectory(), String.valueOf(id)));
+        }
+        if (tm.getMinHashBands() > 0) {
+            return new MinHashIndex<T>(this, index,
+                    tm.getMinHashBands(), tm.getMinHashRows(), 
+                    tm.isMinHashIndexReady() && tm.isMinHashLookup());
+        }
+        return index;
+    }
+    
+    /**
+     * Get the shards that this TM's fuzzy index is split across.
+     * @return the shards, or null if the index isn't sharded
+     */
+    FuzzyIndexShards getFuzzyIndexShards() {
+        TM3Manager manager = getManager();
+        if (manager == null || manager.getFuzzyIndexShards() == null ||
+                manager.getFuzzyIndexShards().isEmpty()) {
+            return null;
+        }
+        return FuzzyIndexShards.get(manager.getFuzzyIndexShards());
+    }
+    
+    /**
+     * Drop this TM's fuzzy index tables from the shards, if it has any.
+     */
+    protected void destroyFuzzyIndexShards() throws SQLException {
+        FuzzyIndexShards shards = getFuzzyIndexShards();
+        if (shards != null) {
+            shards.dropTables(this);
+        }
+    }
+    
+    /**
+     * Get the interface to this TM's fingerprint index. 
+     */
+    abstract FuzzyIndex<T> getFingerprintIndex();
+    
+    /**
+     * Get the interface to this TM's statistics.
+     */
+    TmStatistics<T> getStatistics() {
+        return new TmStatistics<T>(this);
+    }
     
     /**
      * Get the interface to this TM's TU storage.
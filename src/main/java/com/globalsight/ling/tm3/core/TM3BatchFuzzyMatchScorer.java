@@ -0,0 +1,34 @@
+package com.globalsight.ling.tm3.core;
+
+import java.util.List;
+
+/**
+ * A {@link TM3FuzzyMatchScorer} that can do the work that depends only on
+ * the match key once per lookup, rather than once per candidate, and can
+ * score candidates in batches.  TM3 uses this interface in place of 
+ * {@link #score(TM3Data, TM3Data, TM3Locale)} whenever the scorer 
+ * implements it, so the two must give the same scores.
+ *
+ * @param <K> the scorer's compiled form of a match key
+ */
+public interface TM3BatchFuzzyMatchScorer<T extends TM3Data, K> 
+        extends TM3FuzzyMatchScorer<T> {
+
+    /**
+     * Compile a match key for scoring.  The compiled key is used for 
+     * every batch of candidates in one lookup, from one thread.
+     *
+     * @param matchKey the match key used to find the candidates
+     * @param locale locale of both the match key and the candidates
+     */
+    public K prepare(T matchKey, TM3Locale locale);
+
+    /**
+     * Score a batch of fuzzy match candidates against a compiled key.
+     *
+     * @param compiledKey key returned by {@link #prepare(TM3Data, TM3Locale)}
+     * @param candidates candidate matches
+     * @return scores between 0-1.0, in the order of the candidates
+     */
+    public float[] score(K compiledKey, List<T> candidates);
+}
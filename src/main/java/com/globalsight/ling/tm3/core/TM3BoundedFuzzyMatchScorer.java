@@ -0,0 +1,25 @@
+package com.globalsight.ling.tm3.core;
+
+/**
+ * A {@link TM3FuzzyMatchScorer} whose scores are bounded by the 
+ * fingerprints that a candidate shares with the match key.  Fuzzy 
+ * lookups with such a scorer skip candidates that share too few 
+ * fingerprints to reach the threshold before loading their content,
+ * leave very common fingerprints out of the lookup when that can't lose
+ * a match, and stop fetching candidates once none of the remaining ones
+ * could make it into the results.  With other scorers, every candidate
+ * that the index finds is loaded and scored.
+ * <p>
+ * This interface adds no methods; by implementing it, a scorer promises
+ * that no candidate scores more than it would under an edit distance 
+ * over the tokens that TM3 fingerprints (those of 
+ * {@link TM3Data#tokenize()}, or of {@link TM3TokenizedData#getTokens()}),
+ * in which inserting, deleting or substituting a token, or swapping two
+ * adjacent tokens, costs one edit: that is, a candidate e edits from the
+ * key, with n and m tokens, scores no more than (max(n, m) - e) / 
+ * max(n, m).  An {@link EditDistanceScorer} meets this when its scoring
+ * objects are those tokens and they either match or don't.
+ */
+public interface TM3BoundedFuzzyMatchScorer<T extends TM3Data> 
+        extends TM3FuzzyMatchScorer<T> {
+}
@@ -0,0 +1,58 @@
+package com.globalsight.ling.tm3.core;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * The functions a TM can use to fingerprint tokens for its fuzzy index.
+ * The function is recorded with the TM, since fingerprints made by
+ * different functions don't match; it is changed by reindexing the TM
+ * with {@link TM3ReindexJob#setFingerprintFunction(TM3FingerprintFunction)}.
+ * <p>
+ * TM3 only fingerprints tokens itself for data that implements
+ * {@link TM3TokenizedData}.  Other data is indexed by the fingerprints
+ * from its own {@link TM3Data#tokenize()}, whatever the TM's function.
+ */
+public enum TM3FingerprintFunction {
+
+    /**
+     * The low 8 bytes of the MD5 hash of the token's UTF-8 bytes, as
+     * computed by {@link Fingerprint#fromString(String)}.  With this
+     * function, TM3 uses the fingerprints from tokenize().
+     */
+    MD5 {
+        @Override
+        public long fingerprint(String token) {
+            return Fingerprint.fromString(token);
+        }
+    },
+
+    /**
+     * A fast non-cryptographic 64-bit hash of the token's chars; see
+     * {@link Fingerprint#murmur(CharSequence)}.
+     */
+    MURMUR {
+        @Override
+        public long fingerprint(String token) {
+            return Fingerprint.murmur(token);
+        }
+    };
+
+    public abstract long fingerprint(String token);
+
+    /**
+     * Return the fingerprints of a segment's tokens, as this function
+     * makes them.  MD5 fingerprints are what {@link TM3Data#tokenize()}
+     * returns, as are those of data that isn't a {@link TM3TokenizedData}.
+     */
+    public Iterable<Long> fingerprintTokens(TM3Data data) {
+        if (this == MD5 || !(data instanceof TM3TokenizedData)) {
+            return data.tokenize();
+        }
+        List<Long> fingerprints = new ArrayList<Long>();
+        for (String token : ((TM3TokenizedData) data).getTokens()) {
+            fingerprints.add(fingerprint(token));
+        }
+        return fingerprints;
+    }
+}
@@ -1,7 +1,11 @@
 package com.globalsight.ling.tm3.core;
 
 /**
- * Interface for pluggable fuzzy match scoring.
+ * Interface for pluggable fuzzy match scoring.  Scorers that can share 
+ * work between the candidates of one lookup should implement 
+ * {@link TM3BatchFuzzyMatchScorer}.  Scorers whose scores are bounded 
+ * by edit distance over the fingerprinted tokens can let lookups skip
+ * candidates early by implementing {@link TM3BoundedFuzzyMatchScorer}.
  */
 public interface TM3FuzzyMatchScorer<T extends TM3Data> {
     /**
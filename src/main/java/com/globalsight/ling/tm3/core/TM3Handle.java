@@ -32,8 +32,28 @@ public interface TM3Handle<T extends TM3Data> extends Iterable<TM3Tu<T>> {
     public Iterator<TM3Tu<T>> iterator() throws TM3Exception;
     
     /**
-     * Purge all TUs identified by this handle from its 
+     * Purge all TUs identified by this handle from its
      * associated translation memory.
      */
-    public void purge() throws TM3Exception; 
+    public void purge() throws TM3Exception;
+
+    /**
+     * Purge all TUs identified by this handle, working through them
+     * in order of TU id, at most <tt>chunkSize</tt> TUs at a time.
+     * The fuzzy index rows, attributes and TUVs belonging to each chunk
+     * are deleted explicitly along with it, so no single statement
+     * touches more than one chunk's worth of data.
+     * <p>
+     * If <tt>commitChunks</tt> is true, the current transaction is
+     * committed after every chunk and a new one begun in its place.
+     * This keeps locks and undo bounded by the chunk size, but means
+     * the purge can not be rolled back as a whole; if it fails partway,
+     * calling it again will pick up with the TUs that remain.
+     *
+     * @param chunkSize maximum number of TUs to delete in each chunk
+     * @param commitChunks whether to commit between chunks
+     * @param listener notified after each chunk, or null
+     */
+    public void purge(int chunkSize, boolean commitChunks,
+                      TM3ProgressListener listener) throws TM3Exception;
 }
@@ -0,0 +1,279 @@
+package com.globalsight.ling.tm3.core;
+
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.apache.log4j.Logger;
+import org.hibernate.HibernateException;
+import org.hibernate.Session;
+import org.hibernate.SessionFactory;
+import org.hibernate.Transaction;
+
+import com.globalsight.ling.tm3.core.persistence.SQLUtil;
+import com.globalsight.ling.tm3.core.persistence.StatementBuilder;
+
+/**
+ * Background job that removes all target TUVs in a locale from a TM,
+ * as {@link TM3Tm#removeDataByLocale(TM3Locale)} does, but without
+ * holding locks on the TUV tables for the length of the whole removal.
+ * <p>
+ * The job works through the TM in small batches of TUs, each in its
+ * own transaction, and can be throttled to a maximum number of TUVs
+ * per second.  Fuzzy index entries for each batch are removed along
+ * with its TUVs.  Progress is recorded in the TM3_LOCALE_REMOVAL table
+ * after every batch, so a job that is stopped (or dies) can be resumed
+ * by simply running a new job for the same TM and locale.
+ * <p>
+ * From the time the job starts until it finishes, leverage against the
+ * TM ignores the locale: it is excluded from match locales, target TUVs
+ * in it are not matched, and they are stripped from the TUs that are
+ * returned.  The locale's source TUVs are not affected.  The job flags
+ * the TM until its removals are finished, and lookups only check for
+ * locales being removed from a flagged TM.  A job in another process
+ * is only noticed by sessions that load the TM after it starts.
+ * <p>
+ * The job opens its own sessions, so it is safe to run in its own
+ * thread while the TM is being used elsewhere.
+ */
+public class TM3LocaleRemovalJob<T extends TM3Data> implements Runnable {
+    private static Logger LOGGER = Logger.getLogger(TM3LocaleRemovalJob.class);
+
+    // TMs that jobs in this process have flagged, as a set
+    private static final Map<Long, Boolean> flagged =
+        new ConcurrentHashMap<Long, Boolean>();
+
+    private SessionFactory sessionFactory;
+    private TM3Manager manager;
+    private TM3DataFactory<T> factory;
+    private long tmId;
+    private TM3Locale locale;
+
+    private int batchSize = 100;
+    private int rowsPerSecond = 0;
+    private TM3ProgressListener listener;
+
+    private volatile boolean stopped = false;
+    private volatile boolean done = false;
+
+    public TM3LocaleRemovalJob(SessionFactory sessionFactory,
+            TM3Manager manager, TM3DataFactory<T> factory, long tmId,
+            TM3Locale locale) {
+        this.sessionFactory = sessionFactory;
+        this.manager = manager;
+        this.factory = factory;
+        this.tmId = tmId;
+        this.locale = locale;
+    }
+
+    /**
+     * Set the number of TUs examined in each batch (default 100).
+     */
+    public void setBatchSize(int batchSize) {
+        if (batchSize <= 0) {
+            throw new IllegalArgumentException("Invalid batch size: " +
+                                               batchSize);
+        }
+        this.batchSize = batchSize;
+    }
+
+    /**
+     * Limit the rate at which TUVs are removed.
+     * @param rowsPerSecond maximum TUVs to remove per second, or 0
+     *        (the default) for no limit
+     */
+    public void setRowsPerSecond(int rowsPerSecond) {
+        if (rowsPerSecond < 0) {
+            throw new IllegalArgumentException("Invalid rate: " +
+                                               rowsPerSecond);
+        }
+        this.rowsPerSecond = rowsPerSecond;
+    }
+
+    /**
+     * Set a listener to be notified after each batch with the number of
+     * TUVs removed so far by this job.  The total is not known in
+     * advance, and is always reported as -1.
+     */
+    public void setProgressListener(TM3ProgressListener listener) {
+        this.listener = listener;
+    }
+
+    /**
+     * Ask the job to stop after the current batch.  The removal can
+     * be resumed later by running a new job for the same TM and locale.
+     */
+    public void stop() {
+        stopped = true;
+    }
+
+    /**
+     * @return true if the job has run to completion
+     */
+    public boolean isDone() {
+        return done;
+    }
+
+    @Override
+    public void run() throws TM3Exception {
+        long removed = 0;
+        long lastTuId = register();
+        while (!stopped) {
+            long start = System.currentTimeMillis();
+            int count = 0;
+            Session session = sessionFactory.openSession();
+            Transaction tx = null;
+            try {
+                tx = session.beginTransaction();
+                BaseTm<T> tm = (BaseTm<T>) manager.getTm(session, factory, tmId);
+                if (tm == null) {
+                    // The TM was removed out from under us
+                    tx.commit();
+                    flagged.remove(tmId);
+                    done = true;
+                    return;
+                }
+                tm.lockForWrite();
+                List<Long> tuIds = tm.getStorageInfo().getTuStorage()
+                    .getTuIdPageByLocale(lastTuId, batchSize, locale,
+                                         null, null);
+                if (tuIds.size() == 0) {
+                    SQLUtil.exec(session.connection(), new StatementBuilder()
+                        .append("DELETE FROM TM3_LOCALE_REMOVAL ")
+                        .append("WHERE tmId = ? AND localeId = ?")
+                        .addValues(tmId, locale.getId()));
+                    // Another job may still be removing a different locale
+                    boolean finished = getLocaleIdsBeingRemoved(
+                            session.connection(), tmId).isEmpty();
+                    if (finished) {
+                        SQLUtil.exec(session.connection(), 
+                            new StatementBuilder()
+                            .append("UPDATE TM3_TM SET removingLocales = 'N' ")
+                            .append("WHERE id = ?").addValue(tmId));
+                    }
+                    tx.commit();
+                    if (finished) {
+                        flagged.remove(tmId);
+                    }
+                    done = true;
+                    LOGGER.info("Removed " + removed + " TUVs in locale " +
+                                locale + " from TM " + tmId);
+                    return;
+                }
+                count = tm.removeLocaleData(locale, tuIds);
+                lastTuId = tuIds.get(tuIds.size() - 1);
+                SQLUtil.exec(session.connection(), new StatementBuilder()
+                    .append("UPDATE TM3_LOCALE_REMOVAL SET lastTuId = ? ")
+                    .addValue(lastTuId)
+                    .append("WHERE tmId = ? AND localeId = ?")
+                    .addValues(tmId, locale.getId()));
+                tx.commit();
+            }
+            catch (SQLException e) {
+                rollback(tx);
+                throw new TM3Exception(e);
+            }
+            catch (HibernateException e) {
+                rollback(tx);
+                throw new TM3Exception(e);
+            }
+            finally {
+                session.close();
+            }
+            removed += count;
+            if (listener != null) {
+                listener.progress(removed, -1);
+            }
+            throttle(count, System.currentTimeMillis() - start);
+        }
+    }
+
+    /**
+     * Record that the locale is being removed (if it isn't already) and
+     * return the id of the last TU that was finished.
+     */
+    private long register() throws TM3Exception {
+        Session session = sessionFactory.openSession();
+        Transaction tx = null;
+        try {
+            tx = session.beginTransaction();
+            Connection conn = session.connection();
+            SQLUtil.exec(conn, new StatementBuilder()
+                .append("INSERT IGNORE INTO TM3_LOCALE_REMOVAL ")
+                .append("(tmId, localeId, lastTuId) VALUES (?, ?, 0)")
+                .addValues(tmId, locale.getId()));
+            SQLUtil.exec(conn, new StatementBuilder()
+                .append("UPDATE TM3_TM SET removingLocales = 'Y' WHERE id = ?")
+                .addValue(tmId));
+            long lastTuId = SQLUtil.execCountQuery(conn, new StatementBuilder()
+                .append("SELECT lastTuId FROM TM3_LOCALE_REMOVAL ")
+                .append("WHERE tmId = ? AND localeId = ?")
+                .addValues(tmId, locale.getId()));
+            tx.commit();
+            flagged.put(tmId, Boolean.TRUE);
+            if (lastTuId > 0) {
+                LOGGER.info("Resuming removal of locale " + locale +
+                            " from TM " + tmId + " after TU " + lastTuId);
+            }
+            return lastTuId;
+        }
+        catch (SQLException e) {
+            rollback(tx);
+            throw new TM3Exception(e);
+        }
+        catch (HibernateException e) {
+            rollback(tx);
+            throw new TM3Exception(e);
+        }
+        finally {
+            session.close();
+        }
+    }
+
+    private void throttle(int count, long elapsed) {
+        if (rowsPerSecond == 0 || count == 0) {
+            return;
+        }
+        long wait = (count * 1000L / rowsPerSecond) - elapsed;
+        if (wait > 0) {
+            try {
+                Thread.sleep(wait);
+            }
+            catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                stopped = true;
+            }
+        }
+    }
+
+    private void rollback(Transaction tx) {
+        try {
+            if (tx != null) {
+                tx.rollback();
+            }
+        }
+        catch (HibernateException e) {
+            LOGGER.warn("Rollback failed", e);
+        }
+    }
+
+    /**
+     * @return true if a job in this process has started removing a locale
+     *         from a TM, and no job has finished all of its removals since
+     */
+    static boolean isFlagged(long tmId) {
+        return flagged.containsKey(tmId);
+    }
+
+    /**
+     * Return the ids of locales that are being removed from a TM.
+     */
+    static List<Long> getLocaleIdsBeingRemoved(Connection conn, long tmId)
+                throws SQLException {
+        return SQLUtil.execIdsQuery(conn, new StatementBuilder()
+            .append("SELECT localeId FROM TM3_LOCALE_REMOVAL WHERE tmId = ?")
+            .addValue(tmId));
+    }
+}
@@ -1,8 +1,11 @@
 package com.globalsight.ling.tm3.core;
 
+import java.io.File;
 import java.util.List;
 import java.util.Set;
 
+import javax.sql.DataSource;
+
 import org.hibernate.Session;
 import java.sql.Connection;
 
@@ -26,6 +29,27 @@ public interface TM3Manager {
     public boolean createStoragePool(Connection conn, long id,
             Set<TM3Attribute> inlineAttributes) throws TM3Exception;
     
+    /**
+     * Create a new shared pool whose tables are hash partitioned by TM.
+     * Queries against a single TM only search the partition that holds
+     * it.  Partitioning doesn't make {@link #removeTm(Session, TM3Tm)}
+     * any faster: a TM's rows are deleted one by one in the caller's 
+     * transaction, as in an unpartitioned pool.  Truncating a partition
+     * would be faster, but it commits the transaction and can't be undone.
+     * <p>  
+     * <b>Note that this method is non-transactional, because table creation 
+     * is involved.</b>
+     * @param conn Active JDBC connection
+     * @param id ID of this pool.  Note that these IDs must be externally managed.
+     * @param partitions number of partitions, or 0 for an unpartitioned 
+     *        pool
+     * @return true if the pool was created.  False if it already existed.
+     * @throws TM3Exception if an error occurred
+     */
+    public boolean createStoragePool(Connection conn, long id,
+            Set<TM3Attribute> inlineAttributes, int partitions) 
+            throws TM3Exception;
+    
     /**
      * Permanentaly remove a shared pool and any TMs stored in it.
      * <p>  
@@ -39,6 +63,18 @@ public interface TM3Manager {
      */
     public boolean removeStoragePool(Connection conn, long id) throws TM3Exception;
     
+    /**
+     * Remove rows from a shared pool's content table that are no longer
+     * used by any TUV.  Content is left behind when deduplicated TUVs 
+     * are modified or removed, or when a TM stops deduplicating its 
+     * content.
+     * @param conn Active JDBC connection
+     * @param id ID of the pool
+     * @throws TM3Exception if an error occurred
+     */
+    public void purgeUnusedContent(Connection conn, long id) 
+            throws TM3Exception;
+    
     /**
      * Get a list of all TMs in the database.  This method should be used with
      * care, since it will attach a single data factory to every instance. 
@@ -120,7 +156,8 @@ public interface TM3Manager {
     
     /**
      * Remove a tm and all associated metadata, including segment (TU/TUV)
-     * data, attributes, and event history.
+     * data, attributes, and event history.  This is done within the
+     * current transaction, even for a TM in a partitioned pool.
      * 
      * @param session
      * @param tm
@@ -129,4 +166,92 @@ public interface TM3Manager {
     public <T extends TM3Data> void removeTm(Session session, TM3Tm<T> tm) 
             throws TM3Exception;
 
+    /**
+     * Bring the storage for a TM created by an older version of TM3 up
+     * to date with the current schema, migrating any existing data as
+     * needed.  This does nothing to a TM that is already current.
+     * <p>
+     * <b>Note that this method is non-transactional if tables need
+     * to be altered.</b>
+     * @param session
+     * @param tm
+     * @return true if the TM was changed
+     * @throws TM3Exception
+     */
+    public <T extends TM3Data> boolean upgradeTm(Session session, TM3Tm<T> tm)
+            throws TM3Exception;
+
+    /**
+     * Check the stored TU and TUV counts for a TM against its data.  The
+     * counts are maintained as data is saved and removed, and are used
+     * to answer whole-TM and per-locale count queries without scanning
+     * the TM.
+     * @param session
+     * @param tm
+     * @param repair if true, recompute the counts if they are wrong
+     * @return true if the counts were correct
+     * @throws TM3Exception
+     */
+    public <T extends TM3Data> boolean verifyStatistics(Session session, 
+            TM3Tm<T> tm, boolean repair) throws TM3Exception;
+
+    /**
+     * Serve fuzzy lookups from memory-mapped index files kept under a
+     * directory, rather than from the fuzzy index tables.  Each TM gets
+     * a subdirectory named after its id, built from its fuzzy index
+     * table the first time it is used.  The tables are still maintained,
+     * and file indexes are brought up to date as transactions commit.
+     * Only one process at a time serves a TM from its files; others 
+     * sharing the directory look up matches in the database, and post 
+     * their changes for that process to reload.  A process that writes
+     * to the TMs without this directory set leaves their files stale.
+     * @param dir directory for index files, or null to look up matches
+     *        in the database
+     */
+    public void setFuzzyIndexDirectory(File dir);
+
+    /**
+     * @return the directory for fuzzy index files, or null if fuzzy
+     *         lookups use the database
+     */
+    public File getFuzzyIndexDirectory();
+
+    /**
+     * Split fuzzy indexes across several databases, by fingerprint.  Each
+     * shard gets a copy of a TM's fuzzy index table, created when the TM
+     * is first used, and each TUV's index entries are spread across the
+     * shards.  Lookups query the shards concurrently.  TU and TUV data 
+     * stays in the session's database.  Shards take precedence over a
+     * fuzzy index directory.
+     * <p>
+     * Existing index entries aren't moved, so TMs must be reindexed when
+     * shards are added, removed or reordered.
+     * @param shards data sources for the shards, or null for none
+     */
+    public void setFuzzyIndexShards(List<DataSource> shards);
+
+    /**
+     * @return data sources of the fuzzy index shards, or null if fuzzy
+     *         indexes aren't sharded
+     */
+    public List<DataSource> getFuzzyIndexShards();
+
+    /**
+     * Fetch the content of fuzzy candidates in the same statement that
+     * ranks them, rather than ranking them first and then loading the
+     * content of those that can still reach the threshold.  Fusing saves
+     * a round trip per page of candidates, but also reads the content of
+     * candidates that are then rejected, which costs more when pages are
+     * large and most candidates fall short.  Fusing is on by default.
+     * This has no effect on lookups served from a fuzzy index directory
+     * or from shards, which rank candidates before loading them.
+     */
+    public void setFuzzyFetchFused(boolean fused);
+
+    /**
+     * @return whether fuzzy lookups fetch candidate content in the 
+     *         statement that ranks the candidates
+     */
+    public boolean isFuzzyFetchFused();
+
 }
@@ -0,0 +1,17 @@
+package com.globalsight.ling.tm3.core;
+
+/**
+ * Callback for long-running operations that work through a TM in
+ * chunks, such as a chunked {@link TM3Handle#purge(int, boolean,
+ * TM3ProgressListener)}.
+ */
+public interface TM3ProgressListener {
+
+    /**
+     * Called after each chunk of work has been completed.
+     * @param done number of items processed so far
+     * @param total number of items expected in all, or -1 if this
+     *        is not known
+     */
+    public void progress(long done, long total);
+}
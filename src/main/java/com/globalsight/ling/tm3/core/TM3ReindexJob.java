@@ -0,0 +1,793 @@
+package com.globalsight.ling.tm3.core;
+
+import java.io.File;
+import java.io.IOException;
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.log4j.Logger;
+import org.hibernate.HibernateException;
+import org.hibernate.Session;
+import org.hibernate.SessionFactory;
+import org.hibernate.Transaction;
+
+import com.globalsight.ling.tm3.core.persistence.BatchStatementBuilder;
+import com.globalsight.ling.tm3.core.persistence.SQLUtil;
+import com.globalsight.ling.tm3.core.persistence.StatementBuilder;
+
+/**
+ * Job that rebuilds a TM's fuzzy index from its TUVs, using several
+ * threads at once.  Reader threads load the TM's TUs a page at a time,
+ * worker threads compute the fingerprints of their TUVs, and writer
+ * threads insert the index entries in large batches, each stage on
+ * connections of its own.
+ * <p>
+ * By default the index table is emptied and rebuilt in place, holding
+ * the TM's write lock throughout, so the TM can be searched (with
+ * missing matches) but not changed while the job runs.  A shadow build
+ * instead fills a copy of the table while the TM stays in use, then
+ * takes the write lock just long enough to reindex the TUs that changed
+ * in the meantime, and swaps the copy in with an atomic rename.  While
+ * it runs, the TM has a row in TM3_REINDEX, and every change to its
+ * index entries records the TU in TM3_REINDEX_CHANGES, so the TUs to
+ * catch up with are found by log id rather than by date.  The rename 
+ * commits, giving up the lock, so a writer can get in just before it 
+ * and write to the old table; the TUs logged since the first catch-up
+ * are reindexed once more, under the lock, before the old table is
+ * dropped.
+ * Indexes that are split across shards are always rebuilt in place.
+ * <p>
+ * Source TUVs are always indexed.  Target TUVs are indexed in the TM's
+ * indexed target locales, if it has a list of them (see {@link
+ * TM3Tm#setIndexedTargetLocales(java.util.Set)}), or else in every
+ * locale if {@link #setIndexTarget(boolean)} is set.  The fingerprint
+ * frequencies are recounted at the end, and any files the index is
+ * served from are rebuilt the next time they are used.
+ * <p>
+ * Reindexing is also how a TM moves to another {@link
+ * TM3FingerprintFunction} or {@link TM3TrigramHash}: the new index is
+ * built with the new hashing, which is recorded with the TM when the new
+ * index takes over.  In a shadow build the TM is in use throughout.  The
+ * MinHash index, if any, must then be rebuilt, since it is made from
+ * the fingerprints.
+ */
+public class TM3ReindexJob<T extends TM3Data> implements Runnable {
+    private static Logger LOGGER = Logger.getLogger(TM3ReindexJob.class);
+
+    // Suffixes of the tables used by a shadow build
+    static final String SHADOW_SUFFIX = "_NEW";
+    static final String OLD_SUFFIX = "_OLD";
+    // How often a thread waiting on a queue checks for failures
+    private static final long POLL_MILLIS = 100;
+
+    private SessionFactory sessionFactory;
+    private TM3Manager manager;
+    private TM3DataFactory<T> factory;
+    private long tmId;
+
+    private int readers = 2;
+    private int workers = Runtime.getRuntime().availableProcessors();
+    private int writers = 2;
+    private int batchSize = 500;
+    private boolean shadow = false;
+    private boolean indexTarget = false;
+    private TM3FingerprintFunction fingerprintFunction;
+    private TM3TrigramHash trigramHash;
+    private TM3ProgressListener listener;
+
+    // Id of the last TU handed to a reader
+    private long lastTuId;
+    private long total;
+    private AtomicLong tusRead = new AtomicLong();
+    private AtomicLong entriesWritten = new AtomicLong();
+    private volatile Throwable failure;
+    private volatile boolean done = false;
+
+    // A TUV and its fingerprints
+    private static class Entries<T extends TM3Data> {
+        TM3Tuv<T> tuv;
+        List<Long> fingerprints;
+        int tokenCount;
+
+        Entries(TM3Tuv<T> tuv, FuzzyIndex.Trigrams trigrams) {
+            this.tuv = tuv;
+            this.fingerprints = trigrams.fingerprints;
+            this.tokenCount = trigrams.tokenCount;
+        }
+    }
+
+    // The work of one thread
+    private interface Stage {
+        void run() throws Exception;
+    }
+
+    public TM3ReindexJob(SessionFactory sessionFactory, TM3Manager manager,
+            TM3DataFactory<T> factory, long tmId) {
+        this.sessionFactory = sessionFactory;
+        this.manager = manager;
+        this.factory = factory;
+        this.tmId = tmId;
+    }
+
+    /**
+     * Set the number of threads loading TUs (default 2).  Each uses a
+     * database connection.
+     */
+    public void setReaders(int readers) {
+        this.readers = checkThreads(readers);
+    }
+
+    /**
+     * Set the number of threads computing fingerprints (default one per
+     * processor).
+     */
+    public void setWorkers(int workers) {
+        this.workers = checkThreads(workers);
+    }
+
+    /**
+     * Set the number of threads inserting index entries (default 2).
+     * Each uses a database connection, or one per shard for a sharded
+     * index.
+     */
+    public void setWriters(int writers) {
+        this.writers = checkThreads(writers);
+    }
+
+    private static int checkThreads(int threads) {
+        if (threads <= 0) {
+            throw new IllegalArgumentException("Invalid thread count: " +
+                                               threads);
+        }
+        return threads;
+    }
+
+    /**
+     * Set the number of TUs loaded at a time by each reader (default
+     * 500).  The entries for each page are inserted in one batch.
+     */
+    public void setBatchSize(int batchSize) {
+        if (batchSize <= 0) {
+            throw new IllegalArgumentException("Invalid batch size: " +
+                                               batchSize);
+        }
+        this.batchSize = batchSize;
+    }
+
+    /**
+     * Build the new index in a copy of the index table, leaving the TM
+     * free to be changed until the copy is swapped in (default false).
+     */
+    public void setShadow(boolean shadow) {
+        this.shadow = shadow;
+    }
+
+    /**
+     * Index target TUVs as well as source TUVs (default false), as for
+     * {@link TM3Tm#setIndexTarget(boolean)}.  This is ignored if the TM
+     * has a list of indexed target locales.
+     */
+    public void setIndexTarget(boolean indexTarget) {
+        this.indexTarget = indexTarget;
+    }
+
+    /**
+     * Rebuild the index with a different fingerprint function (by 
+     * default, the TM's own function is kept).
+     */
+    public void setFingerprintFunction(
+            TM3FingerprintFunction fingerprintFunction) {
+        this.fingerprintFunction = fingerprintFunction;
+    }
+
+    /**
+     * Rebuild the index with a different trigram hash version (by
+     * default, the TM's own version is kept).
+     */
+    public void setTrigramHash(TM3TrigramHash trigramHash) {
+        this.trigramHash = trigramHash;
+    }
+
+    /**
+     * Set a listener to be notified after each page of TUs is loaded,
+     * with the number of TUs loaded so far and the number in the TM
+     * when the job started.
+     */
+    public void setProgressListener(TM3ProgressListener listener) {
+        this.listener = listener;
+    }
+
+    /**
+     * @return true if the job has run to completion
+     */
+    public boolean isDone() {
+        return done;
+    }
+
+    /**
+     * @return the number of index entries written so far
+     */
+    public long getEntriesWritten() {
+        return entriesWritten.get();
+    }
+
+    @Override
+    public void run() throws TM3Exception {
+        long start = System.currentTimeMillis();
+        Session session = sessionFactory.openSession();
+        Transaction tx = null;
+        boolean logging = false;
+        try {
+            tx = session.beginTransaction();
+            BaseTm<T> tm = getTm(session);
+            tm.setIndexTarget(indexTarget);
+            StorageInfo<T> storage = tm.getStorageInfo();
+            FuzzyIndexShards shards = storage.getFuzzyIndexShards();
+            if (shadow && shards != null) {
+                throw new IllegalStateException("TM " + tmId +
+                        " has a sharded fuzzy index, which can't be " +
+                        "built in a shadow table");
+            }
+            TM3FingerprintFunction function = fingerprintFunction != null ?
+                fingerprintFunction : tm.getFingerprintFunction();
+            TM3TrigramHash hash = trigramHash != null ?
+                trigramHash : tm.getTrigramHash();
+            boolean newHashing = function != tm.getFingerprintFunction() ||
+                hash != tm.getTrigramHash();
+            FuzzyIndex<T> index = storage.getFingerprintIndex();
+            index.setFingerprintFunction(function);
+            index.setTrigramHash(hash);
+            String table = storage.getFuzzyIndexTableName();
+            String target = shadow ? table + SHADOW_SUFFIX : table;
+            total = storage.getTuStorage().getTuCount(null, null);
+            if (shadow) {
+                Connection conn = session.connection();
+                SQLUtil.exec(conn, "DROP TABLE IF EXISTS " + target);
+                SQLUtil.exec(conn, "CREATE TABLE " + target + " LIKE " +
+                             table);
+                // Changes made before this are seen by the build
+                tm.lockForWrite();
+                startChangeLog(conn);
+                logging = true;
+                tx.commit();
+            }
+            else {
+                // Hold the write lock until the index is complete
+                tm.lockForWrite();
+                truncate(storage, shards);
+            }
+            build(index, shards, target);
+            if (shadow) {
+                tx = session.beginTransaction();
+                Connection conn = session.connection();
+                SQLUtil.exec(conn, "DROP TABLE IF EXISTS " + table +
+                             OLD_SUFFIX);
+                tx.commit();
+                tx = session.beginTransaction();
+                tm.lockForWrite();
+                long lastChangeId = catchUp(tm, index, target, 0);
+                if (newHashing) {
+                    changeHashing(tm, function, hash);
+                    // Before the rename commits
+                    session.flush();
+                }
+                // The rename commits, releasing the lock before the tables
+                // are swapped, so a writer waiting on it may save to the
+                // old table.  Catch up again once the new one is in place.
+                SQLUtil.exec(conn, "RENAME TABLE " + table + " TO " +
+                             table + OLD_SUFFIX + ", " + target + " TO " +
+                             table);
+                tx.commit();
+                tx = session.beginTransaction();
+                tm.lockForWrite();
+                catchUp(tm, index, table, lastChangeId);
+                endChangeLog(conn);
+                tx.commit();
+                logging = false;
+                SQLUtil.exec(conn, "DROP TABLE " + table + OLD_SUFFIX);
+                tx = session.beginTransaction();
+                tm.lockForWrite();
+            }
+            else if (newHashing) {
+                changeHashing(tm, function, hash);
+            }
+            if (shards != null) {
+                new ShardedFuzzyIndex<T>(storage, index, shards)
+                    .recomputeFrequencies();
+            }
+            else {
+                index.getFrequencies().recompute();
+            }
+            tx.commit();
+            if (shards == null && manager.getFuzzyIndexDirectory() != null) {
+                PostingStore.invalidate(new File(
+                        manager.getFuzzyIndexDirectory(), 
+                        String.valueOf(tmId)));
+            }
+            done = true;
+            LOGGER.info("Reindexed " + tusRead.get() + " TUs in TM " +
+                    tmId + " with " + entriesWritten.get() + " entries in " +
+                    (System.currentTimeMillis() - start) + "ms");
+        }
+        catch (SQLException e) {
+            rollback(tx);
+            throw new TM3Exception(e);
+        }
+        catch (HibernateException e) {
+            rollback(tx);
+            throw new TM3Exception(e);
+        }
+        catch (IOException e) {
+            throw new TM3Exception(e);
+        }
+        finally {
+            session.close();
+            if (logging) {
+                abandonChangeLog();
+            }
+        }
+    }
+
+    private void changeHashing(BaseTm<T> tm, TM3FingerprintFunction function,
+            TM3TrigramHash hash) throws SQLException {
+        tm.setFingerprintFunction(function);
+        tm.setTrigramHash(hash);
+        if (tm.getMinHashBands() > 0) {
+            tm.resetMinHashIndex();
+            LOGGER.warn("TM " + tmId + "'s MinHash index must be rebuilt " +
+                        "for fingerprint function " + function +
+                        " and trigram hash " + hash);
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    private BaseTm<T> getTm(Session session) throws TM3Exception {
+        BaseTm<T> tm = (BaseTm<T>) manager.getTm(session, factory, tmId);
+        if (tm == null) {
+            throw new IllegalArgumentException("No such TM: " + tmId);
+        }
+        return tm;
+    }
+
+    /**
+     * Empty the index table.  Truncation commits, so this uses
+     * connections other than the one holding the write lock.
+     */
+    private void truncate(StorageInfo<T> storage, FuzzyIndexShards shards)
+                throws SQLException {
+        String sql = "TRUNCATE TABLE " + storage.getFuzzyIndexTableName();
+        if (shards != null) {
+            shards.ensureTables(storage);
+            for (int i = 0; i < shards.size(); i++) {
+                Connection conn = shards.getConnection(i);
+                try {
+                    SQLUtil.exec(conn, sql);
+                }
+                finally {
+                    conn.close();
+                }
+            }
+            return;
+        }
+        Session session = sessionFactory.openSession();
+        try {
+            SQLUtil.exec(session.connection(), sql);
+        }
+        finally {
+            session.close();
+        }
+    }
+
+    /**
+     * Index every TU in the TM into a table, with the reader, worker and
+     * writer threads.
+     */
+    private void build(final FuzzyIndex<T> index,
+            final FuzzyIndexShards shards, final String table)
+                throws SQLException {
+        lastTuId = 0;
+        final BlockingQueue<List<TM3Tuv<T>>> tuvs =
+            new ArrayBlockingQueue<List<TM3Tuv<T>>>(workers * 2);
+        final BlockingQueue<List<Entries<T>>> entries =
+            new ArrayBlockingQueue<List<Entries<T>>>(writers * 2);
+        // Queued by the time all the work before them is done
+        final List<TM3Tuv<T>> endOfTuvs = new ArrayList<TM3Tuv<T>>();
+        final List<Entries<T>> endOfEntries = new ArrayList<Entries<T>>();
+
+        List<Thread> readerThreads = start("reader", readers, new Stage() {
+            @Override
+            public void run() throws Exception {
+                read(tuvs);
+            }
+        });
+        List<Thread> workerThreads = start("worker", workers, new Stage() {
+            @Override
+            public void run() throws Exception {
+                fingerprint(index, tuvs, endOfTuvs, entries);
+            }
+        });
+        List<Thread> writerThreads = start("writer", writers, new Stage() {
+            @Override
+            public void run() throws Exception {
+                write(index, shards, table, entries, endOfEntries);
+            }
+        });
+        join(readerThreads);
+        end(tuvs, endOfTuvs, workers);
+        join(workerThreads);
+        end(entries, endOfEntries, writers);
+        join(writerThreads);
+
+        Throwable t = failure;
+        if (t instanceof SQLException) {
+            throw (SQLException) t;
+        }
+        if (t instanceof RuntimeException) {
+            throw (RuntimeException) t;
+        }
+        if (t != null) {
+            throw new TM3Exception(t);
+        }
+    }
+
+    private List<Thread> start(String name, int count, final Stage stage) {
+        List<Thread> threads = new ArrayList<Thread>();
+        for (int i = 0; i < count; i++) {
+            Thread t = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        stage.run();
+                    }
+                    catch (Throwable t) {
+                        fail(t);
+                    }
+                }
+            }, "TM3 reindex " + name + " " + i);
+            t.setDaemon(true);
+            t.start();
+            threads.add(t);
+        }
+        return threads;
+    }
+
+    private void join(List<Thread> threads) {
+        for (Thread t : threads) {
+            while (t.isAlive()) {
+                try {
+                    t.join();
+                }
+                catch (InterruptedException e) {
+                    // Stop the other threads, and wait for them
+                    fail(e);
+                }
+            }
+        }
+    }
+
+    private void fail(Throwable t) {
+        synchronized (this) {
+            if (failure != null) {
+                return;
+            }
+            failure = t;
+        }
+        LOGGER.error("Reindexing TM " + tmId + " failed", t);
+    }
+
+    // Tell the threads taking from a queue that there is nothing more
+    private <E> void end(BlockingQueue<E> queue, E end, int threads) {
+        try {
+            for (int i = 0; i < threads; i++) {
+                if (!put(queue, end)) {
+                    return;
+                }
+            }
+        }
+        catch (InterruptedException e) {
+            fail(e);
+        }
+    }
+
+    /**
+     * Add to a queue, unless some thread fails first.
+     * @return false if the job has failed
+     */
+    private <E> boolean put(BlockingQueue<E> queue, E e)
+                throws InterruptedException {
+        while (failure == null) {
+            if (queue.offer(e, POLL_MILLIS, TimeUnit.MILLISECONDS)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Take from a queue, unless some thread fails first.
+     * @return the item, or null if the job has failed
+     */
+    private <E> E take(BlockingQueue<E> queue) throws InterruptedException {
+        while (failure == null) {
+            E e = queue.poll(POLL_MILLIS, TimeUnit.MILLISECONDS);
+            if (e != null) {
+                return e;
+            }
+        }
+        return null;
+    }
+
+    private void read(BlockingQueue<List<TM3Tuv<T>>> tuvs) throws Exception {
+        Session session = sessionFactory.openSession();
+        Transaction tx = null;
+        try {
+            tx = session.beginTransaction();
+            BaseTm<T> tm = getTm(session);
+            tm.setIndexTarget(indexTarget);
+            TuStorage<T> storage = tm.getStorageInfo().getTuStorage();
+            tx.commit();
+            while (failure == null) {
+                tx = session.beginTransaction();
+                List<Long> ids = nextPage(storage);
+                if (ids.isEmpty()) {
+                    tx.commit();
+                    return;
+                }
+                List<TM3Tuv<T>> page = new ArrayList<TM3Tuv<T>>();
+                for (TM3Tu<T> tu : storage.getTu(ids, false)) {
+                    for (TM3Tuv<T> tuv : tu.getAllTuv()) {
+                        if (tm.isIndexed(tuv)) {
+                            page.add(tuv);
+                        }
+                    }
+                }
+                tx.commit();
+                if (!put(tuvs, page)) {
+                    return;
+                }
+                long read = tusRead.addAndGet(ids.size());
+                if (listener != null) {
+                    synchronized (listener) {
+                        listener.progress(read, total);
+                    }
+                }
+            }
+        }
+        finally {
+            rollback(tx);
+            session.close();
+        }
+    }
+
+    // Hand out the next page of TU ids
+    private synchronized List<Long> nextPage(TuStorage<T> storage)
+                throws SQLException {
+        List<Long> ids = storage.getTuIdPage(lastTuId, batchSize, null, null);
+        if (!ids.isEmpty()) {
+            lastTuId = ids.get(ids.size() - 1);
+        }
+        return ids;
+    }
+
+    private void fingerprint(FuzzyIndex<T> index,
+            BlockingQueue<List<TM3Tuv<T>>> tuvs, List<TM3Tuv<T>> endOfTuvs,
+            BlockingQueue<List<Entries<T>>> entries) throws Exception {
+        List<TM3Tuv<T>> page;
+        while ((page = take(tuvs)) != null && page != endOfTuvs) {
+            List<Entries<T>> pageEntries = new ArrayList<Entries<T>>();
+            for (TM3Tuv<T> tuv : page) {
+                FuzzyIndex.Trigrams trigrams = 
+                    index.getTrigrams(tuv.getContent());
+                if (!trigrams.fingerprints.isEmpty()) {
+                    pageEntries.add(new Entries<T>(tuv, trigrams));
+                }
+            }
+            if (!put(entries, pageEntries)) {
+                return;
+            }
+        }
+    }
+
+    private void write(FuzzyIndex<T> index, FuzzyIndexShards shards,
+            String table, BlockingQueue<List<Entries<T>>> entries,
+            List<Entries<T>> endOfEntries) throws Exception {
+        Session session = null;
+        Transaction tx = null;
+        Connection[] shardConns = null;
+        if (shards == null) {
+            session = sessionFactory.openSession();
+        }
+        else {
+            shardConns = new Connection[shards.size()];
+        }
+        try {
+            List<Entries<T>> page;
+            while ((page = take(entries)) != null && page != endOfEntries) {
+                if (page.isEmpty()) {
+                    continue;
+                }
+                int count = 0;
+                if (shards == null) {
+                    BatchStatementBuilder sb = index.getInsertStatement(table);
+                    for (Entries<T> e : page) {
+                        index.addEntries(sb, e.fingerprints,
+                                e.fingerprints.size(), e.tokenCount, e.tuv);
+                        count += e.fingerprints.size();
+                    }
+                    tx = session.beginTransaction();
+                    SQLUtil.execBatch(session.connection(), sb);
+                    tx.commit();
+                }
+                else {
+                    BatchStatementBuilder[] sbs =
+                        new BatchStatementBuilder[shards.size()];
+                    for (Entries<T> e : page) {
+                        List<List<Long>> byShard = shards.split(e.fingerprints);
+                        for (int i = 0; i < sbs.length; i++) {
+                            if (byShard.get(i).isEmpty()) {
+                                continue;
+                            }
+                            if (sbs[i] == null) {
+                                sbs[i] = index.getInsertStatement(table);
+                            }
+                            index.addEntries(sbs[i], byShard.get(i),
+                                    e.fingerprints.size(), e.tokenCount, 
+                                    e.tuv);
+                        }
+                        count += e.fingerprints.size();
+                    }
+                    for (int i = 0; i < sbs.length; i++) {
+                        if (sbs[i] == null) {
+                            continue;
+                        }
+                        if (shardConns[i] == null) {
+                            shardConns[i] = shards.getConnection(i);
+                        }
+                        SQLUtil.execBatch(shardConns[i], sbs[i]);
+                    }
+                }
+                entriesWritten.addAndGet(count);
+            }
+        }
+        finally {
+            if (session != null) {
+                rollback(tx);
+                session.close();
+            }
+            if (shardConns != null) {
+                for (Connection conn : shardConns) {
+                    if (conn != null) {
+                        conn.close();
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Start logging the TUs whose index entries change, for a shadow
+     * build.  Called with the write lock held.
+     */
+    private void startChangeLog(Connection conn) throws SQLException {
+        // Left over from a build that failed without cleaning up
+        SQLUtil.exec(conn, new StatementBuilder()
+            .append("DELETE FROM TM3_REINDEX_CHANGES WHERE tmId = ?")
+            .addValue(tmId));
+        SQLUtil.exec(conn, new StatementBuilder()
+            .append("INSERT IGNORE INTO TM3_REINDEX (tmId) VALUES (?)")
+            .addValue(tmId));
+    }
+
+    /**
+     * Stop logging changes, and drop the log.  Called with the write
+     * lock held.
+     */
+    private void endChangeLog(Connection conn) throws SQLException {
+        SQLUtil.exec(conn, new StatementBuilder()
+            .append("DELETE FROM TM3_REINDEX WHERE tmId = ?")
+            .addValue(tmId));
+        SQLUtil.exec(conn, new StatementBuilder()
+            .append("DELETE FROM TM3_REINDEX_CHANGES WHERE tmId = ?")
+            .addValue(tmId));
+    }
+
+    /**
+     * Stop logging changes after a shadow build has failed, so that 
+     * writers don't keep logging them.
+     */
+    private void abandonChangeLog() {
+        Session session = sessionFactory.openSession();
+        Transaction tx = null;
+        try {
+            tx = session.beginTransaction();
+            getTm(session).lockForWrite();
+            endChangeLog(session.connection());
+            tx.commit();
+        }
+        catch (Exception e) {
+            rollback(tx);
+            LOGGER.warn("Couldn't stop logging changes to TM " + tmId, e);
+        }
+        finally {
+            session.close();
+        }
+    }
+
+    /**
+     * Reindex, into a table, the TUs whose index entries have changed
+     * since a point in the change log.  Their old entries are deleted, 
+     * and entries for whatever TUVs they still have are inserted.
+     * Called with the write lock held, so nothing more is logged until
+     * it is given up.
+     * @param lastChangeId id of the last change already caught up with
+     * @return id of the last change caught up with
+     */
+    private long catchUp(BaseTm<T> tm, FuzzyIndex<T> index, String table,
+            long lastChangeId) throws SQLException {
+        TuStorage<T> tuStorage = tm.getStorageInfo().getTuStorage();
+        Connection conn = tm.getSession().connection();
+        long maxChangeId = SQLUtil.execCountQuery(conn, 
+            new StatementBuilder()
+                .append("SELECT MAX(id) FROM TM3_REINDEX_CHANGES ")
+                .append("WHERE tmId = ?").addValue(tmId));
+        if (maxChangeId <= lastChangeId) {
+            return lastChangeId;
+        }
+        long lastId = 0;
+        int count = 0;
+        List<Long> ids;
+        while (!(ids = SQLUtil.execIdsQuery(conn, new StatementBuilder()
+                .append("SELECT DISTINCT tuId FROM TM3_REINDEX_CHANGES ")
+                .append("WHERE tmId = ? AND id > ? AND id <= ? ")
+                .append("AND tuId > ? ORDER BY tuId LIMIT ?")
+                .addValues(tmId, lastChangeId, maxChangeId, lastId, 
+                           batchSize))).isEmpty()) {
+            SQLUtil.exec(conn, new StatementBuilder()
+                .append("DELETE FROM ").append(table)
+                .append(" WHERE tuId IN ").append(SQLUtil.longGroup(ids)));
+            BatchStatementBuilder sb = index.getInsertStatement(table);
+            boolean empty = true;
+            for (TM3Tu<T> tu : tuStorage.getTu(ids, false)) {
+                for (TM3Tuv<T> tuv : tu.getAllTuv()) {
+                    if (!tm.isIndexed(tuv)) {
+                        continue;
+                    }
+                    FuzzyIndex.Trigrams trigrams = 
+                        index.getTrigrams(tuv.getContent());
+                    List<Long> fps = trigrams.fingerprints;
+                    if (!fps.isEmpty()) {
+                        index.addEntries(sb, fps, fps.size(), 
+                                         trigrams.tokenCount, tuv);
+                        entriesWritten.addAndGet(fps.size());
+                        empty = false;
+                    }
+                }
+            }
+            if (!empty) {
+                SQLUtil.execBatch(conn, sb);
+            }
+            lastId = ids.get(ids.size() - 1);
+            count += ids.size();
+        }
+        LOGGER.info("Reindexed " + count + " TUs in TM " + tmId +
+                    " that changed during the build");
+        return maxChangeId;
+    }
+
+    private void rollback(Transaction tx) {
+        try {
+            if (tx != null && tx.isActive()) {
+                tx.rollback();
+            }
+        }
+        catch (HibernateException e) {
+            LOGGER.warn("Rollback failed", e);
+        }
+    }
+}
@@ -6,4 +6,22 @@ package com.globalsight.ling.tm3.core;
 public interface TM3SharedTm<T extends TM3Data> extends TM3Tm<T> {
 
     public long getSharedStorageId();
+
+    /**
+     * Turn content deduplication on or off.  When it is on, TUV content
+     * saved or modified in this TM is stored once in a content table 
+     * shared by the whole pool, and TUVs with the same content (in any
+     * TM in the pool that deduplicates) refer to the same row.  This 
+     * saves space for TMs that contain many copies of the same strings.
+     * Deduplicated content is not compressed.  Existing content can be 
+     * converted with {@link #migrateContent(long, int)}.
+     */
+    public void setContentDeduplicated(boolean deduplicated) 
+            throws TM3Exception;
+
+    /**
+     * @return true if this TM stores its content in the pool's shared 
+     *         content table
+     */
+    public boolean isContentDeduplicated();
 }
@@ -291,7 +291,10 @@ public interface TM3Tm<T extends TM3Data> {
 
 
     /**
-     * Remove TUVs by locale.
+     * Remove TUVs by locale.  Source TUVs are not removed.  This runs in
+     * the caller's transaction; to remove a locale from a large TM 
+     * without blocking other users of its tables, use a
+     * {@link TM3LocaleRemovalJob} instead.
      *
      * @param locale Remove all TUVs with this locale.
      */
@@ -300,7 +303,141 @@ public interface TM3Tm<T extends TM3Data> {
     /**
      * Indicate whether to index target TUVs saved to this TM.  Logically, this
      * should be part of the persistent state of the TM, but GlobalSight needs
-     * to set this at run-time.
+     * to set this at run-time.  This is ignored if the TM has a list of
+     * indexed target locales; see {@link #setIndexedTargetLocales(Set)}.
      */
     public void setIndexTarget(boolean indexTarget);
+
+    /**
+     * Set the locales whose target TUVs are added to the fuzzy index, so 
+     * that fuzzy lookups with lookupTarget can find them.  The list is 
+     * saved with the TM, and takes the place of 
+     * {@link #setIndexTarget(boolean)}.  Fuzzy lookups with lookupTarget
+     * in any other locale throw IllegalArgumentException.
+     * <p>
+     * Only TUVs saved or modified afterwards are affected; use a 
+     * {@link TM3ReindexJob} to bring the existing index into line.
+     * @param locales the locales to index, or null to go back to 
+     *        indexing as set by setIndexTarget()
+     */
+    public void setIndexedTargetLocales(Set<? extends TM3Locale> locales)
+            throws TM3Exception;
+
+    /**
+     * @return the locales whose target TUVs are indexed, or null if the
+     *         TM doesn't keep a list of them
+     */
+    public Set<TM3Locale> getIndexedTargetLocales() throws TM3Exception;
+
+    /**
+     * Turn compressed storage of TUV content on or off.  TUV content 
+     * saved or modified afterwards is stored in the new form; existing 
+     * content can be converted with {@link #migrateContent(long, int)}.
+     * Content can always be read, whichever form it is stored in.
+     * <p>
+     * The first time compression is turned on for a TM, a compression
+     * dictionary is trained from a sample of the TM's content.  Turning
+     * compression on after some content has been loaded gives better 
+     * results than turning it on for an empty TM.
+     */
+    public void setContentCompressed(boolean compressed) throws TM3Exception;
+
+    /**
+     * @return true if TUV content in this TM is stored compressed
+     */
+    public boolean isContentCompressed();
+    
+    /**
+     * Set how common a fingerprint can be before fuzzy lookups leave it
+     * out.  Fingerprints that occur in more than this share of the TUVs
+     * in a locale are dropped, most common first, as long as doing so
+     * can't lose matches above the lookup's threshold.  0 looks up every
+     * fingerprint.  The default is 0.1.
+     * @param cutoff share of TUVs, between 0 and 1
+     */
+    public void setFuzzyFrequencyCutoff(double cutoff);
+    
+    /**
+     * @return the share of TUVs above which fuzzy lookups leave out a 
+     *         fingerprint
+     */
+    public double getFuzzyFrequencyCutoff();
+
+    /**
+     * Convert up to count TUVs, in id order after startId, to the form 
+     * of storage selected by {@link #setContentCompressed(boolean)} (and,
+     * for shared TMs, {@link TM3SharedTm#setContentDeduplicated(boolean)}).
+     * Each call locks only the TUVs it converts, so a large TM can be 
+     * converted while it is in use by calling this repeatedly and 
+     * committing between calls.
+     * @param startId id of the last TUV examined by the previous call,
+     *        or 0 to begin
+     * @param count maximum number of TUVs to examine
+     * @return startId for the next call, or 0 if there are no more TUVs
+     */
+    public long migrateContent(long startId, int count) throws TM3Exception;
+    
+    /**
+     * Add a MinHash index to this TM, or change its shape.  The MinHash
+     * index is kept alongside the fingerprint index, and lets fuzzy 
+     * lookups in very large TMs probe a fixed number of band keys instead
+     * of scanning fingerprint entries, at the cost of some recall.  Each
+     * TUV is indexed under one key per band; more bands find more 
+     * matches, and more rows per band fetch fewer poor candidates.
+     * <p>
+     * Changing the shape throws the existing MinHash rows away (in the
+     * caller's transaction).  Lookups don't use the MinHash index until
+     * {@link #buildMinHashIndex(long, int)} has been run over the whole 
+     * TM.
+     * @param bands number of bands, or 0 to remove the MinHash index
+     * @param rows number of rows (hash functions) per band
+     */
+    public void setMinHash(int bands, int rows) throws TM3Exception;
+    
+    /**
+     * @return the function that fingerprints tokens for this TM's fuzzy
+     *         index
+     */
+    public TM3FingerprintFunction getFingerprintFunction();
+    
+    /**
+     * @return the version of the hash that combines token fingerprints
+     *         into trigrams for this TM's fuzzy index
+     */
+    public TM3TrigramHash getTrigramHash();
+    
+    /**
+     * @return the number of MinHash bands, or 0 if this TM has no MinHash
+     *         index
+     */
+    public int getMinHashBands();
+    
+    /**
+     * @return the number of rows in each MinHash band
+     */
+    public int getMinHashRows();
+    
+    /**
+     * Build the MinHash index for up to count TUs, in id order after
+     * startId.  Like {@link #migrateContent(long, int)}, this is meant 
+     * to be called repeatedly, committing between calls.  When it 
+     * returns 0 the index is complete, and fuzzy lookups start using it.
+     * @param startId id of the last TU examined by the previous call, 
+     *        or 0 to begin
+     * @param count maximum number of TUs to examine
+     * @return startId for the next call, or 0 if there are no more TUs
+     */
+    public long buildMinHashIndex(long startId, int count) throws TM3Exception;
+    
+    /**
+     * @return true if fuzzy lookups can use this TM's MinHash index
+     */
+    public boolean isMinHashIndexReady();
+    
+    /**
+     * Indicate whether fuzzy lookups should use the MinHash index, when
+     * it is ready.  This is not persistent, and defaults to true; it is
+     * meant for comparing the two indexes.
+     */
+    public void setMinHashLookup(boolean minHashLookup);
 }
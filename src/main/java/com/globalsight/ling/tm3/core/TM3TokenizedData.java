@@ -0,0 +1,16 @@
+package com.globalsight.ling.tm3.core;
+
+/**
+ * Segment data that can return its tokens before they are fingerprinted,
+ * so that TM3 can fingerprint them with the TM's own
+ * {@link TM3FingerprintFunction}.
+ */
+public interface TM3TokenizedData extends TM3Data {
+
+    /**
+     * Return the tokens whose fingerprints {@link #tokenize()} returns,
+     * in the same order.  Normalization should be applied here, so that
+     * it is the same whatever function fingerprints the tokens.
+     */
+    public Iterable<String> getTokens();
+}
@@ -0,0 +1,65 @@
+package com.globalsight.ling.tm3.core;
+
+/**
+ * The versions of the hash that combines the fingerprints of three
+ * adjacent tokens into one fuzzy index fingerprint.  The version is
+ * recorded with the TM, since a trigram hashed by one version doesn't
+ * match the same trigram hashed by another; it is changed by reindexing
+ * the TM with {@link TM3ReindexJob#setTrigramHash(TM3TrigramHash)}.
+ */
+public enum TM3TrigramHash {
+
+    /**
+     * The original hash, <tt>fp0 + 31 * (fp1 + 31 * fp2)</tt>.  It is
+     * nearly linear, so distinct trigrams collide more often than they
+     * should.  TMs created before versions were recorded use this.
+     */
+    V1(1) {
+        @Override
+        public long hash(long fp0, long fp1, long fp2) {
+            return fp0 + 31 * (fp1 + 31 * fp2);
+        }
+    },
+
+    /**
+     * Each fingerprint is folded in through MurmurHash3's 64-bit
+     * finalizer, so that every bit of every fingerprint affects every
+     * bit of the result.  This is the version new TMs use.
+     */
+    V2(2) {
+        @Override
+        public long hash(long fp0, long fp1, long fp2) {
+            long h = Fingerprint.mix(SEED ^ fp0);
+            h = Fingerprint.mix(h ^ fp1);
+            return Fingerprint.mix(h ^ fp2);
+        }
+    };
+
+    // Keeps a trigram of zero fingerprints from hashing to zero
+    private static final long SEED = 0x2545f4914f6cdd1dL;
+
+    private int version;
+
+    private TM3TrigramHash(int version) {
+        this.version = version;
+    }
+
+    public int getVersion() {
+        return version;
+    }
+
+    public abstract long hash(long fp0, long fp1, long fp2);
+
+    /**
+     * @throws IllegalArgumentException if there is no such version
+     */
+    public static TM3TrigramHash forVersion(int version) {
+        for (TM3TrigramHash h : values()) {
+            if (h.version == version) {
+                return h;
+            }
+        }
+        throw new IllegalArgumentException("Unknown trigram hash version " +
+                                           version);
+    }
+}
@@ -0,0 +1,276 @@
+package com.globalsight.ling.tm3.core;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import com.globalsight.ling.tm3.core.persistence.BatchStatementBuilder;
+import com.globalsight.ling.tm3.core.persistence.SQLUtil;
+import com.globalsight.ling.tm3.core.persistence.StatementBuilder;
+
+/**
+ * TU and TUV counts for a TM, kept in the TM3_STATS table so that
+ * whole-TM and per-locale counts can be read without scanning the TUV
+ * table.
+ * <p>
+ * Each TM has one row per locale, holding the number of TUs with at
+ * least one TUV in that locale and the number of TUVs in that locale.
+ * The row with localeId 0 holds the totals for the TM.  The storage
+ * layer updates the rows in the same transaction as the data changes
+ * they reflect.
+ * <p>
+ * TMs created before the table existed have no totals row.  Until one
+ * is created by {@link #recompute()}, reads return null (callers fall
+ * back to counting the data directly) and updates are ignored.
+ */
+class TmStatistics<T extends TM3Data> {
+
+    // localeId of the row that holds the totals for the TM
+    static final long TOTAL = 0;
+
+    // Indices into the count arrays
+    static final int TUS = 0;
+    static final int TUVS = 1;
+
+    private StorageInfo<T> storage;
+
+    TmStatistics(StorageInfo<T> storage) {
+        this.storage = storage;
+    }
+
+    private Connection getConnection() {
+        return storage.getSession().connection();
+    }
+
+    private long getTmId() {
+        return storage.getTm().getId();
+    }
+
+    /**
+     * Create an empty totals row for a newly created TM.
+     */
+    void initialize() throws SQLException {
+        SQLUtil.exec(getConnection(), new StatementBuilder()
+            .append("INSERT INTO TM3_STATS (tmId, localeId, tuCount, tuvCount) ")
+            .append("VALUES (?, ?, 0, 0)")
+            .addValues(getTmId(), TOTAL));
+    }
+
+    /**
+     * @return true if this TM has statistics
+     */
+    boolean isAvailable() throws SQLException {
+        return getAllCounts() != null;
+    }
+
+    /**
+     * Get the TU and TUV counts for a locale, or for the whole TM.
+     * @param locale locale, or null for the whole TM
+     * @return {tuCount, tuvCount}, or null if the TM has no statistics
+     */
+    long[] getCounts(TM3Locale locale) throws SQLException {
+        StatementBuilder sb = new StatementBuilder()
+            .append("SELECT s.tuCount, s.tuvCount FROM TM3_STATS AS t ")
+            .append("LEFT JOIN TM3_STATS AS s ")
+            .append("ON s.tmId = t.tmId AND s.localeId = ? ")
+            .addValue(locale == null ? TOTAL : locale.getId())
+            .append("WHERE t.tmId = ? AND t.localeId = ?")
+            .addValues(getTmId(), TOTAL);
+        PreparedStatement ps = sb.toPreparedStatement(getConnection());
+        ResultSet rs = SQLUtil.execQuery(ps);
+        long[] counts = null;
+        if (rs.next()) {
+            // A missing locale row means the locale isn't in the TM
+            counts = new long[] { rs.getLong(1), rs.getLong(2) };
+        }
+        ps.close();
+        return counts;
+    }
+
+    /**
+     * Get the ids of the locales that have at least one TUV in the TM.
+     * @return locale ids, or null if the TM has no statistics
+     */
+    Set<Long> getLocaleIds() throws SQLException {
+        Map<Long, long[]> all = getAllCounts();
+        if (all == null) {
+            return null;
+        }
+        Set<Long> ids = new HashSet<Long>();
+        for (Map.Entry<Long, long[]> e : all.entrySet()) {
+            if (e.getKey() != TOTAL && e.getValue()[TUVS] > 0) {
+                ids.add(e.getKey());
+            }
+        }
+        return ids;
+    }
+
+    /**
+     * Load every row for this TM, keyed by locale id (including the
+     * totals row).
+     * @return counts, or null if the TM has no statistics
+     */
+    Map<Long, long[]> getAllCounts() throws SQLException {
+        StatementBuilder sb = new StatementBuilder()
+            .append("SELECT localeId, tuCount, tuvCount FROM TM3_STATS ")
+            .append("WHERE tmId = ?").addValue(getTmId());
+        Map<Long, long[]> counts = readCounts(getConnection(), sb);
+        return counts.containsKey(TOTAL) ? counts : null;
+    }
+
+    /**
+     * Apply changes to the counts.
+     * @param localeDeltas change in {tuCount, tuvCount}, by locale id
+     * @param tuDelta change in the total number of TUs
+     */
+    void update(Map<Long, long[]> localeDeltas, long tuDelta)
+                throws SQLException {
+        long tuvDelta = 0;
+        // Locale rows are only created if the totals row exists
+        BatchStatementBuilder sb = new BatchStatementBuilder()
+            .append("INSERT INTO TM3_STATS (tmId, localeId, tuCount, tuvCount) ")
+            .append("SELECT tmId, ?, ?, ? FROM TM3_STATS ")
+            .append("WHERE tmId = ? AND localeId = ? ")
+            .append("ON DUPLICATE KEY UPDATE ")
+            .append("tuCount = tuCount + VALUES(tuCount), ")
+            .append("tuvCount = tuvCount + VALUES(tuvCount)");
+        int rows = 0;
+        for (Map.Entry<Long, long[]> e : localeDeltas.entrySet()) {
+            long[] delta = e.getValue();
+            if (delta[TUS] == 0 && delta[TUVS] == 0) {
+                continue;
+            }
+            sb.addBatch(e.getKey(), delta[TUS], delta[TUVS],
+                        getTmId(), TOTAL);
+            tuvDelta += delta[TUVS];
+            rows++;
+        }
+        if (rows > 0) {
+            SQLUtil.execBatch(getConnection(), sb);
+        }
+        if (tuDelta != 0 || tuvDelta != 0) {
+            SQLUtil.exec(getConnection(), new StatementBuilder()
+                .append("UPDATE TM3_STATS SET tuCount = tuCount + ?, ")
+                .append("tuvCount = tuvCount + ? ")
+                .addValues(tuDelta, tuvDelta)
+                .append("WHERE tmId = ? AND localeId = ?")
+                .addValues(getTmId(), TOTAL));
+        }
+    }
+
+    /**
+     * Count the data in the TM directly.
+     * @return {tuCount, tuvCount} by locale id, including totals
+     */
+    Map<Long, long[]> count() throws SQLException {
+        TuStorage<T> tuStorage = storage.getTuStorage();
+        Map<Long, long[]> counts = tuStorage.getLocaleCounts();
+        counts.put(TOTAL, new long[] {
+            tuStorage.getTuCount(null, null),
+            tuStorage.getTuvCount(null, null) });
+        return counts;
+    }
+
+    /**
+     * Compare the statistics with the data in the TM.
+     * @return true if they match; false if they are missing or differ
+     */
+    boolean verify() throws SQLException {
+        Map<Long, long[]> stored = getAllCounts();
+        if (stored == null) {
+            return false;
+        }
+        return equal(stored, count());
+    }
+
+    /**
+     * Throw away the statistics for this TM (if any), and rebuild
+     * them by counting the data.
+     */
+    void recompute() throws SQLException {
+        Map<Long, long[]> counts = count();
+        SQLUtil.exec(getConnection(), new StatementBuilder()
+            .append("DELETE FROM TM3_STATS WHERE tmId = ?")
+            .addValue(getTmId()));
+        BatchStatementBuilder sb = new BatchStatementBuilder()
+            .append("INSERT INTO TM3_STATS (tmId, localeId, tuCount, tuvCount) ")
+            .append("VALUES (?, ?, ?, ?)");
+        for (Map.Entry<Long, long[]> e : counts.entrySet()) {
+            sb.addBatch(getTmId(), e.getKey(), e.getValue()[TUS],
+                        e.getValue()[TUVS]);
+        }
+        SQLUtil.execBatch(getConnection(), sb);
+    }
+
+    /**
+     * Read {tuCount, tuvCount} by locale id from a query that returns
+     * (localeId, tuCount, tuvCount) rows.
+     */
+    static Map<Long, long[]> readCounts(Connection conn, StatementBuilder sb) 
+                throws SQLException {
+        PreparedStatement ps = sb.toPreparedStatement(conn);
+        ResultSet rs = SQLUtil.execQuery(ps);
+        Map<Long, long[]> counts = new HashMap<Long, long[]>();
+        while (rs.next()) {
+            counts.put(rs.getLong(1),
+                       new long[] { rs.getLong(2), rs.getLong(3) });
+        }
+        ps.close();
+        return counts;
+    }
+
+    /**
+     * Subtract one set of per-locale counts from another.
+     * @return after - before, by locale id
+     */
+    static Map<Long, long[]> difference(Map<Long, long[]> after,
+                                        Map<Long, long[]> before) {
+        Map<Long, long[]> delta = new HashMap<Long, long[]>();
+        for (Map.Entry<Long, long[]> e : after.entrySet()) {
+            delta.put(e.getKey(), e.getValue().clone());
+        }
+        for (Map.Entry<Long, long[]> e : before.entrySet()) {
+            long[] d = delta.get(e.getKey());
+            if (d == null) {
+                d = new long[2];
+                delta.put(e.getKey(), d);
+            }
+            d[TUS] -= e.getValue()[TUS];
+            d[TUVS] -= e.getValue()[TUVS];
+        }
+        return delta;
+    }
+
+    // Rows of all zeroes are the same as missing rows
+    private static boolean equal(Map<Long, long[]> a, Map<Long, long[]> b) {
+        for (long[] d : difference(a, b).values()) {
+            if (d[TUS] != 0 || d[TUVS] != 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Count TUs and TUVs by locale for the TUVs of a single TU.
+     */
+    static <T extends TM3Data> Map<Long, long[]> countTuvs(
+                List<TM3Tuv<T>> tuvs) {
+        Map<Long, long[]> counts = new HashMap<Long, long[]>();
+        for (TM3Tuv<T> tuv : tuvs) {
+            long[] c = counts.get(tuv.getLocale().getId());
+            if (c == null) {
+                c = new long[] { 1, 0 };
+                counts.put(tuv.getLocale().getId(), c);
+            }
+            c[TUVS]++;
+        }
+        return counts;
+    }
+}
@@ -13,8 +13,10 @@ class Trigrammer {
 
     static class Trigram {
         long[] fingerprints;
+        TM3TrigramHash hash;
 
-        public Trigram(Long fp0, Long fp1, Long fp2) {
+        public Trigram(TM3TrigramHash hash, Long fp0, Long fp1, Long fp2) {
+            this.hash = hash;
             fingerprints = new long[3];
             fingerprints[0] = fp0.longValue();
             fingerprints[1] = fp1.longValue();
@@ -26,13 +28,22 @@ class Trigrammer {
         }
         
         public Long getValue() {
-            return fingerprints[0] + 31 *
-                        (fingerprints[1] + 31 * fingerprints[2]);
+            return hash.hash(fingerprints[0], fingerprints[1],
+                             fingerprints[2]);
         }
 
     }
 	
+    private TM3FingerprintFunction function;
+    private TM3TrigramHash hash;
+
     Trigrammer() {
+        this(TM3FingerprintFunction.MD5, TM3TrigramHash.V1);
+    }
+
+    Trigrammer(TM3FingerprintFunction function, TM3TrigramHash hash) {
+        this.function = function;
+        this.hash = hash;
     }
 
     // Like everything else, this is a slapdash affair.  There's lots of 
@@ -40,13 +51,13 @@ class Trigrammer {
     List<Trigram> getTrigrams(TM3Data data) {
         List<Long> fingerprints = new ArrayList<Long>();
         fingerprints.add(BOUNDARY);
-        for (Long tok : data.tokenize()) {
+        for (Long tok : function.fingerprintTokens(data)) {
             fingerprints.add(tok);
         }
         fingerprints.add(BOUNDARY);
         List<Trigram> trigrams = new ArrayList<Trigram>();
         for (int i = 0; i + 2 < fingerprints.size(); i++) {
-            trigrams.add(new Trigram(fingerprints.get(i),
+            trigrams.add(new Trigram(hash, fingerprints.get(i),
                                      fingerprints.get(i+1),
                                      fingerprints.get(i+2)));
         }
@@ -6,6 +6,7 @@ import java.sql.ResultSet;
 import java.sql.SQLException;
 import java.sql.Statement;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.Date;
@@ -56,7 +57,16 @@ abstract class TuStorage<T extends TM3Data> {
      * @param tu
      * @throws SQLException 
      */
-    public abstract void saveTu(Connection conn, TM3Tu<T> tu)
+    public void saveTu(Connection conn, TM3Tu<T> tu) throws SQLException {
+        insertTu(conn, tu);
+        storage.getStatistics().update(
+                TmStatistics.countTuvs(tu.getAllTuv()), 1);
+    }
+    
+    /**
+     * Write a new TU and all its TUVs and attributes.
+     */
+    protected abstract void insertTu(Connection conn, TM3Tu<T> tu)
                         throws SQLException;
     
     /**
@@ -66,16 +76,14 @@ abstract class TuStorage<T extends TM3Data> {
      * @throws SQLException
      */
     public void deleteTu(TM3Tu<T> tu) throws SQLException {
-        // TUV, Events, and AttrVals should both cascade.
-        SQLUtil.exec(getConnection(), new StatementBuilder()
-            .append("DELETE FROM ")
-            .append(storage.getTuTableName())
-            .append(" WHERE id = ?").addValue(tu.getId()));
+        deleteTusById(Collections.singletonList(tu.getId()));
     }
     
     /**
      * Deletes one or more TUs, along with all their TUVs, attributes,
-     * and history.
+     * and history.  The fuzzy index rows, attribute values and TUVs are
+     * deleted explicitly rather than left to cascade from the TU table, 
+     * so that the work done here is bounded by the size of the id list.
      * @param ids List of TU ids to delete
      * @throws SQLException
      */
@@ -83,11 +91,35 @@ abstract class TuStorage<T extends TM3Data> {
         if (ids.size() == 0) {
             return;
         }
-        SQLUtil.exec(getConnection(), new StatementBuilder()
+        Connection conn = getConnection();
+        Map<Long, long[]> before = getLocaleCounts(ids);
+        long tuCount = SQLUtil.execCountQuery(conn, new StatementBuilder()
+            .append("SELECT COUNT(id) FROM ")
+            .append(storage.getTuTableName())
+            .append(" WHERE id IN ")
+            .append(SQLUtil.longGroup(ids))
+            .append(tmCondition("")));
+        storage.getFuzzyIndex().deleteFingerprintsByTuId(ids);
+        SQLUtil.exec(conn, new StatementBuilder()
+            .append("DELETE FROM ")
+            .append(storage.getAttrValTableName())
+            .append(" WHERE tuId IN ")
+            .append(SQLUtil.longGroup(ids))
+            .append(tmCondition("")));
+        SQLUtil.exec(conn, new StatementBuilder()
+            .append("DELETE FROM ")
+            .append(storage.getTuvTableName())
+            .append(" WHERE tuId IN ")
+            .append(SQLUtil.longGroup(ids))
+            .append(tmCondition("")));
+        SQLUtil.exec(conn, new StatementBuilder()
             .append("DELETE FROM ")
             .append(storage.getTuTableName())
             .append(" WHERE id IN ")
-            .append(SQLUtil.longGroup(ids)));
+            .append(SQLUtil.longGroup(ids))
+            .append(tmCondition("")));
+        storage.getStatistics().update(TmStatistics.difference(
+                Collections.<Long, long[]>emptyMap(), before), -tuCount);
     }
 
     /**
@@ -101,24 +133,106 @@ abstract class TuStorage<T extends TM3Data> {
         if (tuvs.size() == 0) {
             return;
         }
+        List<Long> ids = new ArrayList<Long>();
         for (TM3Tuv<T> tuv : tuvs) {
             if (tuv.equals(tuv.getTu().getSourceTuv())) {
                 throw new IllegalArgumentException(
                         "Can't delete source TUV without deleting TU");
             }
+            ids.add(tuv.getId());
         }
+        deleteTuvsById(ids);
+    }
+
+    /**
+     * Delete TUVs by id, along with their fuzzy index entries.  No check 
+     * is made that these are not source TUVs.
+     */
+    void deleteTuvsById(List<Long> ids) throws SQLException {
+        if (ids.size() == 0) {
+            return;
+        }
+        List<Long> tuIds = SQLUtil.execIdsQuery(getConnection(), 
+            new StatementBuilder("SELECT DISTINCT tuId FROM ")
+                .append(storage.getTuvTableName())
+                .append(" WHERE id IN ")
+                .append(SQLUtil.longGroup(ids))
+                .append(tmCondition("")));
+        if (tuIds.size() == 0) {
+            return;
+        }
+        Map<Long, long[]> before = getLocaleCounts(tuIds);
+        storage.getFuzzyIndex().deleteFingerprintsByTuvId(ids);
         // Events will cascade
-        StatementBuilder sb = new StatementBuilder("DELETE FROM ")
+        SQLUtil.exec(getConnection(), new StatementBuilder("DELETE FROM ")
             .append(storage.getTuvTableName())
-            .append(" WHERE id IN (?").addValue(tuvs.get(0).getId());
-        for (int i = 1; i < tuvs.size(); i++) {
-            sb.append(",?").addValue(tuvs.get(i).getId());
+            .append(" WHERE id IN ")
+            .append(SQLUtil.longGroup(ids))
+            .append(tmCondition("")));
+        storage.getStatistics().update(TmStatistics.difference(
+                getLocaleCounts(tuIds), before), 0);
+    }
+
+    /**
+     * Count the TUs and TUVs in each locale among a set of TUs.
+     * @param tuIds TUs to count
+     * @return {tuCount, tuvCount} by locale id
+     */
+    Map<Long, long[]> getLocaleCounts(List<Long> tuIds) throws SQLException {
+        return TmStatistics.readCounts(getConnection(), new StatementBuilder()
+            .append("SELECT localeId, COUNT(DISTINCT tuId), COUNT(id) FROM ")
+            .append(storage.getTuvTableName())
+            .append(" WHERE tuId IN ")
+            .append(SQLUtil.longGroup(tuIds))
+            .append(tmCondition(""))
+            .append("GROUP BY localeId"));
+    }
+
+    /**
+     * Count the TUs and TUVs in each locale across the whole TM.
+     * @return {tuCount, tuvCount} by locale id
+     */
+    abstract Map<Long, long[]> getLocaleCounts() throws SQLException;
+
+    /**
+     * Find the target (non-source) TUVs in a given locale that belong
+     * to a set of TUs.
+     * @param tuIds TUs to search
+     * @param locale TUV locale
+     * @return TUV ids
+     */
+    List<Long> getTargetTuvIds(List<Long> tuIds, TM3Locale locale) 
+                throws SQLException {
+        if (tuIds.size() == 0) {
+            return Collections.emptyList();
         }
-        sb.append(")");
-        SQLUtil.exec(getConnection(), sb);
+        return SQLUtil.execIdsQuery(getConnection(), new StatementBuilder()
+            .append("SELECT tuv.id FROM ")
+            .append(storage.getTuvTableName()).append(" AS tuv, ")
+            .append(storage.getTuTableName()).append(" AS tu")
+            .append(" WHERE tu.id = tuv.tuId AND tuv.tuId IN")
+            .append(SQLUtil.longGroup(tuIds))
+            .append(tmCondition("tu.")).append(tmCondition("tuv."))
+            .append("AND tuv.localeId = ? AND tu.srcLocaleId != tuv.localeId")
+            .addValue(locale.getId()));
     }
        
-    public abstract void addTuvs(TM3Tu<T> tu, List<TM3Tuv<T>> tuvs) 
+    /**
+     * Add new TUVs to an existing TU.
+     */
+    public void addTuvs(TM3Tu<T> tu, List<TM3Tuv<T>> tuvs) 
+                            throws SQLException {
+        if (tuvs.size() == 0) {
+            return;
+        }
+        List<Long> tuIds = Collections.singletonList(tu.getId());
+        Map<Long, long[]> before = getLocaleCounts(tuIds);
+        insertTuvs(tu, tuvs);
+        storage.getStatistics().update(TmStatistics.difference(
+                getLocaleCounts(tuIds), before), 0);
+    }
+    
+    protected abstract void insertTuvs(TM3Tu<T> tu, List<TM3Tuv<T>> tuvs) 
                             throws SQLException;
     
     List<FuzzyCandidate<T>> loadFuzzyCandidates(List<Long> tuvIds,
@@ -126,32 +240,350 @@ abstract class TuStorage<T extends TM3Data> {
         if (tuvIds.size() == 0) {
             return Collections.emptyList();
         }
-        StringBuilder sb = new StringBuilder();
+        StatementBuilder sb = new StatementBuilder();
         sb.append("SELECT ")
-          .append("id, tuId, fingerprint, content")
+          .append(FUZZY_CANDIDATE_COLUMNS)
+          .append(getContentIdColumn())
           .append(" FROM ")
           .append(getStorage().getTuvTableName())
-          .append(" WHERE id IN")
-          .append(SQLUtil.longGroup(tuvIds));
-        Statement s = getConnection().createStatement();
-        ResultSet rs = SQLUtil.execQuery(s, sb.toString()); 
+          .append(" AS tuv WHERE id IN")
+          .append(SQLUtil.longGroup(tuvIds))
+          .append(tmCondition("tuv."));
+        PreparedStatement ps = sb.toPreparedStatement(getConnection());
+        ResultSet rs = SQLUtil.execQuery(ps); 
 
-        List<FuzzyCandidate<T>> fuzzies = new ArrayList<FuzzyCandidate<T>>();
+        List<TuvData<T>> rawTuvs = new ArrayList<TuvData<T>>();
         while (rs.next()) {
-            long id = rs.getLong(1);
-            long tuId = rs.getLong(2);
-            long fingerprint = rs.getLong(3);
-            String content = rs.getString(4);
-            TM3DataFactory<T> factory = getStorage().getTm().getDataFactory();
-            fuzzies.add(new FuzzyCandidate<T>(id, tuId, fingerprint,
-                    factory.fromSerializedForm(keyLocale, content)));
+            rawTuvs.add(readFuzzyCandidate(rs, 1, keyLocale));
+        }
+        ps.close();
+        return toFuzzyCandidates(rawTuvs, keyLocale);
+    }
+    
+    // Columns of the TUV table read for a fuzzy candidate, followed by 
+    // getContentIdColumn()
+    private static final String FUZZY_CANDIDATE_COLUMNS = 
+        "tuv.id, tuv.tuId, tuv.fingerprint, tuv.content, tuv.contentBlob, ";
+    
+    /**
+     * Join a fuzzy lookup query, whose first column is the TUV id, to the 
+     * TUV table, so that the candidates' content comes back in the same
+     * statement as their ranking.  The lookup columns are followed by 
+     * the columns read by {@link #readFuzzyCandidate}.
+     * @param lookup lookup query, including its LIMIT
+     * @param alias name the lookup columns are selected through
+     */
+    StatementBuilder getFusedFuzzyQuery(StatementBuilder lookup, 
+                                        String alias) {
+        return new StatementBuilder()
+            .append("SELECT ").append(alias).append(".*, ")
+            .append(FUZZY_CANDIDATE_COLUMNS)
+            .append(getContentIdColumn().equals("0") ? "0" : "tuv.contentId")
+            .append(" FROM (").append(lookup).append(") AS ").append(alias)
+            .append(" JOIN ").append(getStorage().getTuvTableName())
+            .append(" AS tuv ON tuv.id = ").append(alias).append(".tuvId")
+            .append(tmCondition("tuv."));
+    }
+    
+    /**
+     * Read a fuzzy candidate from the TUV columns of a result set.
+     * @param column index of the first of them
+     */
+    TuvData<T> readFuzzyCandidate(ResultSet rs, int column, 
+            TM3Locale keyLocale) throws SQLException {
+        TuvData<T> rawTuv = new TuvData<T>(rs.getLong(column + 1), 
+                rs.getLong(column), keyLocale.getId(), rs.getLong(column + 2),
+                readContent(rs, column + 3), 0, 0);
+        rawTuv.contentId = rs.getLong(column + 5);
+        return rawTuv;
+    }
+    
+    /**
+     * Turn raw candidates into fuzzy candidates, deserializing their 
+     * content.
+     */
+    List<FuzzyCandidate<T>> toFuzzyCandidates(List<TuvData<T>> rawTuvs,
+            TM3Locale keyLocale) throws SQLException {
+        resolveContent(rawTuvs);
+        ContentCache cache = new ContentCache();
+        List<FuzzyCandidate<T>> fuzzies = new ArrayList<FuzzyCandidate<T>>();
+        for (TuvData<T> rawTuv : rawTuvs) {
+            fuzzies.add(new FuzzyCandidate<T>(rawTuv.id, rawTuv.tuId, 
+                    rawTuv.fingerprint, cache.get(keyLocale, rawTuv.content)));
         }
-        s.close();
         return fuzzies;
     }    
 
     public abstract void updateTuvs(TM3Tu<T> tu, List<TM3Tuv<T>> tuvs,
                            TM3Event event) throws SQLException;
+    
+    /**
+     * Compress serialized TUV content for storage in the contentBlob
+     * column, if this TM stores its content compressed.  When this 
+     * returns a value, the content column should be left empty.
+     * @return encoded content, or null if the content should be stored
+     *         as text
+     */
+    protected byte[] encodeContent(String content) {
+        BaseTm<T> tm = storage.getTm();
+        return tm.isContentCompressed() ? 
+                tm.getContentCodec().encode(content) : null;
+    }
+    
+    /**
+     * Read serialized TUV content from a result set that has the 
+     * content and contentBlob columns side by side.
+     * @param column index of the content column
+     */
+    protected String readContent(ResultSet rs, int column) 
+                throws SQLException {
+        byte[] blob = rs.getBytes(column + 1);
+        if (blob == null) {
+            return rs.getString(column);
+        }
+        return storage.getTm().getContentCodec().decode(blob);
+    }
+    
+    /**
+     * Return the serialized content of up to count TUVs in this TM.
+     */
+    List<String> getContentSample(int count) throws SQLException {
+        List<Long> tuvIds = getTuvIdPage(0, count);
+        List<String> sample = new ArrayList<String>();
+        if (tuvIds.size() == 0) {
+            return sample;
+        }
+        PreparedStatement ps = new StatementBuilder()
+            .append("SELECT content, contentBlob FROM ")
+            .append(storage.getTuvTableName()).append(" WHERE id IN")
+            .append(SQLUtil.longGroup(tuvIds)).append(tmCondition(""))
+            .toPreparedStatement(getConnection());
+        ResultSet rs = SQLUtil.execQuery(ps);
+        while (rs.next()) {
+            sample.add(readContent(rs, 1));
+        }
+        ps.close();
+        return sample;
+    }
+    
+    /**
+     * Return a condition that restricts a query against this storage's
+     * tables to the current TM, for storage that is shared between TMs.
+     * Shared pools may be partitioned by tmId, and the condition lets 
+     * MySQL prune the partitions that it searches.  The default (for
+     * dedicated tables) is empty.
+     * @param alias table alias, with its trailing '.', or ""
+     * @return " AND [alias]tmId = ? ", with the TM id bound, or nothing
+     */
+    protected StatementBuilder tmCondition(String alias) {
+        StatementBuilder sb = new StatementBuilder();
+        Long tmId = getSharedTmId();
+        if (tmId != null) {
+            sb.append(" AND ").append(alias).append("tmId = ? ")
+              .addValue(tmId);
+        }
+        return sb;
+    }
+    
+    /**
+     * Return the TM whose rows {@link #tmCondition(String)} restricts 
+     * queries to, or null for dedicated tables.
+     */
+    protected Long getSharedTmId() {
+        return null;
+    }
+    
+    /**
+     * Return the column that refers to a TUV's row in the shared content
+     * table, or a constant 0 if this storage has no content table.
+     */
+    protected String getContentIdColumn() {
+        return storage.getContentTableName() == null ? "0" : "contentId";
+    }
+    
+    /**
+     * Fill in the content of TUVs whose content is kept in the shared
+     * content table.
+     */
+    protected void resolveContent(List<TuvData<T>> rawTuvs) 
+                throws SQLException {
+        Set<Long> contentIds = new HashSet<Long>();
+        for (TuvData<T> rawTuv : rawTuvs) {
+            if (rawTuv.contentId > 0) {
+                contentIds.add(rawTuv.contentId);
+            }
+        }
+        if (contentIds.size() == 0) {
+            return;
+        }
+        Map<Long, String> contents = new HashMap<Long, String>();
+        Statement s = getConnection().createStatement();
+        ResultSet rs = SQLUtil.execQuery(s, "SELECT id, content FROM " +
+                storage.getContentTableName() + " WHERE id IN" +
+                SQLUtil.longGroup(new ArrayList<Long>(contentIds)));
+        while (rs.next()) {
+            contents.put(rs.getLong(1), rs.getString(2));
+        }
+        s.close();
+        for (TuvData<T> rawTuv : rawTuvs) {
+            if (rawTuv.contentId > 0) {
+                rawTuv.content = contents.get(rawTuv.contentId);
+            }
+        }
+    }
+    
+    /**
+     * If this TM deduplicates its content, find or create rows in the
+     * shared content table for a list of serialized content.  Rows that
+     * are found are share-locked, so that they can't be purged before
+     * the caller's TUVs refer to them.  Two TMs that store the same new
+     * content at the same time may each create a row for it; this costs
+     * some space, but is otherwise harmless.
+     * @param fingerprints content fingerprints
+     * @param contents serialized content, in the same order
+     * @return content ids, in the same order, or a list of nulls if this
+     *         TM doesn't deduplicate content
+     */
+    protected List<Long> storeSharedContent(List<Long> fingerprints, 
+            List<String> contents) throws SQLException {
+        List<Long> ids = new ArrayList<Long>(
+                Collections.<Long>nCopies(contents.size(), null));
+        if (!storage.isContentDeduplicated() || contents.size() == 0) {
+            return ids;
+        }
+        Connection conn = getConnection();
+        String table = storage.getContentTableName();
+        Map<String, Long> existing = new HashMap<String, Long>();
+        Statement s = conn.createStatement();
+        ResultSet rs = SQLUtil.execQuery(s, "SELECT id, content FROM " +
+                table + " WHERE fingerprint IN" +
+                SQLUtil.longGroup(new ArrayList<Long>(
+                        new HashSet<Long>(fingerprints))) +
+                "LOCK IN SHARE MODE");
+        while (rs.next()) {
+            existing.put(rs.getString(2), rs.getLong(1));
+        }
+        s.close();
+        for (int i = 0; i < contents.size(); i++) {
+            String content = contents.get(i);
+            Long id = existing.get(content);
+            if (id == null) {
+                SQLUtil.exec(conn, new StatementBuilder()
+                    .append("INSERT INTO ").append(table)
+                    .append(" (fingerprint, content) VALUES (?, ?)")
+                    .addValues(fingerprints.get(i), content));
+                id = SQLUtil.getLastInsertId(conn);
+                existing.put(content, id);
+            }
+            ids.set(i, id);
+        }
+        return ids;
+    }
+    
+    /**
+     * Find or create shared content rows for a list of TUVs.
+     * @see #storeSharedContent(List, List)
+     */
+    protected List<Long> storeSharedContent(List<TM3Tuv<T>> tuvs) 
+                throws SQLException {
+        List<Long> fingerprints = new ArrayList<Long>();
+        List<String> contents = new ArrayList<String>();
+        for (TM3Tuv<T> tuv : tuvs) {
+            fingerprints.add(tuv.getFingerprint());
+            contents.add(tuv.getSerializedForm());
+        }
+        return storeSharedContent(fingerprints, contents);
+    }
+    
+    /**
+     * Rewrite the stored content of a page of TUVs to match the TM's
+     * current compression and deduplication settings.  TUVs that are 
+     * already stored in the right form are left alone.
+     * @return id of the last TUV examined, or 0 if there were none
+     */
+    long migrateContent(long startId, int count) throws SQLException {
+        List<Long> tuvIds = getTuvIdPage(startId, count);
+        if (tuvIds.size() == 0) {
+            return 0;
+        }
+        Connection conn = getConnection();
+        PreparedStatement ps = new StatementBuilder()
+            .append("SELECT id, fingerprint, content, contentBlob, ")
+            .append(getContentIdColumn()).append(" FROM ")
+            .append(storage.getTuvTableName()).append(" WHERE id IN")
+            .append(SQLUtil.longGroup(tuvIds)).append(tmCondition(""))
+            .append(" FOR UPDATE")
+            .toPreparedStatement(conn);
+        ResultSet rs = SQLUtil.execQuery(ps);
+        List<TuvData<T>> rawTuvs = new ArrayList<TuvData<T>>();
+        List<byte[]> oldBlobs = new ArrayList<byte[]>();
+        while (rs.next()) {
+            TuvData<T> rawTuv = new TuvData<T>(0, rs.getLong(1), 0, 
+                    rs.getLong(2), readContent(rs, 3), 0, 0);
+            rawTuv.contentId = rs.getLong(5);
+            rawTuvs.add(rawTuv);
+            oldBlobs.add(rs.getBytes(4));
+        }
+        ps.close();
+        resolveContent(rawTuvs);
+
+        List<Long> fingerprints = new ArrayList<Long>();
+        List<String> contents = new ArrayList<String>();
+        for (TuvData<T> rawTuv : rawTuvs) {
+            fingerprints.add(rawTuv.fingerprint);
+            contents.add(rawTuv.content);
+        }
+        List<Long> contentIds = storeSharedContent(fingerprints, contents);
+        boolean hasContentTable = storage.getContentTableName() != null;
+        BatchStatementBuilder sb = new BatchStatementBuilder("UPDATE ")
+            .append(storage.getTuvTableName())
+            .append(" SET content = ?, contentBlob = ?")
+            .append(hasContentTable ? ", contentId = ?" : "")
+            .append(" WHERE id = ?");
+        // The batch rows carry the TM id themselves
+        Long sharedTmId = getSharedTmId();
+        if (sharedTmId != null) {
+            sb.append(" AND tmId = ?");
+        }
+        int changed = 0;
+        for (int i = 0; i < rawTuvs.size(); i++) {
+            TuvData<T> rawTuv = rawTuvs.get(i);
+            Long contentId = contentIds.get(i);
+            byte[] oldBlob = oldBlobs.get(i);
+            byte[] newBlob = contentId == null ? 
+                    encodeContent(rawTuv.content) : null;
+            long oldContentId = rawTuv.contentId;
+            if (oldContentId == (contentId == null ? 0 : contentId) &&
+                    Arrays.equals(oldBlob, newBlob)) {
+                continue;
+            }
+            String content = (contentId == null && newBlob == null) ? 
+                    rawTuv.content : "";
+            List<Object> values = new ArrayList<Object>();
+            values.add(content);
+            values.add(newBlob);
+            if (hasContentTable) {
+                values.add(contentId);
+            }
+            values.add(rawTuv.id);
+            if (sharedTmId != null) {
+                values.add(sharedTmId);
+            }
+            sb.addBatch(values.toArray());
+            changed++;
+        }
+        if (changed > 0) {
+            SQLUtil.execBatch(conn, sb);
+        }
+        return tuvIds.get(tuvIds.size() - 1);
+    }
+    
+    /**
+     * Return the ids of up to count TUVs in this TM with ids greater 
+     * than startId, in ascending order.
+     */
+    protected abstract List<Long> getTuvIdPage(long startId, int count)
+                throws SQLException;
         
     public void updateAttributes(TM3Tu<T> tu,
             Map<TM3Attribute, Object> inlineAttributes,
@@ -184,7 +616,8 @@ abstract class TuStorage<T extends TM3Data> {
     void deleteCustomAttributes(long tuId) throws SQLException {
         SQLUtil.exec(getConnection(), new StatementBuilder("DELETE FROM ")
                 .append(storage.getAttrValTableName())
-                .append(" WHERE tuId = ?").addValue(tuId));
+                .append(" WHERE tuId = ?").addValue(tuId)
+                .append(tmCondition("")));
     }
 
     public TM3Tu<T> getTu(Long id, boolean locking) throws SQLException {
@@ -269,15 +702,14 @@ OUTER:  for (FuzzyCandidate<T> candidate : candidates) {
         return (TM3Attribute)session.get(TM3Attribute.class, id);
     }    
   
-    protected TM3Tuv<T> createTuv(TuvData<T> rawData) {
+    protected TM3Tuv<T> createTuv(TuvData<T> rawData, ContentCache cache) {
         TM3Tuv<T> tuv = new TM3Tuv<T>();
         tuv.setId(rawData.id);
         TM3Locale locale = storage.getTm().getDataFactory()
                 .getLocaleById(storage.getTm().getSession(), rawData.localeId);
         tuv.setLocale(locale);
         tuv.setFingerprint(rawData.fingerprint);
-        tuv.setContent(storage.getTm().getDataFactory()
-                .fromSerializedForm(locale, rawData.content));
+        tuv.setContent(cache.get(locale, rawData.content));
         TM3Event firstEvent = null;
         if (rawData.firstEventId > 0) { // Check for null value
             firstEvent = (TM3Event)getStorage().getSession()
@@ -315,6 +747,32 @@ OUTER:  for (FuzzyCandidate<T> candidate : candidates) {
         Map<TM3Attribute, Object> attrs = new HashMap<TM3Attribute, Object>(); 
     }
 
+    /**
+     * Content deserialized during a single load.  Highly repetitive TMs
+     * store the same content in many TUVs; this deserializes each 
+     * distinct piece of content only once per locale, and shares the
+     * result between the TUVs.
+     */
+    class ContentCache {
+        private Map<Long, Map<String, T>> cache = 
+            new HashMap<Long, Map<String, T>>();
+
+        T get(TM3Locale locale, String serialized) {
+            Map<String, T> forLocale = cache.get(locale.getId());
+            if (forLocale == null) {
+                forLocale = new HashMap<String, T>();
+                cache.put(locale.getId(), forLocale);
+            }
+            T data = forLocale.get(serialized);
+            if (data == null) {
+                data = storage.getTm().getDataFactory()
+                    .fromSerializedForm(locale, serialized);
+                forLocale.put(serialized, data);
+            }
+            return data;
+        }
+    }
+    
     static class TuvData<T extends TM3Data> {
         long id;
         long tuId;
@@ -323,6 +781,7 @@ OUTER:  for (FuzzyCandidate<T> candidate : candidates) {
         String content;
         long firstEventId;
         long lastEventId;
+        long contentId; // row in the shared content table, or 0
         TuvData(long tuId, long id, long localeId, long fingerprint, 
                 String content, long firstEventId, long lastEventId) { 
             this.id = id;
@@ -440,18 +899,12 @@ OUTER:  for (FuzzyCandidate<T> candidate : candidates) {
     public abstract long getTuvCount(Date start, Date end) 
                         throws SQLException;
 
-    public abstract void deleteTus(Date start, Date end) 
-                        throws SQLException;
-    
     public abstract long getTuCountByLocale(TM3Locale locale,
                         Date start, Date end) throws SQLException;
     
     public abstract long getTuvCountByLocale(TM3Locale locale,
                         Date start, Date end) throws SQLException;
 
-    public abstract void deleteTuvsByLocale(TM3Locale locale)
-                        throws SQLException;
-
     public abstract long getTuCountByAttributes(
             Map<TM3Attribute, Object> inlineAttrs,
             Map<TM3Attribute, String> customAttrs,
@@ -463,10 +916,30 @@ OUTER:  for (FuzzyCandidate<T> candidate : candidates) {
                 Date start, Date end) throws SQLException;
     
     // Paging interface for data handles
-    public abstract List<TM3Tu<T>> getTuPage(long startId, int count, 
+    public List<TM3Tu<T>> getTuPage(long startId, int count, 
+                Date start, Date end) throws SQLException {
+        return getTu(getTuIdPage(startId, count, start, end), false);
+    }
+
+    /**
+     * Return the ids of up to count TUs with ids greater than startId, 
+     * in ascending order, optionally qualified by a date range.
+     */
+    public abstract List<Long> getTuIdPage(long startId, int count, 
                 Date start, Date end) throws SQLException;
     
-    public abstract List<TM3Tu<T>> getTuPageByLocale(long startId, int count, 
+    public List<TM3Tu<T>> getTuPageByLocale(long startId, int count, 
+            TM3Locale locale, Date start, Date end) throws SQLException {
+        return getTu(getTuIdPageByLocale(startId, count, locale, start, end), 
+                     false);
+    }
+
+    /**
+     * Return the ids of up to count TUs with ids greater than startId 
+     * that have a TUV in the specified locale, in ascending order, 
+     * optionally qualified by a date range.
+     */
+    public abstract List<Long> getTuIdPageByLocale(long startId, int count, 
             TM3Locale locale, Date start, Date end) throws SQLException;
 
     public abstract List<TM3Tu<T>> getTuPageByAttributes(long startId, int count, 
@@ -474,6 +947,42 @@ OUTER:  for (FuzzyCandidate<T> candidate : candidates) {
             Map<TM3Attribute, String> customAttrs,
             Date start, Date end) throws SQLException;
     
+    /**
+     * Fill in the lastModified column for TUVs that were written before
+     * it existed, using the time of each TUV's latest event.
+     * @param chunkSize maximum number of TUVs to update in one statement
+     * @return number of TUVs updated
+     */
+    int backfillLastModified(int chunkSize) throws SQLException {
+        int updated = 0;
+        long startId = 0;
+        while (true) {
+            List<Long> tuvIds = 
+                getTuvIdPageMissingLastModified(startId, chunkSize);
+            if (tuvIds.size() == 0) {
+                break;
+            }
+            SQLUtil.exec(getConnection(), new StatementBuilder()
+                .append("UPDATE ")
+                .append(storage.getTuvTableName()).append(" AS tuv, ")
+                .append("TM3_EVENTS AS event ")
+                .append("SET tuv.lastModified = event.time ")
+                .append("WHERE tuv.lastEventId = event.id AND tuv.id IN")
+                .append(SQLUtil.longGroup(tuvIds))
+                .append(tmCondition("tuv.")));
+            updated += tuvIds.size();
+            startId = tuvIds.get(tuvIds.size() - 1);
+        }
+        return updated;
+    }
+    
+    /**
+     * Return the ids of up to count TUVs with ids greater than startId
+     * whose lastModified column is not set, in ascending order.
+     */
+    protected abstract List<Long> getTuvIdPageMissingLastModified(
+            long startId, int count) throws SQLException;
+    
     // Support for the "get tu by tuv" hack.
     protected abstract long getTuIdByTuvId(Long tuvId) throws SQLException;
 
@@ -221,6 +221,75 @@ public class SQLUtil {
         ps.close();
     }
     
+    /**
+     * Check whether the current database has a given table.
+     */
+    public static boolean tableExists(Connection conn, String table) 
+                        throws SQLException {
+        return execCountQuery(conn, new StatementBuilder()
+            .append("SELECT COUNT(*) FROM information_schema.tables ")
+            .append("WHERE table_schema = DATABASE() AND table_name = ?")
+            .addValue(table)) > 0;
+    }
+    
+    /**
+     * Check whether a table in the current database has a given column.
+     * @param conn
+     * @param table table name
+     * @param column column name
+     * @throws SQLException
+     */
+    public static boolean columnExists(Connection conn, String table, 
+                        String column) throws SQLException {
+        return execCountQuery(conn, new StatementBuilder()
+            .append("SELECT COUNT(*) FROM information_schema.columns ")
+            .append("WHERE table_schema = DATABASE() AND table_name = ? ")
+            .append("AND column_name = ?")
+            .addValues(table, column)) > 0;
+    }
+    
+    public static boolean indexExists(Connection conn, String table, 
+                        String index) throws SQLException {
+        return execCountQuery(conn, new StatementBuilder()
+            .append("SELECT COUNT(*) FROM information_schema.statistics ")
+            .append("WHERE table_schema = DATABASE() AND table_name = ? ")
+            .append("AND index_name = ?")
+            .addValues(table, index)) > 0;
+    }
+    
+    /**
+     * @return the number of partitions of a table, or 0 if it is not 
+     *         partitioned
+     */
+    public static int getPartitionCount(Connection conn, String table)
+                        throws SQLException {
+        return (int) execCountQuery(conn, new StatementBuilder()
+            .append("SELECT COUNT(*) FROM information_schema.partitions ")
+            .append("WHERE table_schema = DATABASE() AND table_name = ? ")
+            .addValue(table)
+            .append("AND partition_name IS NOT NULL"));
+    }
+    
+    /**
+     * @return the names of the foreign key constraints on a table
+     */
+    public static List<String> getForeignKeys(Connection conn, String table) 
+                        throws SQLException {
+        PreparedStatement ps = new StatementBuilder()
+            .append("SELECT constraint_name ")
+            .append("FROM information_schema.referential_constraints ")
+            .append("WHERE constraint_schema = DATABASE() AND table_name = ?")
+            .addValue(table)
+            .toPreparedStatement(conn);
+        ResultSet rs = execQuery(ps);
+        List<String> names = new ArrayList<String>();
+        while (rs.next()) {
+            names.add(rs.getString(1));
+        }
+        ps.close();
+        return names;
+    }
+    
     // Does not check for empty list
     public static StringBuilder longGroup(List<Long> ids) {
         StringBuilder sb = new StringBuilder();
@@ -0,0 +1,119 @@
+package com.globalsight.ling.tm3.tools;
+
+import java.io.PrintStream;
+import java.util.Arrays;
+import java.util.List;
+
+import org.apache.commons.cli.CommandLine;
+import org.apache.commons.cli.Options;
+import org.hibernate.Session;
+
+import com.globalsight.ling.tm3.core.TM3Attributes;
+import com.globalsight.ling.tm3.core.TM3Data;
+import com.globalsight.ling.tm3.core.TM3MatchType;
+import com.globalsight.ling.tm3.core.TM3Tm;
+import com.globalsight.ling.tm3.core.TM3Tuv;
+
+// Usage:
+// bench-exact [-count n] [-rounds n] id
+@SuppressWarnings({"unchecked", "static-access"})
+class BenchExactCommand extends TM3Command {
+
+    @Override
+    public String getDescription() {
+        return "measure exact match lookup latency";
+    }
+
+    @Override
+    public String getName() {
+        return "bench-exact";
+    }
+
+    @Override
+    protected String getUsageLine() {
+        return getName() + " [options] tmId";
+    }
+
+    @Override
+    protected void printExtraHelp(PrintStream out) {
+        out.println("Looks up the source segments of the first TUs in the TM");
+        out.println("as exact matches, and prints the lookup times.  The first");
+        out.println("round warms up the caches and is not counted.  Run this");
+        out.println("before and after 'upgrade' to compare index layouts.");
+    }
+
+    @Override
+    public Options getOptions() {
+        return getDefaultOptions().addOption(COUNT_OPT).addOption(ROUNDS_OPT);
+    }
+
+    @Override
+    protected boolean requiresDataFactory() {
+        return true;
+    }
+
+    @Override
+    protected void handle(Session session, CommandLine command)
+            throws Exception {
+        int count = getIntOption(command, COUNT, 1000);
+        int rounds = getIntOption(command, ROUNDS, 3);
+        List<String> args = command.getArgList();
+        if (args.size() != 1) {
+            usage("Must specify one TM id");
+        }
+        TM3Tm tm = getTm(session, args.get(0));
+        if (tm == null) {
+            usage("Not a valid id: " + args.get(0));
+        }
+        bench(tm, count, rounds);
+    }
+
+    /**
+     * Look up a segment, and return the number of matches.
+     */
+    protected <T extends TM3Data> int lookup(TM3Tm<T> tm, TM3Tuv<T> key)
+            throws Exception {
+        return tm.findMatches(key.getContent(), key.getLocale(), null, 
+                TM3Attributes.NONE, TM3MatchType.EXACT, false)
+                .getMatches().size();
+    }
+
+    protected <T extends TM3Data> void bench(TM3Tm<T> tm, int count, int rounds)
+            throws Exception {
+        List<TM3Tuv<T>> keys = getKeys(tm, count);
+        if (keys.size() == 0) {
+            System.out.println("TM " + tm.getId() + " is empty");
+            return;
+        }
+        long[] times = new long[keys.size() * rounds];
+        int found = 0;
+        for (int r = 0; r <= rounds; r++) {
+            for (int i = 0; i < keys.size(); i++) {
+                TM3Tuv<T> key = keys.get(i);
+                long start = System.nanoTime();
+                int n = lookup(tm, key);
+                long elapsed = System.nanoTime() - start;
+                // Round 0 is the warmup
+                if (r > 0) {
+                    times[(r - 1) * keys.size() + i] = elapsed;
+                    if (n > 0) {
+                        found++;
+                    }
+                }
+            }
+        }
+        Arrays.sort(times);
+        long total = 0;
+        for (long t : times) {
+            total += t;
+        }
+        System.out.println("TM " + tm.getId() + ": " + times.length +
+                " lookups, " + found + " matched");
+        System.out.printf("mean %.3fms, median %.3fms, 95%% %.3fms, " +
+                "max %.3fms\n",
+                total / (double) times.length / 1e6,
+                times[times.length / 2] / 1e6,
+                times[(int) (times.length * 0.95)] / 1e6,
+                times[times.length - 1] / 1e6);
+    }
+}
@@ -0,0 +1,134 @@
+package com.globalsight.ling.tm3.tools;
+
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.apache.commons.cli.CommandLine;
+import org.apache.commons.cli.Options;
+import org.hibernate.Session;
+
+import com.globalsight.ling.tm3.core.TM3Data;
+import com.globalsight.ling.tm3.core.TM3FingerprintFunction;
+import com.globalsight.ling.tm3.core.TM3Tm;
+import com.globalsight.ling.tm3.core.TM3TokenizedData;
+import com.globalsight.ling.tm3.core.TM3Tuv;
+
+// Usage:
+// bench-fingerprint [-count n] [-rounds n] id
+@SuppressWarnings({"unchecked", "static-access"})
+class BenchFingerprintCommand extends TM3Command {
+
+    @Override
+    public String getDescription() {
+        return "measure the speed of each fingerprint function";
+    }
+
+    @Override
+    public String getName() {
+        return "bench-fingerprint";
+    }
+
+    @Override
+    protected String getUsageLine() {
+        return getName() + " [options] tmId";
+    }
+
+    @Override
+    protected boolean requiresDataFactory() {
+        return true;
+    }
+
+    @Override
+    protected void printExtraHelp(PrintStream out) {
+        out.println("Fingerprints the tokens of the source segments of the");
+        out.println("first TUs in the TM with each fingerprint function, and");
+        out.println("prints the time per token and the speedup over MD5.  If");
+        out.println("the TM's data can't return its tokens, the segments are");
+        out.println("split on whitespace instead.  The first round warms up");
+        out.println("the JIT and is not counted.");
+    }
+
+    @Override
+    public Options getOptions() {
+        return getDefaultOptions().addOption(COUNT_OPT).addOption(ROUNDS_OPT);
+    }
+
+    @Override
+    protected void handle(Session session, CommandLine command)
+            throws Exception {
+        int count = getIntOption(command, COUNT, 1000);
+        int rounds = getIntOption(command, ROUNDS, 3);
+        List<String> args = command.getArgList();
+        if (args.size() != 1) {
+            usage("Must specify one TM id");
+        }
+        TM3Tm tm = getTm(session, args.get(0));
+        if (tm == null) {
+            usage("Not a valid id: " + args.get(0));
+        }
+        List<String> tokens = getTokens(getKeys(tm, count));
+        if (tokens.size() == 0) {
+            System.out.println("TM " + tm.getId() + " is empty");
+            return;
+        }
+        System.out.println("TM " + tm.getId() + ": " + tokens.size() +
+                " tokens, " + rounds + " rounds, TM uses " +
+                tm.getFingerprintFunction());
+        double md5 = 0;
+        for (TM3FingerprintFunction function :
+                    TM3FingerprintFunction.values()) {
+            double perToken = time(function, tokens, rounds);
+            if (function == TM3FingerprintFunction.MD5) {
+                md5 = perToken;
+            }
+            System.out.printf("%-8s %8.1fns/token", function, perToken);
+            if (md5 > 0) {
+                System.out.printf("  %5.1fx", md5 / perToken);
+            }
+            System.out.println();
+        }
+    }
+
+    private <T extends TM3Data> List<String> getTokens(List<TM3Tuv<T>> keys) {
+        List<String> tokens = new ArrayList<String>();
+        for (TM3Tuv<T> key : keys) {
+            T content = key.getContent();
+            if (content instanceof TM3TokenizedData) {
+                for (String token : ((TM3TokenizedData) content).getTokens()) {
+                    tokens.add(token);
+                }
+            }
+            else {
+                for (String token : content.getSerializedForm().split("\\s+")) {
+                    if (token.length() > 0) {
+                        tokens.add(token);
+                    }
+                }
+            }
+        }
+        return tokens;
+    }
+
+    // Mean nanoseconds per token, over the timed rounds
+    private double time(TM3FingerprintFunction function, List<String> tokens,
+            int rounds) {
+        long elapsed = 0;
+        long sink = 0;
+        for (int r = 0; r <= rounds; r++) {
+            long start = System.nanoTime();
+            for (String token : tokens) {
+                sink ^= function.fingerprint(token);
+            }
+            // Round 0 is the warmup
+            if (r > 0) {
+                elapsed += System.nanoTime() - start;
+            }
+        }
+        // Keep the JIT from dropping the loop
+        if (sink == 42) {
+            System.out.print("");
+        }
+        return elapsed / (double) Math.max(1, rounds) / tokens.size();
+    }
+}
@@ -0,0 +1,76 @@
+package com.globalsight.ling.tm3.tools;
+
+import java.io.PrintStream;
+
+import org.apache.commons.cli.CommandLine;
+import org.apache.commons.cli.Option;
+import org.apache.commons.cli.OptionBuilder;
+import org.apache.commons.cli.Options;
+import org.hibernate.Session;
+
+import com.globalsight.ling.tm3.core.TM3Attributes;
+import com.globalsight.ling.tm3.core.TM3Data;
+import com.globalsight.ling.tm3.core.TM3MatchType;
+import com.globalsight.ling.tm3.core.TM3Tm;
+import com.globalsight.ling.tm3.core.TM3Tuv;
+
+// Usage:
+// bench-fuzzy [-count n] [-rounds n] [-threshold n] [-max n] id
+@SuppressWarnings("static-access")
+class BenchFuzzyCommand extends BenchExactCommand {
+
+    @Override
+    public String getDescription() {
+        return "measure fuzzy match lookup latency";
+    }
+
+    @Override
+    public String getName() {
+        return "bench-fuzzy";
+    }
+
+    @Override
+    protected void printExtraHelp(PrintStream out) {
+        out.println("Looks up the source segments of the first TUs in the TM");
+        out.println("as fuzzy matches, and prints the lookup times.  The first");
+        out.println("round warms up the caches and is not counted.  Every key");
+        out.println("matches at least itself.");
+    }
+
+    static final String THRESHOLD = "threshold";
+    static final Option THRESHOLD_OPT = OptionBuilder
+        .withArgName("n")
+        .hasArg()
+        .withDescription("minimum match score (default 75)")
+        .create(THRESHOLD);
+    static final String MAX = "max";
+    static final Option MAX_OPT = OptionBuilder
+        .withArgName("n")
+        .hasArg()
+        .withDescription("maximum matches per lookup (default 10)")
+        .create(MAX);
+
+    private int threshold;
+    private int maxResults;
+
+    @Override
+    public Options getOptions() {
+        return super.getOptions().addOption(THRESHOLD_OPT).addOption(MAX_OPT);
+    }
+
+    @Override
+    protected void handle(Session session, CommandLine command)
+            throws Exception {
+        threshold = getIntOption(command, THRESHOLD, 75);
+        maxResults = getIntOption(command, MAX, 10);
+        super.handle(session, command);
+    }
+
+    @Override
+    protected <T extends TM3Data> int lookup(TM3Tm<T> tm, TM3Tuv<T> key)
+            throws Exception {
+        return tm.findMatches(key.getContent(), key.getLocale(), null,
+                TM3Attributes.NONE, TM3MatchType.ALL, false, maxResults,
+                threshold).getMatches().size();
+    }
+}
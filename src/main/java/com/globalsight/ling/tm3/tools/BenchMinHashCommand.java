@@ -0,0 +1,141 @@
+package com.globalsight.ling.tm3.tools;
+
+import java.io.PrintStream;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import org.apache.commons.cli.CommandLine;
+import org.apache.commons.cli.Options;
+import org.hibernate.Session;
+
+import com.globalsight.ling.tm3.core.TM3Attributes;
+import com.globalsight.ling.tm3.core.TM3Data;
+import com.globalsight.ling.tm3.core.TM3LeverageMatch;
+import com.globalsight.ling.tm3.core.TM3MatchType;
+import com.globalsight.ling.tm3.core.TM3Tm;
+import com.globalsight.ling.tm3.core.TM3Tuv;
+
+// Usage:
+// bench-minhash [-count n] [-max n] id
+@SuppressWarnings({"unchecked", "static-access"})
+class BenchMinHashCommand extends TM3Command {
+
+    // Thresholds that recall is reported at
+    static final int[] THRESHOLDS = { 75, 85, 95 };
+
+    @Override
+    public String getDescription() {
+        return "measure MinHash index recall against the fingerprint index";
+    }
+
+    @Override
+    public String getName() {
+        return "bench-minhash";
+    }
+
+    @Override
+    protected String getUsageLine() {
+        return getName() + " [options] tmId";
+    }
+
+    @Override
+    protected boolean requiresDataFactory() {
+        return true;
+    }
+
+    @Override
+    protected void printExtraHelp(PrintStream out) {
+        out.println("Looks up the source segments of the first TUs in the TM");
+        out.println("as fuzzy matches, once with the fingerprint index and");
+        out.println("once with the MinHash index, and prints the share of the");
+        out.println("fingerprint index's matches (other than the key itself)");
+        out.println("that the MinHash index also found, at each threshold,");
+        out.println("along with the mean lookup times.  The TM must have a");
+        out.println("complete MinHash index; see the minhash command.");
+    }
+
+    @Override
+    public Options getOptions() {
+        return getDefaultOptions().addOption(COUNT_OPT)
+            .addOption(BenchFuzzyCommand.MAX_OPT);
+    }
+
+    @Override
+    protected void handle(Session session, CommandLine command)
+            throws Exception {
+        int count = getIntOption(command, COUNT, 1000);
+        int max = getIntOption(command, BenchFuzzyCommand.MAX, 10);
+        List<String> args = command.getArgList();
+        if (args.size() != 1) {
+            usage("Must specify one TM id");
+        }
+        TM3Tm tm = getTm(session, args.get(0));
+        if (tm == null) {
+            usage("Not a valid id: " + args.get(0));
+        }
+        if (!tm.isMinHashIndexReady()) {
+            usage("TM " + tm.getId() + " has no complete MinHash index");
+        }
+        benchRecall(tm, count, max);
+    }
+
+    private <T extends TM3Data> void benchRecall(TM3Tm<T> tm, int count,
+            int max) throws Exception {
+        List<TM3Tuv<T>> keys = getKeys(tm, count);
+        int[] expected = new int[THRESHOLDS.length];
+        int[] found = new int[THRESHOLDS.length];
+        long[] times = new long[2];
+        for (TM3Tuv<T> key : keys) {
+            tm.setMinHashLookup(false);
+            long start = System.nanoTime();
+            Collection<TM3LeverageMatch<T>> reference = lookup(tm, key, max);
+            times[0] += System.nanoTime() - start;
+            tm.setMinHashLookup(true);
+            start = System.nanoTime();
+            Collection<TM3LeverageMatch<T>> minHash = lookup(tm, key, max);
+            times[1] += System.nanoTime() - start;
+
+            Set<Long> minHashIds = new HashSet<Long>();
+            for (TM3LeverageMatch<T> m : minHash) {
+                minHashIds.add(m.getTuv().getId());
+            }
+            for (TM3LeverageMatch<T> m : reference) {
+                if (m.getTuv().getId().equals(key.getId())) {
+                    continue;
+                }
+                for (int i = 0; i < THRESHOLDS.length; i++) {
+                    if (m.getScore() >= THRESHOLDS[i]) {
+                        expected[i]++;
+                        if (minHashIds.contains(m.getTuv().getId())) {
+                            found[i]++;
+                        }
+                    }
+                }
+            }
+        }
+        tm.setMinHashLookup(true);
+        System.out.println("TM " + tm.getId() + ": " + keys.size() + 
+                " lookups, " + tm.getMinHashBands() + " bands of " + 
+                tm.getMinHashRows() + " rows");
+        for (int i = 0; i < THRESHOLDS.length; i++) {
+            System.out.printf("%d%%: recall %.3f (%d of %d matches)\n",
+                    THRESHOLDS[i], expected[i] == 0 ? 1.0 : 
+                    found[i] / (double) expected[i], found[i], expected[i]);
+        }
+        if (keys.size() > 0) {
+            System.out.printf("mean fingerprint %.3fms, MinHash %.3fms\n",
+                    times[0] / (double) keys.size() / 1e6,
+                    times[1] / (double) keys.size() / 1e6);
+        }
+    }
+
+    // Fuzzy matches at the lowest threshold
+    private <T extends TM3Data> Collection<TM3LeverageMatch<T>> lookup(
+            TM3Tm<T> tm, TM3Tuv<T> key, int max) throws Exception {
+        return tm.findMatches(key.getContent(), key.getLocale(), null,
+                TM3Attributes.NONE, TM3MatchType.ALL, false, 
+                max, THRESHOLDS[0]).getMatches();
+    }
+}
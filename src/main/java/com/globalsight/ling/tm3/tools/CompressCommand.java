@@ -0,0 +1,114 @@
+package com.globalsight.ling.tm3.tools;
+
+import java.io.PrintStream;
+import java.util.List;
+
+import org.apache.commons.cli.CommandLine;
+import org.apache.commons.cli.Option;
+import org.apache.commons.cli.OptionBuilder;
+import org.apache.commons.cli.Options;
+import org.hibernate.Session;
+
+import com.globalsight.ling.tm3.core.TM3SharedTm;
+import com.globalsight.ling.tm3.core.TM3Tm;
+
+// Usage:
+// compress [-off] [-dedup] [-batch n] id [id..]
+@SuppressWarnings({"unchecked", "static-access"})
+class CompressCommand extends TM3Command {
+
+    @Override
+    public String getDescription() {
+        return "turn TUV content compression on or off";
+    }
+
+    @Override
+    public String getName() {
+        return "compress";
+    }
+
+    @Override
+    protected String getUsageLine() {
+        return getName() + " [options] tmId [tmId ...]";
+    }
+
+    @Override
+    protected void printExtraHelp(PrintStream out) {
+        out.println("Turns compressed content storage on (or off, with -off)");
+        out.println("for each TM, and then converts its existing content in");
+        out.println("batches, committing after each.  The TMs can be used while");
+        out.println("this runs, and an interrupted run can simply be repeated.");
+        out.println("With -dedup, shared TMs store their content once in the");
+        out.println("pool's content table instead; -off turns both off.");
+    }
+
+    static final String OFF = "off";
+    static final Option OFF_OPT = OptionBuilder
+        .withDescription("store content uncompressed")
+        .create(OFF);
+    static final String DEDUP = "dedup";
+    static final Option DEDUP_OPT = OptionBuilder
+        .withDescription("deduplicate content across a shared pool")
+        .create(DEDUP);
+    static final String BATCH = "batch";
+    static final Option BATCH_OPT = OptionBuilder
+        .withArgName("n")
+        .hasArg()
+        .withDescription("TUVs to convert per transaction (default 500)")
+        .create(BATCH);
+
+    @Override
+    public Options getOptions() {
+        return getDefaultOptions().addOption(OFF_OPT).addOption(DEDUP_OPT)
+            .addOption(BATCH_OPT);
+    }
+
+    @Override
+    protected void handle(Session session, CommandLine command)
+            throws Exception {
+        boolean compress = !command.hasOption(OFF);
+        boolean dedup = compress && command.hasOption(DEDUP);
+        int batch = 500;
+        if (command.hasOption(BATCH)) {
+            try {
+                batch = Integer.valueOf(command.getOptionValue(BATCH));
+            }
+            catch (NumberFormatException e) {
+                usage("Invalid batch size: " + command.getOptionValue(BATCH));
+            }
+        }
+        List<String> args = command.getArgList();
+        if (args.size() == 0) {
+            usage("Must specify at least one TM id");
+        }
+        for (String a : args) {
+            TM3Tm tm = getTm(session, a);
+            if (tm == null) {
+                System.err.println("Skipping '" +a+ "' - not a valid id");
+                continue;
+            }
+            boolean shared = tm instanceof TM3SharedTm;
+            if (dedup && !shared) {
+                System.err.println("TM " + tm.getId() + 
+                        " is not shared; compressing instead");
+            }
+            tm.setContentCompressed(compress && !(dedup && shared));
+            if (shared) {
+                ((TM3SharedTm) tm).setContentDeduplicated(dedup);
+            }
+            commitAndRestartTransaction();
+            long startId = 0;
+            while ((startId = tm.migrateContent(startId, batch)) != 0) {
+                commitAndRestartTransaction();
+            }
+            if (shared && !dedup) {
+                getManager().purgeUnusedContent(session.connection(), 
+                        ((TM3SharedTm) tm).getSharedStorageId());
+            }
+            commitAndRestartTransaction();
+            System.out.println("TM " + tm.getId() + ": content " + 
+                    (dedup && shared ? "deduplicated" : 
+                     compress ? "compressed" : "uncompressed"));
+        }
+    }
+}
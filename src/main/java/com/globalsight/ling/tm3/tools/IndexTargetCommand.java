@@ -0,0 +1,90 @@
+package com.globalsight.ling.tm3.tools;
+
+import java.io.PrintStream;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import org.apache.commons.cli.CommandLine;
+import org.apache.commons.cli.Option;
+import org.apache.commons.cli.OptionBuilder;
+import org.apache.commons.cli.Options;
+import org.hibernate.Session;
+
+import com.globalsight.ling.tm3.core.TM3Locale;
+import com.globalsight.ling.tm3.core.TM3Tm;
+
+// Usage:
+// index-target [-off] tmId [localeCode ...]
+@SuppressWarnings({"unchecked", "static-access"})
+class IndexTargetCommand extends TM3Command {
+
+    @Override
+    public String getDescription() {
+        return "set the locales whose target TUVs are fuzzy indexed";
+    }
+
+    @Override
+    public String getName() {
+        return "index-target";
+    }
+
+    @Override
+    protected String getUsageLine() {
+        return getName() + " [options] tmId [localeCode ...]";
+    }
+
+    @Override
+    protected void printExtraHelp(PrintStream out) {
+        out.println("Sets the locales in which target TUVs are added to the");
+        out.println("TM's fuzzy index, for lookups of target content.  With no");
+        out.println("locales, no target TUVs are indexed; with -off, the TM");
+        out.println("goes back to indexing as its application asks.  Run");
+        out.println("reindex afterwards to bring the existing index into line.");
+    }
+
+    static final String OFF = "off";
+    static final Option OFF_OPT = OptionBuilder
+        .withDescription("remove the TM's list of locales")
+        .create(OFF);
+
+    @Override
+    public Options getOptions() {
+        return getDefaultOptions().addOption(OFF_OPT);
+    }
+
+    @Override
+    protected boolean requiresDataFactory() {
+        return true;
+    }
+
+    @Override
+    protected void handle(Session session, CommandLine command)
+            throws Exception {
+        List<String> args = command.getArgList();
+        if (args.size() == 0) {
+            usage("Must specify a TM id");
+        }
+        TM3Tm tm = getTm(session, args.get(0));
+        if (tm == null) {
+            usage("Not a valid TM id: " + args.get(0));
+        }
+        if (command.hasOption(OFF)) {
+            tm.setIndexedTargetLocales(null);
+            System.out.println("TM " + tm.getId() +
+                               ": indexed target locales removed");
+            return;
+        }
+        Set<TM3Locale> locales = new HashSet<TM3Locale>();
+        for (String code : args.subList(1, args.size())) {
+            TM3Locale locale = getDataFactory().getLocaleByCode(session, code);
+            if (locale == null) {
+                usage("Unknown locale: " + code);
+            }
+            locales.add(locale);
+        }
+        tm.setIndexedTargetLocales(locales);
+        System.out.println("TM " + tm.getId() + ": " + locales.size() +
+                           " indexed target locale(s) set");
+    }
+}
@@ -0,0 +1,112 @@
+package com.globalsight.ling.tm3.tools;
+
+import java.io.PrintStream;
+import java.util.List;
+
+import org.apache.commons.cli.CommandLine;
+import org.apache.commons.cli.Option;
+import org.apache.commons.cli.OptionBuilder;
+import org.apache.commons.cli.Options;
+import org.hibernate.Session;
+
+import com.globalsight.ling.tm3.core.TM3Tm;
+
+// Usage:
+// minhash [-off] [-bands n] [-rows n] [-batch n] id [id..]
+@SuppressWarnings({"unchecked", "static-access"})
+class MinHashCommand extends TM3Command {
+
+    @Override
+    public String getDescription() {
+        return "add, rebuild or remove a MinHash fuzzy index";
+    }
+
+    @Override
+    public String getName() {
+        return "minhash";
+    }
+
+    @Override
+    protected String getUsageLine() {
+        return getName() + " [options] tmId [tmId ...]";
+    }
+
+    @Override
+    protected void printExtraHelp(PrintStream out) {
+        out.println("Gives each TM a MinHash index of the given shape (or");
+        out.println("removes it, with -off), and then builds the index for its");
+        out.println("existing TUs in batches, committing after each.  Fuzzy");
+        out.println("lookups use the index once it is complete.  More bands");
+        out.println("find more matches; more rows per band fetch fewer poor");
+        out.println("candidates.  Use bench-minhash to measure the recall.");
+    }
+
+    static final String OFF = "off";
+    static final Option OFF_OPT = OptionBuilder
+        .withDescription("remove the MinHash index")
+        .create(OFF);
+    static final String BANDS = "bands";
+    static final Option BANDS_OPT = OptionBuilder
+        .withArgName("n")
+        .hasArg()
+        .withDescription("number of bands (default 20)")
+        .create(BANDS);
+    static final String ROWS = "rows";
+    static final Option ROWS_OPT = OptionBuilder
+        .withArgName("n")
+        .hasArg()
+        .withDescription("rows per band (default 3)")
+        .create(ROWS);
+    static final String BATCH = "batch";
+    static final Option BATCH_OPT = OptionBuilder
+        .withArgName("n")
+        .hasArg()
+        .withDescription("TUs to index per transaction (default 500)")
+        .create(BATCH);
+
+    @Override
+    public Options getOptions() {
+        return getDefaultOptions().addOption(OFF_OPT).addOption(BANDS_OPT)
+            .addOption(ROWS_OPT).addOption(BATCH_OPT);
+    }
+
+    @Override
+    protected void handle(Session session, CommandLine command)
+            throws Exception {
+        int bands = command.hasOption(OFF) ? 0 : 
+                    getIntOption(command, BANDS, 20);
+        int rows = getIntOption(command, ROWS, 3);
+        int batch = getIntOption(command, BATCH, 500);
+        List<String> args = command.getArgList();
+        if (args.size() == 0) {
+            usage("Must specify at least one TM id");
+        }
+        for (String a : args) {
+            TM3Tm tm = getTm(session, a);
+            if (tm == null) {
+                System.err.println("Skipping '" +a+ "' - not a valid id");
+                continue;
+            }
+            try {
+                tm.setMinHash(bands, rows);
+            }
+            catch (IllegalArgumentException e) {
+                usage(e.getMessage());
+            }
+            commitAndRestartTransaction();
+            if (bands == 0) {
+                System.out.println("TM " + tm.getId() + 
+                                   ": MinHash index removed");
+                continue;
+            }
+            long startId = 0;
+            while ((startId = tm.buildMinHashIndex(startId, batch)) != 0) {
+                commitAndRestartTransaction();
+            }
+            commitAndRestartTransaction();
+            System.out.println("TM " + tm.getId() + ": MinHash index of " +
+                    bands + " bands of " + rows + " rows built");
+        }
+    }
+
+}
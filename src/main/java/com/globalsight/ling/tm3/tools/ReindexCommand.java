@@ -0,0 +1,253 @@
+package com.globalsight.ling.tm3.tools;
+
+import java.io.PrintStream;
+import java.util.List;
+
+import org.apache.commons.cli.CommandLine;
+import org.apache.commons.cli.Option;
+import org.apache.commons.cli.OptionBuilder;
+import org.apache.commons.cli.Options;
+import org.hibernate.Session;
+
+import com.globalsight.ling.tm3.core.TM3Data;
+import com.globalsight.ling.tm3.core.TM3FingerprintFunction;
+import com.globalsight.ling.tm3.core.TM3ProgressListener;
+import com.globalsight.ling.tm3.core.TM3ReindexJob;
+import com.globalsight.ling.tm3.core.TM3Tm;
+import com.globalsight.ling.tm3.core.TM3TokenizedData;
+import com.globalsight.ling.tm3.core.TM3TrigramHash;
+import com.globalsight.ling.tm3.core.TM3Tuv;
+
+// Usage:
+// reindex [-shadow] [-target] [-fingerprint function] [-trigram version]
+//         [-readers n] [-workers n] [-writers n] [-batch n] id [id..]
+@SuppressWarnings({"unchecked", "static-access"})
+class ReindexCommand extends TM3Command {
+
+    // How often progress is printed
+    private static final long PROGRESS_MILLIS = 10 * 1000;
+
+    @Override
+    public String getDescription() {
+        return "rebuild the fuzzy index";
+    }
+
+    @Override
+    public String getName() {
+        return "reindex";
+    }
+
+    @Override
+    protected String getUsageLine() {
+        return getName() + " [options] tmId [tmId ...]";
+    }
+
+    @Override
+    protected void printExtraHelp(PrintStream out) {
+        out.println("Rebuilds each TM's fuzzy index from its TUVs, loading");
+        out.println("TUs, computing fingerprints and inserting entries in");
+        out.println("parallel.  The TM can't be changed while its index is");
+        out.println("rebuilt, unless -shadow is given: then the index is built");
+        out.println("in a copy of the table, which replaces the original once");
+        out.println("it has caught up.  Sharded indexes are always rebuilt in");
+        out.println("place.  Target TUVs are indexed in the locales set with");
+        out.println("index-target, or in every locale with -target if none are.");
+        out.println("With -fingerprint or -trigram, the index is rebuilt with");
+        out.println("another fingerprint function or trigram hash version,");
+        out.println("which the TM then uses; the MinHash index, if any, must be");
+        out.println("rebuilt afterwards.  Use -shadow to keep the TM in use.");
+        out.println("Fingerprint functions other than MD5 only apply to data");
+        out.println("that implements TM3TokenizedData; TMs whose data doesn't");
+        out.println("(judging by their first TU) are skipped.");
+    }
+
+    static final String SHADOW = "shadow";
+    static final Option SHADOW_OPT = OptionBuilder
+        .withDescription("build in a shadow table, then swap it in")
+        .create(SHADOW);
+    static final String TARGET = "target";
+    static final Option TARGET_OPT = OptionBuilder
+        .withDescription("index target TUVs in every locale, for TMs " +
+                         "without indexed target locales")
+        .create(TARGET);
+    static final String FINGERPRINT = "fingerprint";
+    static final Option FINGERPRINT_OPT = OptionBuilder
+        .withArgName("function")
+        .hasArg()
+        .withDescription("fingerprint function to switch to (MD5 or MURMUR)")
+        .create(FINGERPRINT);
+    static final String TRIGRAM = "trigram";
+    static final Option TRIGRAM_OPT = OptionBuilder
+        .withArgName("version")
+        .hasArg()
+        .withDescription("trigram hash version to switch to (1 or 2)")
+        .create(TRIGRAM);
+    static final String READERS = "readers";
+    static final Option READERS_OPT = OptionBuilder
+        .withArgName("n")
+        .hasArg()
+        .withDescription("threads loading TUs (default 2)")
+        .create(READERS);
+    static final String WORKERS = "workers";
+    static final Option WORKERS_OPT = OptionBuilder
+        .withArgName("n")
+        .hasArg()
+        .withDescription("threads computing fingerprints (default one per " +
+                         "processor)")
+        .create(WORKERS);
+    static final String WRITERS = "writers";
+    static final Option WRITERS_OPT = OptionBuilder
+        .withArgName("n")
+        .hasArg()
+        .withDescription("threads inserting index entries (default 2)")
+        .create(WRITERS);
+    static final String BATCH = "batch";
+    static final Option BATCH_OPT = OptionBuilder
+        .withArgName("n")
+        .hasArg()
+        .withDescription("TUs to load at a time (default 500)")
+        .create(BATCH);
+
+    @Override
+    public Options getOptions() {
+        return getDefaultOptions().addOption(SHADOW_OPT)
+            .addOption(TARGET_OPT).addOption(FINGERPRINT_OPT)
+            .addOption(TRIGRAM_OPT).addOption(READERS_OPT)
+            .addOption(WORKERS_OPT).addOption(WRITERS_OPT)
+            .addOption(BATCH_OPT);
+    }
+
+    @Override
+    protected boolean requiresDataFactory() {
+        return true;
+    }
+
+    @Override
+    protected void handle(Session session, CommandLine command)
+            throws Exception {
+        List<String> args = command.getArgList();
+        if (args.size() == 0) {
+            usage("Must specify at least one TM id");
+        }
+        TM3FingerprintFunction function = null;
+        if (command.hasOption(FINGERPRINT)) {
+            String name = command.getOptionValue(FINGERPRINT);
+            try {
+                function = TM3FingerprintFunction.valueOf(name.toUpperCase());
+            }
+            catch (IllegalArgumentException e) {
+                usage("Unknown fingerprint function: " + name);
+            }
+        }
+        TM3TrigramHash hash = null;
+        if (command.hasOption(TRIGRAM)) {
+            try {
+                hash = TM3TrigramHash.forVersion(
+                        getIntOption(command, TRIGRAM, 0));
+            }
+            catch (IllegalArgumentException e) {
+                usage(e.getMessage());
+            }
+        }
+        for (String a : args) {
+            TM3Tm tm = getTm(session, a);
+            if (tm == null) {
+                System.err.println("Skipping '" +a+ "' - not a valid id");
+                continue;
+            }
+            if (function != null && function != TM3FingerprintFunction.MD5 &&
+                    !isTokenized(tm)) {
+                System.err.println("Skipping TM " + tm.getId() + " - it is " +
+                        "empty, or its data doesn't implement " + 
+                        "TM3TokenizedData, so it can't use " + function);
+                continue;
+            }
+            TM3ReindexJob job = new TM3ReindexJob(session.getSessionFactory(),
+                    getManager(), getDataFactory(), tm.getId());
+            try {
+                if (command.hasOption(READERS)) {
+                    job.setReaders(getIntOption(command, READERS, 0));
+                }
+                if (command.hasOption(WORKERS)) {
+                    job.setWorkers(getIntOption(command, WORKERS, 0));
+                }
+                if (command.hasOption(WRITERS)) {
+                    job.setWriters(getIntOption(command, WRITERS, 0));
+                }
+                job.setBatchSize(getIntOption(command, BATCH, 500));
+            }
+            catch (IllegalArgumentException e) {
+                usage(e.getMessage());
+            }
+            job.setShadow(command.hasOption(SHADOW));
+            job.setIndexTarget(command.hasOption(TARGET));
+            job.setFingerprintFunction(function);
+            job.setTrigramHash(hash);
+            job.setProgressListener(new ProgressPrinter(tm.getId()));
+            // Don't hold anything the job will wait on
+            commitAndRestartTransaction();
+            long start = System.currentTimeMillis();
+            job.run();
+            long elapsed = System.currentTimeMillis() - start;
+            System.out.println("TM " + tm.getId() + ": reindexed with " +
+                    job.getEntriesWritten() + " entries in " +
+                    formatTime(elapsed));
+        }
+    }
+
+    /**
+     * Whether a TM's data returns its own tokens, which fingerprint 
+     * functions other than MD5 need, judging by its first TU.
+     */
+    private <T extends TM3Data> boolean isTokenized(TM3Tm<T> tm) 
+            throws Exception {
+        List<TM3Tuv<T>> keys = getKeys(tm, 1);
+        return !keys.isEmpty() && 
+            keys.get(0).getContent() instanceof TM3TokenizedData;
+    }
+
+    /**
+     * Prints the number of TUs read, the rate, and the estimated time
+     * left, every so often.
+     */
+    static class ProgressPrinter implements TM3ProgressListener {
+        private long tmId;
+        private long start = System.currentTimeMillis();
+        private long lastPrinted = start;
+
+        ProgressPrinter(long tmId) {
+            this.tmId = tmId;
+        }
+
+        @Override
+        public void progress(long done, long total) {
+            long now = System.currentTimeMillis();
+            if (now - lastPrinted < PROGRESS_MILLIS) {
+                return;
+            }
+            lastPrinted = now;
+            long rate = done * 1000 / Math.max(1, now - start);
+            StringBuilder sb = new StringBuilder("TM ").append(tmId)
+                .append(": ").append(done).append("/").append(total)
+                .append(" TUs, ").append(rate).append(" TUs/s");
+            if (rate > 0 && done < total) {
+                sb.append(", about ")
+                  .append(formatTime((total - done) * 1000 / rate))
+                  .append(" left");
+            }
+            System.out.println(sb);
+        }
+    }
+
+    static String formatTime(long millis) {
+        long seconds = millis / 1000;
+        if (seconds < 60) {
+            return seconds + "s";
+        }
+        if (seconds < 3600) {
+            return (seconds / 60) + "m" + (seconds % 60) + "s";
+        }
+        return (seconds / 3600) + "h" + (seconds % 3600 / 60) + "m";
+    }
+
+}
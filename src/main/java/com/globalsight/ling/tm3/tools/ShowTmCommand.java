@@ -97,6 +97,8 @@ class ShowTmCommand extends TM3Command {
             f.format("%-12s%d\n", "Storage Id:", 
                     ((TM3SharedTm)tm).getSharedStorageId());
         }
+        f.format("%-12s%s, trigram %s\n", "Hash:", tm.getFingerprintFunction(),
+                 tm.getTrigramHash());
         Set<TM3Attribute> attrs = tm.getAttributes();
         if (attrs.size() > 0) {
             f.format("%s", "Attributes: ");
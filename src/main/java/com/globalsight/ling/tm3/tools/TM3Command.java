@@ -26,9 +26,12 @@ import org.apache.log4j.Level;
 import org.apache.log4j.Logger;
 
 import com.globalsight.ling.tm3.core.DefaultManager;
+import com.globalsight.ling.tm3.core.TM3Data;
 import com.globalsight.ling.tm3.core.TM3DataFactory;
 import com.globalsight.ling.tm3.core.TM3Manager;
 import com.globalsight.ling.tm3.core.TM3Tm;
+import com.globalsight.ling.tm3.core.TM3Tu;
+import com.globalsight.ling.tm3.core.TM3Tuv;
 import com.globalsight.ling.tm3.core.persistence.HibernateConfig;
 import com.globalsight.ling.tm3.core.persistence.SQLUtil;
 
@@ -104,6 +107,37 @@ public abstract class TM3Command {
         return tm;
     }
     
+    /**
+     * Get the value of an integer option, or a default if it isn't set.
+     */
+    protected int getIntOption(CommandLine command, String name, int dflt) {
+        if (!command.hasOption(name)) {
+            return dflt;
+        }
+        try {
+            return Integer.valueOf(command.getOptionValue(name));
+        }
+        catch (NumberFormatException e) {
+            usage("Invalid " + name + ": " + command.getOptionValue(name));
+            return dflt;
+        }
+    }
+
+    /**
+     * Get the source TUVs of the first count TUs in a TM.
+     */
+    protected <T extends TM3Data> List<TM3Tuv<T>> getKeys(TM3Tm<T> tm, 
+            int count) throws Exception {
+        List<TM3Tuv<T>> keys = new ArrayList<TM3Tuv<T>>();
+        for (TM3Tu<T> tu : tm.getAllData(null, null)) {
+            if (keys.size() == count) {
+                break;
+            }
+            keys.add(tu.getSourceTuv());
+        }
+        return keys;
+    }
+
     /**
      * Commit the new transaction and start a new one.
      * Note that the transaction will be committed automatically
@@ -134,6 +168,20 @@ public abstract class TM3Command {
             .withValueSeparator()
             .withDescription("use value for given property")
             .create(PROPERTY);
+
+    // Options shared by the benchmark commands
+    static final String COUNT = "count";
+    static final Option COUNT_OPT = OptionBuilder
+        .withArgName("n")
+        .hasArg()
+        .withDescription("number of segments to use")
+        .create(COUNT);
+    static final String ROUNDS = "rounds";
+    static final Option ROUNDS_OPT = OptionBuilder
+        .withArgName("n")
+        .hasArg()
+        .withDescription("number of timed rounds (default 3)")
+        .create(ROUNDS);
     
     protected Options getDefaultOptions() { 
         Options opts = new Options();
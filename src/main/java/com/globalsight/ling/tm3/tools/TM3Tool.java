@@ -66,6 +66,17 @@ public class TM3Tool {
         commands.put("create-multilingual", CreateMultilingualTmCommand.class);
         commands.put("create-bilingual", CreateBilingualTmCommand.class);
         commands.put("history", HistoryCommand.class);
+        commands.put("upgrade", UpgradeCommand.class);
+        commands.put("verify-stats", VerifyStatsCommand.class);
+        commands.put("compress", CompressCommand.class);
+        commands.put("bench-exact", BenchExactCommand.class);
+        commands.put("bench-fuzzy", BenchFuzzyCommand.class);
+        commands.put("bench-minhash", BenchMinHashCommand.class);
+        commands.put("bench-fingerprint", BenchFingerprintCommand.class);
+        commands.put("trigram-collisions", TrigramCollisionsCommand.class);
+        commands.put("minhash", MinHashCommand.class);
+        commands.put("reindex", ReindexCommand.class);
+        commands.put("index-target", IndexTargetCommand.class);
     }
     
     /**
@@ -0,0 +1,137 @@
+package com.globalsight.ling.tm3.tools;
+
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import org.apache.commons.cli.CommandLine;
+import org.apache.commons.cli.Options;
+import org.hibernate.Session;
+
+import com.globalsight.ling.tm3.core.TM3Data;
+import com.globalsight.ling.tm3.core.TM3Tm;
+import com.globalsight.ling.tm3.core.TM3TrigramHash;
+import com.globalsight.ling.tm3.core.TM3Tuv;
+
+// Usage:
+// trigram-collisions [-count n] id
+@SuppressWarnings({"unchecked", "static-access"})
+class TrigramCollisionsCommand extends TM3Command {
+
+    // The token that brackets each segment, as in the fuzzy index
+    private static final long BOUNDARY = -1;
+
+    @Override
+    public String getDescription() {
+        return "measure trigram hash collisions over a TM's segments";
+    }
+
+    @Override
+    public String getName() {
+        return "trigram-collisions";
+    }
+
+    @Override
+    protected String getUsageLine() {
+        return getName() + " [options] tmId";
+    }
+
+    @Override
+    protected boolean requiresDataFactory() {
+        return true;
+    }
+
+    @Override
+    protected void printExtraHelp(PrintStream out) {
+        out.println("Collects the distinct trigrams of the source segments of");
+        out.println("the first TUs in the TM, hashes them with each trigram");
+        out.println("hash version, and prints the number of trigrams that");
+        out.println("share a hash with another, in 64 bits and in the low 32");
+        out.println("bits, against the number expected of a random hash.");
+        out.println("Trigrams that collide share a posting list in the index.");
+    }
+
+    @Override
+    public Options getOptions() {
+        return getDefaultOptions().addOption(COUNT_OPT);
+    }
+
+    @Override
+    protected void handle(Session session, CommandLine command)
+            throws Exception {
+        int count = getIntOption(command, COUNT, 10000);
+        List<String> args = command.getArgList();
+        if (args.size() != 1) {
+            usage("Must specify one TM id");
+        }
+        TM3Tm tm = getTm(session, args.get(0));
+        if (tm == null) {
+            usage("Not a valid id: " + args.get(0));
+        }
+        Set<Trigram> trigrams = getTrigrams(tm, getKeys(tm, count));
+        int n = trigrams.size();
+        System.out.println("TM " + tm.getId() + ": " + n +
+                " distinct trigrams, TM uses trigram hash " +
+                tm.getTrigramHash());
+        // Birthday bound for a random 32-bit hash
+        double expected32 = (double) n * n / (2 * 4294967296.0);
+        for (TM3TrigramHash hash : TM3TrigramHash.values()) {
+            Set<Long> values = new HashSet<Long>();
+            Set<Integer> low = new HashSet<Integer>();
+            for (Trigram t : trigrams) {
+                long h = hash.hash(t.fp0, t.fp1, t.fp2);
+                values.add(h);
+                low.add((int) h);
+            }
+            System.out.printf("%-4s 64-bit collisions %d (expected 0), " +
+                    "32-bit collisions %d (expected %.1f)\n", hash,
+                    n - values.size(), n - low.size(), expected32);
+        }
+    }
+
+    private <T extends TM3Data> Set<Trigram> getTrigrams(TM3Tm<T> tm,
+            List<TM3Tuv<T>> keys) {
+        Set<Trigram> trigrams = new HashSet<Trigram>();
+        for (TM3Tuv<T> key : keys) {
+            List<Long> fps = new ArrayList<Long>();
+            fps.add(BOUNDARY);
+            for (Long fp : tm.getFingerprintFunction()
+                        .fingerprintTokens(key.getContent())) {
+                fps.add(fp);
+            }
+            fps.add(BOUNDARY);
+            for (int i = 0; i + 2 < fps.size(); i++) {
+                trigrams.add(new Trigram(fps.get(i), fps.get(i + 1),
+                                         fps.get(i + 2)));
+            }
+        }
+        return trigrams;
+    }
+
+    static class Trigram {
+        long fp0, fp1, fp2;
+
+        Trigram(long fp0, long fp1, long fp2) {
+            this.fp0 = fp0;
+            this.fp1 = fp1;
+            this.fp2 = fp2;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof Trigram)) {
+                return false;
+            }
+            Trigram t = (Trigram) o;
+            return fp0 == t.fp0 && fp1 == t.fp1 && fp2 == t.fp2;
+        }
+
+        @Override
+        public int hashCode() {
+            long h = fp0 * 31 * 31 + fp1 * 31 + fp2;
+            return (int) (h ^ (h >>> 32));
+        }
+    }
+}
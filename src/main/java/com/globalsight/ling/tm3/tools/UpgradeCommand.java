@@ -0,0 +1,67 @@
+package com.globalsight.ling.tm3.tools;
+
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.apache.commons.cli.CommandLine;
+import org.hibernate.Session;
+
+import com.globalsight.ling.tm3.core.TM3Tm;
+
+// Usage:
+// upgrade         # upgrades all TMs
+// upgrade [id..]  # upgrades specific TMs
+@SuppressWarnings("unchecked")
+class UpgradeCommand extends TM3Command {
+
+    @Override
+    public String getDescription() {
+        return "upgrade TM storage to the current schema";
+    }
+
+    @Override
+    public String getName() {
+        return "upgrade";
+    }
+
+    @Override
+    protected String getUsageLine() {
+        return getName() + " [options] [tmId ...]";
+    }
+
+    @Override
+    protected void printExtraHelp(PrintStream out) {
+        out.println("Upgrades the tables for TMs created by older versions");
+        out.println("of TM3, and migrates their data.  If no ids are given,");
+        out.println("all TMs are upgraded.  TMs that are already current are");
+        out.println("left alone.  Run src/main/sql/upgrade.sql first.");
+    }
+
+    @Override
+    protected void handle(Session session, CommandLine command)
+            throws Exception {
+        List<TM3Tm> tms = new ArrayList<TM3Tm>();
+        List<String> args = command.getArgList();
+        if (args.size() == 0) {
+            tms.addAll(getManager().getAllTms(session, null));
+        }
+        else {
+            for (String a : args) {
+                TM3Tm tm = getTm(session, a);
+                if (tm == null) {
+                    System.err.println("Skipping '" +a+ "' - not a valid id");
+                    continue;
+                }
+                tms.add(tm);
+            }
+        }
+        for (TM3Tm tm : tms) {
+            if (getManager().upgradeTm(session, tm)) {
+                System.out.println("Upgraded TM " + tm.getId());
+            }
+            // Keep each TM's migration in its own transaction
+            commitAndRestartTransaction();
+        }
+    }
+}
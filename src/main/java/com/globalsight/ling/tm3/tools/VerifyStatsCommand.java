@@ -0,0 +1,83 @@
+package com.globalsight.ling.tm3.tools;
+
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.apache.commons.cli.CommandLine;
+import org.apache.commons.cli.Option;
+import org.apache.commons.cli.OptionBuilder;
+import org.apache.commons.cli.Options;
+import org.hibernate.Session;
+
+import com.globalsight.ling.tm3.core.TM3Tm;
+
+// Usage:
+// verify-stats [-fix]          # checks all TMs
+// verify-stats [-fix] [id..]   # checks specific TMs
+@SuppressWarnings({"unchecked", "static-access"})
+class VerifyStatsCommand extends TM3Command {
+
+    @Override
+    public String getDescription() {
+        return "check (and optionally repair) TM statistics";
+    }
+
+    @Override
+    public String getName() {
+        return "verify-stats";
+    }
+
+    @Override
+    protected String getUsageLine() {
+        return getName() + " [options] [tmId ...]";
+    }
+
+    @Override
+    protected void printExtraHelp(PrintStream out) {
+        out.println("Compares the stored TU and TUV counts for each TM with");
+        out.println("its data.  If no ids are given, all TMs are checked.");
+    }
+
+    static final String FIX = "fix";
+    static final Option FIX_OPT = OptionBuilder
+        .withDescription("recompute statistics that are wrong or missing")
+        .create(FIX);
+
+    @Override
+    public Options getOptions() {
+        return getDefaultOptions().addOption(FIX_OPT);
+    }
+
+    @Override
+    protected void handle(Session session, CommandLine command)
+            throws Exception {
+        boolean fix = command.hasOption(FIX);
+        List<TM3Tm> tms = new ArrayList<TM3Tm>();
+        List<String> args = command.getArgList();
+        if (args.size() == 0) {
+            tms.addAll(getManager().getAllTms(session, null));
+        }
+        else {
+            for (String a : args) {
+                TM3Tm tm = getTm(session, a);
+                if (tm == null) {
+                    System.err.println("Skipping '" +a+ "' - not a valid id");
+                    continue;
+                }
+                tms.add(tm);
+            }
+        }
+        int bad = 0;
+        for (TM3Tm tm : tms) {
+            if (!getManager().verifyStatistics(session, tm, fix)) {
+                bad++;
+                System.out.println("TM " + tm.getId() + ": statistics " +
+                        (fix ? "repaired" : "incorrect"));
+            }
+            commitAndRestartTransaction();
+        }
+        System.out.println("Checked " + tms.size() + " TMs, " + bad +
+                           " with incorrect statistics");
+    }
+}
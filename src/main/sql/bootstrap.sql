@@ -13,6 +13,17 @@ CREATE TABLE `TM3_TM` (
   `srcLocaleId` bigint(20),
   `tgtLocaleId` bigint(20),
   `sharedStorageId` bigint(20),
+  `compressContent` char(1) NOT NULL DEFAULT 'N',
+  `contentDictionary` blob,
+  `dedupContent` char(1) NOT NULL DEFAULT 'N',
+  `fuzzyFrequencyCutoff` double NOT NULL DEFAULT 0.1,
+  `minHashBands` int NOT NULL DEFAULT 0,
+  `minHashRows` int NOT NULL DEFAULT 0,
+  `minHashReady` char(1) NOT NULL DEFAULT 'N',
+  `indexedTargetLocales` text DEFAULT NULL,
+  `fingerprintFunction` varchar(16) NOT NULL DEFAULT 'MD5',
+  `trigramHash` int NOT NULL DEFAULT 1,
+  `removingLocales` char(1) NOT NULL DEFAULT 'N',
   PRIMARY KEY (`id`),
   KEY(`sharedStorageId`)
 ) ENGINE=InnoDB DEFAULT CHARSET=UTF8;
@@ -58,3 +69,90 @@ CREATE TABLE `TM3_ID` (
 ) ENGINE=MyISAM DEFAULT CHARSET=UTF8;
 
 
+--
+-- Table structure for table `tm3_locale_removal`
+--
+
+DROP TABLE IF EXISTS `TM3_LOCALE_REMOVAL`;
+CREATE TABLE `TM3_LOCALE_REMOVAL` (
+  `tmId` bigint(20) NOT NULL,
+  `localeId` bigint(20) NOT NULL,
+  `lastTuId` bigint(20) NOT NULL DEFAULT 0,
+  PRIMARY KEY (`tmId`, `localeId`),
+  CONSTRAINT `tm3_locale_removal_ibfk_1` FOREIGN KEY (`tmId`) REFERENCES `TM3_TM` (`id`) ON DELETE CASCADE
+) ENGINE=InnoDB DEFAULT CHARSET=UTF8;
+
+--
+-- Table structure for table `tm3_reindex`
+--
+
+DROP TABLE IF EXISTS `TM3_REINDEX`;
+CREATE TABLE `TM3_REINDEX` (
+  `tmId` bigint(20) NOT NULL,
+  PRIMARY KEY (`tmId`),
+  CONSTRAINT `tm3_reindex_ibfk_1` FOREIGN KEY (`tmId`) REFERENCES `TM3_TM` (`id`) ON DELETE CASCADE
+) ENGINE=InnoDB DEFAULT CHARSET=UTF8;
+
+--
+-- Table structure for table `tm3_reindex_changes`
+--
+
+DROP TABLE IF EXISTS `TM3_REINDEX_CHANGES`;
+CREATE TABLE `TM3_REINDEX_CHANGES` (
+  `id` bigint(20) NOT NULL AUTO_INCREMENT,
+  `tmId` bigint(20) NOT NULL,
+  `tuId` bigint(20) NOT NULL,
+  PRIMARY KEY (`id`),
+  KEY (`tmId`, `id`),
+  CONSTRAINT `tm3_reindex_changes_ibfk_1` FOREIGN KEY (`tmId`) REFERENCES `TM3_TM` (`id`) ON DELETE CASCADE
+) ENGINE=InnoDB DEFAULT CHARSET=UTF8;
+
+--
+-- Table structure for table `tm3_stats`
+--
+
+DROP TABLE IF EXISTS `TM3_STATS`;
+CREATE TABLE `TM3_STATS` (
+  `tmId` bigint(20) NOT NULL,
+  `localeId` bigint(20) NOT NULL,
+  `tuCount` bigint(20) NOT NULL DEFAULT 0,
+  `tuvCount` bigint(20) NOT NULL DEFAULT 0,
+  PRIMARY KEY (`tmId`, `localeId`),
+  CONSTRAINT `tm3_stats_ibfk_1` FOREIGN KEY (`tmId`) REFERENCES `TM3_TM` (`id`) ON DELETE CASCADE
+) ENGINE=InnoDB DEFAULT CHARSET=UTF8;
+
+--
+-- Table structure for table `tm3_fuzzy_df`
+--
+
+DROP TABLE IF EXISTS `TM3_FUZZY_DF`;
+CREATE TABLE `TM3_FUZZY_DF` (
+  `tmId` bigint(20) NOT NULL,
+  `localeId` bigint(20) NOT NULL,
+  `fingerprint` bigint(20) NOT NULL,
+  `docCount` bigint(20) NOT NULL DEFAULT 0,
+  PRIMARY KEY (`tmId`, `localeId`, `fingerprint`),
+  KEY (`tmId`, `localeId`, `docCount`),
+  CONSTRAINT `tm3_fuzzy_df_ibfk_1` FOREIGN KEY (`tmId`) REFERENCES `TM3_TM` (`id`) ON DELETE CASCADE
+) ENGINE=InnoDB DEFAULT CHARSET=UTF8;
+
+--
+-- Table structure for table `tm3_minhash`
+--
+
+DROP TABLE IF EXISTS `TM3_MINHASH`;
+CREATE TABLE `TM3_MINHASH` (
+  `tmId` bigint(20) NOT NULL,
+  `localeId` bigint(20) NOT NULL,
+  `bandKey` bigint(20) NOT NULL,
+  `tuvId` bigint(20) NOT NULL,
+  `tuId` bigint(20) NOT NULL,
+  `tuvCount` smallint(6) NOT NULL,
+  `tokenCount` smallint(6) NOT NULL DEFAULT 0,
+  `isSource` tinyint(4) NOT NULL,
+  PRIMARY KEY (`tmId`, `localeId`, `bandKey`, `tuvId`),
+  KEY (`tmId`, `tuvId`),
+  KEY (`tmId`, `tuId`),
+  CONSTRAINT `tm3_minhash_ibfk_1` FOREIGN KEY (`tmId`) REFERENCES `TM3_TM` (`id`) ON DELETE CASCADE
+) ENGINE=InnoDB DEFAULT CHARSET=UTF8;
+
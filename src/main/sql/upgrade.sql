@@ -0,0 +1,130 @@
+--
+-- Brings an existing TM3 schema up to date with bootstrap.sql.
+-- Every statement here is safe to run against a schema that is
+-- already current.
+--
+
+--
+-- Table structure for table `tm3_locale_removal`
+--
+
+CREATE TABLE IF NOT EXISTS `TM3_LOCALE_REMOVAL` (
+  `tmId` bigint(20) NOT NULL,
+  `localeId` bigint(20) NOT NULL,
+  `lastTuId` bigint(20) NOT NULL DEFAULT 0,
+  PRIMARY KEY (`tmId`, `localeId`),
+  CONSTRAINT `tm3_locale_removal_ibfk_1` FOREIGN KEY (`tmId`) REFERENCES `TM3_TM` (`id`) ON DELETE CASCADE
+) ENGINE=InnoDB DEFAULT CHARSET=UTF8;
+
+--
+-- Table structure for table `tm3_reindex`
+--
+
+CREATE TABLE IF NOT EXISTS `TM3_REINDEX` (
+  `tmId` bigint(20) NOT NULL,
+  PRIMARY KEY (`tmId`),
+  CONSTRAINT `tm3_reindex_ibfk_1` FOREIGN KEY (`tmId`) REFERENCES `TM3_TM` (`id`) ON DELETE CASCADE
+) ENGINE=InnoDB DEFAULT CHARSET=UTF8;
+
+--
+-- Table structure for table `tm3_reindex_changes`
+--
+
+CREATE TABLE IF NOT EXISTS `TM3_REINDEX_CHANGES` (
+  `id` bigint(20) NOT NULL AUTO_INCREMENT,
+  `tmId` bigint(20) NOT NULL,
+  `tuId` bigint(20) NOT NULL,
+  PRIMARY KEY (`id`),
+  KEY (`tmId`, `id`),
+  CONSTRAINT `tm3_reindex_changes_ibfk_1` FOREIGN KEY (`tmId`) REFERENCES `TM3_TM` (`id`) ON DELETE CASCADE
+) ENGINE=InnoDB DEFAULT CHARSET=UTF8;
+
+--
+-- Table structure for table `tm3_stats`
+--
+
+CREATE TABLE IF NOT EXISTS `TM3_STATS` (
+  `tmId` bigint(20) NOT NULL,
+  `localeId` bigint(20) NOT NULL,
+  `tuCount` bigint(20) NOT NULL DEFAULT 0,
+  `tuvCount` bigint(20) NOT NULL DEFAULT 0,
+  PRIMARY KEY (`tmId`, `localeId`),
+  CONSTRAINT `tm3_stats_ibfk_1` FOREIGN KEY (`tmId`) REFERENCES `TM3_TM` (`id`) ON DELETE CASCADE
+) ENGINE=InnoDB DEFAULT CHARSET=UTF8;
+
+--
+-- Table structure for table `tm3_fuzzy_df`
+--
+
+CREATE TABLE IF NOT EXISTS `TM3_FUZZY_DF` (
+  `tmId` bigint(20) NOT NULL,
+  `localeId` bigint(20) NOT NULL,
+  `fingerprint` bigint(20) NOT NULL,
+  `docCount` bigint(20) NOT NULL DEFAULT 0,
+  PRIMARY KEY (`tmId`, `localeId`, `fingerprint`),
+  KEY (`tmId`, `localeId`, `docCount`),
+  CONSTRAINT `tm3_fuzzy_df_ibfk_1` FOREIGN KEY (`tmId`) REFERENCES `TM3_TM` (`id`) ON DELETE CASCADE
+) ENGINE=InnoDB DEFAULT CHARSET=UTF8;
+
+--
+-- Table structure for table `tm3_minhash`
+--
+
+CREATE TABLE IF NOT EXISTS `TM3_MINHASH` (
+  `tmId` bigint(20) NOT NULL,
+  `localeId` bigint(20) NOT NULL,
+  `bandKey` bigint(20) NOT NULL,
+  `tuvId` bigint(20) NOT NULL,
+  `tuId` bigint(20) NOT NULL,
+  `tuvCount` smallint(6) NOT NULL,
+  `tokenCount` smallint(6) NOT NULL DEFAULT 0,
+  `isSource` tinyint(4) NOT NULL,
+  PRIMARY KEY (`tmId`, `localeId`, `bandKey`, `tuvId`),
+  KEY (`tmId`, `tuvId`),
+  KEY (`tmId`, `tuId`),
+  CONSTRAINT `tm3_minhash_ibfk_1` FOREIGN KEY (`tmId`) REFERENCES `TM3_TM` (`id`) ON DELETE CASCADE
+) ENGINE=InnoDB DEFAULT CHARSET=UTF8;
+
+--
+-- Columns added to `tm3_tm` and `tm3_minhash`
+--
+
+DROP PROCEDURE IF EXISTS TM3_ADD_COLUMN;
+DELIMITER //
+CREATE PROCEDURE TM3_ADD_COLUMN(tbl VARCHAR(64), col VARCHAR(64), 
+                                def VARCHAR(255))
+BEGIN
+  IF NOT EXISTS (SELECT * FROM information_schema.COLUMNS
+                 WHERE TABLE_SCHEMA = DATABASE() AND TABLE_NAME = tbl
+                 AND COLUMN_NAME = col) THEN
+    SET @ddl = CONCAT('ALTER TABLE `', tbl, '` ADD COLUMN `', col, '` ', def);
+    PREPARE stmt FROM @ddl;
+    EXECUTE stmt;
+    DEALLOCATE PREPARE stmt;
+  END IF;
+END //
+DELIMITER ;
+
+CALL TM3_ADD_COLUMN('TM3_TM', 'compressContent', 'char(1) NOT NULL DEFAULT ''N''');
+CALL TM3_ADD_COLUMN('TM3_TM', 'contentDictionary', 'blob');
+CALL TM3_ADD_COLUMN('TM3_TM', 'dedupContent', 'char(1) NOT NULL DEFAULT ''N''');
+CALL TM3_ADD_COLUMN('TM3_TM', 'fuzzyFrequencyCutoff', 'double NOT NULL DEFAULT 0.1');
+CALL TM3_ADD_COLUMN('TM3_TM', 'minHashBands', 'int NOT NULL DEFAULT 0');
+CALL TM3_ADD_COLUMN('TM3_TM', 'minHashRows', 'int NOT NULL DEFAULT 0');
+CALL TM3_ADD_COLUMN('TM3_TM', 'minHashReady', 'char(1) NOT NULL DEFAULT ''N''');
+CALL TM3_ADD_COLUMN('TM3_TM', 'indexedTargetLocales', 'text');
+CALL TM3_ADD_COLUMN('TM3_TM', 'fingerprintFunction', 'varchar(16) NOT NULL DEFAULT ''MD5''');
+CALL TM3_ADD_COLUMN('TM3_TM', 'trigramHash', 'int NOT NULL DEFAULT 1');
+CALL TM3_ADD_COLUMN('TM3_TM', 'removingLocales', 'char(1) NOT NULL DEFAULT ''N''');
+CALL TM3_ADD_COLUMN('TM3_MINHASH', 'tokenCount', 'smallint(6) NOT NULL DEFAULT 0 AFTER `tuvCount`');
+
+DROP PROCEDURE TM3_ADD_COLUMN;
+
+-- Flag TMs with locale removals that were started before the flag existed
+UPDATE TM3_TM SET removingLocales = 'Y'
+  WHERE id IN (SELECT tmId FROM TM3_LOCALE_REMOVAL);
+
+--
+-- The per-TM and shared pool tables are upgraded by the TM3Tool
+-- "upgrade" command, which must be run after this script.
+--
@@ -4,6 +4,7 @@ import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertNotNull;
 import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertNull;
 import static org.junit.Assert.assertTrue;
 import static org.junit.Assert.fail;
 
@@ -430,6 +431,12 @@ public abstract class TM3Tests {
                 manager.getTm(currentSession, FACTORY, currentTestId), EN_US, FR_FR);
     }
     
+    @Test
+    public void testMinHashFuzzyMatching() throws Exception {
+        testMinHashFuzzyMatching(
+                manager.getTm(currentSession, FACTORY, currentTestId), EN_US, FR_FR);
+    }
+    
     @Test
     public void testFuzzyTargetMatching() throws Exception {
         testFuzzyTargetMatching(
@@ -520,6 +527,18 @@ public abstract class TM3Tests {
         testFuzzyMatchThresholdAndLimit(tm, EN_US, FR_FR);
     }
     
+    @Test
+    public void testUnfusedFuzzyMatching() throws Exception {
+        TM3Tm<TestData> tm = manager.getTm(currentSession, FACTORY, currentTestId);
+        manager.setFuzzyFetchFused(false);
+        try {
+            testFuzzyMatchThresholdAndLimit(tm, EN_US, FR_FR);
+        }
+        finally {
+            manager.setFuzzyFetchFused(true);
+        }
+    }
+    
     @Test
     public void testEmptyFuzzyQuery() throws Exception {
         TM3Tm<TestData> tm = manager.getTm(currentSession, FACTORY, currentTestId);
@@ -544,12 +563,54 @@ public abstract class TM3Tests {
         testGetAllTuData(tm, EN_US, FR_FR);
     }
     
+    @Test
+    public void testPurgeInChunks() throws Exception {
+        TM3Tm<TestData> tm = manager.getTm(currentSession, FACTORY, currentTestId);
+        testPurgeInChunks(tm, EN_US, FR_FR);
+    }
+    
+    @Test
+    public void testLocaleRemovalJob() throws Exception {
+        TM3Tm<TestData> tm = manager.getTm(currentSession, FACTORY, currentTestId);
+        testLocaleRemovalJob(tm, EN_US, FR_FR);
+    }
+    
+    @Test
+    public void testReindexJob() throws Exception {
+        TM3Tm<TestData> tm = manager.getTm(currentSession, FACTORY, currentTestId);
+        testReindexJob(tm, EN_US, FR_FR);
+    }
+    
+    @Test
+    public void testIndexedTargetLocales() throws Exception {
+        TM3Tm<TestData> tm = manager.getTm(currentSession, FACTORY, currentTestId);
+        testIndexedTargetLocales(tm, EN_US, FR_FR);
+    }
+    
     @Test
     public void testGetAllTuDataWithDateRange() throws Exception {
         TM3Tm<TestData> tm = manager.getTm(currentSession, FACTORY, currentTestId);
         testGetAllTuDataWithDateRange(tm, EN_US, FR_FR);
     }
 
+    @Test
+    public void testUpgradeCurrentTm() throws Exception {
+        TM3Tm<TestData> tm = manager.getTm(currentSession, FACTORY, currentTestId);
+        testUpgradeCurrentTm(tm, EN_US, FR_FR);
+    }
+
+    @Test
+    public void testStatistics() throws Exception {
+        TM3Tm<TestData> tm = manager.getTm(currentSession, FACTORY, currentTestId);
+        testStatistics(tm, EN_US, FR_FR);
+    }
+
+    @Test
+    public void testContentCompression() throws Exception {
+        TM3Tm<TestData> tm = manager.getTm(currentSession, FACTORY, currentTestId);
+        testContentCompression(tm, EN_US, FR_FR);
+    }
+
     @Test
     public void testGetTuDataByLocale() throws Exception {
         TM3Tm<TestData> tm = manager.getTm(currentSession, FACTORY, currentTestId);
@@ -1057,6 +1118,39 @@ public abstract class TM3Tests {
 
     }
     
+    public void testMinHashFuzzyMatching(TM3Tm<TestData> tm, 
+            TestLocale srcLocale, TestLocale tgtLocale) throws Exception {
+        try {
+            currentTransaction = currentSession.beginTransaction();
+            TestData srcData1 = new TestData("foo bar baz");
+            TestData srcData2 = new TestData("The quick brown fox jumped over the lazy cats.");
+            tm.save(srcLocale, srcData1, TM3Attributes.NONE, tgtLocale, 
+                    new TestData("This is target 1"), TM3SaveMode.MERGE, currentTestEvent);
+            tm.setMinHash(32, 2);
+            assertFalse(tm.isMinHashIndexReady());
+            // Saved before and after the index is built
+            tm.save(srcLocale, srcData2, TM3Attributes.NONE, tgtLocale, 
+                    new TestData("This is target 2"), TM3SaveMode.MERGE, currentTestEvent);
+            long startId = 0;
+            while ((startId = tm.buildMinHashIndex(startId, 1)) != 0);
+            assertTrue(tm.isMinHashIndexReady());
+            currentTransaction.commit();
+            
+            currentTransaction = currentSession.beginTransaction();
+            TestData key = new TestData("The quick brown fox jumped over the lazy dogs.");
+            TM3LeverageResults<TestData> results = tm.findMatches(key, 
+                    srcLocale, null, TM3Attributes.NONE, TM3MatchType.ALL, false);
+            expectResults(results, expected(srcData2, false));
+            currentTransaction.commit();
+
+            cleanupTestDb(manager); 
+        }
+        catch (Exception e) {
+            currentTransaction.rollback();
+            throw e;
+        }
+    }
+    
     public void testFuzzyTargetMatching(TM3Tm<TestData> tm, TestLocale srcLocale, 
             final TestLocale tgtLocale) throws Exception {
         try {
@@ -2062,6 +2156,335 @@ public abstract class TM3Tests {
         }
     }
 
+    public void testPurgeInChunks(TM3Tm<TestData> tm, TestLocale srcLocale, TestLocale tgtLocale) 
+                        throws Exception {
+        try {
+            currentTransaction = currentSession.beginTransaction();
+            tm.setIndexTarget(true);
+            for (int i = 0; i < 250; i++) {
+                tm.save(srcLocale, new TestData("purge " + i), TM3Attributes.NONE, tgtLocale, 
+                        new TestData("purge " + i), TM3SaveMode.MERGE, currentTestEvent);
+            }
+            currentTransaction.commit();
+            currentTransaction = currentSession.beginTransaction();
+            
+            final List<Long> progress = new ArrayList<Long>();
+            TM3Handle<TestData> handle = tm.getAllData(null, null);
+            handle.purge(100, true, new TM3ProgressListener() {
+                @Override
+                public void progress(long done, long total) {
+                    assertEquals("unexpected total", 250, total);
+                    progress.add(done);
+                }
+            });
+            // The purge committed underneath us
+            currentTransaction = currentSession.getTransaction();
+            assertEquals(Arrays.asList(100L, 200L, 250L), progress);
+            assertEquals("purge failed", 0, handle.getCount());
+            assertEquals("purge left tuvs", 0, handle.getTuvCount());
+            
+            // Index rows went with the TUs
+            TM3LeverageResults<TestData> results = tm.findMatches(
+                new TestData("purge 1"), srcLocale, null, null, TM3MatchType.ALL, true);
+            expectResults(results);
+            currentTransaction.commit();
+            cleanupTestDb(manager);
+        }
+        catch (Exception e) {
+            currentTransaction.rollback();
+            throw e;
+        }
+    }
+
+    public void testStatistics(TM3Tm<TestData> tm, TestLocale srcLocale, TestLocale tgtLocale) 
+                        throws Exception {
+        try {
+            currentTransaction = currentSession.beginTransaction();
+            List<Long> ids = new ArrayList<Long>();
+            for (int i = 0; i < 10; i++) {
+                ids.add(tm.save(srcLocale, new TestData("stats " + i), TM3Attributes.NONE, 
+                        tgtLocale, new TestData("stats " + i), TM3SaveMode.MERGE, 
+                        currentTestEvent).getId());
+            }
+            // A second target in the same locale adds a TUV but not a TU
+            tm.save(srcLocale, new TestData("stats 0"), TM3Attributes.NONE, 
+                    tgtLocale, new TestData("more stats 0"), TM3SaveMode.MERGE, 
+                    currentTestEvent);
+            assertEquals(10, tm.getAllData(null, null).getCount());
+            assertEquals(21, tm.getAllData(null, null).getTuvCount());
+            assertEquals(10, tm.getDataByLocale(tgtLocale, null, null).getCount());
+            assertEquals(11, tm.getDataByLocale(tgtLocale, null, null).getTuvCount());
+            
+            // Remove both targets from one TU, and another TU entirely
+            TM3Tu<TestData> tu = tm.getTu(ids.get(0));
+            tu.removeTargetTuvs();
+            tm.modifyTu(tu, currentTestEvent);
+            tm.getDataById(ids.subList(1, 2)).purge();
+            assertEquals(9, tm.getAllData(null, null).getCount());
+            assertEquals(17, tm.getAllData(null, null).getTuvCount());
+            assertEquals(9, tm.getDataByLocale(srcLocale, null, null).getCount());
+            assertEquals(8, tm.getDataByLocale(tgtLocale, null, null).getCount());
+            assertEquals(8, tm.getDataByLocale(tgtLocale, null, null).getTuvCount());
+            assertTrue(manager.verifyStatistics(currentSession, tm, false));
+            currentTransaction.commit();
+            cleanupTestDb(manager);
+        }
+        catch (Exception e) {
+            currentTransaction.rollback();
+            throw e;
+        }
+    }
+
+    public void testContentCompression(TM3Tm<TestData> tm, TestLocale srcLocale, TestLocale tgtLocale) 
+                        throws Exception {
+        try {
+            currentTransaction = currentSession.beginTransaction();
+            List<Long> ids = new ArrayList<Long>();
+            for (int i = 0; i < 20; i++) {
+                ids.add(tm.save(srcLocale, new TestData("the compressed source segment " + i), 
+                        TM3Attributes.NONE, tgtLocale, 
+                        new TestData("the compressed target segment " + i), 
+                        TM3SaveMode.MERGE, currentTestEvent).getId());
+            }
+            assertFalse(tm.isContentCompressed());
+            tm.setContentCompressed(true);
+            assertTrue(tm.isContentCompressed());
+            // Convert existing content a few TUVs at a time
+            for (long startId = 0; (startId = tm.migrateContent(startId, 7)) != 0; ) {
+                currentSession.flush();
+            }
+            ids.add(tm.save(srcLocale, new TestData("the compressed source segment 20"), 
+                    TM3Attributes.NONE, tgtLocale, 
+                    new TestData("the compressed target segment 20"), 
+                    TM3SaveMode.MERGE, currentTestEvent).getId());
+            currentSession.flush();
+            currentSession.clear();
+            tm = manager.getTm(currentSession, FACTORY, currentTestId);
+            assertTrue(tm.isContentCompressed());
+            for (int i = 0; i < ids.size(); i++) {
+                TM3Tu<TestData> tu = tm.getTu(ids.get(i));
+                assertEquals(new TestData("the compressed source segment " + i), 
+                             tu.getSourceTuv().getContent());
+                assertEquals(new TestData("the compressed target segment " + i), 
+                             tu.getLocaleTuvs(tgtLocale).get(0).getContent());
+            }
+            TM3LeverageResults<TestData> results = tm.findMatches(
+                    new TestData("the compressed source segment 5"), srcLocale, 
+                    Collections.singleton(tgtLocale), null, TM3MatchType.ALL, false);
+            assertEquals(new TestData("the compressed source segment 5"), 
+                         results.getMatches().first().getTu().getSourceTuv().getContent());
+
+            // Turning compression off converts the content back
+            tm.setContentCompressed(false);
+            assertEquals(0, tm.migrateContent(tm.migrateContent(0, 100), 100));
+            TM3Tu<TestData> tu = tm.getTu(ids.get(3));
+            assertEquals(new TestData("the compressed target segment 3"), 
+                         tu.getLocaleTuvs(tgtLocale).get(0).getContent());
+            currentTransaction.commit();
+            cleanupTestDb(manager);
+        }
+        catch (Exception e) {
+            currentTransaction.rollback();
+            throw e;
+        }
+    }
+
+    public void testUpgradeCurrentTm(TM3Tm<TestData> tm, TestLocale srcLocale, TestLocale tgtLocale) 
+                        throws Exception {
+        try {
+            currentTransaction = currentSession.beginTransaction();
+            tm.save(srcLocale, new TestData("upgrade"), TM3Attributes.NONE, tgtLocale, 
+                    new TestData("upgrade"), TM3SaveMode.MERGE, currentTestEvent);
+            currentSession.flush();
+            // Freshly written TUVs already have everything the upgrade adds
+            assertFalse(manager.upgradeTm(currentSession, tm));
+            currentTransaction.commit();
+            cleanupTestDb(manager);
+        }
+        catch (Exception e) {
+            currentTransaction.rollback();
+            throw e;
+        }
+    }
+
+    public void testLocaleRemovalJob(final TM3Tm<TestData> tm, final TestLocale srcLocale,
+                        final TestLocale tgtLocale) throws Exception {
+        try {
+            currentTransaction = currentSession.beginTransaction();
+            tm.setIndexTarget(true);
+            for (int i = 0; i < 30; i++) {
+                tm.save(srcLocale, new TestData("source " + i), TM3Attributes.NONE, tgtLocale, 
+                        new TestData("target " + i), TM3SaveMode.MERGE, currentTestEvent);
+            }
+            currentTransaction.commit();
+            
+            TM3LocaleRemovalJob<TestData> job = new TM3LocaleRemovalJob<TestData>(
+                    sessionFactory, manager, FACTORY, currentTestId, tgtLocale);
+            job.setBatchSize(10);
+            final List<Long> progress = new ArrayList<Long>();
+            job.setProgressListener(new TM3ProgressListener() {
+                @Override
+                public void progress(long done, long total) {
+                    progress.add(done);
+                    // Leverage ignores the locale while the job is running
+                    currentTransaction = currentSession.beginTransaction();
+                    TM3LeverageResults<TestData> results = tm.findMatches(
+                        new TestData("target 29"), tgtLocale, null, null, 
+                        TM3MatchType.ALL, true);
+                    expectResults(results);
+                    currentTransaction.commit();
+                }
+            });
+            job.run();
+            assertTrue(job.isDone());
+            assertEquals(Arrays.asList(10L, 20L, 30L), progress);
+            
+            currentTransaction = currentSession.beginTransaction();
+            assertEquals(0, tm.getDataByLocale(tgtLocale, null, null).getTuvCount());
+            assertEquals(30, tm.getDataByLocale(srcLocale, null, null).getTuvCount());
+            
+            // Once the job is finished, nothing is excluded
+            TM3LeverageResults<TestData> results = tm.findMatches(
+                new TestData("source 0"), srcLocale, null, null, TM3MatchType.EXACT, false);
+            assertEquals(1, results.getMatches().size());
+            currentTransaction.commit();
+            cleanupTestDb(manager);
+        }
+        catch (Exception e) {
+            currentTransaction.rollback();
+            throw e;
+        }
+    }
+
+    public void testReindexJob(TM3Tm<TestData> tm, TestLocale srcLocale,
+                        TestLocale tgtLocale) throws Exception {
+        try {
+            currentTransaction = currentSession.beginTransaction();
+            tm.setIndexTarget(true);
+            for (int i = 0; i < 30; i++) {
+                tm.save(srcLocale, new TestData("the quick brown fox " + i), 
+                        TM3Attributes.NONE, tgtLocale, 
+                        new TestData("le renard brun rapide " + i), 
+                        TM3SaveMode.MERGE, currentTestEvent);
+            }
+            currentTransaction.commit();
+            
+            // Rebuild in place, without targets
+            TM3ReindexJob<TestData> job = new TM3ReindexJob<TestData>(
+                    sessionFactory, manager, FACTORY, currentTestId);
+            job.setBatchSize(7);
+            job.setReaders(3);
+            job.setWorkers(2);
+            job.setWriters(2);
+            final List<Long> progress = new ArrayList<Long>();
+            job.setProgressListener(new TM3ProgressListener() {
+                @Override
+                public synchronized void progress(long done, long total) {
+                    assertEquals(30, total);
+                    progress.add(done);
+                }
+            });
+            job.run();
+            assertTrue(job.isDone());
+            assertEquals(5, progress.size());
+            assertEquals(Long.valueOf(30), Collections.max(progress));
+            
+            currentTransaction = currentSession.beginTransaction();
+            TM3LeverageResults<TestData> results = tm.findMatches(
+                new TestData("the quick brown fox 17 jumps"), srcLocale, 
+                null, null, TM3MatchType.ALL, false);
+            assertFalse(results.getMatches().isEmpty());
+            assertEquals(new TestData("the quick brown fox 17"),
+                results.getMatches().first().getTu().getSourceTuv().getContent());
+            results = tm.findMatches(
+                new TestData("le renard brun rapide 17 saute"), tgtLocale, 
+                null, null, TM3MatchType.ALL, true);
+            expectResults(results);
+            currentTransaction.commit();
+            
+            // Rebuild in a shadow table, with targets
+            job = new TM3ReindexJob<TestData>(
+                    sessionFactory, manager, FACTORY, currentTestId);
+            job.setBatchSize(7);
+            job.setShadow(true);
+            job.setIndexTarget(true);
+            job.run();
+            assertTrue(job.isDone());
+            
+            currentTransaction = currentSession.beginTransaction();
+            results = tm.findMatches(
+                new TestData("le renard brun rapide 17 saute"), tgtLocale, 
+                null, null, TM3MatchType.ALL, true);
+            assertFalse(results.getMatches().isEmpty());
+            assertEquals(new TestData("le renard brun rapide 17"),
+                getLocaleTuv(results.getMatches().first().getTu(), tgtLocale)
+                    .getContent());
+            currentTransaction.commit();
+            cleanupTestDb(manager);
+        }
+        catch (Exception e) {
+            currentTransaction.rollback();
+            throw e;
+        }
+    }
+
+    public void testIndexedTargetLocales(TM3Tm<TestData> tm, 
+            TestLocale srcLocale, TestLocale tgtLocale) throws Exception {
+        try {
+            currentTransaction = currentSession.beginTransaction();
+            // The list wins over setIndexTarget()
+            tm.setIndexTarget(true);
+            tm.setIndexedTargetLocales(Collections.<TM3Locale>emptySet());
+            assertTrue(tm.getIndexedTargetLocales().isEmpty());
+            tm.save(srcLocale, new TestData("the quick brown fox"), 
+                    TM3Attributes.NONE, tgtLocale, 
+                    new TestData("le renard brun rapide"), 
+                    TM3SaveMode.MERGE, currentTestEvent);
+            try {
+                tm.findMatches(new TestData("le renard brun rapide saute"), 
+                    tgtLocale, null, null, TM3MatchType.ALL, true);
+                fail("Lookup of unindexed targets should fail");
+            }
+            catch (IllegalArgumentException e) {
+                // expected
+            }
+            // Exact matching doesn't need the index
+            TM3LeverageResults<TestData> results = tm.findMatches(
+                new TestData("le renard brun rapide"), tgtLocale, null, null, 
+                TM3MatchType.EXACT, true);
+            assertEquals(1, results.getMatches().size());
+            
+            tm.setIndexedTargetLocales(Collections.singleton(tgtLocale));
+            assertEquals(Collections.singleton(tgtLocale), 
+                         tm.getIndexedTargetLocales());
+            tm.save(srcLocale, new TestData("the lazy brown dog"), 
+                    TM3Attributes.NONE, tgtLocale, 
+                    new TestData("le chien brun paresseux"), 
+                    TM3SaveMode.MERGE, currentTestEvent);
+            currentTransaction.commit();
+            
+            currentTransaction = currentSession.beginTransaction();
+            results = tm.findMatches(
+                new TestData("le chien brun paresseux dort"), tgtLocale, 
+                null, null, TM3MatchType.ALL, true);
+            assertEquals(1, results.getMatches().size());
+            // Saved before its locale was indexed
+            results = tm.findMatches(
+                new TestData("le renard brun rapide saute"), tgtLocale, 
+                null, null, TM3MatchType.ALL, true);
+            expectResults(results);
+            
+            tm.setIndexedTargetLocales(null);
+            assertNull(tm.getIndexedTargetLocales());
+            currentTransaction.commit();
+            cleanupTestDb(manager);
+        }
+        catch (Exception e) {
+            currentTransaction.rollback();
+            throw e;
+        }
+    }
+
     public void testGetAllTuDataWithDateRange(TM3Tm<TestData> tm, TestLocale srcLocale, TestLocale tgtLocale) 
             throws Exception {
         try {
@@ -0,0 +1,124 @@
+package com.globalsight.ling.tm3.core;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+import com.globalsight.ling.tm3.core.TestEditDistanceScorer.Data;
+import com.globalsight.ling.tm3.core.TestEditDistanceScorer.DataChunk;
+
+// Uses TestEditDistanceScorer's data, with lowercase tokens only, so
+// that tokens either match or don't
+public class TestBitParallelEditDistanceScorer {
+
+    EditDistanceScorer<Data, DataChunk> reference =
+        new EditDistanceScorer<Data, DataChunk>();
+    BitParallelEditDistanceScorer<Data, DataChunk> scorer =
+        new BitParallelEditDistanceScorer<Data, DataChunk>();
+
+    @Test
+    public void testChanges() {
+        assertEquals(1.0, scorer.score(new Data("a b c d"),
+                new Data("a b c d"), null), 0.0001);
+        assertEquals(.75, scorer.score(new Data("a b d c"),
+                new Data("a b c d"), null), 0.0001);
+        assertEquals(.60, scorer.score(new Data("a b c d e"),
+                new Data("b a c e"), null), 0.0001);
+        assertEquals(0, scorer.score(new Data("a b"), new Data("c d"), null),
+                0.0001);
+    }
+
+    // Random segments over a small vocabulary, so that there are plenty
+    // of matches and transpositions, at lengths either side of the
+    // 64-token blocks
+    @Test
+    public void testSameAsEditDistanceScorer() {
+        Random random = new Random(48);
+        for (int i = 0; i < 3000; i++) {
+            int vocabulary = 2 + random.nextInt(6);
+            Data key = randomData(random, random.nextInt(i < 2000 ? 70 : 200),
+                                  vocabulary);
+            Data candidate = mutate(random, key, vocabulary);
+            assertEquals(key + " / " + candidate,
+                    reference.score(key, candidate, null),
+                    scorer.score(key, candidate, null), 0);
+            assertEquals(key + " / " + candidate,
+                    reference.score(candidate, key, null),
+                    scorer.score(candidate, key, null), 0);
+        }
+    }
+
+    // Scoring a batch against a compiled key gives the same scores
+    @Test
+    public void testBatchScores() {
+        Random random = new Random(49);
+        Data key = randomData(random, 90, 4);
+        List<Data> candidates = new ArrayList<Data>();
+        for (int i = 0; i < 50; i++) {
+            candidates.add(mutate(random, key, 4));
+        }
+        float[] scores = scorer.score(scorer.prepare(key, null), candidates);
+        BatchEditDistanceScorer<Data, DataChunk> batch =
+            new BatchEditDistanceScorer<Data, DataChunk>();
+        float[] referenceScores =
+            batch.score(batch.prepare(key, null), candidates);
+        assertEquals(candidates.size(), scores.length);
+        for (int i = 0; i < scores.length; i++) {
+            float expected = reference.score(key, candidates.get(i), null);
+            assertEquals(expected, referenceScores[i], 0);
+            assertEquals(expected, scores[i], 0);
+        }
+    }
+
+    private Data randomData(Random random, int length, int vocabulary) {
+        List<String> words = new ArrayList<String>();
+        for (int i = 0; i < length; i++) {
+            words.add("w" + random.nextInt(vocabulary));
+        }
+        return toData(words);
+    }
+
+    // Insert, delete, replace and swap a few tokens, or start afresh
+    private Data mutate(Random random, Data data, int vocabulary) {
+        if (random.nextInt(10) == 0) {
+            return randomData(random, random.nextInt(150), vocabulary);
+        }
+        List<String> words = new ArrayList<String>(
+                Arrays.asList(data.getSerializedForm().split(" ")));
+        int edits = random.nextInt(1 + words.size() / 4 + 1);
+        for (int i = 0; i < edits; i++) {
+            int op = random.nextInt(4);
+            String w = "w" + random.nextInt(vocabulary + 1);
+            if (op == 0 || words.size() < 2) {
+                words.add(random.nextInt(words.size() + 1), w);
+            }
+            else if (op == 1) {
+                words.remove(random.nextInt(words.size()));
+            }
+            else if (op == 2) {
+                words.set(random.nextInt(words.size()), w);
+            }
+            else {
+                int p = random.nextInt(words.size() - 1);
+                words.add(p, words.remove(p + 1));
+            }
+        }
+        return toData(words);
+    }
+
+    // Data has at least one token, so an empty list gets one of its own
+    private Data toData(List<String> words) {
+        StringBuilder sb = new StringBuilder();
+        for (String w : words) {
+            if (sb.length() > 0) {
+                sb.append(' ');
+            }
+            sb.append(w);
+        }
+        return new Data(words.isEmpty() ? "w" : sb.toString());
+    }
+}
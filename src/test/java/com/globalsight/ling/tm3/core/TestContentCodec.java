@@ -0,0 +1,75 @@
+package com.globalsight.ling.tm3.core;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+public class TestContentCodec {
+
+    static final String SEGMENT = 
+        "<segment>The <bpt i=\"1\" type=\"bold\">&lt;b&gt;</bpt>quick" +
+        "<ept i=\"1\">&lt;/b&gt;</ept> brown fox jumps over the lazy " +
+        "dog, and the lazy dog does not seem to mind.</segment>";
+
+    private List<String> sample() {
+        List<String> samples = new ArrayList<String>();
+        for (int i = 0; i < 50; i++) {
+            samples.add("<segment>The <bpt i=\"1\" type=\"bold\">&lt;b&gt;</bpt>" +
+                        "sample " + i + "<ept i=\"1\">&lt;/b&gt;</ept> " +
+                        "text for the dictionary.</segment>");
+        }
+        return samples;
+    }
+
+    @Test
+    public void testRoundTrip() {
+        ContentCodec codec = new ContentCodec(null);
+        byte[] encoded = codec.encode(SEGMENT);
+        assertNotNull(encoded);
+        assertEquals(ContentCodec.DEFLATE, encoded[0]);
+        assertEquals(SEGMENT, codec.decode(encoded));
+    }
+
+    @Test
+    public void testDictionaryRoundTrip() {
+        byte[] dictionary = ContentCodec.train(sample());
+        assertNotNull(dictionary);
+        assertTrue(dictionary.length <= ContentCodec.MAX_DICTIONARY_SIZE);
+        ContentCodec codec = new ContentCodec(dictionary);
+        byte[] encoded = codec.encode(SEGMENT);
+        assertEquals(ContentCodec.DEFLATE_DICTIONARY, encoded[0]);
+        assertEquals(SEGMENT, codec.decode(encoded));
+        // The dictionary should pay for itself on similar content
+        assertTrue(encoded.length < new ContentCodec(null).encode(SEGMENT).length);
+    }
+
+    @Test
+    public void testNonAscii() {
+        ContentCodec codec = new ContentCodec(ContentCodec.train(sample()));
+        String s = "<segment>\u00c9t\u00e9 \u65e5\u672c\u8a9e \u00c9t\u00e9 " +
+                   "\u65e5\u672c\u8a9e \u00c9t\u00e9 \u65e5\u672c\u8a9e</segment>";
+        byte[] encoded = codec.encode(s);
+        assertNotNull(encoded);
+        assertEquals(s, codec.decode(encoded));
+    }
+
+    @Test
+    public void testShortContentNotCompressed() {
+        assertNull(new ContentCodec(null).encode("a"));
+        assertNull(new ContentCodec(null).encode(""));
+    }
+
+    @Test
+    public void testEmptySample() {
+        assertNull(ContentCodec.train(new ArrayList<String>()));
+    }
+
+    @Test(expected = TM3Exception.class)
+    public void testMissingDictionary() {
+        byte[] encoded = new ContentCodec(ContentCodec.train(sample()))
+            .encode(SEGMENT);
+        new ContentCodec(null).decode(encoded);
+    }
+}
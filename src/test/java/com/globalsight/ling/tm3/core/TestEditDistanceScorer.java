@@ -2,7 +2,11 @@ package com.globalsight.ling.tm3.core;
 
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
 
 import org.junit.Test;
 import static org.junit.Assert.*;
@@ -46,6 +50,68 @@ public class TestEditDistanceScorer {
         assertEquals(.60, scorer.score(new Data("a b c d e"), new Data("b a c e"), null), 0.0001);
     }
     
+    @Test
+    public void testInterningScorer() {
+        InterningEditDistanceScorer<Data, DataChunk> interning = 
+            new InterningEditDistanceScorer<Data, DataChunk>();
+        Data key = new Data("We are the shadow council of the localization industry");
+        List<Data> candidates = Arrays.asList(
+                new Data("We are the Shadow council of the translation industry"),
+                new Data("the council of THE industry"),
+                new Data("industry the of council shadow the are We"),
+                new Data("a b c"));
+        float[] scores = interning.score(interning.prepare(key, null), candidates);
+        for (int i = 0; i < candidates.size(); i++) {
+            assertEquals(scorer.score(key, candidates.get(i), null), scores[i], 0);
+        }
+    }
+    
+    @Test
+    public void testInterningComparesEachPairOnce() {
+        InterningEditDistanceScorer<Data, DataChunk> interning = 
+            new InterningEditDistanceScorer<Data, DataChunk>();
+        Map<String, Integer> calls = new HashMap<String, Integer>();
+        Data key = new CountingData("the cat sat on the mat", calls);
+        List<Data> candidates = Arrays.<Data>asList(
+                new CountingData("the cat sat on the hat", calls),
+                new CountingData("The dog sat on the mat", calls),
+                new CountingData("a cat sat on a mat", calls));
+        float[] scores = interning.score(interning.prepare(key, null), candidates);
+        Set<String> pairs = new HashSet<String>();
+        for (Data candidate : candidates) {
+            for (DataChunk source : key.getScoringObjects()) {
+                for (DataChunk target : candidate.getScoringObjects()) {
+                    if (!source.equals(target)) {
+                        pairs.add(source + "/" + target);
+                    }
+                }
+            }
+        }
+        // Equal tokens are never compared, and the others once each
+        assertEquals(pairs, calls.keySet());
+        for (Integer n : calls.values()) {
+            assertEquals(1, n.intValue());
+        }
+        for (int i = 0; i < candidates.size(); i++) {
+            assertEquals(scorer.score(key, candidates.get(i), null), scores[i], 0);
+        }
+    }
+    
+    @Test
+    public void testPairCache() {
+        InterningEditDistanceScorer.PairCache cache = 
+            new InterningEditDistanceScorer.PairCache();
+        assertTrue(Float.isNaN(cache.get(1)));
+        for (long i = 0; i < 10000; i++) {
+            cache.put((i << 32) | (i * 7), i / 10000f);
+        }
+        assertEquals(10000, cache.size());
+        for (long i = 0; i < 10000; i++) {
+            assertEquals(i / 10000f, cache.get((i << 32) | (i * 7)), 0);
+        }
+        assertTrue(Float.isNaN(cache.get(7)));
+    }
+    
     static class DataChunk implements TM3FuzzyComparable<DataChunk> {
         private String s;
         DataChunk(String s) {
@@ -62,11 +128,55 @@ public class TestEditDistanceScorer {
             return 0;
         }
         @Override
+        public boolean equals(Object o) {
+            return o instanceof DataChunk && ((DataChunk) o).s.equals(s);
+        }
+        @Override
+        public int hashCode() {
+            return s.hashCode();
+        }
+        @Override
         public String toString() {
             return s;
         }
     }
     
+    // Counts the fuzzyCompare() calls for each pair of tokens
+    static class CountingChunk extends DataChunk {
+        private String s;
+        private Map<String, Integer> calls;
+        CountingChunk(String s, Map<String, Integer> calls) {
+            super(s);
+            this.s = s;
+            this.calls = calls;
+        }
+        @Override
+        public float fuzzyCompare(DataChunk target) {
+            String pair = s + "/" + target;
+            Integer n = calls.get(pair);
+            calls.put(pair, n == null ? 1 : n + 1);
+            return super.fuzzyCompare(target);
+        }
+    }
+    
+    static class CountingData extends Data {
+        private String s;
+        private Map<String, Integer> calls;
+        CountingData(String s, Map<String, Integer> calls) {
+            super(s);
+            this.s = s;
+            this.calls = calls;
+        }
+        @Override
+        public List<DataChunk> getScoringObjects() {
+            List<DataChunk> l = new ArrayList<DataChunk>();
+            for (String ss : s.split(" ")) {
+                l.add(new CountingChunk(ss, calls));
+            }
+            return l;
+        }
+    }
+    
     // TM3Data
     static class Data implements TM3Scorable<DataChunk> {
         private String s;
@@ -0,0 +1,105 @@
+package com.globalsight.ling.tm3.core;
+
+import java.nio.ByteBuffer;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+public class TestFingerprint {
+
+    @Test
+    public void testMD5Unchanged() throws Exception {
+        for (String s : new String[] { "", "a", "the", "\u00dcbersetzung" }) {
+            byte[] md5 = MessageDigest.getInstance("MD5")
+                .digest(s.getBytes("UTF-8"));
+            assertEquals(ByteBuffer.wrap(md5).getLong(),
+                         Fingerprint.fromString(s));
+        }
+    }
+
+    @Test
+    public void testMurmur() {
+        assertEquals(Fingerprint.murmur("segment"),
+                     Fingerprint.murmur(new StringBuilder("segment")));
+        // Trailing chars and zero chars both count
+        assertFalse(Fingerprint.murmur("abcd") == Fingerprint.murmur("abcde"));
+        assertFalse(Fingerprint.murmur("") == Fingerprint.murmur("\0"));
+        Set<Long> seen = new HashSet<Long>();
+        for (int i = 0; i < 200000; i++) {
+            assertTrue(seen.add(Fingerprint.murmur("token" + i)));
+        }
+    }
+
+    @Test
+    public void testTrigrammerUsesTokens() {
+        TokenData data = new TokenData("a", "b");
+        List<Trigrammer.Trigram> md5 = new Trigrammer().getTrigrams(data);
+        assertEquals(Fingerprint.fromString("a"), md5.get(0).fingerprints[1]);
+        List<Trigrammer.Trigram> murmur = new Trigrammer(
+                TM3FingerprintFunction.MURMUR, TM3TrigramHash.V1).getTrigrams(data);
+        assertEquals(2, murmur.size());
+        assertEquals(Fingerprint.murmur("a"), murmur.get(0).fingerprints[1]);
+        assertEquals(Fingerprint.murmur("b"), murmur.get(1).fingerprints[1]);
+    }
+
+    @Test
+    public void testTrigramHash() {
+        assertEquals(1 + 31 * (2 + 31 * 3), TM3TrigramHash.V1.hash(1, 2, 3));
+        // Small fingerprints collide under V1, but not V2
+        assertEquals(TM3TrigramHash.V1.hash(31, 0, 0),
+                     TM3TrigramHash.V1.hash(0, 1, 0));
+        assertFalse(TM3TrigramHash.V2.hash(31, 0, 0) ==
+                    TM3TrigramHash.V2.hash(0, 1, 0));
+        assertFalse(TM3TrigramHash.V2.hash(1, 2, 3) ==
+                    TM3TrigramHash.V2.hash(3, 2, 1));
+        Set<Long> seen = new HashSet<Long>();
+        for (long i = 0; i < 100; i++) {
+            for (long j = 0; j < 100; j++) {
+                for (long k = 0; k < 10; k++) {
+                    assertTrue(seen.add(TM3TrigramHash.V2.hash(i, j, k)));
+                }
+            }
+        }
+        for (TM3TrigramHash h : TM3TrigramHash.values()) {
+            assertSame(h, TM3TrigramHash.forVersion(h.getVersion()));
+        }
+    }
+
+    static class TokenData implements TM3TokenizedData {
+        private List<String> tokens;
+
+        TokenData(String... tokens) {
+            this.tokens = Arrays.asList(tokens);
+        }
+
+        @Override
+        public Iterable<String> getTokens() {
+            return tokens;
+        }
+
+        @Override
+        public Iterable<Long> tokenize() {
+            List<Long> fps = new ArrayList<Long>();
+            for (String token : tokens) {
+                fps.add(Fingerprint.fromString(token));
+            }
+            return fps;
+        }
+
+        @Override
+        public long getFingerprint() {
+            return Fingerprint.fromString(getSerializedForm());
+        }
+
+        @Override
+        public String getSerializedForm() {
+            return tokens.toString();
+        }
+    }
+}
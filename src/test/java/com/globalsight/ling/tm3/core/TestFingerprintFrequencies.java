@@ -0,0 +1,113 @@
+package com.globalsight.ling.tm3.core;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+public class TestFingerprintFrequencies {
+
+    private List<Long> fingerprints(int count) {
+        List<Long> fps = new ArrayList<Long>();
+        for (long i = 1; i <= count; i++) {
+            fps.add(i);
+        }
+        return fps;
+    }
+
+    @Test
+    public void testNoFrequent() {
+        List<Long> fps = fingerprints(10);
+        Map<Long, Long> none = Collections.emptyMap();
+        assertEquals(fps, FingerprintFrequencies.prune(fps, 10, none, 80));
+    }
+
+    @Test
+    public void testDropsMostFrequentFirst() {
+        List<Long> fps = fingerprints(7);
+        Map<Long, Long> frequent = new HashMap<Long, Long>();
+        frequent.put(2L, 500L);
+        frequent.put(5L, 900L);
+        frequent.put(7L, 700L);
+        // At 80%, a match is at most 7 * 20 / 80 = 1 edit away, which
+        // removes up to 4 fingerprints, so at most 2 can be dropped
+        List<Long> kept = FingerprintFrequencies.prune(fps, 7, frequent, 80);
+        assertEquals(5, kept.size());
+        assertFalse(kept.contains(5L));
+        assertFalse(kept.contains(7L));
+        assertTrue(kept.contains(2L));
+        // At 100% all three can go
+        kept = FingerprintFrequencies.prune(fps, 7, frequent, 100);
+        assertEquals(4, kept.size());
+        assertFalse(kept.contains(2L));
+    }
+
+    @Test
+    public void testLowThresholdKeepsEverything() {
+        List<Long> fps = fingerprints(10);
+        Map<Long, Long> frequent = new HashMap<Long, Long>();
+        frequent.put(1L, 1000L);
+        // Any shared fingerprint could produce a 10% match
+        assertEquals(fps, FingerprintFrequencies.prune(fps, 10, frequent, 10));
+        assertEquals(fps, FingerprintFrequencies.prune(fps, 10, frequent, 0));
+    }
+
+    @Test
+    public void testKeepsAtLeastOne() {
+        List<Long> fps = fingerprints(3);
+        Map<Long, Long> frequent = new HashMap<Long, Long>();
+        for (Long fp : fps) {
+            frequent.put(fp, 100L * fp);
+        }
+        List<Long> kept = FingerprintFrequencies.prune(fps, 3, frequent, 100);
+        assertEquals(1, kept.size());
+        assertEquals(Long.valueOf(1L), kept.get(0));
+    }
+
+    @Test
+    public void testKeepsNearMiss() {
+        // Two substitutions away, scoring 80, and sharing only the
+        // fingerprints at the ends of the segment, which are the 
+        // frequent ones
+        String key = "a b c d e f g h i j";
+        String candidate = "a b c x e f y h i j";
+        Set<Long> keyFps = trigrams(key);
+        Set<Long> shared = trigrams(candidate);
+        shared.retainAll(keyFps);
+        assertEquals(4, shared.size());
+        Map<Long, Long> frequent = new HashMap<Long, Long>();
+        for (Long fp : shared) {
+            frequent.put(fp, 1000L);
+        }
+        List<Long> kept = FingerprintFrequencies.prune(
+                new ArrayList<Long>(keyFps), 10, frequent, 75);
+        kept.retainAll(shared);
+        assertFalse(kept.isEmpty());
+    }
+
+    private static Set<Long> trigrams(String s) {
+        Set<Long> fps = new HashSet<Long>();
+        for (Trigrammer.Trigram t : new Trigrammer().getTrigrams(
+                    new TestFingerprint.TokenData(s.split(" ")))) {
+            fps.add(t.getValue());
+        }
+        return fps;
+    }
+
+    @Test
+    public void testIdf() {
+        // Rarer fingerprints weigh more, and weights are never negative
+        assertTrue(FingerprintFrequencies.idf(1000, 1) >
+                   FingerprintFrequencies.idf(1000, 100));
+        assertTrue(FingerprintFrequencies.idf(1000, 100) >
+                   FingerprintFrequencies.idf(1000, 1000));
+        assertTrue(FingerprintFrequencies.idf(1000, 1000) > 0);
+        assertTrue(FingerprintFrequencies.idf(0, 0) >= 0);
+    }
+}
@@ -0,0 +1,121 @@
+package com.globalsight.ling.tm3.core;
+
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+public class TestFuzzyIndex {
+
+    @Test
+    public void testIdenticalCandidate() {
+        assertEquals(100, FuzzyIndex.getScoreBound(10, 10, 10, 10));
+    }
+
+    @Test
+    public void testOneChangedToken() {
+        // One edit removes up to four trigrams (a transposition), and
+        // costs one edit out of ten
+        assertEquals(90, FuzzyIndex.getScoreBound(10, 10, 10, 7));
+        assertEquals(90, FuzzyIndex.getScoreBound(10, 10, 10, 6));
+        assertEquals(80, FuzzyIndex.getScoreBound(10, 10, 10, 5));
+    }
+
+    @Test
+    public void testLengthDifference() {
+        // All of the key is shared, but the candidate is twice as long
+        assertEquals(50, FuzzyIndex.getScoreBound(10, 10, 20, 10));
+        assertEquals(50, FuzzyIndex.getScoreBound(20, 20, 10, 20));
+    }
+
+    @Test
+    public void testNothingShared() {
+        assertEquals(70, FuzzyIndex.getScoreBound(10, 10, 10, 0));
+        // Changing the middle token of three removes every trigram
+        assertEquals(66, FuzzyIndex.getScoreBound(3, 3, 3, 0));
+        assertEquals(100, FuzzyIndex.getScoreBound(0, 0, 0, 0));
+    }
+
+    @Test
+    public void testAnyLength() {
+        // One edit is best spent on a candidate one token longer
+        assertEquals(90, FuzzyIndex.getScoreBound(10, 10, 0, 7));
+        assertEquals(75, FuzzyIndex.getScoreBound(3, 3, 0, 0));
+        assertEquals(100, FuzzyIndex.getScoreBound(10, 10, 0, 10));
+        for (int shared = 0; shared <= 10; shared++) {
+            for (int tokens = 1; tokens <= 30; tokens++) {
+                assertTrue(FuzzyIndex.getScoreBound(10, 10, 0, shared) >= 
+                           FuzzyIndex.getScoreBound(10, 10, tokens, shared));
+            }
+        }
+    }
+
+    @Test
+    public void testRepeatedTokens() {
+        // Eight tokens but only three distinct trigrams; one edit away
+        assertEquals(87, bound("the the the the the the the the",
+                               "the the the the the the the cat"));
+        // Here every distinct trigram of the key survives the edit
+        assertEquals(100, bound("the the the the the the the the",
+                                "the the the cat the the the the"));
+        // A transposition
+        assertEquals(75, bound("a b c d", "a c b d"));
+    }
+
+    @Test
+    public void testBoundsScore() {
+        EditDistanceScorer<TestEditDistanceScorer.Data,
+                           TestEditDistanceScorer.DataChunk> scorer =
+            new EditDistanceScorer<TestEditDistanceScorer.Data,
+                                   TestEditDistanceScorer.DataChunk>();
+        Random random = new Random(17);
+        for (int i = 0; i < 5000; i++) {
+            String key = randomSegment(random);
+            String candidate = randomSegment(random);
+            float score = scorer.score(new TestEditDistanceScorer.Data(key),
+                    new TestEditDistanceScorer.Data(candidate), null);
+            assertTrue(key + " / " + candidate,
+                       bound(key, candidate) >= (int) (100 * score));
+        }
+    }
+
+    // Few distinct tokens, so that repeats and partial overlaps are common
+    private static String randomSegment(Random random) {
+        StringBuilder sb = new StringBuilder();
+        int n = 1 + random.nextInt(12);
+        for (int i = 0; i < n; i++) {
+            if (i > 0) {
+                sb.append(' ');
+            }
+            sb.append((char) ('a' + random.nextInt(3)));
+        }
+        return sb.toString();
+    }
+
+    // The bound as the index computes it from the segments' trigrams
+    private static int bound(String key, String candidate) {
+        List<Trigrammer.Trigram> keyTrigrams = getTrigrams(key);
+        Set<Long> keyValues = values(keyTrigrams);
+        List<Trigrammer.Trigram> candidateTrigrams = getTrigrams(candidate);
+        Set<Long> shared = values(candidateTrigrams);
+        shared.retainAll(keyValues);
+        return FuzzyIndex.getScoreBound(keyTrigrams.size(), keyValues.size(),
+                candidateTrigrams.size(), shared.size());
+    }
+
+    private static List<Trigrammer.Trigram> getTrigrams(String s) {
+        return new Trigrammer().getTrigrams(
+                new TestFingerprint.TokenData(s.split(" ")));
+    }
+
+    private static Set<Long> values(List<Trigrammer.Trigram> trigrams) {
+        Set<Long> values = new HashSet<Long>();
+        for (Trigrammer.Trigram t : trigrams) {
+            values.add(t.getValue());
+        }
+        return values;
+    }
+}
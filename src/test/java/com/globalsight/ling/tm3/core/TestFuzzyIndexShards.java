@@ -0,0 +1,50 @@
+package com.globalsight.ling.tm3.core;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import javax.sql.DataSource;
+
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+public class TestFuzzyIndexShards {
+
+    private FuzzyIndexShards shards(int n) {
+        return FuzzyIndexShards.get(Collections.<DataSource>nCopies(n, null));
+    }
+
+    @Test
+    public void testSplit() {
+        FuzzyIndexShards shards = shards(4);
+        assertSame(shards, shards(4));
+        List<Long> fps = new ArrayList<Long>();
+        for (long i = 0; i < 1000; i++) {
+            // Fingerprints that differ only in their high bits
+            fps.add(i << 40);
+        }
+        List<List<Long>> byShard = shards.split(fps);
+        assertEquals(4, byShard.size());
+        int total = 0;
+        for (int i = 0; i < 4; i++) {
+            List<Long> shardFps = byShard.get(i);
+            assertTrue(shardFps.size() > 150 && shardFps.size() < 350);
+            for (Long fp : shardFps) {
+                assertEquals(i, shards.getShard(fp));
+            }
+            total += shardFps.size();
+        }
+        assertEquals(1000, total);
+    }
+
+    @Test
+    public void testNegativeFingerprints() {
+        FuzzyIndexShards shards = shards(3);
+        for (long fp : new long[] { -1, Long.MIN_VALUE, Long.MAX_VALUE }) {
+            int shard = shards.getShard(fp);
+            assertTrue(shard >= 0 && shard < 3);
+        }
+        assertEquals(0, shards(1).getShard(-1));
+    }
+}
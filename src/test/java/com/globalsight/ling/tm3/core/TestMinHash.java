@@ -0,0 +1,79 @@
+package com.globalsight.ling.tm3.core;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+public class TestMinHash {
+
+    private List<Long> fingerprints(long from, long to) {
+        List<Long> fps = new ArrayList<Long>();
+        for (long i = from; i < to; i++) {
+            fps.add(Fingerprint.mix(i));
+        }
+        return fps;
+    }
+
+    private int shared(long[] a, long[] b) {
+        Set<Long> keys = new HashSet<Long>();
+        for (long k : a) {
+            keys.add(k);
+        }
+        int n = 0;
+        for (long k : b) {
+            if (keys.contains(k)) {
+                n++;
+            }
+        }
+        return n;
+    }
+
+    @Test
+    public void testDeterministic() {
+        List<Long> fps = fingerprints(0, 30);
+        long[] keys = new MinHash(20, 3).getBandKeys(fps);
+        assertEquals(20, keys.length);
+        List<Long> shuffled = new ArrayList<Long>(fps);
+        Collections.reverse(shuffled);
+        assertTrue(Arrays.equals(keys,
+                   new MinHash(20, 3).getBandKeys(shuffled)));
+        // Bands never share keys
+        assertEquals(20, new HashSet<Long>(toList(keys)).size());
+    }
+
+    @Test
+    public void testEmpty() {
+        assertEquals(0, new MinHash(20, 3).getBandKeys(
+                new ArrayList<Long>()).length);
+    }
+
+    @Test
+    public void testSimilarity() {
+        MinHash minHash = new MinHash(20, 3);
+        long[] keys = minHash.getBandKeys(fingerprints(0, 30));
+        // Jaccard 27/33: nearly certain to share a band
+        assertTrue(shared(keys, minHash.getBandKeys(fingerprints(3, 33))) > 0);
+        // Disjoint sets never do
+        assertEquals(0, shared(keys,
+                minHash.getBandKeys(fingerprints(100, 130))));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testInvalidShape() {
+        new MinHash(0, 3);
+    }
+
+    private List<Long> toList(long[] a) {
+        List<Long> l = new ArrayList<Long>();
+        for (long v : a) {
+            l.add(v);
+        }
+        return l;
+    }
+}
@@ -4,6 +4,8 @@ import static org.junit.Assert.assertNotNull;
 import static org.junit.Assert.assertNull;
 import static org.junit.Assert.assertTrue;
 
+import static org.junit.Assert.assertEquals;
+
 import java.sql.Connection;
 import org.hibernate.Transaction;
 import org.junit.After;
@@ -11,6 +13,9 @@ import org.junit.Before;
 import org.junit.BeforeClass;
 import org.junit.Test;
 
+import com.globalsight.ling.tm3.core.persistence.SQLUtil;
+import com.globalsight.ling.tm3.core.persistence.StatementBuilder;
+
 public class TestMultilingualSharedTm extends TM3Tests {
 
     static final long SHARED_STORAGE_ID = 1;
@@ -75,4 +80,98 @@ public class TestMultilingualSharedTm extends TM3Tests {
         }
     }
     
+    @Test
+    public void testContentDeduplication() throws Exception {
+        Transaction tx = null;
+        try {
+            tx = currentSession.beginTransaction();
+            TM3SharedTm<TestData> tm = (TM3SharedTm<TestData>) 
+                manager.getTm(currentSession, FACTORY, currentTestId);
+            tm.setContentDeduplicated(true);
+            long[] ids = new long[5];
+            for (int i = 0; i < ids.length; i++) {
+                ids[i] = tm.save(EN_US, new TestData("dedup source " + i), 
+                        TM3Attributes.NONE, FR_FR, new TestData("Annuler"), 
+                        TM3SaveMode.MERGE, currentTestEvent).getId();
+            }
+            currentSession.flush();
+            // All five targets share a single content row
+            assertEquals(1, countContentIds(tm));
+            currentSession.clear();
+            tm = (TM3SharedTm<TestData>) 
+                manager.getTm(currentSession, FACTORY, currentTestId);
+            for (int i = 0; i < ids.length; i++) {
+                TM3Tu<TestData> tu = tm.getTu(ids[i]);
+                assertEquals(new TestData("dedup source " + i), 
+                             tu.getSourceTuv().getContent());
+                assertEquals(new TestData("Annuler"), 
+                             tu.getLocaleTuvs(FR_FR).get(0).getContent());
+            }
+            
+            // Turning it off moves the content back into the TUV table
+            tm.setContentDeduplicated(false);
+            assertEquals(0, tm.migrateContent(tm.migrateContent(0, 100), 100));
+            manager.purgeUnusedContent(currentSession.connection(), 
+                                       SHARED_STORAGE_ID);
+            assertEquals(0, countContentIds(tm));
+            assertEquals(new TestData("Annuler"), 
+                tm.getTu(ids[2]).getLocaleTuvs(FR_FR).get(0).getContent());
+            tx.commit();
+            cleanupTestDb(manager);
+        }
+        catch (Exception e) {
+            tx.rollback();
+            throw e;
+        }
+    }
+    
+    @Test
+    public void testPartitionedPool() throws Exception {
+        final long poolId = SHARED_STORAGE_ID + 1;
+        Connection conn = currentSession.connection();
+        manager.removeStoragePool(conn, poolId);
+        assertTrue(manager.createStoragePool(conn, poolId, inlineAttrs(), 4));
+        assertEquals(4, new SharedStorageTables(conn, poolId).getPartitionCount());
+        Transaction tx = null;
+        try {
+            tx = currentSession.beginTransaction();
+            TM3Tm<TestData> tm = manager.createMultilingualSharedTm(
+                    currentSession, FACTORY, inlineAttrs(), poolId);
+            currentSession.flush();
+            TM3Event event = tm.addEvent(0, "test", "partitioned");
+            long tuId = tm.save(EN_US, new TestData("partitioned source"),
+                    TM3Attributes.NONE, FR_FR, new TestData("source partitionn\u00e9e"),
+                    TM3SaveMode.MERGE, event).getId();
+            currentSession.flush();
+            assertEquals(new TestData("source partitionn\u00e9e"), 
+                tm.getTu(tuId).getLocaleTuvs(FR_FR).get(0).getContent());
+            tx.commit();
+            
+            // Its rows are deleted in the transaction that removes it
+            tx = currentSession.beginTransaction();
+            manager.removeTm(currentSession, tm);
+            tx.commit();
+            assertEquals(0, SQLUtil.execCountQuery(conn, new StatementBuilder()
+                .append("SELECT COUNT(*) FROM ")
+                .append(SharedStorageTables.getTuTableName(poolId))));
+        }
+        catch (Exception e) {
+            if (tx.isActive()) {
+                tx.rollback();
+            }
+            throw e;
+        }
+        finally {
+            manager.removeStoragePool(conn, poolId);
+        }
+    }
+    
+    private long countContentIds(TM3SharedTm<TestData> tm) throws Exception {
+        return SQLUtil.execCountQuery(currentSession.connection(), 
+            new StatementBuilder()
+                .append("SELECT COUNT(DISTINCT contentId) FROM ")
+                .append(SharedStorageTables.getTuvTableName(SHARED_STORAGE_ID))
+                .append(" WHERE tmId = ? AND localeId = ?")
+                .addValues(tm.getId(), FR_FR.getId()));
+    }
 }
@@ -0,0 +1,199 @@
+package com.globalsight.ling.tm3.core;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.TreeSet;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+import com.globalsight.ling.tm3.core.FuzzyIndex.RankedCandidate;
+import com.globalsight.ling.tm3.core.PostingSegment.Key;
+import com.globalsight.ling.tm3.core.PostingSegment.Posting;
+import com.globalsight.ling.tm3.core.PostingStore.Change;
+
+public class TestPostingStore {
+
+    private static final long EN = 1, FR = 2;
+
+    private File dir;
+
+    @Before
+    public void setUp() throws IOException {
+        dir = File.createTempFile("tm3", "postings");
+        dir.delete();
+    }
+
+    @After
+    public void tearDown() {
+        PostingStore.destroy(dir);
+    }
+
+    private List<Long> fps(long... fps) {
+        List<Long> l = new ArrayList<Long>();
+        for (long fp : fps) {
+            l.add(fp);
+        }
+        return l;
+    }
+
+    private Map<Long, RankedCandidate> collect(PostingStore store,
+                                               long... fps) {
+        return store.collect(EN, fps(fps), null, false);
+    }
+
+    @Test
+    public void testSegmentRoundTrip() throws IOException {
+        TreeMap<Key, List<Posting>> lists = new TreeMap<Key, List<Posting>>();
+        lists.put(new Key(EN, -5), Arrays.asList(
+                new Posting(10, 7, 3, 4, true),
+                new Posting(300, 2, 200, 250, false)));
+        lists.put(new Key(EN, Long.MAX_VALUE), Arrays.asList(
+                new Posting(11, 7, 3, 4, true)));
+        lists.put(new Key(FR, -5), Arrays.asList(
+                new Posting(12, 7, 1, 0, false)));
+        dir.mkdirs();
+        File f = new File(dir, "seg-1-2.idx");
+        PostingSegment.write(f, 1, 2, lists.entrySet().iterator());
+        PostingSegment segment = PostingSegment.open(f);
+        assertEquals(1, segment.getMinGeneration());
+        assertEquals(2, segment.getGeneration());
+        assertEquals(3, segment.getKeyCount());
+
+        List<Posting> postings = segment.get(EN, -5);
+        assertEquals(2, postings.size());
+        assertEquals(300, postings.get(1).tuvId);
+        assertEquals(2, postings.get(1).tuId);
+        assertEquals(200, postings.get(1).tuvCount);
+        assertEquals(250, postings.get(1).tokenCount);
+        assertFalse(postings.get(1).isSource);
+        assertTrue(postings.get(0).isSource);
+        assertEquals(11, segment.get(EN, Long.MAX_VALUE).get(0).tuvId);
+        assertEquals(12, segment.get(FR, -5).get(0).tuvId);
+        assertNull(segment.get(FR, 0));
+
+        int n = 0;
+        for (Iterator<Map.Entry<Key, List<Posting>>> it = segment.iterator();
+                it.hasNext(); n++) {
+            assertTrue(lists.containsKey(it.next().getKey()));
+        }
+        assertEquals(3, n);
+    }
+
+    @Test
+    public void testVarLong() {
+        for (long v : new long[] { 0, -1, 1, Long.MIN_VALUE, Long.MAX_VALUE }) {
+            assertEquals(v, PostingSegment.unzigzag(PostingSegment.zigzag(v)));
+        }
+    }
+
+    @Test
+    public void testBuildApplyAndMerge() throws IOException {
+        PostingStore store = PostingStore.get(dir);
+        assertFalse(store.isBuilt());
+        assertTrue(store.startBuild());
+        assertFalse(store.startBuild());
+        store.load(Arrays.asList(
+                Change.add(1, 1, EN, true, 4, fps(100, 101, 102)),
+                Change.add(2, 2, EN, true, 3, fps(100, 103)),
+                Change.add(3, 2, FR, false, 2, fps(100))));
+        store.endBuild(true);
+        assertTrue(store.isBuilt());
+
+        Map<Long, RankedCandidate> found = collect(store, 100, 101);
+        assertEquals(2, found.size());
+        assertEquals(2, found.get(1L).shared);
+        assertEquals(3, found.get(1L).tuvCount);
+        assertEquals(4, found.get(1L).tokenCount);
+        assertEquals(1, found.get(2L).shared);
+
+        // Delete from the segment, add to the tail
+        store.apply(Arrays.asList(Change.delete(1),
+                Change.add(4, 3, EN, false, 2, fps(101))));
+        found = collect(store, 100, 101);
+        assertEquals(2, found.size());
+        assertFalse(found.containsKey(1L));
+        assertTrue(found.containsKey(4L));
+        // 4 isn't a source TUV
+        assertTrue(store.collect(EN, fps(101), null, true).isEmpty());
+
+        // Reopening replays the log into a second segment
+        PostingStore.close(dir);
+        store = PostingStore.get(dir);
+        assertTrue(store.isBuilt());
+        found = collect(store, 100, 101);
+        assertEquals(2, found.size());
+        assertFalse(found.containsKey(1L));
+        assertTrue(found.containsKey(4L));
+
+        // Merging applies the tombstone
+        store.merge();
+        Map<Long, Double> weights = new HashMap<Long, Double>();
+        weights.put(100L, 0.5);
+        weights.put(101L, 2.0);
+        found = store.collect(EN, fps(100, 101), weights, false);
+        assertEquals(2, found.size());
+        assertEquals(0.5, found.get(2L).rank, 0.0001);
+        assertEquals(2.0, found.get(4L).rank, 0.0001);
+        assertEquals(1, store.collect(FR, fps(100), null, false).size());
+
+        // A deleted TUV can be added back
+        store.apply(Arrays.asList(Change.add(1, 1, EN, true, 2, fps(100))));
+        assertTrue(collect(store, 100).containsKey(1L));
+    }
+
+    @Test
+    public void testInvalidate() throws IOException {
+        PostingStore store = PostingStore.get(dir);
+        assertTrue(store.startBuild());
+        store.load(Arrays.asList(Change.add(1, 1, EN, true, 2, fps(100))));
+        store.endBuild(true);
+        store.invalidate();
+        assertFalse(store.isBuilt());
+        assertTrue(collect(store, 100).isEmpty());
+        // Still unbuilt after a restart
+        PostingStore.close(dir);
+        assertFalse(PostingStore.get(dir).isBuilt());
+    }
+
+    @Test
+    public void testOtherProcessHasStore() throws IOException {
+        PostingStore store = PostingStore.get(dir);
+        assertTrue(store.startBuild());
+        store.endBuild(true);
+        PostingStore.close(dir);
+        // Stands in for another process's lock
+        RandomAccessFile other = new RandomAccessFile(new File(dir, "lock"),
+                                                      "rw");
+        try {
+            assertNotNull(other.getChannel().tryLock());
+            assertNull(PostingStore.get(dir));
+            PostingStore.post(dir, fps(5, 3));
+            PostingStore.post(dir, fps(3, 8));
+        }
+        finally {
+            other.close();
+        }
+
+        store = PostingStore.get(dir);
+        assertTrue(store.isBuilt());
+        List<File> posted = store.takePosted();
+        assertEquals(2, posted.size());
+        assertEquals(new TreeSet<Long>(fps(3, 5, 8)),
+                     PostingStore.readPosted(posted));
+        PostingStore.deletePosted(posted);
+        PostingStore.post(dir, fps(9));
+        // Not looked for again straight away
+        assertTrue(store.takePosted().isEmpty());
+    }
+}
@@ -0,0 +1,310 @@
+package com.globalsight.ling.tm3.core;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+
+import javax.sql.DataSource;
+
+import org.hibernate.Session;
+import org.hibernate.Transaction;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import com.mysql.jdbc.jdbc2.optional.MysqlDataSource;
+
+/**
+ * Compare a fuzzy index split across two shards with an unsharded one.
+ * The shards are two more databases on the test server,
+ * tm3_test_shard0 and tm3_test_shard1, which are created if needed.
+ * Each test saves the same data to a sharded TM and a plain one, and
+ * expects the same fuzzy matches from both.
+ */
+public class TestShardedFuzzyIndex {
+
+    static final int TU_COUNT = 40;
+
+    static TM3Manager plainManager;
+    static TM3Manager shardedManager;
+
+    Session session;
+    TM3Tm<TM3Tests.TestData> plainTm, shardedTm;
+    TM3Event plainEvent, shardedEvent;
+    List<TM3Tu<TM3Tests.TestData>> plainTus, shardedTus;
+
+    @BeforeClass
+    public static void setup() throws Exception {
+        TM3Tests.init();
+        plainManager = DefaultManager.create();
+        shardedManager = DefaultManager.create();
+        shardedManager.setFuzzyIndexShards(createShards(2));
+    }
+
+    static List<DataSource> createShards(int count) throws Exception {
+        Properties props = new Properties();
+        props.load(TestShardedFuzzyIndex.class.getResourceAsStream(
+                        "/test.properties"));
+        String url = props.getProperty("hibernate.connection.url");
+        String user = props.getProperty("hibernate.connection.username");
+        String password = props.getProperty("hibernate.connection.password");
+        List<DataSource> shards = new ArrayList<DataSource>();
+        Connection conn = DriverManager.getConnection(url, user, password);
+        try {
+            Statement s = conn.createStatement();
+            for (int i = 0; i < count; i++) {
+                String schema = "tm3_test_shard" + i;
+                s.execute("CREATE DATABASE IF NOT EXISTS " + schema);
+                MysqlDataSource ds = new MysqlDataSource();
+                ds.setURL(url.replaceFirst("/[^/?]+(\\?|$)",
+                                           "/" + schema + "$1"));
+                ds.setUser(user);
+                ds.setPassword(password);
+                shards.add(ds);
+            }
+            s.close();
+        }
+        finally {
+            conn.close();
+        }
+        return shards;
+    }
+
+    @Before
+    public void beforeTest() throws Exception {
+        session = TM3Tests.sessionFactory.openSession();
+        Transaction tx = session.beginTransaction();
+        try {
+            plainTm = plainManager.createMultilingualTm(session,
+                    TM3Tests.FACTORY, TM3Tests.inlineAttrs());
+            shardedTm = shardedManager.createMultilingualTm(session,
+                    TM3Tests.FACTORY, TM3Tests.inlineAttrs());
+            session.flush();
+            plainEvent = plainTm.addEvent(0, "test", "test " + plainTm.getId());
+            shardedEvent =
+                shardedTm.addEvent(0, "test", "test " + shardedTm.getId());
+            tx.commit();
+        }
+        catch (Exception e) {
+            tx.rollback();
+            throw e;
+        }
+    }
+
+    @After
+    public void afterTest() throws Exception {
+        Transaction tx = session.beginTransaction();
+        try {
+            plainManager.removeTm(session, plainTm);
+            shardedManager.removeTm(session, shardedTm);
+            tx.commit();
+        }
+        catch (Exception e) {
+            tx.rollback();
+            throw e;
+        }
+        finally {
+            session.close();
+        }
+    }
+
+    @Test
+    public void testLookup() throws Exception {
+        populate();
+        Transaction tx = session.beginTransaction();
+        try {
+            compare("the quick brown fox 7 jumps over a lazy dog",
+                    TM3Tests.EN_US, false);
+            compare("le renard brun rapide 7 saute par dessus un chien",
+                    TM3Tests.FR_FR, true);
+            tx.commit();
+        }
+        catch (Exception e) {
+            tx.rollback();
+            throw e;
+        }
+    }
+
+    @Test
+    public void testDelete() throws Exception {
+        populate();
+        Transaction tx = session.beginTransaction();
+        try {
+            // Purge the first few TUs
+            plainTm.getDataById(idsOf(plainTus.subList(0, 5))).purge();
+            shardedTm.getDataById(idsOf(shardedTus.subList(0, 5))).purge();
+            // Replace the targets of the next few
+            for (int i = 5; i < 10; i++) {
+                replaceTarget(plainTm, plainTus.get(i), plainEvent);
+                replaceTarget(shardedTm, shardedTus.get(i), shardedEvent);
+            }
+            tx.commit();
+        }
+        catch (Exception e) {
+            tx.rollback();
+            throw e;
+        }
+
+        tx = session.beginTransaction();
+        try {
+            List<String> matches =
+                compare("the quick brown fox 2 jumps over the lazy dog",
+                        TM3Tests.EN_US, false);
+            assertFalse(matches.contains(
+                    "the quick brown fox 2 jumps over the lazy dog 100"));
+            matches = compare("le renard brun rapide 7 saute par dessus " +
+                              "le chien paresseux", TM3Tests.FR_FR, true);
+            assertFalse(matches.contains("le renard brun rapide 7 saute " +
+                                         "par dessus le chien paresseux 100"));
+            matches = compare("un autre renard 7", TM3Tests.FR_FR, true);
+            assertTrue(matches.contains("un autre renard 7 100"));
+            tx.commit();
+        }
+        catch (Exception e) {
+            tx.rollback();
+            throw e;
+        }
+    }
+
+    @Test
+    public void testReindex() throws Exception {
+        populate();
+        reindex(plainManager, plainTm);
+        reindex(shardedManager, shardedTm);
+        Transaction tx = session.beginTransaction();
+        try {
+            compare("the quick brown fox 7 jumps over a lazy dog",
+                    TM3Tests.EN_US, false);
+            compare("le renard brun rapide 7 saute par dessus un chien",
+                    TM3Tests.FR_FR, true);
+            tx.commit();
+        }
+        catch (Exception e) {
+            tx.rollback();
+            throw e;
+        }
+    }
+
+    @Test
+    public void testUpgradeCountsShardFrequencies() throws Exception {
+        populate();
+        Transaction tx = session.beginTransaction();
+        try {
+            StorageInfo<TM3Tests.TestData> plain =
+                ((BaseTm<TM3Tests.TestData>) plainTm).getStorageInfo();
+            StorageInfo<TM3Tests.TestData> sharded =
+                ((BaseTm<TM3Tests.TestData>) shardedTm).getStorageInfo();
+            plain.getFuzzyIndex().getFrequencies().clear();
+            sharded.getFuzzyIndex().getFrequencies().clear();
+            assertFalse(sharded.getFuzzyIndex().getFrequencies().isAvailable());
+            plain.upgrade();
+            sharded.upgrade();
+            assertTrue(sharded.getFuzzyIndex().getFrequencies().isAvailable());
+            Map<Long, Long> expected = plain.getFuzzyIndex().getFrequencies()
+                .getFrequent(TM3Tests.EN_US, 0.5);
+            assertFalse(expected.isEmpty());
+            assertEquals(expected, sharded.getFuzzyIndex().getFrequencies()
+                .getFrequent(TM3Tests.EN_US, 0.5));
+            tx.commit();
+        }
+        catch (Exception e) {
+            tx.rollback();
+            throw e;
+        }
+    }
+
+    // Save the same TUs to both TMs
+    private void populate() throws Exception {
+        plainTus = new ArrayList<TM3Tu<TM3Tests.TestData>>();
+        shardedTus = new ArrayList<TM3Tu<TM3Tests.TestData>>();
+        Transaction tx = session.beginTransaction();
+        try {
+            plainTm.setIndexTarget(true);
+            shardedTm.setIndexTarget(true);
+            for (int i = 0; i < TU_COUNT; i++) {
+                TM3Tests.TestData src = new TM3Tests.TestData(
+                        "the quick brown fox " + i +
+                        " jumps over the lazy dog");
+                TM3Tests.TestData tgt = new TM3Tests.TestData(
+                        "le renard brun rapide " + i +
+                        " saute par dessus le chien paresseux");
+                plainTus.add(plainTm.save(TM3Tests.EN_US, src,
+                        TM3Attributes.NONE, TM3Tests.FR_FR, tgt,
+                        TM3SaveMode.MERGE, plainEvent));
+                shardedTus.add(shardedTm.save(TM3Tests.EN_US, src,
+                        TM3Attributes.NONE, TM3Tests.FR_FR, tgt,
+                        TM3SaveMode.MERGE, shardedEvent));
+            }
+            tx.commit();
+        }
+        catch (Exception e) {
+            tx.rollback();
+            throw e;
+        }
+    }
+
+    private void replaceTarget(TM3Tm<TM3Tests.TestData> tm,
+            TM3Tu<TM3Tests.TestData> tu, TM3Event event) {
+        int i = plainTus.indexOf(tu);
+        if (i < 0) {
+            i = shardedTus.indexOf(tu);
+        }
+        tu.removeTargetTuvs();
+        tu.addTargetTuv(TM3Tests.FR_FR,
+                new TM3Tests.TestData("un autre renard " + i), event);
+        tm.modifyTu(tu, event);
+    }
+
+    private void reindex(TM3Manager manager, TM3Tm<TM3Tests.TestData> tm)
+                throws Exception {
+        TM3ReindexJob<TM3Tests.TestData> job =
+            new TM3ReindexJob<TM3Tests.TestData>(TM3Tests.sessionFactory,
+                    manager, TM3Tests.FACTORY, tm.getId());
+        job.setIndexTarget(true);
+        job.run();
+        assertTrue(job.isDone());
+    }
+
+    private static List<Long> idsOf(List<TM3Tu<TM3Tests.TestData>> tus) {
+        List<Long> ids = new ArrayList<Long>();
+        for (TM3Tu<TM3Tests.TestData> tu : tus) {
+            ids.add(tu.getId());
+        }
+        return ids;
+    }
+
+    // Look up a key in both TMs, and check that they return the same
+    // matches.  Returns them as "content score" strings.
+    private List<String> compare(String key, TM3Locale locale,
+                boolean lookupTarget) {
+        TM3Tests.TestData data = new TM3Tests.TestData(key);
+        List<String> expected = describe(plainTm.findMatches(data, locale,
+                null, TM3Attributes.NONE, TM3MatchType.ALL, lookupTarget));
+        List<String> actual = describe(shardedTm.findMatches(data, locale,
+                null, TM3Attributes.NONE, TM3MatchType.ALL, lookupTarget));
+        assertFalse(expected.isEmpty());
+        assertEquals(expected, actual);
+        return actual;
+    }
+
+    private static List<String> describe(
+                TM3LeverageResults<TM3Tests.TestData> results) {
+        List<String> matches = new ArrayList<String>();
+        for (TM3LeverageMatch<TM3Tests.TestData> match :
+                results.getMatches()) {
+            matches.add(match.getTuv().getContent() + " " + match.getScore());
+        }
+        Collections.sort(matches);
+        return matches;
+    }
+}